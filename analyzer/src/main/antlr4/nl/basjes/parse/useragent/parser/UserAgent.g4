@@ -17,6 +17,10 @@
 
 grammar UserAgent;
 
+// All nodes of the parse tree get a common base class so the tree walker can
+// store its per parse information in the node it belongs to.
+options { contextSuperClass=nl.basjes.parse.useragent.parse.WalkableContext; }
+
 //For browsers based on Mozilla, the user-agent string shall follow the format:
 //   MozillaProductToken (MozillaComment) GeckoProductToken *(VendorProductToken|VendorComment)
 //Applications that embed the Gecko layout engine shall have user-agent strings that follow the format:
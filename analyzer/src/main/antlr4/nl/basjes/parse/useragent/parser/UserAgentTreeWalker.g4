@@ -51,6 +51,7 @@ BACKTOFULL      : '@'           ;
 
 // TridentName[agent.(1)product.(2-4)comments.(*)product.name="Trident"^.(*)version~"7.";"DefaultValue"]
 // LookUp[TridentName;agent.(1)product.(2-4)comments.(*)product.name#1="Trident"^.(*)version%1="7.";"DefaultValue"]
+// LookUpPrefix[MobileBrands;agent.(1)product.(1)comments.entry.text;"DefaultValue"]
 
 matcherRequire  : matcher                                                  #matcherBase
 //                | '__SyntaxError__' EQUALS value=VALUE                   #isSyntaxError
@@ -63,6 +64,7 @@ matcher         : basePath
                 | 'NormalizeBrand' BLOCKOPEN matcher BLOCKCLOSE                 #matcherNormalizeBrand
                 | 'CleanVersion'   BLOCKOPEN matcher BLOCKCLOSE                 #matcherCleanVersion
                 | 'LookUp'         BLOCKOPEN lookup=VALUENAME SEMICOLON matcher (SEMICOLON defaultValue=VALUE )? BLOCKCLOSE #matcherPathLookup
+                | 'LookUpPrefix'   BLOCKOPEN lookup=VALUENAME SEMICOLON matcher (SEMICOLON defaultValue=VALUE )? BLOCKCLOSE #matcherPathLookupPrefix
                 | matcher wordRange                                             #matcherWordRange
                 ;
 
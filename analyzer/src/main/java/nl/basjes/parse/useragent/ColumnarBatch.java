@@ -0,0 +1,183 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.basjes.parse.useragent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The results of parsing a batch of useragents as columns: per requested field an array with the value of
+ * every row, an array with the {@link ValueDictionary} codes (only if the analyzer has a value dictionary)
+ * and optionally an array with the confidences.
+ * <p>
+ * The values are the (shared) instances of the results so repeated values are not copied. The arrays are reused
+ * when the batch is filled again (they only grow) so a consumer that processes the columns in a loop does
+ * not need any object per row. Only the first {@link #size()} rows of each array are valid.
+ * Create one with {@link UserAgentAnalyzer#newColumnarBatch(List, boolean)}; an instance is not thread safe.
+ */
+public final class ColumnarBatch {
+
+    private final FieldSchema schema;
+    private final List<String> fieldNames;
+    private final int[] fieldIds;
+    private final boolean withConfidences;
+
+    private String[][] values;
+    private int[][] codes;
+    private long[][] confidences;
+    private int size = 0;
+
+    // The parse results of the current batch (only while the columns are filled).
+    private UserAgent[] results = new UserAgent[0];
+
+    ColumnarBatch(FieldSchema schema, List<String> fieldNames, boolean withConfidences) {
+        this.schema = schema;
+        this.fieldNames = Collections.unmodifiableList(new ArrayList<>(fieldNames));
+        this.withConfidences = withConfidences;
+        fieldIds = new int[fieldNames.size()];
+        for (int column = 0; column < fieldIds.length; column++) {
+            fieldIds[column] = schema.getId(fieldNames.get(column));
+        }
+        values = new String[fieldIds.length][0];
+        codes = new int[fieldIds.length][0];
+        confidences = withConfidences ? new long[fieldIds.length][0] : null;
+    }
+
+    /**
+     * Parse the useragents and fill the columns with the results (replacing the previous content).
+     * @param analyzer         The analyzer that created this batch
+     * @param userAgentStrings The useragents
+     */
+    void fill(UserAgentAnalyzer analyzer, List<String> userAgentStrings) {
+        int count = userAgentStrings.size();
+        if (results.length < count) {
+            results = new UserAgent[Math.max(count, results.length * 2)];
+        }
+        for (int row = 0; row < count; row++) {
+            results[row] = analyzer.parse(userAgentStrings.get(row));
+        }
+
+        clear();
+        ensureCapacity(count);
+        size = count;
+        for (int column = 0; column < fieldIds.length; column++) {
+            fillColumn(column, count);
+        }
+        Arrays.fill(results, 0, count, null);
+    }
+
+    private void fillColumn(int column, int count) {
+        int fieldId = fieldIds[column];
+        String fieldName = fieldNames.get(column);
+        String[] columnValues = values[column];
+        int[] columnCodes = codes[column];
+        long[] columnConfidences = withConfidences ? confidences[column] : null;
+        for (int row = 0; row < count; row++) {
+            UserAgent result = results[row];
+            // Normally all results have the schema of the analyzer so the field is retrieved by its id.
+            int id = result.getFieldSchema() == schema ? fieldId : result.getFieldSchema().getId(fieldName);
+            columnValues[row] = result.getValue(id);
+            columnCodes[row] = result.getValueCode(id);
+            if (columnConfidences != null) {
+                columnConfidences[row] = result.getConfidence(id);
+            }
+        }
+    }
+
+    private void ensureCapacity(int count) {
+        if (count <= capacity()) {
+            return;
+        }
+        int newCapacity = Math.max(count, capacity() * 2);
+        for (int column = 0; column < fieldIds.length; column++) {
+            values[column] = Arrays.copyOf(values[column], newCapacity);
+            codes[column] = Arrays.copyOf(codes[column], newCapacity);
+            if (withConfidences) {
+                confidences[column] = Arrays.copyOf(confidences[column], newCapacity);
+            }
+        }
+    }
+
+    /**
+     * Drop the references to the values (the arrays are kept).
+     */
+    public void clear() {
+        for (String[] column : values) {
+            Arrays.fill(column, 0, size, null);
+        }
+        size = 0;
+    }
+
+    /**
+     * @return The number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return values.length == 0 ? Integer.MAX_VALUE : values[0].length;
+    }
+
+    public List<String> getFieldNames() {
+        return fieldNames;
+    }
+
+    public boolean hasConfidences() {
+        return withConfidences;
+    }
+
+    /**
+     * @param fieldName The name of a requested field
+     * @return The index of the column or -1 if the field was not requested.
+     */
+    public int getColumn(String fieldName) {
+        return fieldNames.indexOf(fieldName);
+    }
+
+    /**
+     * @param column The index of the column (see {@link #getColumn(String)})
+     * @return The values (only the first {@link #size()} are valid).
+     */
+    public String[] getValues(int column) {
+        return values[column];
+    }
+
+    /**
+     * @param column The index of the column (see {@link #getColumn(String)})
+     * @return The {@link ValueDictionary} codes of the values (only the first {@link #size()} are valid).
+     */
+    public int[] getCodes(int column) {
+        return codes[column];
+    }
+
+    /**
+     * @param column The index of the column (see {@link #getColumn(String)})
+     * @return The confidences (only the first {@link #size()} are valid).
+     * @throws IllegalStateException if the batch was created without confidences
+     */
+    public long[] getConfidences(int column) {
+        if (!withConfidences) {
+            throw new IllegalStateException("This batch was created without confidences");
+        }
+        return confidences[column];
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent;
+
+import nl.basjes.parse.useragent.utils.Normalize;
+import nl.basjes.parse.useragent.utils.VersionSplitter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static nl.basjes.parse.useragent.UserAgent.AGENT_NAME;
+import static nl.basjes.parse.useragent.UserAgent.AGENT_VERSION;
+import static nl.basjes.parse.useragent.UserAgent.AGENT_VERSION_MAJOR;
+import static nl.basjes.parse.useragent.UserAgent.DEVICE_BRAND;
+import static nl.basjes.parse.useragent.UserAgent.DEVICE_NAME;
+import static nl.basjes.parse.useragent.UserAgent.LAYOUT_ENGINE_NAME;
+import static nl.basjes.parse.useragent.UserAgent.LAYOUT_ENGINE_VERSION;
+import static nl.basjes.parse.useragent.UserAgent.LAYOUT_ENGINE_VERSION_MAJOR;
+import static nl.basjes.parse.useragent.UserAgent.OPERATING_SYSTEM_NAME;
+import static nl.basjes.parse.useragent.UserAgent.OPERATING_SYSTEM_VERSION;
+
+/**
+ * The fields that are not set by the rules but are calculated from other fields after the rules have been applied
+ * (i.e. AgentNameVersion from AgentName and AgentVersion, or the cleanup of the DeviceBrand).
+ * <p>
+ * Each derived field is registered with the fields it depends on. Because most applications only look at a few fields
+ * the analyzer does not calculate them during the parse: a derived field is calculated (together with the derived
+ * fields it depends on) the first time it is retrieved from the {@link UserAgent}.
+ * Only the derived fields that were explicitly requested (see {@link UserAgentAnalyzer.Builder#withField(String)})
+ * are calculated during the parse.
+ */
+public final class DerivedFields {
+
+    /**
+     * A field that is calculated from other fields.
+     */
+    public abstract static class DerivedField {
+        private final String field;
+        private final List<String> dependencies;
+
+        DerivedField(String field, String... dependencies) {
+            this.field = field;
+            this.dependencies = Collections.unmodifiableList(Arrays.asList(dependencies));
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        /**
+         * @return The fields that are needed to calculate this field (this may include the field itself).
+         */
+        public List<String> getDependencies() {
+            return dependencies;
+        }
+
+        /**
+         * Calculate the field. All derived fields this field depends on have already been calculated.
+         * @param userAgent The instance that is read (via {@link UserAgent#getDerivationInput(String)})
+         *                  and updated (via {@link UserAgent#setDerivedValue(String, String, long)}).
+         */
+        abstract void derive(UserAgent userAgent);
+
+        @Override
+        public String toString() {
+            return field + " <- " + dependencies;
+        }
+    }
+
+    // All derived fields, a derived field is always after the derived fields it depends on.
+    private static final List<DerivedField> ALL = new ArrayList<>();
+
+    static {
+        register(new MajorVersion(AGENT_VERSION_MAJOR,                AGENT_VERSION));
+        register(new MajorVersion(LAYOUT_ENGINE_VERSION_MAJOR,        LAYOUT_ENGINE_VERSION));
+        register(new MajorVersion("WebviewAppVersionMajor",           "WebviewAppVersion"));
+
+        register(new Concatenation("AgentNameVersion",                AGENT_NAME,             AGENT_VERSION));
+        register(new Concatenation("AgentNameVersionMajor",           AGENT_NAME,             AGENT_VERSION_MAJOR));
+        register(new Concatenation("WebviewAppNameVersionMajor",      "WebviewAppName",       "WebviewAppVersionMajor"));
+        register(new Concatenation("LayoutEngineNameVersion",         LAYOUT_ENGINE_NAME,     LAYOUT_ENGINE_VERSION));
+        register(new Concatenation("LayoutEngineNameVersionMajor",    LAYOUT_ENGINE_NAME,     LAYOUT_ENGINE_VERSION_MAJOR));
+        register(new Concatenation("OperatingSystemNameVersion",      OPERATING_SYSTEM_NAME,  OPERATING_SYSTEM_VERSION));
+
+        register(new NormalizedBrand());
+        register(new NormalizedEmail());
+        register(new NormalizedDeviceName());
+    }
+
+    private static void register(DerivedField derivedField) {
+        if (ALL.size() == Long.SIZE) {
+            throw new IllegalStateException("There can be at most " + Long.SIZE + " derived fields.");
+        }
+        ALL.add(derivedField);
+    }
+
+    /**
+     * @return All derived fields in the order in which they must be calculated.
+     */
+    public static List<DerivedField> getDerivedFields() {
+        return Collections.unmodifiableList(ALL);
+    }
+
+    /**
+     * @return The names of all fields that are (partially) derived from other fields.
+     */
+    public static Set<String> getFieldNames() {
+        Set<String> fieldNames = new LinkedHashSet<>();
+        for (DerivedField derivedField : ALL) {
+            fieldNames.add(derivedField.getField());
+        }
+        return fieldNames;
+    }
+
+    /**
+     * @param fieldName The name of a field
+     * @return All fields (directly or indirectly) needed to calculate the field (empty if it is not a derived field).
+     */
+    public static Set<String> getDependencies(String fieldName) {
+        Set<String> dependencies = new LinkedHashSet<>();
+        addDependencies(fieldName, dependencies);
+        dependencies.remove(fieldName);
+        return dependencies;
+    }
+
+    private static void addDependencies(String fieldName, Set<String> dependencies) {
+        for (DerivedField derivedField : ALL) {
+            if (derivedField.getField().equals(fieldName)) {
+                for (String dependency : derivedField.getDependencies()) {
+                    if (dependencies.add(dependency)) {
+                        addDependencies(dependency, dependencies);
+                    }
+                }
+            }
+        }
+    }
+
+    // -----------------------------------------------------------
+
+    private final FieldSchema schema;
+
+    // Per field id: the (bits of the) derived fields that must be calculated before the field can be retrieved.
+    private final long[] requiredByFieldId;
+
+    /**
+     * @param schema The schema of the instances for which the fields are derived.
+     */
+    DerivedFields(FieldSchema schema) {
+        this.schema = schema;
+        Map<String, Long> requiredByName = new HashMap<>();
+        for (int index = 0; index < ALL.size(); index++) {
+            DerivedField derivedField = ALL.get(index);
+            long required = 1L << index;
+            for (String dependency : derivedField.getDependencies()) {
+                Long dependencyRequired = requiredByName.get(dependency);
+                if (dependencyRequired != null && !dependency.equals(derivedField.getField())) {
+                    required |= dependencyRequired;
+                }
+            }
+            Long earlier = requiredByName.get(derivedField.getField());
+            requiredByName.put(derivedField.getField(), earlier == null ? required : earlier | required);
+        }
+
+        requiredByFieldId = new long[schema.size()];
+        for (Map.Entry<String, Long> entry : requiredByName.entrySet()) {
+            int id = schema.getId(entry.getKey());
+            if (id < 0) {
+                throw new IllegalArgumentException("The schema does not have the derived field " + entry.getKey());
+            }
+            requiredByFieldId[id] = entry.getValue();
+        }
+    }
+
+    FieldSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * @return The derived fields that must be calculated before all fields can be retrieved.
+     */
+    long all() {
+        return ALL.size() == Long.SIZE ? -1L : (1L << ALL.size()) - 1;
+    }
+
+    /**
+     * @param fieldId The id of a field in the schema
+     * @return The derived fields that must be calculated before the field can be retrieved.
+     */
+    long requiredFor(int fieldId) {
+        if (fieldId < 0 || fieldId >= requiredByFieldId.length) {
+            return 0;
+        }
+        return requiredByFieldId[fieldId];
+    }
+
+    /**
+     * @param fieldNames The names of the fields
+     * @return The derived fields that must be calculated before all of these fields can be retrieved.
+     */
+    long requiredFor(Collection<String> fieldNames) {
+        long required = 0;
+        for (String fieldName : fieldNames) {
+            required |= requiredFor(schema.getId(fieldName));
+        }
+        return required;
+    }
+
+    /**
+     * Calculate the derived fields in the mask (in the order of registration).
+     * @param userAgent The instance
+     * @param mask      The derived fields (see {@link #requiredFor(int)}).
+     */
+    static void derive(UserAgent userAgent, long mask) {
+        for (int index = 0; index < ALL.size(); index++) {
+            if ((mask & (1L << index)) != 0) {
+                ALL.get(index).derive(userAgent);
+            }
+        }
+    }
+
+    // -----------------------------------------------------------
+
+    private static final class MajorVersion extends DerivedField {
+        private final String versionName;
+
+        MajorVersion(String majorVersionName, String versionName) {
+            super(majorVersionName, majorVersionName, versionName);
+            this.versionName = versionName;
+        }
+
+        @Override
+        void derive(UserAgent userAgent) {
+            UserAgent.AgentField versionMajor = userAgent.getDerivationInput(getField());
+            if (versionMajor == null || versionMajor.getConfidence() == -1) {
+                UserAgent.AgentField version = userAgent.getDerivationInput(versionName);
+                if (version != null) {
+                    userAgent.setDerivedValue(
+                        getField(),
+                        VersionSplitter.getSingleVersion(version.getValue(), 1),
+                        version.getConfidence());
+                }
+            }
+        }
+    }
+
+    private static final class Concatenation extends DerivedField {
+        private final String firstName;
+        private final String secondName;
+
+        Concatenation(String targetName, String firstName, String secondName) {
+            super(targetName, firstName, secondName);
+            this.firstName = firstName;
+            this.secondName = secondName;
+        }
+
+        // The values are concatenated without duplicating the first value if the second already starts with it.
+        @Override
+        void derive(UserAgent userAgent) {
+            UserAgent.AgentField firstField = userAgent.getDerivationInput(firstName);
+            UserAgent.AgentField secondField = userAgent.getDerivationInput(secondName);
+
+            String first = null;
+            long firstConfidence = -1;
+            String second = null;
+            long secondConfidence = -1;
+
+            if (firstField != null) {
+                first = firstField.getValue();
+                firstConfidence = firstField.getConfidence();
+            }
+            if (secondField != null) {
+                second = secondField.getValue();
+                secondConfidence = secondField.getConfidence();
+            }
+
+            if (first == null && second == null) {
+                return; // Nothing to do
+            }
+
+            String targetName = getField();
+            if (second == null) {
+                if (firstConfidence >= 0) {
+                    userAgent.setDerivedValue(targetName, first, firstConfidence);
+                }
+                return;
+            }
+            if (first == null) {
+                if (secondConfidence >= 0) {
+                    userAgent.setDerivedValue(targetName, second, secondConfidence);
+                }
+                return;
+            }
+
+            if (first.equals(second)) {
+                userAgent.setDerivedValue(targetName, first, firstConfidence);
+            } else {
+                if (second.startsWith(first)) {
+                    userAgent.setDerivedValue(targetName, second, secondConfidence);
+                } else {
+                    userAgent.setDerivedValue(targetName, first + " " + second, Math.max(firstConfidence, secondConfidence));
+                }
+            }
+        }
+    }
+
+    // The device brand field is a mess.
+    private static final class NormalizedBrand extends DerivedField {
+        NormalizedBrand() {
+            super(DEVICE_BRAND, DEVICE_BRAND);
+        }
+
+        @Override
+        void derive(UserAgent userAgent) {
+            UserAgent.AgentField deviceBrand = userAgent.getDerivationInput(DEVICE_BRAND);
+            if (deviceBrand != null && deviceBrand.getConfidence() >= 0) {
+                userAgent.setDerivedValue(
+                    DEVICE_BRAND,
+                    Normalize.brand(deviceBrand.getValue()),
+                    deviceBrand.getConfidence() + 1);
+            }
+        }
+    }
+
+    // The email address is a mess
+    private static final class NormalizedEmail extends DerivedField {
+        private static final String AGENT_INFORMATION_EMAIL = "AgentInformationEmail";
+
+        NormalizedEmail() {
+            super(AGENT_INFORMATION_EMAIL, AGENT_INFORMATION_EMAIL);
+        }
+
+        @Override
+        void derive(UserAgent userAgent) {
+            UserAgent.AgentField email = userAgent.getDerivationInput(AGENT_INFORMATION_EMAIL);
+            if (email != null && email.getConfidence() >= 0) {
+                userAgent.setDerivedValue(
+                    AGENT_INFORMATION_EMAIL,
+                    Normalize.email(email.getValue()),
+                    email.getConfidence() + 1);
+            }
+        }
+    }
+
+    // Make sure the DeviceName always starts with the (normalized) DeviceBrand
+    private static final class NormalizedDeviceName extends DerivedField {
+        NormalizedDeviceName() {
+            super(DEVICE_NAME, DEVICE_NAME, DEVICE_BRAND);
+        }
+
+        @Override
+        void derive(UserAgent userAgent) {
+            UserAgent.AgentField deviceName = userAgent.getDerivationInput(DEVICE_NAME);
+            if (deviceName == null || deviceName.getConfidence() < 0) {
+                return;
+            }
+            UserAgent.AgentField deviceBrand = userAgent.getDerivationInput(DEVICE_BRAND);
+            String deviceNameValue = deviceName.getValue();
+            if (deviceBrand != null &&
+                deviceBrand.getConfidence() >= 0 &&
+                !deviceBrand.getValue().equals("Unknown")) {
+                // In some cases it does start with the brand but without a separator following the brand
+                deviceNameValue = Normalize.cleanupDeviceBrandName(deviceBrand.getValue(), deviceNameValue);
+            } else {
+                deviceNameValue = Normalize.brand(deviceNameValue);
+            }
+
+            userAgent.setDerivedValue(
+                DEVICE_NAME,
+                deviceNameValue,
+                deviceName.getConfidence() + 1);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.basjes.parse.useragent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static nl.basjes.parse.useragent.UserAgent.AGENT_CLASS;
+import static nl.basjes.parse.useragent.UserAgent.AGENT_NAME;
+import static nl.basjes.parse.useragent.UserAgent.AGENT_VERSION;
+import static nl.basjes.parse.useragent.UserAgent.AGENT_VERSION_MAJOR;
+import static nl.basjes.parse.useragent.UserAgent.DEVICE_BRAND;
+import static nl.basjes.parse.useragent.UserAgent.DEVICE_CLASS;
+import static nl.basjes.parse.useragent.UserAgent.DEVICE_NAME;
+import static nl.basjes.parse.useragent.UserAgent.LAYOUT_ENGINE_CLASS;
+import static nl.basjes.parse.useragent.UserAgent.LAYOUT_ENGINE_NAME;
+import static nl.basjes.parse.useragent.UserAgent.LAYOUT_ENGINE_VERSION;
+import static nl.basjes.parse.useragent.UserAgent.LAYOUT_ENGINE_VERSION_MAJOR;
+import static nl.basjes.parse.useragent.UserAgent.OPERATING_SYSTEM_CLASS;
+import static nl.basjes.parse.useragent.UserAgent.OPERATING_SYSTEM_NAME;
+import static nl.basjes.parse.useragent.UserAgent.OPERATING_SYSTEM_VERSION;
+import static nl.basjes.parse.useragent.UserAgent.SET_ALL_FIELDS;
+import static nl.basjes.parse.useragent.UserAgent.SYNTAX_ERROR;
+import static nl.basjes.parse.useragent.UserAgent.UNKNOWN_VALUE;
+import static nl.basjes.parse.useragent.UserAgent.UNKNOWN_VERSION;
+
+/**
+ * All the fields a {@link UserAgent} can have. Each field has a fixed int id (the index of its value and confidence
+ * in the arrays of a UserAgent) and a default value.
+ * <p>
+ * The analyzer builds the schema once from all the fields its rules can produce so a parse never has to extend it.
+ * The fields that every UserAgent has (and the system fields) are the first ones in every schema so they
+ * have the same id everywhere. A UserAgent that is given a field that is not in its schema switches to an
+ * extended schema; these are shared so this happens only once per new field.
+ */
+public final class FieldSchema {
+
+    // The fields that every UserAgent has.
+    static final String[] INITIAL_FIELDS = {
+        // Device : Family - Brand - Model
+        DEVICE_CLASS,                // Hacker / Cloud / Server / Desktop / Tablet / Phone / Watch
+        DEVICE_BRAND,                // (Google/AWS/Asure) / ????
+        DEVICE_NAME,                 // (Google/AWS/Asure) / ????
+
+        // Operating system
+        OPERATING_SYSTEM_CLASS,      // Cloud, Desktop, Mobile, Embedded
+        OPERATING_SYSTEM_NAME,       // ( Linux / Android / Windows ...)
+        OPERATING_SYSTEM_VERSION,    // 1.2 / 43 / ...
+
+        // Engine : Class (=None/Hacker/Robot/Browser) - Name - Version
+        LAYOUT_ENGINE_CLASS,         // None / Hacker / Robot / Browser /
+        LAYOUT_ENGINE_NAME,          // ( GoogleBot / Bing / ...) / (Trident / Gecko / ...)
+        LAYOUT_ENGINE_VERSION,       // 1.2 / 43 / ...
+        LAYOUT_ENGINE_VERSION_MAJOR, // 1 / 43 / ...
+
+        // Agent: Class (=Hacker/Robot/Browser) - Name - Version
+        AGENT_CLASS,                 // Hacker / Robot / Browser /
+        AGENT_NAME,                  // ( GoogleBot / Bing / ...) / ( Firefox / Chrome / ... )
+        AGENT_VERSION,               // 1.2 / 43 / ...
+        AGENT_VERSION_MAJOR,         // 1 / 43 / ...
+    };
+
+    /** The schema with only the fields every UserAgent has and the system fields. */
+    public static final FieldSchema DEFAULT = of(Collections.<String>emptySet());
+
+    private final String[] names;
+    private final String[] defaultValues;
+    private final Map<String, Integer> ids;
+    private final ConcurrentHashMap<String, FieldSchema> extensions = new ConcurrentHashMap<>();
+
+    // Only created when a UserAgent with this schema is written as json.
+    private volatile JsonFields jsonFields = null;
+
+    private FieldSchema(List<String> fieldNames) {
+        names = fieldNames.toArray(new String[fieldNames.size()]);
+        defaultValues = new String[names.length];
+        ids = new HashMap<>(names.length * 2);
+        for (int id = 0; id < names.length; id++) {
+            defaultValues[id] = defaultValueOf(names[id]);
+            ids.put(names[id], id);
+        }
+    }
+
+    /**
+     * @param fieldNames The fields (in addition to the ones every UserAgent has)
+     * @return A schema with the fields every UserAgent has, the system fields and the provided fields (sorted).
+     */
+    public static FieldSchema of(Collection<String> fieldNames) {
+        List<String> allNames = new ArrayList<>(Arrays.asList(INITIAL_FIELDS));
+        allNames.add(SYNTAX_ERROR);
+        allNames.add(SET_ALL_FIELDS);
+        for (String fieldName : new TreeSet<>(fieldNames)) {
+            if (!allNames.contains(fieldName)) {
+                allNames.add(fieldName);
+            }
+        }
+        return new FieldSchema(allNames);
+    }
+
+    private static String defaultValueOf(String fieldName) {
+        switch (fieldName) {
+            case OPERATING_SYSTEM_VERSION:
+            case LAYOUT_ENGINE_VERSION:
+            case LAYOUT_ENGINE_VERSION_MAJOR:
+            case AGENT_VERSION:
+            case AGENT_VERSION_MAJOR:
+                return UNKNOWN_VERSION;
+            case SYNTAX_ERROR:
+                return "false";
+            default:
+                for (String initialField : INITIAL_FIELDS) {
+                    if (initialField.equals(fieldName)) {
+                        return UNKNOWN_VALUE;
+                    }
+                }
+                return null; // The fields we do not know get a 'null' default
+        }
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @param fieldName The name of the field
+     * @return The id of the field or -1 if it is not part of this schema.
+     */
+    public int getId(String fieldName) {
+        Integer id = ids.get(fieldName);
+        return id == null ? -1 : id;
+    }
+
+    public String getName(int id) {
+        return names[id];
+    }
+
+    public String getDefaultValue(int id) {
+        return defaultValues[id];
+    }
+
+    /**
+     * @return The names of all fields, in the order of their id.
+     */
+    public List<String> getFieldNames() {
+        return Collections.unmodifiableList(Arrays.asList(names));
+    }
+
+    JsonFields getJsonFields() {
+        JsonFields result = jsonFields;
+        if (result == null) {
+            // Creating it more than once (by different threads) is harmless.
+            result = new JsonFields(this);
+            jsonFields = result;
+        }
+        return result;
+    }
+
+    /**
+     * @param fieldName The field that must be added.
+     * @return A schema with the same fields (and ids) as this one plus the provided field (this if it is already here).
+     */
+    public FieldSchema with(String fieldName) {
+        if (ids.containsKey(fieldName)) {
+            return this;
+        }
+        FieldSchema extended = extensions.get(fieldName);
+        if (extended == null) {
+            List<String> extendedNames = new ArrayList<>(Arrays.asList(names));
+            extendedNames.add(fieldName);
+            extended = new FieldSchema(extendedNames);
+            FieldSchema existing = extensions.putIfAbsent(fieldName, extended);
+            if (existing != null) {
+                extended = existing;
+            }
+        }
+        return extended;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.basjes.parse.useragent;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import static nl.basjes.parse.useragent.UserAgent.SET_ALL_FIELDS;
+import static nl.basjes.parse.useragent.UserAgent.STANDARD_FIELDS;
+
+/**
+ * The order of the fields of a {@link FieldSchema} in the json form of a {@link UserAgent} (first the standard
+ * fields, then all others sorted by name) and the already escaped field names, so writing a result does not need
+ * to sort or escape the names again.
+ * <p>
+ * The values are escaped the same way as {@link StringEscapeUtils#escapeJson(String)} does; so everything outside
+ * of the printable ASCII range is written as a \\uXXXX escape and the output is pure ASCII (and thus valid UTF-8).
+ */
+final class JsonFields {
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    static final String USER_AGENT_STRING_PREFIX = "\"user_agent_string\":\"";
+    static final byte[] USER_AGENT_STRING_PREFIX_BYTES = USER_AGENT_STRING_PREFIX.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL_BYTES = "null".getBytes(StandardCharsets.US_ASCII);
+
+    // The field ids in the order of the output; the first ones are always written (the standard fields).
+    private final int[] order;
+    private final int standardFields;
+
+    // Per field id: "name":"
+    private final String[] prefixes;
+    private final byte[][] prefixBytes;
+
+    JsonFields(FieldSchema schema) {
+        List<Integer> ids = new ArrayList<>(schema.size());
+        for (String fieldName : STANDARD_FIELDS) {
+            ids.add(schema.getId(fieldName));
+        }
+        standardFields = ids.size();
+        TreeMap<String, Integer> others = new TreeMap<>();
+        for (int id = 0; id < schema.size(); id++) {
+            String fieldName = schema.getName(id);
+            if (!ids.contains(id) && !SET_ALL_FIELDS.equals(fieldName)) {
+                others.put(fieldName, id);
+            }
+        }
+        ids.addAll(others.values());
+
+        order = new int[ids.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = ids.get(i);
+        }
+
+        prefixes = new String[schema.size()];
+        prefixBytes = new byte[schema.size()][];
+        for (int id = 0; id < schema.size(); id++) {
+            prefixes[id] = '"' + StringEscapeUtils.escapeJson(schema.getName(id)) + "\":\"";
+            prefixBytes[id] = prefixes[id].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    int size() {
+        return order.length;
+    }
+
+    int fieldId(int position) {
+        return order[position];
+    }
+
+    /**
+     * @param position The position in the output
+     * @return true if the field is always written (even if the UserAgent does not have it).
+     */
+    boolean isStandardField(int position) {
+        return position < standardFields;
+    }
+
+    String prefix(int fieldId) {
+        return prefixes[fieldId];
+    }
+
+    byte[] prefixBytes(int fieldId) {
+        return prefixBytes[fieldId];
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(order);
+    }
+
+    // -----------------------------------------------------------
+
+    static void writeEscaped(Appendable out, String value) throws IOException {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (!needsEscape(c)) {
+                continue;
+            }
+            if (start < i) {
+                out.append(value, start, i);
+            }
+            start = i + 1;
+            char code = escapeCode(c);
+            out.append('\\').append(code);
+            if (code == 'u') {
+                out
+                    .append(HEX_DIGITS[(c >> 12) & 0xF])
+                    .append(HEX_DIGITS[(c >> 8) & 0xF])
+                    .append(HEX_DIGITS[(c >> 4) & 0xF])
+                    .append(HEX_DIGITS[c & 0xF]);
+            }
+        }
+        if (start < length) {
+            out.append(value, start, length);
+        }
+    }
+
+    static void writeEscaped(OutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.write(NULL_BYTES);
+            return;
+        }
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (!needsEscape(c)) {
+                out.write(c);
+                continue;
+            }
+            char code = escapeCode(c);
+            out.write('\\');
+            out.write(code);
+            if (code == 'u') {
+                out.write(HEX_DIGITS[(c >> 12) & 0xF]);
+                out.write(HEX_DIGITS[(c >> 8) & 0xF]);
+                out.write(HEX_DIGITS[(c >> 4) & 0xF]);
+                out.write(HEX_DIGITS[c & 0xF]);
+            }
+        }
+    }
+
+    // The character after the backslash ('u' means a unicode escape with 4 hex digits).
+    private static char escapeCode(char c) {
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                return c;
+            case '\b':
+                return 'b';
+            case '\n':
+                return 'n';
+            case '\t':
+                return 't';
+            case '\f':
+                return 'f';
+            case '\r':
+                return 'r';
+            default:
+                return 'u';
+        }
+    }
+
+    // Everything outside of the printable ASCII range (and the characters json wants escaped).
+    private static boolean needsEscape(char c) {
+        return c < 32 || c > 0x7f || c == '"' || c == '\\' || c == '/';
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent;
+
+import nl.basjes.parse.useragent.utils.TinyLfuCache;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets equal parts of parse results share the same instances. There are far fewer distinct values than distinct useragents
+ * (i.e. all patch versions of a browser on the same device have the same confidences and almost the same values)
+ * so a large cache of frozen results needs much less memory if those share their values.
+ * <p>
+ * Every value is shared on its own, so results that only differ in (for example) the version fields still share
+ * all other values. The confidences and the value codes are shared as a whole array.
+ * The shared values and arrays are kept in bounded caches that keep the ones that are seen most often,
+ * so values that are no longer seen make room for new ones.
+ * Thread safe.
+ */
+public final class ResultInterner {
+
+    private final TinyLfuCache<String, String> values;
+    private final TinyLfuCache<Fields, Fields> arrays;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize The maximum number of distinct values (and also of distinct arrays of confidences or codes) that are shared.
+     */
+    public ResultInterner(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("The result interner must be able to hold at least 1 value");
+        }
+        values = new TinyLfuCache<>(maxSize);
+        arrays = new TinyLfuCache<>(maxSize);
+    }
+
+    /**
+     * All derived fields of the result are calculated first (they can no longer be calculated lazily).
+     * @param userAgent A frozen parse result
+     * @return A frozen copy that shares its values with all equal results (or the provided instance if it already does).
+     */
+    public UserAgent intern(UserAgent userAgent) {
+        if (!userAgent.isFrozen()) {
+            throw new IllegalArgumentException("Only a frozen UserAgent can be interned.");
+        }
+        if (userAgent.hasInternedFields()) {
+            return userAgent;
+        }
+        String[] sharedValues = userAgent.fieldValues().clone();
+        for (int id = 0; id < sharedValues.length; id++) {
+            if (sharedValues[id] != null) {
+                sharedValues[id] = intern(sharedValues[id]);
+            }
+        }
+        long[] confidences = intern(new Fields(userAgent.fieldConfidences())).confidences;
+        int[] codes = userAgent.fieldCodes();
+        if (codes != null) {
+            codes = intern(new Fields(codes)).codes;
+        }
+        return userAgent.withInternedFields(sharedValues, confidences, codes);
+    }
+
+    private String intern(String candidate) {
+        String shared = values.get(candidate);
+        if (shared == null) {
+            values.put(candidate, candidate);
+            misses.incrementAndGet();
+            return candidate;
+        }
+        hits.incrementAndGet();
+        return shared;
+    }
+
+    private Fields intern(Fields candidate) {
+        Fields shared = arrays.get(candidate);
+        if (shared == null) {
+            arrays.put(candidate, candidate);
+            misses.incrementAndGet();
+            return candidate;
+        }
+        hits.incrementAndGet();
+        return shared;
+    }
+
+    /**
+     * @return The number of distinct values and arrays that are shared.
+     */
+    public int size() {
+        return values.size() + arrays.size();
+    }
+
+    /**
+     * @return The number of values and arrays that were replaced by an equal shared instance.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of values and arrays that were not replaced (because they were new).
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    // Exactly one of the arrays is set; the content of the arrays never changes.
+    private static final class Fields {
+        private final long[] confidences;
+        private final int[] codes;
+        private final int hash;
+
+        Fields(long[] confidences) {
+            this.confidences = confidences;
+            this.codes = null;
+            hash = 31 * Arrays.hashCode(confidences) + 1;
+        }
+
+        Fields(int[] codes) {
+            this.confidences = null;
+            this.codes = codes;
+            hash = 31 * Arrays.hashCode(codes) + 2;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Fields)) {
+                return false;
+            }
+            Fields other = (Fields) o;
+            return hash == other.hash &&
+                Arrays.equals(confidences, other.confidences) &&
+                Arrays.equals(codes, other.codes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
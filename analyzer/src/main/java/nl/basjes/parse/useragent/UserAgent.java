@@ -18,6 +18,8 @@
 package nl.basjes.parse.useragent;
 
 import nl.basjes.parse.useragent.analyze.Matcher;
+import nl.basjes.parse.useragent.classify.DeviceClass;
+import nl.basjes.parse.useragent.classify.VersionNumber;
 import nl.basjes.parse.useragent.parser.UserAgentBaseListener;
 import org.antlr.v4.runtime.ANTLRErrorListener;
 import org.antlr.v4.runtime.Parser;
@@ -25,17 +27,21 @@ import org.antlr.v4.runtime.RecognitionException;
 import org.antlr.v4.runtime.Recognizer;
 import org.antlr.v4.runtime.atn.ATNConfigSet;
 import org.antlr.v4.runtime.dfa.DFA;
-import org.apache.commons.lang3.StringEscapeUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public class UserAgent extends UserAgentBaseListener implements ANTLRErrorListener {
 
@@ -109,10 +115,11 @@ public class UserAgent extends UserAgentBaseListener implements ANTLRErrorListen
             LOG.error("Source : {}", userAgentString);
             LOG.error("Message: {}", msg);
         }
+        ensureWritable();
         hasSyntaxError = true;
-        AgentField syntaxError = new AgentField("false");
-        syntaxError.setValue("true", 1);
-        allFields.put(SYNTAX_ERROR, syntaxError);
+        int id = fieldId(SYNTAX_ERROR);
+        values[id] = "true";
+        confidences[id] = 1;
     }
 
     @Override
@@ -163,62 +170,104 @@ public class UserAgent extends UserAgentBaseListener implements ANTLRErrorListen
         this.debug = newDebug;
     }
 
+    /**
+     * A view on a single field of a UserAgent; the value and confidence are stored in the UserAgent itself.
+     */
     public class AgentField {
-        private final String defaultValue;
-        private String value;
+        private final int id;
 
-        private long confidence;
-
-        AgentField(String defaultValue) {
-            this.defaultValue = defaultValue;
-            reset();
+        AgentField(int id) {
+            this.id = id;
         }
 
         public void reset() {
-            value = defaultValue;
-            confidence = -1;
+            ensureWritable();
+            values[id] = schema.getDefaultValue(id);
+            confidences[id] = -1;
         }
 
         public String getValue() {
+            String value = values[id];
             if (value == null) {
-                return defaultValue;
+                return schema.getDefaultValue(id);
             }
             return value;
         }
 
         public long getConfidence() {
-            if (value == null) {
+            if (values[id] == null) {
                 return -1; // Lie in case the value was wiped.
             }
-            return confidence;
+            return confidences[id];
         }
 
 
         public boolean setValue(AgentField field) {
-            return setValue(field.value, field.confidence);
+            return setValue(field.rawValue(), field.rawConfidence());
         }
 
         public boolean setValue(String newValue, long newConfidence) {
-            if (newConfidence > this.confidence) {
-                this.confidence = newConfidence;
+            ensureWritable();
+            return setFieldValue(id, newValue, newConfidence);
+        }
 
-                if (NULL_VALUE.equals(newValue)) {
-                    this.value = defaultValue;
-                } else {
-                    this.value = newValue;
-                }
-                return true;
-            }
-            return false;
+        private String rawValue() {
+            return values[id];
+        }
+
+        private long rawConfidence() {
+            return confidences[id];
         }
 
         @Override
         public String toString() {
-            return ">" + this.value + "#" + this.confidence + "<";
+            return ">" + values[id] + "#" + confidences[id] + "<";
         }
     }
 
-    private final Map<String, AgentField> allFields = new HashMap<>(32);
+    // The confidence of a field that this instance does not have.
+    private static final long ABSENT = Long.MIN_VALUE;
+
+    // The value and confidence of each field of the schema are at the index of the field id.
+    private FieldSchema schema = FieldSchema.DEFAULT;
+    private String[] values;
+    private long[] confidences;
+
+    // The codes of the values in the dictionary of the analyzer (only as long as nothing has been changed since).
+    private ValueDictionary valueDictionary = null;
+    private int[] valueCodes = null;
+
+    // A frozen instance can safely be shared (i.e. by the parse cache) because it can no longer be changed.
+    private boolean frozen = false;
+
+    // A copy on write instance uses the fields of a frozen instance until it is changed for the first time.
+    private boolean sharedFields = false;
+
+    // The values are shared with all equal results via a ResultInterner (implies sharedFields).
+    private boolean internedFields = false;
+    // The estimated number of bytes of the interned values that were already used by other results.
+    private long internedSize = 0;
+
+    // The typed forms of some fields; determined at the end of the parse (or when first asked) and dropped on any change.
+    private DeviceClass deviceClass = null;
+    private VersionNumber agentVersion = null;
+    private VersionNumber operatingSystemVersion = null;
+
+    // The derived fields that are calculated when they are first retrieved (shared by all instances with the same fields).
+    private LazyDerivation lazyDerivation = null;
+
+    private static final class LazyDerivation {
+        private final DerivedFields derivedFields;
+        // The derived fields (bits) that have not been calculated yet; cleared after the values have been stored.
+        private volatile long pending;
+        // Only read and written while holding the lock.
+        private boolean running = false;
+
+        LazyDerivation(DerivedFields derivedFields, long pending) {
+            this.derivedFields = derivedFields;
+            this.pending = pending;
+        }
+    }
 
 
     public UserAgent() {
@@ -230,43 +279,585 @@ public class UserAgent extends UserAgentBaseListener implements ANTLRErrorListen
         setUserAgentString(userAgentString);
     }
 
+    /**
+     * @param userAgentString The useragent
+     * @param schema          All fields this instance is expected to get (i.e. {@link UserAgentAnalyzer#getFieldSchema()}).
+     */
+    public UserAgent(String userAgentString, FieldSchema schema) {
+        this.schema = schema;
+        init();
+        setUserAgentString(userAgentString);
+    }
+
     public UserAgent(UserAgent userAgent) {
+        schema = userAgent.schema;
         clone(userAgent);
     }
 
+    // Only for the copies that get all of their fields from somewhere else.
+    private UserAgent(boolean initialize) {
+        if (initialize) {
+            init();
+        }
+    }
+
     public void clone(UserAgent userAgent) {
+        checkNotFrozen();
+        userAgent.deriveAll();
+        lazyDerivation = null;
+        if (sharedFields) {
+            // Everything is overwritten anyway so there is no need to copy the shared fields first.
+            values = null;
+            confidences = null;
+            sharedFields = false;
+            internedFields = false;
+            internedSize = 0;
+        }
         init();
         setUserAgentString(userAgentString);
-        for (Map.Entry<String, AgentField> entry : userAgent.allFields.entrySet()) {
-            set(entry.getKey(), entry.getValue().getValue(), entry.getValue().confidence);
+        FieldSchema otherSchema = userAgent.schema;
+        for (int otherId = 0; otherId < otherSchema.size(); otherId++) {
+            if (userAgent.isPresent(otherId)) {
+                int id = otherSchema == schema ? otherId : fieldId(otherSchema.getName(otherId));
+                setField(id, userAgent.getValue(otherId), userAgent.confidences[otherId]);
+            }
+        }
+        hasSyntaxError = userAgent.hasSyntaxError;
+        hasAmbiguity = userAgent.hasAmbiguity;
+        ambiguityCount = userAgent.ambiguityCount;
+        deviceClass = userAgent.deviceClass;
+        agentVersion = userAgent.agentVersion;
+        operatingSystemVersion = userAgent.operatingSystemVersion;
+        if (otherSchema == schema && userAgent.valueCodes != null) {
+            // Exactly the same values
+            valueDictionary = userAgent.valueDictionary;
+            valueCodes = userAgent.valueCodes;
         }
     }
 
-    private void init() {
-        // Device : Family - Brand - Model
-        allFields.put(DEVICE_CLASS,                  new AgentField(UNKNOWN_VALUE)); // Hacker / Cloud / Server / Desktop / Tablet / Phone / Watch
-        allFields.put(DEVICE_BRAND,                  new AgentField(UNKNOWN_VALUE)); // (Google/AWS/Asure) / ????
-        allFields.put(DEVICE_NAME,                   new AgentField(UNKNOWN_VALUE)); // (Google/AWS/Asure) / ????
+    /**
+     * Make this instance immutable so it can be shared between threads (i.e. via the parse cache).
+     * All methods that change a frozen instance (or any of its fields) throw an UnsupportedOperationException.
+     * @return this instance
+     */
+    public UserAgent freeze() {
+        frozen = true;
+        return this;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * @return A frozen copy of this instance (or this instance if it is already frozen).
+     */
+    public UserAgent frozenCopy() {
+        if (frozen) {
+            return this;
+        }
+        deriveAll();
+        UserAgent copy = new UserAgent(false);
+        copy.copyStateFrom(this);
+        copy.values = values.clone();
+        copy.confidences = confidences.clone();
+        copy.internedFields = false;
+        copy.internedSize = 0;
+        return copy.freeze();
+    }
+
+    /**
+     * Get an instance that can be changed without affecting this one.
+     * For a frozen instance this is a cheap copy on write wrapper that only copies the fields on the first change.
+     * @return A changeable instance with the same content.
+     */
+    public UserAgent copyOnWrite() {
+        if (!frozen) {
+            deriveAll();
+        }
+        UserAgent copy = new UserAgent(false);
+        copy.copyStateFrom(this);
+        if (frozen) {
+            copy.values = values;
+            copy.confidences = confidences;
+            copy.sharedFields = true;
+        } else {
+            copy.values = values.clone();
+            copy.confidences = confidences.clone();
+            copy.internedFields = false;
+            copy.internedSize = 0;
+        }
+        return copy;
+    }
+
+    /**
+     * @param newUserAgentString The useragent string of the copy.
+     * @return A frozen copy of this frozen instance with a different useragent string that shares all fields.
+     */
+    public UserAgent frozenCopyFor(String newUserAgentString) {
+        if (!frozen) {
+            throw new IllegalStateException("Only a frozen instance can share its fields.");
+        }
+        UserAgent copy = new UserAgent(false);
+        copy.copyStateFrom(this);
+        copy.userAgentString = newUserAgentString;
+        copy.values = values;
+        copy.confidences = confidences;
+        copy.sharedFields = true;
+        return copy.freeze();
+    }
 
-        // Operating system
-        allFields.put(OPERATING_SYSTEM_CLASS,        new AgentField(UNKNOWN_VALUE)); // Cloud, Desktop, Mobile, Embedded
-        allFields.put(OPERATING_SYSTEM_NAME,         new AgentField(UNKNOWN_VALUE)); // ( Linux / Android / Windows ...)
-        allFields.put(OPERATING_SYSTEM_VERSION,      new AgentField(UNKNOWN_VERSION)); // 1.2 / 43 / ...
+    private void copyStateFrom(UserAgent userAgent) {
+        schema = userAgent.schema;
+        valueDictionary = userAgent.valueDictionary;
+        valueCodes = userAgent.valueCodes;
+        lazyDerivation = userAgent.lazyDerivation;
+        internedFields = userAgent.internedFields;
+        internedSize = userAgent.internedSize;
+        deviceClass = userAgent.deviceClass;
+        agentVersion = userAgent.agentVersion;
+        operatingSystemVersion = userAgent.operatingSystemVersion;
+        userAgentString = userAgent.userAgentString;
+        hasSyntaxError = userAgent.hasSyntaxError;
+        hasAmbiguity = userAgent.hasAmbiguity;
+        ambiguityCount = userAgent.ambiguityCount;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new UnsupportedOperationException(
+                "This UserAgent is frozen (it may be shared by the cache). Use copyOnWrite() to get one that can be changed.");
+        }
+    }
+
+    // Must be called before anything is changed.
+    private void ensureWritable() {
+        checkNotFrozen();
+        // The derived fields must be calculated from the values before the change.
+        deriveAll();
+        if (sharedFields) {
+            values = values.clone();
+            confidences = confidences.clone();
+            sharedFields = false;
+            internedFields = false;
+            internedSize = 0;
+        }
+        // A change makes the codes and the typed values invalid.
+        valueDictionary = null;
+        valueCodes = null;
+        deviceClass = null;
+        agentVersion = null;
+        operatingSystemVersion = null;
+    }
 
-        // Engine : Class (=None/Hacker/Robot/Browser) - Name - Version
-        allFields.put(LAYOUT_ENGINE_CLASS,           new AgentField(UNKNOWN_VALUE)); // None / Hacker / Robot / Browser /
-        allFields.put(LAYOUT_ENGINE_NAME,            new AgentField(UNKNOWN_VALUE)); // ( GoogleBot / Bing / ...) / (Trident / Gecko / ...)
-        allFields.put(LAYOUT_ENGINE_VERSION,         new AgentField(UNKNOWN_VERSION)); // 1.2 / 43 / ...
-        allFields.put(LAYOUT_ENGINE_VERSION_MAJOR,   new AgentField(UNKNOWN_VERSION)); // 1 / 43 / ...
+    /**
+     * @return The schema that gives the id of every field of this instance.
+     */
+    public FieldSchema getFieldSchema() {
+        return schema;
+    }
 
-        // Agent: Class (=Hacker/Robot/Browser) - Name - Version
-        allFields.put(AGENT_CLASS,                   new AgentField(UNKNOWN_VALUE)); // Hacker / Robot / Browser /
-        allFields.put(AGENT_NAME,                    new AgentField(UNKNOWN_VALUE)); // ( GoogleBot / Bing / ...) / ( Firefox / Chrome / ... )
-        allFields.put(AGENT_VERSION,                 new AgentField(UNKNOWN_VERSION)); // 1.2 / 43 / ...
-        allFields.put(AGENT_VERSION_MAJOR,           new AgentField(UNKNOWN_VERSION)); // 1 / 43 / ...
+    /**
+     * Calculate the derived fields when they are retrieved instead of during the parse.
+     * Must be called by the analyzer at the very end of the parse (any change calculates them immediately).
+     * @param derivedFields The derived fields for the schema of this instance
+     * @param pending       The derived fields that have not been calculated yet
+     */
+    void deriveLazily(DerivedFields derivedFields, long pending) {
+        if (derivedFields.getSchema() != schema) {
+            throw new IllegalArgumentException("The derived fields are for a different schema.");
+        }
+        lazyDerivation = pending == 0 ? null : new LazyDerivation(derivedFields, pending);
+    }
+
+    // Calculate the derived fields needed to retrieve the field.
+    private void derive(int fieldId) {
+        LazyDerivation lazy = lazyDerivation;
+        if (lazy != null) {
+            derive(lazy, lazy.derivedFields.requiredFor(fieldId));
+        }
+    }
+
+    // Calculate all derived fields.
+    private void deriveAll() {
+        LazyDerivation lazy = lazyDerivation;
+        if (lazy != null) {
+            derive(lazy, -1L);
+            if (!frozen) {
+                // A frozen instance keeps it so other threads always see the values via the (volatile) pending bits.
+                lazyDerivation = null;
+            }
+        }
+    }
+
+    private void derive(LazyDerivation lazy, long required) {
+        if ((lazy.pending & required) == 0) {
+            return;
+        }
+        // The fields may be shared by several (frozen) instances that are used by different threads.
+        synchronized (lazy) {
+            if (lazy.running) {
+                return; // Reading the input of the derivation that is running right now
+            }
+            long pending = lazy.pending;
+            lazy.running = true;
+            try {
+                DerivedFields.derive(this, pending & required);
+            } finally {
+                lazy.running = false;
+            }
+            lazy.pending = pending & ~required;
+        }
+    }
+
+    /**
+     * Only for a {@link DerivedFields.DerivedField}: read a field without calculating derived fields or copying.
+     * @param fieldName The name of the field
+     * @return The field (or null if it does not exist)
+     */
+    AgentField getDerivationInput(String fieldName) {
+        int id = schema.getId(fieldName);
+        if (id < 0 || !isPresent(id)) {
+            return null;
+        }
+        return new AgentField(id);
+    }
+
+    /**
+     * Only for a {@link DerivedFields.DerivedField}: set a derived value, also on a frozen instance.
+     * The value is encoded if the other values are encoded.
+     * @param fieldName  The name of the field
+     * @param value      The new value
+     * @param confidence The confidence of the new value
+     */
+    void setDerivedValue(String fieldName, String value, long confidence) {
+        int knownFields = values.length;
+        int id = fieldId(fieldName);
+        if (!setField(id, value, confidence)) {
+            return;
+        }
+        if (valueCodes != null) {
+            if (id >= knownFields) {
+                // The schema was extended, this only happens if the derived fields are calculated during the parse.
+                valueDictionary = null;
+                valueCodes = null;
+                return;
+            }
+            int code = valueDictionary.encode(getValue(id));
+            valueCodes[id] = code;
+            if (code != ValueDictionary.NO_CODE && values[id] != null) {
+                values[id] = valueDictionary.decode(code);
+            }
+        }
+    }
+
+    private boolean isPresent(int id) {
+        return confidences[id] != ABSENT;
+    }
+
+    // The id of the field; if the field is not in the schema the schema is extended.
+    private int fieldId(String fieldName) {
+        int id = schema.getId(fieldName);
+        if (id >= 0) {
+            return id;
+        }
+        schema = schema.with(fieldName);
+        int size = schema.size();
+        int oldSize = values.length;
+        values = Arrays.copyOf(values, size);
+        confidences = Arrays.copyOf(confidences, size);
+        Arrays.fill(confidences, oldSize, size, ABSENT);
+        sharedFields = false;
+        return schema.getId(fieldName);
+    }
+
+    // Must be called after ensureWritable.
+    private boolean setField(int id, String newValue, long newConfidence) {
+        if (!isPresent(id)) {
+            values[id] = schema.getDefaultValue(id);
+            confidences[id] = -1;
+        }
+        return setFieldValue(id, newValue, newConfidence);
+    }
+
+    private boolean setFieldValue(int id, String newValue, long newConfidence) {
+        if (newConfidence > confidences[id]) {
+            confidences[id] = newConfidence;
+
+            if (NULL_VALUE.equals(newValue)) {
+                values[id] = schema.getDefaultValue(id);
+            } else {
+                values[id] = newValue;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return A rough estimate of the number of bytes this instance uses on the heap (i.e. to limit a cache).
+     */
+    public long getEstimatedSize() {
+        long size = 64 + estimatedSize(userAgentString) + 32 + 12L * values.length;
+        for (int id = 0; id < values.length; id++) {
+            // The value may actually be shared with other instances.
+            if (isPresent(id)) {
+                size += estimatedSize(values[id]);
+            }
+        }
+        // The interned values that other results already had are accounted for by those.
+        return size - internedSize;
+    }
+
+    private static long estimatedSize(String value) {
+        return value == null ? 0 : 40 + 2L * value.length();
+    }
+
+    // Version 1 also contained the default value of every field.
+    private static final byte SERIALIZATION_VERSION = 2;
+
+    /**
+     * Serialize this instance (the useragent string, all fields with their confidence and the parse flags)
+     * to a byte[] that can be stored outside of this JVM (i.e. in a persistent cache).
+     * The default values of the fields are not stored, those are determined by the schema when deserializing.
+     * @return The serialized form.
+     */
+    public byte[] serialize() {
+        deriveAll();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(SERIALIZATION_VERSION);
+            writeString(out, userAgentString);
+            out.writeBoolean(hasSyntaxError);
+            out.writeBoolean(hasAmbiguity);
+            out.writeInt(ambiguityCount);
+            int fields = 0;
+            for (int id = 0; id < values.length; id++) {
+                if (isPresent(id)) {
+                    fields++;
+                }
+            }
+            out.writeInt(fields);
+            for (int id = 0; id < values.length; id++) {
+                if (isPresent(id)) {
+                    writeString(out, schema.getName(id));
+                    writeString(out, values[id]);
+                    out.writeLong(confidences[id]);
+                }
+            }
+        } catch (IOException e) {
+            // A ByteArrayOutputStream does not throw IOExceptions.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Recreate a UserAgent from the output of {@link #serialize()}.
+     * @param bytes The serialized form
+     * @return A frozen instance.
+     * @throws IllegalArgumentException if the bytes are not a valid serialized UserAgent.
+     */
+    public static UserAgent deserialize(byte[] bytes) {
+        return deserialize(bytes, FieldSchema.DEFAULT);
+    }
+
+    /**
+     * Recreate a UserAgent from the output of {@link #serialize()}.
+     * @param bytes  The serialized form
+     * @param schema The schema of the new instance (i.e. of the analyzer)
+     * @return A frozen instance.
+     * @throws IllegalArgumentException if the bytes are not a valid serialized UserAgent.
+     */
+    public static UserAgent deserialize(byte[] bytes, FieldSchema schema) {
+        return deserialize(bytes, schema, null);
+    }
+
+    /**
+     * Recreate a UserAgent from the output of {@link #serialize()}.
+     * @param bytes      The serialized form
+     * @param schema     The schema of the new instance (i.e. of the analyzer)
+     * @param dictionary The dictionary in which the values are encoded (null for none)
+     * @return A frozen instance.
+     * @throws IllegalArgumentException if the bytes are not a valid serialized UserAgent.
+     */
+    public static UserAgent deserialize(byte[] bytes, FieldSchema schema, ValueDictionary dictionary) {
+        UserAgent userAgent = new UserAgent(false);
+        userAgent.schema = schema;
+        userAgent.allocateFields();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            byte version = in.readByte();
+            if (version != SERIALIZATION_VERSION && version != 1) {
+                throw new IllegalArgumentException("Unsupported serialization version " + version);
+            }
+            userAgent.userAgentString = readString(in);
+            userAgent.hasSyntaxError = in.readBoolean();
+            userAgent.hasAmbiguity = in.readBoolean();
+            userAgent.ambiguityCount = in.readInt();
+            int fields = in.readInt();
+            for (int i = 0; i < fields; i++) {
+                int id = userAgent.fieldId(readString(in));
+                if (version == 1) {
+                    readString(in); // The default value is determined by the schema
+                }
+                userAgent.values[id] = readString(in);
+                userAgent.confidences[id] = in.readLong();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid serialized UserAgent", e);
+        }
+        if (dictionary != null) {
+            userAgent.encodeValues(dictionary);
+        }
+        return userAgent.freeze();
+    }
+
+    // -----------------------------------------------------------
+    // Only for the ResultInterner
+
+    // All derived fields are calculated first so the shared arrays never change afterwards.
+    String[] fieldValues() {
+        deriveAll();
+        return values;
+    }
+
+    long[] fieldConfidences() {
+        deriveAll();
+        return confidences;
+    }
+
+    int[] fieldCodes() {
+        deriveAll();
+        return valueCodes;
+    }
+
+    boolean hasInternedFields() {
+        return internedFields;
+    }
+
+    /**
+     * A value (or array) that is not the same instance as the one of this instance was already used by another result.
+     * @return A frozen copy of this frozen instance that uses the provided (equal) values and arrays instead of its own.
+     */
+    UserAgent withInternedFields(String[] sharedValues, long[] sharedConfidences, int[] sharedCodes) {
+        if (!frozen) {
+            throw new IllegalStateException("Only a frozen instance can share its fields.");
+        }
+        UserAgent copy = new UserAgent(false);
+        copy.copyStateFrom(this);
+        copy.lazyDerivation = null; // All derived fields have been calculated.
+        copy.values = sharedValues;
+        copy.confidences = sharedConfidences;
+        copy.valueCodes = sharedCodes;
+        copy.sharedFields = true;
+        copy.internedFields = true;
+        long reused = 0;
+        for (int id = 0; id < values.length; id++) {
+            if (isPresent(id) && sharedValues[id] != values[id]) {
+                reused += estimatedSize(sharedValues[id]);
+            }
+        }
+        if (sharedConfidences != confidences) {
+            reused += 16 + 8L * confidences.length;
+        }
+        copy.internedSize = reused;
+        return copy.freeze();
+    }
+
+    // -----------------------------------------------------------
+    // Only for the UserAgentCodec
+
+    /**
+     * @return The number of field ids of this instance (all derived fields have been calculated).
+     */
+    int encodableFields() {
+        deriveAll();
+        return values.length;
+    }
+
+    boolean hasField(int id) {
+        return isPresent(id);
+    }
+
+    // The value as stored (may be null, see getValue for the default).
+    String storedValue(int id) {
+        return values[id];
+    }
+
+    // The confidence as stored (without the lie for a wiped value).
+    long storedConfidence(int id) {
+        return confidences[id];
+    }
+
+    /**
+     * @return An instance without any fields (not even the standard ones) that is filled with putDecodedField.
+     */
+    static UserAgent forDecoding(FieldSchema schema, String userAgentString,
+                                 boolean hasSyntaxError, boolean hasAmbiguity, int ambiguityCount) {
+        UserAgent userAgent = new UserAgent(false);
+        userAgent.schema = schema;
+        userAgent.allocateFields();
+        userAgent.userAgentString = userAgentString;
+        userAgent.hasSyntaxError = hasSyntaxError;
+        userAgent.hasAmbiguity = hasAmbiguity;
+        userAgent.ambiguityCount = ambiguityCount;
+        return userAgent;
+    }
+
+    void putDecodedField(int id, String value, long confidence) {
+        values[id] = value;
+        confidences[id] = confidence;
+    }
+
+    void putDecodedField(String fieldName, String value, long confidence) {
+        putDecodedField(fieldId(fieldName), value, confidence);
+    }
+
+    // -----------------------------------------------------------
+
+    // Unlike writeUTF this has no 64KB limit and supports null.
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void allocateFields() {
+        values = new String[schema.size()];
+        confidences = new long[schema.size()];
+        Arrays.fill(confidences, ABSENT);
+    }
+
+    private void init() {
+        if (values == null) {
+            allocateFields();
+        }
+        for (String fieldName : FieldSchema.INITIAL_FIELDS) {
+            int id = fieldId(fieldName);
+            values[id] = schema.getDefaultValue(id);
+            confidences[id] = -1;
+        }
     }
 
     public void setUserAgentString(String newUserAgentString) {
+        checkNotFrozen();
         this.userAgentString = newUserAgentString;
         reset();
     }
@@ -276,12 +867,18 @@ public class UserAgent extends UserAgentBaseListener implements ANTLRErrorListen
     }
 
     public void reset() {
+        // All values are reset, so there is no need to calculate the derived fields first.
+        lazyDerivation = null;
+        ensureWritable();
         hasSyntaxError = false;
         hasAmbiguity = false;
         ambiguityCount = 0;
 
-        for (AgentField field : allFields.values()) {
-            field.reset();
+        for (int id = 0; id < values.length; id++) {
+            if (isPresent(id)) {
+                values[id] = schema.getDefaultValue(id);
+                confidences[id] = -1;
+            }
         }
     }
 
@@ -291,27 +888,26 @@ public class UserAgent extends UserAgentBaseListener implements ANTLRErrorListen
     }
 
     public void processSetAll() {
-        AgentField setAllField = allFields.get(SET_ALL_FIELDS);
-        if (setAllField == null) {
+        ensureWritable();
+        int setAllId = schema.getId(SET_ALL_FIELDS);
+        if (setAllId < 0 || !isPresent(setAllId)) {
             return;
         }
-        String value = setAllField.getValue();
-        Long confidence = setAllField.confidence;
-        for (Map.Entry<String, AgentField> fieldEntry : allFields.entrySet()) {
-            if (!isSystemField(fieldEntry.getKey())) {
-                fieldEntry.getValue().setValue(value, confidence);
+        String value = new AgentField(setAllId).getValue();
+        long confidence = confidences[setAllId];
+        for (int id = 0; id < values.length; id++) {
+            if (isPresent(id) && !isSystemField(schema.getName(id))) {
+                setFieldValue(id, value, confidence);
             }
         }
     }
 
     public void set(String attribute, String value, long confidence) {
-        AgentField field = allFields.get(attribute);
-        if (field == null) {
-            field = new AgentField(null); // The fields we do not know get a 'null' default
-        }
+        ensureWritable();
+        int id = fieldId(attribute);
 
         boolean wasEmpty = confidence == -1;
-        boolean updated = field.setValue(value, confidence);
+        boolean updated = setField(id, value, confidence);
         if (debug && !wasEmpty) {
             if (updated) {
                 LOG.info("USE  {} ({}) = {}", attribute, confidence, value);
@@ -319,38 +915,193 @@ public class UserAgent extends UserAgentBaseListener implements ANTLRErrorListen
                 LOG.info("SKIP {} ({}) = {}", attribute, confidence, value);
             }
         }
-        allFields.put(attribute, field);
     }
 
     // The appliedMatcher parameter is needed for development and debugging.
     public void set(UserAgent newValuesUserAgent, Matcher appliedMatcher) {
-        for (String fieldName : newValuesUserAgent.allFields.keySet()) {
-            set(fieldName, newValuesUserAgent.allFields.get(fieldName));
+        FieldSchema newValuesSchema = newValuesUserAgent.schema;
+        if (newValuesSchema != schema || debug) {
+            for (int id = 0; id < newValuesSchema.size(); id++) {
+                if (newValuesUserAgent.isPresent(id)) {
+                    set(newValuesSchema.getName(id), newValuesUserAgent.values[id], newValuesUserAgent.confidences[id]);
+                }
+            }
+            return;
+        }
+        // The same schema (normally the one of the analyzer) so the fields can be copied by their id.
+        ensureWritable();
+        for (int id = 0; id < values.length; id++) {
+            if (newValuesUserAgent.isPresent(id)) {
+                setField(id, newValuesUserAgent.values[id], newValuesUserAgent.confidences[id]);
+            }
         }
     }
 
-    private void set(String fieldName, AgentField agentField) {
-        set(fieldName, agentField.value, agentField.confidence);
-    }
-
+    /**
+     * Note that the returned AgentField can be changed. So for a copy on write instance this creates the copy.
+     * The AgentField of a frozen instance can only be read (changing it throws an UnsupportedOperationException).
+     * Use getValue and getConfidence to only read.
+     * @param fieldName The name of the field
+     * @return The field (or null if it does not exist)
+     */
     public AgentField get(String fieldName) {
-        return allFields.get(fieldName);
+        if (sharedFields && !frozen) {
+            ensureWritable();
+        }
+        int id = schema.getId(fieldName);
+        derive(id);
+        if (id < 0 || !isPresent(id)) {
+            return null;
+        }
+        return new AgentField(id);
     }
 
     public String getValue(String fieldName) {
-        AgentField field = allFields.get(fieldName);
-        if (field == null) {
+        return getValue(schema.getId(fieldName));
+    }
+
+    public Long getConfidence(String fieldName) {
+        return getConfidence(schema.getId(fieldName));
+    }
+
+    /**
+     * @param fieldId The id of the field in the schema of this instance (see {@link #getFieldSchema()}).
+     * @return The value of the field (Unknown if this instance does not have the field).
+     */
+    public String getValue(int fieldId) {
+        derive(fieldId);
+        if (fieldId < 0 || fieldId >= values.length || !isPresent(fieldId)) {
             return UNKNOWN_VALUE;
         }
-        return field.getValue();
+        String value = values[fieldId];
+        return value == null ? schema.getDefaultValue(fieldId) : value;
     }
 
-    public Long getConfidence(String fieldName) {
-        AgentField field = allFields.get(fieldName);
-        if (field == null) {
+    /**
+     * @param fieldId The id of the field in the schema of this instance (see {@link #getFieldSchema()}).
+     * @return The confidence of the field (-1 if this instance does not have the field).
+     */
+    public long getConfidence(int fieldId) {
+        derive(fieldId);
+        if (fieldId < 0 || fieldId >= values.length || !isPresent(fieldId) || values[fieldId] == null) {
             return -1L;
         }
-        return field.getConfidence();
+        return confidences[fieldId];
+    }
+
+    /**
+     * @return The DeviceClass as an enum (determined only once).
+     */
+    public DeviceClass getDeviceClass() {
+        DeviceClass result = deviceClass;
+        if (result == null) {
+            // An enum (or the immutable Version) can safely be set by any thread, also on a frozen instance.
+            result = DeviceClass.fromValue(getValue(DEVICE_CLASS));
+            deviceClass = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return The numeric AgentVersion (determined only once).
+     */
+    public VersionNumber getAgentVersion() {
+        VersionNumber result = agentVersion;
+        if (result == null) {
+            result = VersionNumber.parse(getValue(AGENT_VERSION));
+            agentVersion = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return The numeric OperatingSystemVersion (determined only once).
+     */
+    public VersionNumber getOperatingSystemVersion() {
+        VersionNumber result = operatingSystemVersion;
+        if (result == null) {
+            result = VersionNumber.parse(getValue(OPERATING_SYSTEM_VERSION));
+            operatingSystemVersion = result;
+        }
+        return result;
+    }
+
+    /**
+     * @param fieldName The name of a version field
+     * @return The numeric version of the field (not remembered, so use the specific getters if they exist).
+     */
+    public VersionNumber getVersion(String fieldName) {
+        return VersionNumber.parse(getValue(fieldName));
+    }
+
+    // Done by the analyzer at the end of the parse so the shared (cached) result has them.
+    void resolveTypedValues() {
+        getDeviceClass();
+        getAgentVersion();
+        getOperatingSystemVersion();
+    }
+
+    /**
+     * Replace all values with the instance of the dictionary and remember their codes.
+     * Done by the analyzer at the end of a parse (any change afterwards drops the codes).
+     * @param dictionary The dictionary of the analyzer
+     */
+    void encodeValues(ValueDictionary dictionary) {
+        ensureWritable();
+        int[] codes = new int[values.length];
+        for (int id = 0; id < values.length; id++) {
+            String value = isPresent(id) ? getValue(id) : null;
+            int code = dictionary.encode(value);
+            codes[id] = code;
+            if (code != ValueDictionary.NO_CODE && values[id] != null) {
+                values[id] = dictionary.decode(code);
+            }
+        }
+        valueDictionary = dictionary;
+        valueCodes = codes;
+    }
+
+    /**
+     * @param fieldName The name of the field
+     * @return The code of the value of the field in the {@link ValueDictionary} of the analyzer
+     * or {@link ValueDictionary#NO_CODE} if the value has no code (or this instance was changed after the parse).
+     */
+    public int getValueCode(String fieldName) {
+        return getValueCode(schema.getId(fieldName));
+    }
+
+    /**
+     * @param fieldId The id of the field in the schema of this instance (see {@link #getFieldSchema()}).
+     * @return The code of the value of the field in the {@link ValueDictionary} of the analyzer
+     * or {@link ValueDictionary#NO_CODE} if the value has no code (or this instance was changed after the parse).
+     */
+    public int getValueCode(int fieldId) {
+        derive(fieldId);
+        ValueDictionary dictionary = valueDictionary;
+        int[] codes = valueCodes;
+        if (codes == null) {
+            return ValueDictionary.NO_CODE;
+        }
+        if (fieldId < 0 || fieldId >= codes.length || !isPresent(fieldId)) {
+            return dictionary.getCode(UNKNOWN_VALUE);
+        }
+        return codes[fieldId];
+    }
+
+    // The confidence as stored (without the lie for a wiped value).
+    private long storedConfidence(String fieldName) {
+        return confidences[schema.getId(fieldName)];
+    }
+
+    private List<String> presentFieldNames() {
+        deriveAll();
+        List<String> fieldNames = new ArrayList<>(values.length);
+        for (int id = 0; id < values.length; id++) {
+            if (isPresent(id)) {
+                fieldNames.add(schema.getName(id));
+            }
+        }
+        return fieldNames;
     }
 
     public String toYamlTestCase() {
@@ -374,11 +1125,11 @@ public class UserAgent extends UserAgentBaseListener implements ANTLRErrorListen
 
         int maxNameLength = 30;
         int maxValueLength = 0;
-        for (String fieldName : allFields.keySet()) {
+        for (String fieldName : presentFieldNames()) {
             maxNameLength = Math.max(maxNameLength, fieldName.length());
         }
         for (String fieldName : fieldNames) {
-            maxValueLength = Math.max(maxValueLength, get(fieldName).getValue().length());
+            maxValueLength = Math.max(maxValueLength, getValue(fieldName).length());
         }
 
         for (String fieldName : fieldNames) {
@@ -386,13 +1137,13 @@ public class UserAgent extends UserAgentBaseListener implements ANTLRErrorListen
             for (int l = fieldName.length(); l < maxNameLength + 7; l++) {
                 sb.append(' ');
             }
-            String value = get(fieldName).getValue();
+            String value = getValue(fieldName);
             sb.append(": '").append(value).append('\'');
             if (showConfidence) {
                 for (int l = value.length(); l < maxValueLength + 5; l++) {
                     sb.append(' ');
                 }
-                sb.append("# ").append(get(fieldName).confidence);
+                sb.append("# ").append(storedConfidence(fieldName));
             }
             sb.append('\n');
         }
@@ -424,51 +1175,86 @@ public class UserAgent extends UserAgentBaseListener implements ANTLRErrorListen
 //    }
 
     public String toJson() {
-        StringBuilder sb = new StringBuilder(10240);
-        sb.append("{");
+        StringBuilder sb = new StringBuilder(2048);
+        try {
+            writeJson(sb);
+        } catch (IOException e) {
+            // A StringBuilder does not throw IOExceptions.
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
 
-        List<String> fieldNames = getAvailableFieldNames();
-        Collections.sort(fieldNames);
+    /**
+     * Write the same as {@link #toJson()} without creating the String.
+     * The field order and the escaped field names are determined once per {@link FieldSchema}.
+     * @param out Where the json is appended to
+     * @throws IOException if the Appendable throws it
+     */
+    public void writeJson(Appendable out) throws IOException {
+        deriveAll();
+        JsonFields jsonFields = schema.getJsonFields();
+        out.append('{');
+        for (int position = 0; position < jsonFields.size(); position++) {
+            int id = jsonFields.fieldId(position);
+            if (jsonFields.isStandardField(position) || isAvailable(id)) {
+                out.append(jsonFields.prefix(id));
+                JsonFields.writeEscaped(out, getValue(id));
+                out.append('"').append(',');
+            }
+        }
+        out.append(JsonFields.USER_AGENT_STRING_PREFIX);
+        JsonFields.writeEscaped(out, userAgentString);
+        out.append('"').append('}').append('\n');
+    }
 
-        for (String fieldName : UserAgent.STANDARD_FIELDS) {
-            fieldNames.remove(fieldName);
-            sb
-                .append('"').append(StringEscapeUtils.escapeJson(fieldName))                .append('"')
-                .append(':')
-                .append('"').append(StringEscapeUtils.escapeJson(get(fieldName).getValue())).append('"')
-                .append(',');
+    /**
+     * Write the same as {@link #toJson()} as UTF-8 bytes (actually only ASCII because everything else is escaped).
+     * Every byte is written separately so the stream should be buffered.
+     * @param out Where the json is written to
+     * @throws IOException if the OutputStream throws it
+     */
+    public void writeJson(OutputStream out) throws IOException {
+        deriveAll();
+        JsonFields jsonFields = schema.getJsonFields();
+        out.write('{');
+        for (int position = 0; position < jsonFields.size(); position++) {
+            int id = jsonFields.fieldId(position);
+            if (jsonFields.isStandardField(position) || isAvailable(id)) {
+                out.write(jsonFields.prefixBytes(id));
+                JsonFields.writeEscaped(out, getValue(id));
+                out.write('"');
+                out.write(',');
+            }
         }
-        for (String fieldName : fieldNames) {
-            sb
-                .append('"').append(StringEscapeUtils.escapeJson(fieldName))                .append('"')
-                .append(':')
-                .append('"').append(StringEscapeUtils.escapeJson(get(fieldName).getValue())).append('"')
-                .append(',');
-        }
-        sb
-            .append("\"user_agent_string\":")
-            .append('"').append(StringEscapeUtils.escapeJson(userAgentString)).append('"')
-            .append("}\n");
-        return sb.toString();
+        out.write(JsonFields.USER_AGENT_STRING_PREFIX_BYTES);
+        JsonFields.writeEscaped(out, userAgentString);
+        out.write('"');
+        out.write('}');
+        out.write('\n');
     }
 
+    // The same condition as used by getAvailableFieldNames
+    private boolean isAvailable(int id) {
+        return id < values.length && isPresent(id) && confidences[id] >= 0 && getValue(id) != null;
+    }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("  - user_agent_string: '\"" + userAgentString + "\"'\n");
         int maxLength = 0;
-        for (String fieldName : allFields.keySet()) {
+        for (String fieldName : presentFieldNames()) {
             maxLength = Math.max(maxLength, fieldName.length());
         }
         for (String fieldName : getAvailableFieldNamesSorted()) {
-            AgentField field = allFields.get(fieldName);
-            if (field.getValue() != null) {
+            String value = getValue(fieldName);
+            if (value != null) {
                 sb.append("    ").append(fieldName);
                 for (int l = fieldName.length(); l < maxLength + 2; l++) {
                     sb.append(' ');
                 }
-                sb.append(": '").append(field.getValue()).append('\'');
-                sb.append("# ").append(field.confidence);
+                sb.append(": '").append(value).append('\'');
+                sb.append("# ").append(storedConfidence(fieldName));
                 sb.append('\n');
             }
         }
@@ -476,14 +1262,13 @@ public class UserAgent extends UserAgentBaseListener implements ANTLRErrorListen
     }
 
     public List<String> getAvailableFieldNames() {
-        List<String> resultSet = new ArrayList<>(allFields.size()+10);
+        deriveAll();
+        List<String> resultSet = new ArrayList<>(values.length + 10);
         resultSet.addAll(Arrays.asList(STANDARD_FIELDS));
-        for (String fieldName : allFields.keySet()) {
-            if (!resultSet.contains(fieldName)){
-                AgentField field = allFields.get(fieldName);
-                if (field != null && field.confidence >= 0 && field.getValue() != null) {
-                    resultSet.add(fieldName);
-                }
+        for (int id = 0; id < values.length; id++) {
+            String fieldName = schema.getName(id);
+            if (isAvailable(id) && !resultSet.contains(fieldName)) {
+                resultSet.add(fieldName);
             }
         }
 
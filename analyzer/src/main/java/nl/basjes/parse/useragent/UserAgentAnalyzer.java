@@ -18,29 +18,44 @@
 package nl.basjes.parse.useragent;
 
 import nl.basjes.parse.useragent.analyze.Analyzer;
+import nl.basjes.parse.useragent.analyze.DiscriminationNetwork;
 import nl.basjes.parse.useragent.analyze.InvalidParserConfigurationException;
 import nl.basjes.parse.useragent.analyze.Matcher;
 import nl.basjes.parse.useragent.analyze.MatcherAction;
+import nl.basjes.parse.useragent.analyze.MatcherPartitions;
 import nl.basjes.parse.useragent.analyze.UselessMatcherException;
+import nl.basjes.parse.useragent.parse.CacheKeyCanonicalizer;
+import nl.basjes.parse.useragent.parse.CacheKeyCanonicalizer.TokenClass;
 import nl.basjes.parse.useragent.parse.UserAgentTreeFlattener;
-import nl.basjes.parse.useragent.utils.Normalize;
-import nl.basjes.parse.useragent.utils.VersionSplitter;
+import nl.basjes.parse.useragent.utils.Hash64;
+import nl.basjes.parse.useragent.utils.ImmutableDictionary;
+import nl.basjes.parse.useragent.utils.MappedFileCache;
+import nl.basjes.parse.useragent.utils.ThreadLocalCache;
+import nl.basjes.parse.useragent.utils.TinyLfuCache;
+import nl.basjes.parse.useragent.utils.Utf8Key;
 import org.antlr.v4.runtime.tree.ParseTree;
-import org.apache.commons.collections4.map.LRUMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
 import org.yaml.snakeyaml.Yaml;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Formatter;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -71,10 +86,17 @@ public class UserAgentAnalyzer extends Analyzer {
 
     private static final int INFORM_ACTIONS_HASHMAP_SIZE = 300000;
     private static final int DEFAULT_PARSE_CACHE_SIZE = 10000;
+    private static final int DEFAULT_PERSISTENT_CACHE_ENTRIES = 250000;
+    private static final int DEFAULT_PERSISTENT_CACHE_BYTES = 512 * 1024 * 1024;
+
+    private static final long CACHE_SNAPSHOT_MAGIC  = 0x5941554141435331L; // "YAUAACS1"
+    private static final int  CACHE_SNAPSHOT_FORMAT = 1;
 
     private static final Logger LOG = LoggerFactory.getLogger(UserAgentAnalyzer.class);
     protected List<Matcher>                     allMatchers             = new ArrayList<>();
     private Map<String, Set<MatcherAction>>     informMatcherActions    = new HashMap<>(INFORM_ACTIONS_HASHMAP_SIZE);
+    // The paths for which at least one action wants to be informed about a specific value.
+    private final Set<String>                   informValuePaths        = new HashSet<>();
     private final Map<String, List<Map<String, List<String>>>> matcherConfigs = new HashMap<>(64);
 
     private boolean doingOnlyASingleTest = false;
@@ -89,7 +111,53 @@ public class UserAgentAnalyzer extends Analyzer {
 
     private Yaml yaml;
 
-    private LRUMap<String, UserAgent> parseCache = new LRUMap<>(DEFAULT_PARSE_CACHE_SIZE);
+    private volatile TinyLfuCache<String, UserAgent> parseCache = new TinyLfuCache<>(DEFAULT_PARSE_CACHE_SIZE);
+
+    // All fields the rules can produce; every result is created with this so it never needs to be extended.
+    private volatile FieldSchema fieldSchema = FieldSchema.DEFAULT;
+
+    // The fields calculated from other fields; only those that were asked for are calculated during the parse.
+    private volatile DerivedFields derivedFields = null;
+    private volatile long eagerDerivedFields = 0;
+
+    // Optionally the codes of all distinct values of the results.
+    private volatile ValueDictionary valueDictionary = null;
+
+    // Optionally the cached results with equal fields share those fields.
+    private volatile ResultInterner resultInterner = null;
+
+    // Only changed while holding the parse lock.
+    private volatile long averageParseNanos = 0;
+
+    // Optionally the results of the useragents that were provided as (UTF-8) bytes; has its own limits.
+    private volatile TinyLfuCache<Utf8Key, UserAgent> byteKeyCache = null;
+
+    // Optionally a tiny cache per thread in front of the shared parseCache.
+    private volatile ThreadLocalCache<String, UserAgent> threadLocalCache = null;
+
+    // Optionally a precomputed (read only) set of parse results; see debug.PrecomputeDictionary.
+    private volatile ImmutableDictionary dictionary = null;
+
+    // Optionally a cache in a file behind the shared parseCache that survives a restart.
+    private volatile MappedFileCache persistentCache = null;
+
+    // Identifies the loaded rules (and the wanted fields) so stored parse results can be checked for staleness.
+    private long rulesHash = 0;
+
+    // Optionally the require conditions of all matchers are evaluated via a shared network.
+    private boolean useDiscriminationNetwork = false;
+    private DiscriminationNetwork discriminationNetwork = null;
+
+    // Optionally only evaluate the matchers of which the trigger literal is present in the useragent.
+    private boolean useKeywordPartitioning = false;
+    private MatcherPartitions matcherPartitions = null;
+
+    // Optionally the objects that only live during a single parse are reused by the next parse.
+    private boolean allocationLean = false;
+
+    // Optionally the values of tokens that no rule looks at are replaced in the cache key.
+    private boolean useCanonicalCacheKeys = false;
+    private volatile CacheKeyCanonicalizer cacheKeyCanonicalizer = null;
 
     public UserAgentAnalyzer() {
         this(true);
@@ -151,6 +219,45 @@ public class UserAgentAnalyzer extends Analyzer {
         return "Yauaa " + Version.getProjectVersion() + " (" + Version.getGitCommitIdDescribeShort() + " @ " + Version.getBuildTimestamp() + ")";
     }
 
+    /**
+     * @return A hash over all loaded matchers, lookups and the wanted fields.
+     */
+    public long getRulesHash() {
+        return rulesHash;
+    }
+
+    /**
+     * @return The version of the analyzer combined with the hash of the loaded rules.
+     * Parse results that were stored with a different rule set version may be different from a fresh parse.
+     */
+    public String getRuleSetVersion() {
+        return getVersion() + " Rules " + String.format("%016x", rulesHash);
+    }
+
+    static long calculateRulesHash(Map<String, List<Map<String, List<String>>>> matcherConfigs,
+                                   Map<String, Map<String, String>> lookups,
+                                   Set<String> wantedFieldNames) {
+        // Everything is sorted to get the same hash regardless of the order in which things were loaded.
+        StringBuilder rules = new StringBuilder(1024 * 1024);
+        for (Map.Entry<String, List<Map<String, List<String>>>> entry : new TreeMap<>(matcherConfigs).entrySet()) {
+            rules.append(entry.getKey()).append('\n');
+            for (Map<String, List<String>> matcherConfig : entry.getValue()) {
+                rules.append(matcherConfig).append('\n');
+            }
+        }
+        if (lookups != null) {
+            for (Map.Entry<String, Map<String, String>> entry : new TreeMap<>(lookups).entrySet()) {
+                rules.append(entry.getKey()).append(new TreeMap<>(entry.getValue())).append('\n');
+            }
+        }
+        if (wantedFieldNames == null) {
+            rules.append("All fields");
+        } else {
+            rules.append(new TreeSet<>(wantedFieldNames));
+        }
+        return Hash64.hash(rules);
+    }
+
     public void loadResources(String resourceString, boolean showMatcherStats) {
         LOG.info("Loading from: \"{}\"", resourceString);
 
@@ -248,6 +355,33 @@ public class UserAgentAnalyzer extends Analyzer {
             LOG.info(msg.toString());
 
         }
+
+        Set<String> schemaFieldNames = getAllPossibleFieldNames();
+        schemaFieldNames.addAll(DerivedFields.getFieldNames());
+        fieldSchema = FieldSchema.of(schemaFieldNames);
+        for (Matcher matcher : allMatchers) {
+            matcher.setFieldSchema(fieldSchema);
+        }
+        if (allocationLean) {
+            setAllocationLean(true);
+        }
+        derivedFields = new DerivedFields(fieldSchema);
+        eagerDerivedFields = wantedFieldNames == null ? 0 : derivedFields.requiredFor(wantedFieldNames);
+
+        if (useDiscriminationNetwork) {
+            buildDiscriminationNetwork();
+        }
+
+        if (useKeywordPartitioning) {
+            buildMatcherPartitions();
+        }
+
+        if (useCanonicalCacheKeys) {
+            buildCacheKeyCanonicalizer();
+        }
+
+        rulesHash = calculateRulesHash(matcherConfigs, lookups, wantedFieldNames);
+
         LOG.info("Analyzer stats");
         LOG.info("Lookups      : {}", (lookups == null) ? 0 : lookups.size());
         LOG.info("Matchers     : {} (total:{} ; dropped: {})", allMatchers.size(), totalNumberOfMatchers, skippedMatchers);
@@ -260,6 +394,93 @@ public class UserAgentAnalyzer extends Analyzer {
 //        }
     }
 
+    private void buildDiscriminationNetwork() {
+        discriminationNetwork = new DiscriminationNetwork(allMatchers);
+
+        // The redundant require actions are evaluated by a shared condition so they need not be informed anymore.
+        Set<MatcherAction> redundantActions = discriminationNetwork.getRedundantActions();
+        if (!redundantActions.isEmpty()) {
+            Iterator<Map.Entry<String, Set<MatcherAction>>> iterator = informMatcherActions.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Set<MatcherAction> actions = iterator.next().getValue();
+                actions.removeAll(redundantActions);
+                if (actions.isEmpty()) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        LOG.info("Discrimination network: {} require conditions share {} condition nodes",
+            discriminationNetwork.getNumberOfRequireActions(),
+            discriminationNetwork.getNumberOfConditionNodes());
+    }
+
+    private void buildMatcherPartitions() {
+        matcherPartitions = new MatcherPartitions(allMatchers);
+        LOG.info("Keyword partitioning: {} of {} matchers are only evaluated if one of {} trigger keywords is present",
+            matcherPartitions.getNumberOfTriggeredMatchers(),
+            matcherPartitions.getNumberOfMatchers(),
+            matcherPartitions.getNumberOfPartitions());
+    }
+
+    private void buildCacheKeyCanonicalizer() {
+        Set<TokenClass> tokenClasses = EnumSet.allOf(TokenClass.class);
+        for (Matcher matcher : allMatchers) {
+            tokenClasses.retainAll(matcher.getIgnorableTokenClasses());
+        }
+        cacheKeyCanonicalizer = new CacheKeyCanonicalizer(tokenClasses);
+        if (tokenClasses.isEmpty()) {
+            LOG.info("Canonical cache keys: the rules use the values of all of {}", EnumSet.allOf(TokenClass.class));
+        } else {
+            LOG.info("Canonical cache keys: the values of {} are replaced in the cache key", tokenClasses);
+        }
+    }
+
+    /**
+     * Use the same cache entry for all useragents that only differ in the value of tokens (uuid, url, email, base64)
+     * of which the loaded rules provably never use the value. Which token classes qualify depends on the rules;
+     * with a rule that reads (for example) a uuid the uuids are simply left as they are.
+     * The results are exactly the same as without this; only the cache is used more effectively at the cost
+     * of lexing the useragent an additional time before the cache lookup.
+     * @param enabled true to enable, false to disable.
+     */
+    public void setCanonicalCacheKeys(boolean enabled) {
+        useCanonicalCacheKeys = enabled;
+        if (enabled) {
+            buildCacheKeyCanonicalizer();
+        } else {
+            cacheKeyCanonicalizer = null;
+        }
+    }
+
+    /**
+     * @return The classes of tokens of which the value is replaced in the cache key (empty if not enabled).
+     */
+    public Set<TokenClass> getCanonicalCacheKeyTokenClasses() {
+        CacheKeyCanonicalizer canonicalizer = cacheKeyCanonicalizer;
+        if (canonicalizer == null) {
+            return Collections.emptySet();
+        }
+        return canonicalizer.getTokenClasses();
+    }
+
+    // The key under which the parse result of this useragent is cached.
+    private String cacheKey(String userAgentString) {
+        CacheKeyCanonicalizer canonicalizer = cacheKeyCanonicalizer;
+        if (canonicalizer == null || !isCaching()) {
+            return userAgentString;
+        }
+        return canonicalizer.canonicalize(userAgentString);
+    }
+
+    // A cached result always has the cache key as its useragent; give the caller its own useragent back.
+    private static UserAgent withUserAgentString(UserAgent userAgent, String userAgentString) {
+        if (userAgentString.equals(userAgent.getUserAgentString())) {
+            return userAgent;
+        }
+        return userAgent.frozenCopyFor(userAgentString);
+    }
+
     /**
      * Used by some unit tests to get rid of all the standard tests and focus on the experiment at hand.
      */
@@ -276,6 +497,60 @@ public class UserAgentAnalyzer extends Analyzer {
         return results;
     }
 
+    /**
+     * @return The schema (field ids) of the results of this analyzer.
+     */
+    public FieldSchema getFieldSchema() {
+        return fieldSchema;
+    }
+
+    /**
+     * Sets the maximum number of distinct values that get a code (see {@link UserAgent#getValueCode(String)}).
+     * A new dictionary is created so all existing codes become meaningless; a size of 0 disables the codes (the default).
+     * Note that this also wipes the in memory caches (they hold results with the old codes).
+     * @param maxSize The maximum number of distinct values.
+     */
+    public void setValueDictionarySize(int maxSize) {
+        valueDictionary = maxSize >= 1 ? new ValueDictionary(maxSize) : null;
+        setCacheSize(getCacheSize(), getCacheMaxBytes());
+        setByteKeyCacheSize(getByteKeyCacheSize(), getByteKeyCacheMaxBytes());
+        setThreadLocalCacheSize(getThreadLocalCacheSize());
+    }
+
+    /**
+     * @return The dictionary with the codes of all values of the results (null if disabled).
+     */
+    public ValueDictionary getValueDictionary() {
+        return valueDictionary;
+    }
+
+    /**
+     * Let all results that are put in the caches share their values (and their confidences and value codes)
+     * with the results that have equal values. This reduces the memory a large cache needs at the cost
+     * of looking up the values of every new result; the derived fields are no longer calculated lazily.
+     * Existing cache entries are not changed.
+     * @param maxSize The maximum number of distinct values that are shared. As size of 0 disables the interning.
+     */
+    public void setResultInternerSize(int maxSize) {
+        resultInterner = maxSize >= 1 ? new ResultInterner(maxSize) : null;
+    }
+
+    /**
+     * @return The interner of the cached results (null if disabled).
+     */
+    public ResultInterner getResultInterner() {
+        return resultInterner;
+    }
+
+    // The value must be frozen.
+    private UserAgent intern(UserAgent userAgent) {
+        ResultInterner interner = resultInterner;
+        if (interner == null) {
+            return userAgent;
+        }
+        return interner.intern(userAgent);
+    }
+
     public List<String> getAllPossibleFieldNamesSorted() {
         List<String> fieldNames = new ArrayList<>(getAllPossibleFieldNames());
         Collections.sort(fieldNames);
@@ -471,6 +746,31 @@ config:
             informMatcherActions.put(hashKey, analyzerSet);
         }
         analyzerSet.add(matcherAction);
+        int valueStart = hashKey.indexOf("=\"");
+        if (valueStart > 0) {
+            informValuePaths.add(hashKey.substring(0, valueStart));
+        }
+    }
+
+    /**
+     * Reuse the objects that only live during a single parse (the lexer, the parser, the tokens and the matches
+     * of all matchers) in the next parse instead of allocating new ones. The results are exactly the same;
+     * only the matches of a parse (see {@link nl.basjes.parse.useragent.debug.UserAgentAnalyzerTester#getUsedMatches})
+     * can no longer be used once the next parse has started.
+     * @param enabled Enable or disable the reuse.
+     */
+    public synchronized void setAllocationLean(boolean enabled) {
+        allocationLean = enabled;
+        if (flattener != null) {
+            flattener.setRecycling(enabled);
+        }
+        for (Matcher matcher : allMatchers) {
+            matcher.setRecycleMatches(enabled);
+        }
+    }
+
+    public boolean isAllocationLean() {
+        return allocationLean;
     }
 
     private boolean verbose = false;
@@ -480,11 +780,155 @@ config:
         flattener.setVerbose(newVerbose);
     }
 
+    /**
+     * Parse the useragent. If caching is enabled the returned instance is the frozen instance that is
+     * shared via the cache, so a cache hit does not copy anything.
+     * Use {@link UserAgent#copyOnWrite()} on the result if it must be changed.
+     * @param userAgentString The useragent to parse
+     * @return The parse result (frozen if caching is enabled).
+     */
     public UserAgent parse(String userAgentString) {
-        UserAgent userAgent = new UserAgent(userAgentString);
-        return cachedParse(userAgent);
+        if (userAgentString == null) {
+            return synchronizedNonCachedParse(new UserAgent(userAgentString, fieldSchema));
+        }
+
+        String cacheKey = cacheKey(userAgentString);
+        UserAgent cachedValue = getFromCache(cacheKey);
+        if (cachedValue != null) {
+            return withUserAgentString(cachedValue, userAgentString);
+        }
+
+        UserAgent userAgent = new UserAgent(userAgentString, fieldSchema);
+        long cost = timedNonCachedParse(userAgent);
+        if (isCaching()) {
+            UserAgent result = intern(userAgent.freeze());
+            putInCache(cacheKey, withUserAgentString(result, cacheKey), cost);
+            return result;
+        }
+        return userAgent;
+    }
+
+    /**
+     * @param fieldNames      The fields that are needed (in the order of the columns)
+     * @param withConfidences If the confidences are needed too
+     * @return An empty batch for {@link #parse(List, ColumnarBatch)}.
+     */
+    public ColumnarBatch newColumnarBatch(List<String> fieldNames, boolean withConfidences) {
+        return new ColumnarBatch(fieldSchema, fieldNames, withConfidences);
+    }
+
+    /**
+     * Parse all useragents (each with the normal caching) and put the requested fields of the results
+     * in the columns of the batch (replacing what it had).
+     * @param userAgentStrings The useragents
+     * @param batch            The batch (see {@link #newColumnarBatch(List, boolean)}) that is filled
+     * @return The batch
+     */
+    public ColumnarBatch parse(List<String> userAgentStrings, ColumnarBatch batch) {
+        batch.fill(this, userAgentStrings);
+        return batch;
+    }
+
+    /**
+     * Parse the useragent that is provided as any CharSequence (i.e. a StringBuilder or a CharBuffer).
+     * NOTE: This does NOT avoid copying the characters. The cache key and the result both hold the useragent
+     * as a String so a CharSequence that is not a String is always copied into a new String (toString())
+     * before the caches are searched, also if the result is found in a cache; see {@link #parse(String)}.
+     * @param userAgentString The useragent to parse
+     * @return The parse result (frozen if caching is enabled).
+     */
+    public UserAgent parse(CharSequence userAgentString) {
+        if (userAgentString == null || userAgentString instanceof String) {
+            return parse((String) userAgentString);
+        }
+        return parse(userAgentString.toString());
+    }
+
+    /**
+     * Parse the useragent that is provided as UTF-8 bytes (i.e. a part of a larger buffer).
+     * If the byte keyed cache is enabled (see {@link #setByteKeyCacheSize(int, long)}) it is searched with
+     * the bytes themselves (hashed and compared without creating a String) so a hit in that cache copies nothing.
+     * NOTE: On a miss in that cache (and always if that cache is disabled) all bytes are decoded into a new String
+     * which is then parsed as {@link #parse(String)} does; the result holds that String as its useragent.
+     * If the result is cached a miss also copies the bytes once more for the key in the byte keyed cache.
+     * @param buffer The buffer with the useragent
+     * @param offset The start of the useragent in the buffer
+     * @param length The number of bytes of the useragent
+     * @return The parse result (frozen if caching is enabled).
+     */
+    public UserAgent parse(byte[] buffer, int offset, int length) {
+        return parse(Utf8Key.wrap(buffer, offset, length));
+    }
+
+    /**
+     * Parse the useragent that is provided as the UTF-8 bytes between the position and the limit of the buffer.
+     * The position of the buffer is not changed. See {@link #parse(byte[], int, int)}: only a hit in the
+     * byte keyed cache avoids decoding the bytes into a new String.
+     * @param buffer The buffer with the useragent
+     * @return The parse result (frozen if caching is enabled).
+     */
+    public UserAgent parse(ByteBuffer buffer) {
+        return parse(Utf8Key.wrap(buffer));
+    }
+
+    private UserAgent parse(Utf8Key key) {
+        TinyLfuCache<Utf8Key, UserAgent> cache = byteKeyCache;
+        if (cache == null) {
+            return parse(key.decode());
+        }
+        UserAgent cachedValue = cache.get(key);
+        if (cachedValue != null) {
+            return cachedValue;
+        }
+        UserAgent userAgent = parse(key.decode());
+        if (userAgent.isFrozen()) {
+            // The real parse cost is accounted in the string keyed cache.
+            cache.put(key.copy(), userAgent, averageParseNanos, userAgent.getEstimatedSize() + key.length());
+        }
+        return userAgent;
+    }
+
+    /**
+     * Sets the size of the cache of the useragents that are provided as bytes (see {@link #parse(byte[], int, int)}).
+     * This cache has its own limits: the memory used by all caches together is the sum of these limits and those of
+     * the parse cache (see {@link #setCacheSize(int, long)}). Only the (frozen) results of the parse cache are put
+     * in it so it is only used if the parse cache is enabled.
+     * Note that this will also wipe the existing byte keyed cache.
+     * @param newCacheSize The maximum number of entries. As size of 0 will disable this cache.
+     * @param maxBytes     The maximum (estimated) memory used by all entries.
+     */
+    public void setByteKeyCacheSize(int newCacheSize, long maxBytes) {
+        if (newCacheSize >= 1) {
+            byteKeyCache = new TinyLfuCache<>(newCacheSize, maxBytes);
+        } else {
+            byteKeyCache = null;
+        }
     }
 
+    public int getByteKeyCacheSize() {
+        TinyLfuCache<Utf8Key, UserAgent> cache = byteKeyCache;
+        if (cache == null) {
+            return 0;
+        }
+        return cache.maxSize();
+    }
+
+    /**
+     * @return The maximum (estimated) memory used by the byte keyed cache (Long.MAX_VALUE if only the number of entries is limited).
+     */
+    public long getByteKeyCacheMaxBytes() {
+        TinyLfuCache<Utf8Key, UserAgent> cache = byteKeyCache;
+        if (cache == null) {
+            return 0;
+        }
+        return cache.maxWeight();
+    }
+
+    /**
+     * Parse the useragent into the provided instance (which is never shared via the cache).
+     * @param userAgent The instance with the useragent string to parse and in which the results are put.
+     * @return The provided instance.
+     */
     public UserAgent parse(UserAgent userAgent) {
         userAgent.reset();
         return cachedParse(userAgent);
@@ -492,6 +936,10 @@ config:
 
     public void disableCaching() {
         setCacheSize(0);
+        setByteKeyCacheSize(0, 0);
+        setThreadLocalCacheSize(0);
+        closePersistentCache();
+        closeDictionary();
     }
 
     /**
@@ -500,11 +948,58 @@ config:
      * @param newCacheSize The size of the new LRU cache. As size of 0 will disable caching.
      */
     public void setCacheSize(int newCacheSize) {
+        setCacheSize(newCacheSize, Long.MAX_VALUE);
+    }
+
+    /**
+     * Sets the new size of the parsing cache.
+     * Note that this will also wipe the existing cache.
+     * Each entry is weighted by how long it took to parse and by its (estimated) size in memory so within the
+     * limits the cache keeps the entries that save the most parsing.
+     * @param newCacheSize The maximum number of entries. As size of 0 will disable caching.
+     * @param maxBytes     The maximum (estimated) memory used by all entries.
+     */
+    public void setCacheSize(int newCacheSize, long maxBytes) {
         if (newCacheSize >= 1) {
-            parseCache = new LRUMap<>(newCacheSize);
+            parseCache = new TinyLfuCache<>(newCacheSize, maxBytes);
         } else {
             parseCache = null;
         }
+        // The per thread caches must not keep serving what was wiped.
+        ThreadLocalCache<String, UserAgent> localCache = threadLocalCache;
+        if (localCache != null) {
+            localCache.clear();
+        }
+    }
+
+    /**
+     * Remove all entries from the in memory caches (the parse cache, the byte keyed cache and the caches per thread).
+     * The persistent cache and the precomputed dictionary are not changed.
+     */
+    public void clearCache() {
+        TinyLfuCache<String, UserAgent> cache = parseCache;
+        if (cache != null) {
+            cache.clear();
+        }
+        TinyLfuCache<Utf8Key, UserAgent> byteCache = byteKeyCache;
+        if (byteCache != null) {
+            byteCache.clear();
+        }
+        ThreadLocalCache<String, UserAgent> localCache = threadLocalCache;
+        if (localCache != null) {
+            localCache.clear();
+        }
+    }
+
+    /**
+     * Release everything that may outlive this analyzer: the entries in the caches per thread
+     * (threads in a pool live much longer than the analyzer), the persistent cache and the dictionary.
+     * Parsing still works afterwards but without these caches.
+     */
+    public void close() {
+        setThreadLocalCacheSize(0);
+        closePersistentCache();
+        closeDictionary();
     }
 
     public int getCacheSize() {
@@ -514,23 +1009,370 @@ config:
         return parseCache.maxSize();
     }
 
-    private synchronized UserAgent cachedParse(UserAgent userAgent) {
+    /**
+     * @return The maximum (estimated) memory used by the parse cache (Long.MAX_VALUE if only the number of entries is limited).
+     */
+    public long getCacheMaxBytes() {
         if (parseCache == null) {
-            return nonCachedParse(userAgent);
+            return 0;
         }
+        return parseCache.maxWeight();
+    }
+
+    /**
+     * Enable or disable the small cache per thread that is checked before the shared parse cache.
+     * @param newSize The number of entries per thread (rounded up to a power of 2). A size of 0 disables it.
+     */
+    public void setThreadLocalCacheSize(int newSize) {
+        ThreadLocalCache<String, UserAgent> oldCache = threadLocalCache;
+        if (newSize >= 1) {
+            threadLocalCache = new ThreadLocalCache<>(newSize);
+        } else {
+            threadLocalCache = null;
+        }
+        if (oldCache != null) {
+            oldCache.close();
+        }
+    }
+
+    public int getThreadLocalCacheSize() {
+        ThreadLocalCache<String, UserAgent> localCache = threadLocalCache;
+        if (localCache == null) {
+            return 0;
+        }
+        return localCache.size();
+    }
+
+    /**
+     * @return The hit, miss and eviction counters of the per thread cache (null if there is no such cache).
+     */
+    public ThreadLocalCache.Stats getThreadLocalCacheStats() {
+        ThreadLocalCache<String, UserAgent> localCache = threadLocalCache;
+        if (localCache == null) {
+            return null;
+        }
+        return localCache.getStats();
+    }
 
+    /**
+     * Use a file as an additional cache behind the in memory parse cache.
+     * The file survives a restart of the application and can be used by several processes at the same time.
+     * The content of the file is only used if it was created with the same rule set version
+     * (see {@link #getRuleSetVersion()}); if not it is wiped.
+     * Must be called after the rules have been loaded.
+     * @param file       The file (created if it does not exist)
+     * @param maxEntries The maximum number of stored results (only used if the file is created)
+     * @param maxBytes   The maximum number of bytes for all stored results (only used if the file is created)
+     * @throws IOException If the file cannot be used.
+     */
+    public void setPersistentCache(File file, int maxEntries, int maxBytes) throws IOException {
+        if (allMatchers.isEmpty()) {
+            throw new IllegalStateException("The persistent cache can only be used after the rules have been loaded.");
+        }
+        MappedFileCache newCache = new MappedFileCache(file, getRuleSetVersion(), maxEntries, maxBytes);
+        closePersistentCache();
+        persistentCache = newCache;
+    }
+
+    /**
+     * Use a dictionary with precomputed parse results (see {@link nl.basjes.parse.useragent.debug.PrecomputeDictionary}).
+     * A useragent that is in the dictionary is not parsed at all.
+     * Must be called after the rules have been loaded.
+     * @param file The dictionary file
+     * @throws IOException If the file cannot be used or if it was created with a different rule set version
+     * (see {@link #getRuleSetVersion()}).
+     */
+    public void setDictionary(File file) throws IOException {
+        if (allMatchers.isEmpty()) {
+            throw new IllegalStateException("The dictionary can only be used after the rules have been loaded.");
+        }
+        ImmutableDictionary newDictionary = new ImmutableDictionary(file);
+        if (!getRuleSetVersion().equals(newDictionary.getStamp())) {
+            newDictionary.close();
+            throw new IOException("The dictionary " + file + " was created for \"" + newDictionary.getStamp() +
+                "\" instead of \"" + getRuleSetVersion() + "\"");
+        }
+        LOG.info("Using dictionary {} with {} precomputed useragents", file, newDictionary.size());
+        closeDictionary();
+        dictionary = newDictionary;
+    }
+
+    public void closeDictionary() {
+        ImmutableDictionary oldDictionary = dictionary;
+        dictionary = null;
+        if (oldDictionary != null) {
+            try {
+                oldDictionary.close();
+            } catch (IOException e) {
+                LOG.error("Unable to close the dictionary {}: {}", oldDictionary.getFile(), e.toString());
+            }
+        }
+    }
+
+    /**
+     * Write the content of the parse cache (the entries that save the most parsing first) so it can be loaded
+     * in a new analyzer (i.e. after a restart) using {@link #importCache(InputStream)}.
+     * The stream is flushed but not closed.
+     * @param output Where the snapshot is written
+     * @return The number of written entries
+     * @throws IOException In case of problems writing
+     */
+    public int exportCache(OutputStream output) throws IOException {
+        TinyLfuCache<String, UserAgent> cache = parseCache;
+        List<TinyLfuCache.Entry<String, UserAgent>> entries = cache == null ?
+            Collections.<TinyLfuCache.Entry<String, UserAgent>>emptyList() :
+            cache.snapshot();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 64 * 1024));
+        out.writeLong(CACHE_SNAPSHOT_MAGIC);
+        out.writeInt(CACHE_SNAPSHOT_FORMAT);
+        out.writeUTF(getRuleSetVersion());
+        out.writeInt(entries.size());
+        for (TinyLfuCache.Entry<String, UserAgent> entry : entries) {
+            // The cached result has the cache key as its useragent so the key is not written separately.
+            byte[] value = entry.getValue().serialize();
+            out.writeLong(entry.getCost());
+            out.writeInt(entry.getFrequency());
+            out.writeInt(value.length);
+            out.write(value);
+        }
+        out.writeLong(CACHE_SNAPSHOT_MAGIC);
+        out.flush();
+        return entries.size();
+    }
+
+    /**
+     * Fill the parse cache with a snapshot written by {@link #exportCache(OutputStream)}.
+     * The snapshot is only used if it was written by an analyzer with the same rules and version
+     * (see {@link #getRuleSetVersion()}) and if it is complete; else the cache is not changed.
+     * Must be called after the rules have been loaded. The stream is not closed (nor buffered, so provide
+     * a buffered stream when reading from a file).
+     * @param input Where the snapshot is read from
+     * @return The number of entries offered to the cache (if it is smaller than the snapshot not all are kept).
+     * @throws IOException If the snapshot cannot be read, is incomplete or was created with different rules.
+     */
+    public int importCache(InputStream input) throws IOException {
+        if (allMatchers.isEmpty()) {
+            throw new IllegalStateException("A cache snapshot can only be imported after the rules have been loaded.");
+        }
+        DataInputStream in = new DataInputStream(input);
+        if (in.readLong() != CACHE_SNAPSHOT_MAGIC) {
+            throw new IOException("This is not a cache snapshot");
+        }
+        int format = in.readInt();
+        if (format != CACHE_SNAPSHOT_FORMAT) {
+            throw new IOException("The cache snapshot has an unsupported format " + format);
+        }
+        String ruleSetVersion = in.readUTF();
+        if (!getRuleSetVersion().equals(ruleSetVersion)) {
+            throw new IOException("The cache snapshot was created with \"" + ruleSetVersion +
+                "\" instead of \"" + getRuleSetVersion() + "\"");
+        }
+
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("The cache snapshot is corrupt");
+        }
+        List<TinyLfuCache.Entry<String, UserAgent>> entries = new ArrayList<>(Math.min(size, 1024 * 1024));
+        for (int i = 0; i < size; i++) {
+            long cost = in.readLong();
+            int frequency = in.readInt();
+            int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("The cache snapshot is corrupt");
+            }
+            byte[] value = new byte[length];
+            in.readFully(value);
+            UserAgent userAgent;
+            try {
+                userAgent = intern(UserAgent.deserialize(value, fieldSchema, valueDictionary));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("The cache snapshot is corrupt", e);
+            }
+            entries.add(new TinyLfuCache.Entry<>(
+                userAgent.getUserAgentString(), userAgent, cost, userAgent.getEstimatedSize(), frequency));
+        }
+        if (in.readLong() != CACHE_SNAPSHOT_MAGIC) {
+            throw new IOException("The cache snapshot is incomplete");
+        }
+
+        TinyLfuCache<String, UserAgent> cache = parseCache;
+        if (cache == null) {
+            return 0;
+        }
+        cache.load(entries);
+        return entries.size();
+    }
+
+    public void closePersistentCache() {
+        MappedFileCache oldCache = persistentCache;
+        persistentCache = null;
+        if (oldCache != null) {
+            try {
+                oldCache.close();
+            } catch (IOException e) {
+                LOG.error("Unable to close the persistent cache {}: {}", oldCache.getFile(), e.toString());
+            }
+        }
+    }
+
+    /**
+     * @return The hit, miss and reject counters of the persistent cache (null if there is no such cache).
+     */
+    public MappedFileCache.Stats getPersistentCacheStats() {
+        MappedFileCache fileCache = persistentCache;
+        if (fileCache == null) {
+            return null;
+        }
+        return fileCache.getStats();
+    }
+
+    /**
+     * @return The hit, miss, eviction and admission counters of the parse cache (null if there is no cache).
+     */
+    public TinyLfuCache.Stats getCacheStats() {
+        TinyLfuCache<String, UserAgent> cache = parseCache;
+        if (cache == null) {
+            return null;
+        }
+        return cache.getStats();
+    }
+
+    /**
+     * @return The counters of the cache of useragents that were provided as bytes (null if there is no such cache).
+     */
+    public TinyLfuCache.Stats getByteKeyCacheStats() {
+        TinyLfuCache<Utf8Key, UserAgent> cache = byteKeyCache;
+        if (cache == null) {
+            return null;
+        }
+        return cache.getStats();
+    }
+
+    // Looking in the dictionary is handled the same way as looking in a cache.
+    private boolean isCaching() {
+        return parseCache != null || threadLocalCache != null || persistentCache != null || dictionary != null;
+    }
+
+    private UserAgent getFromDictionary(String userAgentString) {
+        ImmutableDictionary currentDictionary = dictionary;
+        if (currentDictionary == null) {
+            return null;
+        }
+        byte[] storedValue = currentDictionary.get(userAgentString);
+        if (storedValue == null) {
+            return null;
+        }
+        try {
+            return intern(UserAgent.deserialize(storedValue, fieldSchema, valueDictionary));
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Ignoring a corrupt entry in the dictionary {}", currentDictionary.getFile());
+            return null;
+        }
+    }
+
+    // The caches are thread safe by themselves so a hit never has to wait for a parse running in another thread.
+    private UserAgent getFromCache(String userAgentString) {
+        ThreadLocalCache<String, UserAgent> localCache = threadLocalCache;
+        if (localCache != null) {
+            UserAgent cachedValue = localCache.get(userAgentString);
+            if (cachedValue != null) {
+                return cachedValue;
+            }
+        }
+
+        TinyLfuCache<String, UserAgent> cache = parseCache;
+        if (cache != null) {
+            UserAgent cachedValue = cache.get(userAgentString);
+            if (cachedValue != null) {
+                if (localCache != null) {
+                    localCache.put(userAgentString, cachedValue);
+                }
+                return cachedValue;
+            }
+        }
+
+        UserAgent precomputed = getFromDictionary(userAgentString);
+        if (precomputed != null) {
+            if (localCache != null) {
+                localCache.put(userAgentString, precomputed);
+            }
+            if (cache != null) {
+                cache.put(userAgentString, precomputed, averageParseNanos, precomputed.getEstimatedSize());
+            }
+            return precomputed;
+        }
+
+        MappedFileCache fileCache = persistentCache;
+        if (fileCache != null) {
+            byte[] storedValue = fileCache.get(userAgentString);
+            if (storedValue != null) {
+                try {
+                    UserAgent cachedValue = intern(UserAgent.deserialize(storedValue, fieldSchema, valueDictionary));
+                    if (localCache != null) {
+                        localCache.put(userAgentString, cachedValue);
+                    }
+                    if (cache != null) {
+                        cache.put(userAgentString, cachedValue, averageParseNanos, cachedValue.getEstimatedSize());
+                    }
+                    return cachedValue;
+                } catch (IllegalArgumentException e) {
+                    LOG.warn("Ignoring a corrupt entry in the persistent cache {}", fileCache.getFile());
+                }
+            }
+        }
+        return null;
+    }
+
+    // The value must be frozen.
+    private void putInCache(String userAgentString, UserAgent userAgent, long cost) {
+        ThreadLocalCache<String, UserAgent> localCache = threadLocalCache;
+        if (localCache != null) {
+            localCache.put(userAgentString, userAgent);
+        }
+        TinyLfuCache<String, UserAgent> cache = parseCache;
+        if (cache != null) {
+            cache.put(userAgentString, userAgent, cost, userAgent.getEstimatedSize());
+        }
+        MappedFileCache fileCache = persistentCache;
+        if (fileCache != null) {
+            fileCache.put(userAgentString, userAgent.serialize());
+        }
+    }
+
+    private UserAgent cachedParse(UserAgent userAgent) {
         String userAgentString = userAgent.getUserAgentString();
-        UserAgent cachedValue = parseCache.get(userAgentString);
+        if (userAgentString == null || !isCaching()) {
+            return synchronizedNonCachedParse(userAgent);
+        }
+
+        String cacheKey = cacheKey(userAgentString);
+        UserAgent cachedValue = getFromCache(cacheKey);
         if (cachedValue != null) {
             userAgent.clone(cachedValue);
         } else {
-            cachedValue = new UserAgent(nonCachedParse(userAgent));
-            parseCache.put(userAgentString, cachedValue);
+            long cost = timedNonCachedParse(userAgent);
+            putInCache(cacheKey, withUserAgentString(userAgent.frozenCopy(), cacheKey), cost);
         }
         // We have our answer.
         return userAgent;
     }
 
+    // All matchers hold the state of the current parse so only one parse can run at a time.
+    private synchronized UserAgent synchronizedNonCachedParse(UserAgent userAgent) {
+        return nonCachedParse(userAgent);
+    }
+
+    // Parse into the provided instance and return how long the parse took (without waiting for the lock).
+    private synchronized long timedNonCachedParse(UserAgent userAgent) {
+        long start = System.nanoTime();
+        nonCachedParse(userAgent);
+        long cost = System.nanoTime() - start;
+        // A rough running average; only used as the cost of results that come from somewhere else.
+        averageParseNanos = averageParseNanos == 0 ? cost : averageParseNanos + (cost - averageParseNanos) / 16;
+        return cost;
+    }
+
     private UserAgent nonCachedParse(UserAgent userAgent) {
 
         boolean setVerboseTemporarily = userAgent.isDebug();
@@ -543,12 +1385,32 @@ config:
         userAgent = flattener.parse(userAgent);
 
         // Fire all Analyzers
-        for (Matcher matcher : allMatchers) {
-            matcher.analyze(userAgent);
+        if (discriminationNetwork == null) {
+            for (Matcher matcher : allMatchers) {
+                matcher.analyze(userAgent);
+            }
+        } else {
+            discriminationNetwork.analyze(userAgent);
         }
 
         userAgent.processSetAll();
-        return hardCodedPostProcessing(userAgent);
+        detectHackers(userAgent);
+
+        // The derived fields that were asked for are calculated now, the rest when (and if) they are retrieved.
+        DerivedFields derived = derivedFields;
+        boolean lazy = derived != null && userAgent.getFieldSchema() == derived.getSchema();
+        long eager = lazy ? eagerDerivedFields : -1L;
+        DerivedFields.derive(userAgent, eager);
+
+        ValueDictionary values = valueDictionary;
+        if (values != null) {
+            userAgent.encodeValues(values);
+        }
+        userAgent.resolveTypedValues();
+        if (lazy) {
+            userAgent.deriveLazily(derived, derived.all() & ~eager);
+        }
+        return userAgent;
     }
 
     private static final List<String> HARD_CODED_GENERATED_FIELDS = new ArrayList<>();
@@ -565,7 +1427,7 @@ config:
         HARD_CODED_GENERATED_FIELDS.add("WebviewAppNameVersionMajor");
     }
 
-    private UserAgent hardCodedPostProcessing(UserAgent userAgent){
+    private UserAgent detectHackers(UserAgent userAgent){
         // If it is really really bad ... then it is a Hacker.
         if ("true".equals(userAgent.getValue(SYNTAX_ERROR))) {
             if (userAgent.get(DEVICE_CLASS).getConfidence() == -1 &&
@@ -592,126 +1454,20 @@ config:
             }
         }
 
-        // !!!!!!!!!! NOTE !!!!!!!!!!!!
-        // IF YOU ADD ANY EXTRA FIELDS YOU MUST ADD THEM TO THE BUILDER TOO !!!!
-        // TODO: Perhaps this should be more generic. Like a "Post processor"  (Generic: Create fields from fields)?
-        addMajorVersionField(userAgent, AGENT_VERSION, AGENT_VERSION_MAJOR);
-        addMajorVersionField(userAgent, LAYOUT_ENGINE_VERSION, LAYOUT_ENGINE_VERSION_MAJOR);
-        addMajorVersionField(userAgent, "WebviewAppVersion", "WebviewAppVersionMajor");
-
-        concatFieldValuesNONDuplicated(userAgent, "AgentNameVersion",               AGENT_NAME,             AGENT_VERSION);
-        concatFieldValuesNONDuplicated(userAgent, "AgentNameVersionMajor",          AGENT_NAME,             AGENT_VERSION_MAJOR);
-        concatFieldValuesNONDuplicated(userAgent, "WebviewAppNameVersionMajor",     "WebviewAppName",       "WebviewAppVersionMajor");
-        concatFieldValuesNONDuplicated(userAgent, "LayoutEngineNameVersion",        LAYOUT_ENGINE_NAME,     LAYOUT_ENGINE_VERSION);
-        concatFieldValuesNONDuplicated(userAgent, "LayoutEngineNameVersionMajor",   LAYOUT_ENGINE_NAME,     LAYOUT_ENGINE_VERSION_MAJOR);
-        concatFieldValuesNONDuplicated(userAgent, "OperatingSystemNameVersion",     OPERATING_SYSTEM_NAME,  OPERATING_SYSTEM_VERSION);
-
-        // The device brand field is a mess.
-        UserAgent.AgentField deviceBrand = userAgent.get(DEVICE_BRAND);
-        if (deviceBrand.getConfidence() >= 0) {
-            userAgent.set(
-                DEVICE_BRAND,
-                Normalize.brand(deviceBrand.getValue()),
-                deviceBrand.getConfidence() + 1);
-        }
-
-        // The email address is a mess
-        UserAgent.AgentField email = userAgent.get("AgentInformationEmail");
-        if (email != null && email.getConfidence() >= 0) {
-            userAgent.set(
-                "AgentInformationEmail",
-                Normalize.email(email.getValue()),
-                email.getConfidence() + 1);
-        }
-
-        // Make sure the DeviceName always starts with the DeviceBrand
-        UserAgent.AgentField deviceName = userAgent.get(DEVICE_NAME);
-        if (deviceName.getConfidence() >= 0) {
-            deviceBrand = userAgent.get(DEVICE_BRAND);
-            String deviceNameValue = deviceName.getValue();
-            String deviceBrandValue = deviceBrand.getValue();
-            if (deviceName.getConfidence() >= 0 &&
-                deviceBrand.getConfidence() >= 0 &&
-                !deviceBrandValue.equals("Unknown")) {
-                // In some cases it does start with the brand but without a separator following the brand
-                deviceNameValue = Normalize.cleanupDeviceBrandName(deviceBrandValue, deviceNameValue);
-            } else {
-                deviceNameValue = Normalize.brand(deviceNameValue);
-            }
-
-            userAgent.set(
-                DEVICE_NAME,
-                deviceNameValue,
-                deviceName.getConfidence() + 1);
-        }
         return userAgent;
     }
 
-    private void concatFieldValuesNONDuplicated(UserAgent userAgent, String targetName, String firstName, String secondName) {
-        UserAgent.AgentField firstField = userAgent.get(firstName);
-        UserAgent.AgentField secondField = userAgent.get(secondName);
-
-        String first = null;
-        long firstConfidence = -1;
-        String second = null;
-        long secondConfidence = -1;
-
-        if (firstField != null) {
-            first = firstField.getValue();
-            firstConfidence = firstField.getConfidence();
-        }
-        if (secondField != null) {
-            second = secondField.getValue();
-            secondConfidence = secondField.getConfidence();
-        }
-
-        if (first == null && second == null) {
-            return; // Nothing to do
-        }
-
-        if (second == null) {
-            if (firstConfidence >= 0){
-                userAgent.set(targetName, first, firstConfidence);
-                return;
-            }
-            return; // Nothing to do
-        } else {
-            if (first == null) {
-                if (secondConfidence >= 0) {
-                    userAgent.set(targetName, second, secondConfidence);
-                    return;
-                }
-                return;
-            }
-        }
-
-        if (first.equals(second)) {
-            userAgent.set(targetName, first, firstConfidence);
-        } else {
-            if (second.startsWith(first)) {
-                userAgent.set(targetName, second, secondConfidence);
-            } else {
-                userAgent.set(targetName, first + " " + second, Math.max(firstField.getConfidence(), secondField.getConfidence()));
-            }
-        }
-    }
-
-    private void addMajorVersionField(UserAgent userAgent, String versionName, String majorVersionName) {
-        UserAgent.AgentField agentVersionMajor = userAgent.get(majorVersionName);
-        if (agentVersionMajor == null || agentVersionMajor.getConfidence() == -1) {
-            UserAgent.AgentField agentVersion = userAgent.get(versionName);
-            if (agentVersion != null) {
-                userAgent.set(
-                    majorVersionName,
-                    VersionSplitter.getSingleVersion(agentVersion.getValue(), 1),
-                    agentVersion.getConfidence());
-            }
-        }
-    }
-
     public void inform(String key, String value, ParseTree ctx) {
+        // The first thing the flattener reports is the entire (cleaned) useragent.
+        if (matcherPartitions != null && "agent".equals(key)) {
+            matcherPartitions.enablePartitionsFor(value);
+        }
         inform(key, key, value, ctx);
-        inform(key + "=\"" + value + '"', key, value, ctx);
+        // Most nodes have no action that wants their specific value so the key="value" is not even created.
+        // The paths of the flattener are always lower case (just like the stored paths) so the key is used as is.
+        if (verbose || informValuePaths.contains(key)) {
+            inform(key + "=\"" + value + '"', key, value, ctx);
+        }
     }
 
     private void inform(String match, String key, String value, ParseTree ctx) {
@@ -798,11 +1554,117 @@ config:
             return this;
         }
 
+        /**
+         * Use a parse cache that is also limited in the (estimated) memory it uses.
+         * See {@link UserAgentAnalyzer#setCacheSize(int, long)}.
+         * @param cacheSize The maximum number of entries.
+         * @param maxBytes  The maximum (estimated) number of bytes used by all entries.
+         * @return the current Builder instance.
+         */
+        public Builder withCache(int cacheSize, long maxBytes) {
+            uaa.setCacheSize(cacheSize, maxBytes);
+            return this;
+        }
+
+        /**
+         * Give each distinct value of the results an int code (see {@link UserAgent#getValueCode(String)}).
+         * By default the values have no code.
+         * @param maxSize The maximum number of distinct values that get a code (i.e. 100000).
+         * @return the current Builder instance.
+         */
+        public Builder withValueDictionary(int maxSize) {
+            uaa.setValueDictionarySize(maxSize);
+            return this;
+        }
+
+        public Builder withoutValueDictionary() {
+            uaa.setValueDictionarySize(0);
+            return this;
+        }
+
         public Builder withoutCache() {
             uaa.setCacheSize(0);
             return this;
         }
 
+        /**
+         * Keep the results of the useragents that are provided as bytes in a cache that is searched without
+         * decoding the bytes. See {@link UserAgentAnalyzer#setByteKeyCacheSize(int, long)}.
+         * @param cacheSize The maximum number of entries.
+         * @param maxBytes  The maximum (estimated) number of bytes used by all entries (in addition to the parse cache).
+         * @return the current Builder instance.
+         */
+        public Builder withByteKeyCache(int cacheSize, long maxBytes) {
+            uaa.setByteKeyCacheSize(cacheSize, maxBytes);
+            return this;
+        }
+
+        public Builder withoutByteKeyCache() {
+            uaa.setByteKeyCacheSize(0, 0);
+            return this;
+        }
+
+        /**
+         * Put a small cache per thread (direct mapped, no locking) in front of the shared cache.
+         * This helps if each thread sees the same useragents many times within a short time.
+         * @param cacheSize The number of entries per thread (rounded up to a power of 2), i.e. 256.
+         * @return the current Builder instance.
+         */
+        public Builder withThreadLocalCache(int cacheSize) {
+            uaa.setThreadLocalCacheSize(cacheSize);
+            return this;
+        }
+
+        public Builder withoutThreadLocalCache() {
+            uaa.setThreadLocalCacheSize(0);
+            return this;
+        }
+
+        private File dictionaryFile = null;
+
+        /**
+         * Answer the useragents that are in the dictionary (see
+         * {@link nl.basjes.parse.useragent.debug.PrecomputeDictionary}) without parsing them.
+         * A dictionary that was created with a different rule set version is refused.
+         * @param file The dictionary file.
+         * @return the current Builder instance.
+         */
+        public Builder withDictionary(File file) {
+            dictionaryFile = file;
+            return this;
+        }
+
+        public Builder withoutDictionary() {
+            dictionaryFile = null;
+            return this;
+        }
+
+        private File persistentCacheFile = null;
+        private int persistentCacheEntries = DEFAULT_PERSISTENT_CACHE_ENTRIES;
+        private int persistentCacheBytes = DEFAULT_PERSISTENT_CACHE_BYTES;
+
+        /**
+         * Store all parse results in a memory mapped file that survives a restart (and can be shared by
+         * several processes on the same machine). See {@link UserAgentAnalyzer#setPersistentCache(File, int, int)}.
+         * @param file The file that holds the cache.
+         * @return the current Builder instance.
+         */
+        public Builder withPersistentCache(File file) {
+            return withPersistentCache(file, DEFAULT_PERSISTENT_CACHE_ENTRIES, DEFAULT_PERSISTENT_CACHE_BYTES);
+        }
+
+        public Builder withPersistentCache(File file, int maxEntries, int maxBytes) {
+            persistentCacheFile = file;
+            persistentCacheEntries = maxEntries;
+            persistentCacheBytes = maxBytes;
+            return this;
+        }
+
+        public Builder withoutPersistentCache() {
+            persistentCacheFile = null;
+            return this;
+        }
+
         public Builder withField(String fieldName) {
             if (uaa.wantedFieldNames == null) {
                 uaa.wantedFieldNames = new HashSet<>(32);
@@ -826,6 +1688,68 @@ config:
             return this;
         }
 
+        /**
+         * Evaluate the require conditions that are shared by many matchers only once per parse
+         * and only evaluate the extracts of the matchers that have all of their requirements met.
+         * @return the current Builder instance.
+         */
+        public Builder withDiscriminationNetwork() {
+            uaa.useDiscriminationNetwork = true;
+            return this;
+        }
+
+        public Builder withoutDiscriminationNetwork() {
+            uaa.useDiscriminationNetwork = false;
+            return this;
+        }
+
+        /**
+         * Only evaluate the matchers of which a required keyword is present in the useragent.
+         * The keywords are found using a single scan over the useragent.
+         * This is only correct if every literal a matcher requires is also literally present in the useragent,
+         * which is what the predefined rules do (see TestPredefinedBrowsers). Disabled by default.
+         * @return the current Builder instance.
+         */
+        public Builder withKeywordPartitioning() {
+            uaa.useKeywordPartitioning = true;
+            return this;
+        }
+
+        public Builder withoutKeywordPartitioning() {
+            uaa.useKeywordPartitioning = false;
+            return this;
+        }
+
+        /**
+         * Reuse the objects that only live during a single parse.
+         * See {@link UserAgentAnalyzer#setAllocationLean(boolean)}.
+         * @return the current Builder instance.
+         */
+        public Builder withAllocationLeanParsing() {
+            uaa.allocationLean = true;
+            return this;
+        }
+
+        public Builder withoutAllocationLeanParsing() {
+            uaa.allocationLean = false;
+            return this;
+        }
+
+        /**
+         * Share cache entries between useragents that only differ in the value of tokens that no rule uses.
+         * See {@link UserAgentAnalyzer#setCanonicalCacheKeys(boolean)}.
+         * @return the current Builder instance.
+         */
+        public Builder withCanonicalCacheKeys() {
+            uaa.useCanonicalCacheKeys = true;
+            return this;
+        }
+
+        public Builder withoutCanonicalCacheKeys() {
+            uaa.useCanonicalCacheKeys = false;
+            return this;
+        }
+
         boolean showMatcherLoadStats = true;
         public Builder showMatcherLoadStats() {
             showMatcherLoadStats = true;
@@ -837,29 +1761,32 @@ config:
             return this;
         }
 
-        private void addGeneratedFields(String result, String... dependencies) {
-            if (uaa.wantedFieldNames.contains(result)) {
-                Collections.addAll(uaa.wantedFieldNames, dependencies);
-            }
-        }
-
         public UserAgentAnalyzer build() {
             if (uaa.wantedFieldNames != null) {
-                addGeneratedFields("AgentNameVersion", AGENT_NAME, AGENT_VERSION);
-                addGeneratedFields("AgentNameVersionMajor", AGENT_NAME, AGENT_VERSION_MAJOR);
-                addGeneratedFields("WebviewAppNameVersionMajor", "WebviewAppName", "WebviewAppVersionMajor");
-                addGeneratedFields("LayoutEngineNameVersion", LAYOUT_ENGINE_NAME, LAYOUT_ENGINE_VERSION);
-                addGeneratedFields("LayoutEngineNameVersionMajor", LAYOUT_ENGINE_NAME, LAYOUT_ENGINE_VERSION_MAJOR);
-                addGeneratedFields("OperatingSystemNameVersion", OPERATING_SYSTEM_NAME, OPERATING_SYSTEM_VERSION);
-                addGeneratedFields(DEVICE_NAME, DEVICE_BRAND);
-                addGeneratedFields(AGENT_VERSION_MAJOR, AGENT_VERSION);
-                addGeneratedFields(LAYOUT_ENGINE_VERSION_MAJOR, LAYOUT_ENGINE_VERSION);
-                addGeneratedFields("WebviewAppVersionMajor", "WebviewAppVersion");
+                // The fields needed to calculate the derived fields.
+                for (String fieldName : new ArrayList<>(uaa.wantedFieldNames)) {
+                    uaa.wantedFieldNames.addAll(DerivedFields.getDependencies(fieldName));
+                }
 
                 // Special field that affects ALL fields.
                 uaa.wantedFieldNames.add(SET_ALL_FIELDS);
             }
             uaa.initialize(showMatcherLoadStats);
+            if (dictionaryFile != null) {
+                try {
+                    uaa.setDictionary(dictionaryFile);
+                } catch (IOException e) {
+                    LOG.error("Not using the dictionary: {}", e.getMessage());
+                }
+            }
+            if (persistentCacheFile != null) {
+                try {
+                    uaa.setPersistentCache(persistentCacheFile, persistentCacheEntries, persistentCacheBytes);
+                } catch (IOException e) {
+                    // The analyzer works fine without it; it is only slower after a restart.
+                    LOG.error("Unable to use {} as persistent cache: {}", persistentCacheFile, e.toString());
+                }
+            }
             return uaa;
         }
 
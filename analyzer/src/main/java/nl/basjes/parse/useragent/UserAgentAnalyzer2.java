@@ -17,7 +17,6 @@
 
 package nl.basjes.parse.useragent;
 
-import com.google.common.collect.Sets;
 import nl.basjes.parse.useragent.analyze.Analyzer;
 import nl.basjes.parse.useragent.analyze.Matcher;
 import nl.basjes.parse.useragent.analyze.MatcherAction;
@@ -59,20 +58,8 @@ public class UserAgentAnalyzer2 extends Analyzer {
 
         flattener = new UserAgentTreeFlattener(this);
 
-        Map<String,Set<MatcherAction>> informMatcherActions = userAgentResource.getInformMatcherActions();
-//      //  informMatcherActions
-//        for (Map.Entry<String, Set<MatcherAction>> entryItem : informMatcherActions.entrySet()) {
-//            Set<MatcherAction> actions = entryItem.getValue();
-//            Set<MatcherAction> newActions = Sets.newHashSet();
-//            for (MatcherAction action:actions){
-//                newActions.add(action.Clone(null));
-//            }
-//
-//            this.informMatcherActions.put(entryItem.getKey(), newActions);
-//        }
-
-        this.informMatcherActions.putAll(informMatcherActions);
-
+        // The cloned matchers register their own actions (via informMeAbout) so this analyzer
+        // never shares any per parse state with the resource or with other analyzers.
         List<Matcher> allMatchers = userAgentResource.getAllMatchers();
         for (Matcher matcher:allMatchers){
             Matcher cloneMatcher = matcher.Clone(this);
@@ -158,13 +145,13 @@ config:
 */
 
     public void informMeAbout(MatcherAction matcherAction, String keyPattern) {
-//        String hashKey = keyPattern.toLowerCase();
-//        Set<MatcherAction> analyzerSet = informMatcherActions.get(hashKey);
-//        if (analyzerSet == null) {
-//            analyzerSet = new HashSet<>();
-//            informMatcherActions.put(hashKey, analyzerSet);
-//        }
-//        analyzerSet.add(matcherAction);
+        String hashKey = keyPattern.toLowerCase();
+        Set<MatcherAction> analyzerSet = informMatcherActions.get(hashKey);
+        if (analyzerSet == null) {
+            analyzerSet = new HashSet<>();
+            informMatcherActions.put(hashKey, analyzerSet);
+        }
+        analyzerSet.add(matcherAction);
     }
 
     private boolean verbose = false;
@@ -174,9 +161,13 @@ config:
         flattener.setVerbose(newVerbose);
     }
 
+    /**
+     * @param userAgentString The useragent to parse
+     * @return The frozen result that is shared via the cache (use copyOnWrite() to change it).
+     */
     public UserAgent parse(String userAgentString) {
-        UserAgent userAgent = new UserAgent(userAgentString);
-        return cachedParse(userAgent);
+        // If other threads are parsing the same useragent right now we wait for their result.
+        return userAgentResource.getOrParse(userAgentString, this);
     }
 
     public UserAgent parse(UserAgent userAgent) {
@@ -185,20 +176,24 @@ config:
     }
 
 
-    private synchronized UserAgent cachedParse(UserAgent userAgent) {
-
+    private UserAgent cachedParse(UserAgent userAgent) {
         String userAgentString = userAgent.getUserAgentString();
-        UserAgent cachedValue = userAgentResource.getfromCache(userAgentString);
-        if (cachedValue != null) {
-            userAgent.clone(cachedValue);
-        } else {
-            cachedValue = new UserAgent(nonCachedParse(userAgent));
-            userAgentResource.putUserAgentToCache(userAgentString, cachedValue);
-        }
+        // If other threads are parsing the same useragent right now we wait for their result.
+        UserAgent cachedValue = userAgentResource.getOrParse(userAgentString, this);
+        userAgent.clone(cachedValue);
         // We have our answer.
         return userAgent;
     }
 
+    /**
+     * Parse the useragent with the matchers of this analyzer (only one parse at a time) without using any cache.
+     * @param userAgentString The useragent to parse
+     * @return A new frozen UserAgent instance that can be shared.
+     */
+    synchronized UserAgent parseWithoutCache(String userAgentString) {
+        return nonCachedParse(new UserAgent(userAgentString, userAgentResource.getFieldSchema())).freeze();
+    }
+
     private UserAgent nonCachedParse(UserAgent userAgent) {
 
         boolean setVerboseTemporarily = userAgent.isDebug();
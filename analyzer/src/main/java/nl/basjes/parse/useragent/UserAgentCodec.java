@@ -0,0 +1,467 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.basjes.parse.useragent;
+
+import nl.basjes.parse.useragent.utils.Hash64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A compact binary form of a {@link UserAgent} to send results to other processes (i.e. via Kafka or in intermediate
+ * data). Compared to the json form it is about an order of magnitude smaller and much cheaper to read back.
+ * <p>
+ * A record has:
+ * <ul>
+ *     <li>The format version (1 byte) and the fingerprints of the schema and of the shared dictionary (4 bytes each).</li>
+ *     <li>The parse flags (1 byte), the ambiguity count (varint) and the useragent string.</li>
+ *     <li>The number of fields (varint) and per field: the field id in the schema (varint),
+ *         the confidence (zigzag varint) and the value.</li>
+ * </ul>
+ * A field that is not in the schema has the id 'size of the schema' followed by its name.
+ * A value is a single varint for null (0) or a value from the shared dictionary (odd: 2 * code + 1);
+ * otherwise it is 2 * (length + 1) followed by the UTF-8 bytes.
+ * <p>
+ * The shared dictionary is the first part of a {@link ValueDictionary} that both sides agreed on (i.e. the writer
+ * has sent {@link ValueDictionary#getValues()} to the readers once). Without it all values are written inline.
+ * Records can only be read by a codec with the same schema and shared dictionary; this is checked.
+ * <p>
+ * A single field can be read directly from the record ({@link #readValue(ByteBuffer, String)}) without decoding
+ * (or copying) the rest of it. Instances are immutable and thread safe.
+ */
+public final class UserAgentCodec {
+
+    public static final byte FORMAT_VERSION = 1;
+
+    private static final int FLAG_SYNTAX_ERROR = 1;
+    private static final int FLAG_AMBIGUITY    = 2;
+
+    private final FieldSchema schema;
+    private final ValueDictionary dictionary;
+    private final int sharedValues;
+    private final int schemaFingerprint;
+    private final int dictionaryFingerprint;
+
+    /**
+     * A codec that writes all values inline.
+     * @param schema The schema of the analyzer (see {@link UserAgentAnalyzer#getFieldSchema()}).
+     */
+    public UserAgentCodec(FieldSchema schema) {
+        this(schema, null, 0);
+    }
+
+    /**
+     * @param schema       The schema of the analyzer (see {@link UserAgentAnalyzer#getFieldSchema()}).
+     * @param dictionary   The dictionary with the shared values (null for none).
+     * @param sharedValues The number of values (the codes 0 .. sharedValues - 1) of the dictionary that
+     *                     the readers have in exactly the same order.
+     */
+    public UserAgentCodec(FieldSchema schema, ValueDictionary dictionary, int sharedValues) {
+        if (dictionary == null && sharedValues != 0) {
+            throw new IllegalArgumentException("Shared values need a dictionary");
+        }
+        if (sharedValues < 0 || (dictionary != null && sharedValues > dictionary.size())) {
+            throw new IllegalArgumentException("The dictionary does not have " + sharedValues + " values");
+        }
+        this.schema = schema;
+        this.dictionary = sharedValues == 0 ? null : dictionary;
+        this.sharedValues = sharedValues;
+
+        long fingerprint = Hash64.hash("schema");
+        for (String fieldName : schema.getFieldNames()) {
+            fingerprint = fingerprint * 31 + Hash64.hash(fieldName);
+        }
+        schemaFingerprint = fold(fingerprint);
+
+        fingerprint = Hash64.hash("dictionary");
+        for (int code = 0; code < sharedValues; code++) {
+            fingerprint = fingerprint * 31 + Hash64.hash(dictionary.decode(code));
+        }
+        dictionaryFingerprint = sharedValues == 0 ? 0 : fold(fingerprint);
+    }
+
+    private static int fold(long hash) {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    public FieldSchema getSchema() {
+        return schema;
+    }
+
+    public int getSharedValues() {
+        return sharedValues;
+    }
+
+    // -----------------------------------------------------------
+
+    /**
+     * @param userAgent The result to encode
+     * @return The record
+     */
+    public byte[] encode(UserAgent userAgent) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try {
+            encode(userAgent, bytes);
+        } catch (IOException e) {
+            // A ByteArrayOutputStream does not throw IOExceptions.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param userAgent The result to encode
+     * @param out       Where the record is written to (many small writes, so it should be buffered)
+     * @throws IOException if the OutputStream throws it
+     */
+    public void encode(UserAgent userAgent, OutputStream out) throws IOException {
+        int fields = userAgent.encodableFields();
+        FieldSchema userAgentSchema = userAgent.getFieldSchema();
+
+        out.write(FORMAT_VERSION);
+        writeInt(out, schemaFingerprint);
+        writeInt(out, dictionaryFingerprint);
+        out.write((userAgent.hasSyntaxError() ? FLAG_SYNTAX_ERROR : 0) | (userAgent.hasAmbiguity() ? FLAG_AMBIGUITY : 0));
+        writeVarLong(out, userAgent.getAmbiguityCount());
+        writeInlineString(out, userAgent.getUserAgentString());
+
+        int present = 0;
+        for (int id = 0; id < fields; id++) {
+            if (userAgent.hasField(id)) {
+                present++;
+            }
+        }
+        writeVarLong(out, present);
+        for (int id = 0; id < fields; id++) {
+            if (!userAgent.hasField(id)) {
+                continue;
+            }
+            String fieldName = userAgentSchema.getName(id);
+            int fieldId = userAgentSchema == schema ? id : schema.getId(fieldName);
+            if (fieldId < 0) {
+                writeVarLong(out, schema.size());
+                writeInlineString(out, fieldName);
+            } else {
+                writeVarLong(out, fieldId);
+            }
+            long confidence = userAgent.storedConfidence(id);
+            writeVarLong(out, (confidence << 1) ^ (confidence >> 63));
+            writeValue(out, userAgent.storedValue(id));
+        }
+    }
+
+    private void writeValue(OutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        if (dictionary != null) {
+            int code = dictionary.getCode(value);
+            if (code != ValueDictionary.NO_CODE && code < sharedValues) {
+                writeVarLong(out, 2L * code + 1);
+                return;
+            }
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, 2L * (bytes.length + 1));
+        out.write(bytes);
+    }
+
+    // 0 for null, otherwise length + 1 followed by the UTF-8 bytes.
+    private static void writeInlineString(OutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length + 1L);
+        out.write(bytes);
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            out.write((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        out.write((int) remaining);
+    }
+
+    // -----------------------------------------------------------
+
+    /**
+     * @param record The output of {@link #encode(UserAgent)}
+     * @return A frozen UserAgent (with the schema of this codec)
+     * @throws IllegalArgumentException if it is not a (complete) record of a codec with the same schema and dictionary.
+     */
+    public UserAgent decode(byte[] record) {
+        return decode(ByteBuffer.wrap(record));
+    }
+
+    /**
+     * @param record The record from the position to the limit of the buffer (the buffer itself is not changed).
+     * @return A frozen UserAgent (with the schema of this codec)
+     * @throws IllegalArgumentException if it is not a (complete) record of a codec with the same schema and dictionary.
+     */
+    public UserAgent decode(ByteBuffer record) {
+        Reader reader = new Reader(record);
+        try {
+            int flags = readHeader(reader);
+            int ambiguityCount = (int) reader.readVarLong();
+            String userAgentString = reader.readInlineString();
+            UserAgent userAgent = UserAgent.forDecoding(schema, userAgentString,
+                (flags & FLAG_SYNTAX_ERROR) != 0, (flags & FLAG_AMBIGUITY) != 0, ambiguityCount);
+
+            long fields = reader.readVarLong();
+            for (long field = 0; field < fields; field++) {
+                long fieldId = reader.readVarLong();
+                String extraFieldName = fieldId == schema.size() ? reader.readInlineString() : null;
+                if (fieldId > schema.size() || (fieldId == schema.size() && extraFieldName == null)) {
+                    throw new IllegalArgumentException("Invalid field id " + fieldId);
+                }
+                long confidence = reader.readConfidence();
+                String value = reader.readValue();
+                if (extraFieldName == null) {
+                    userAgent.putDecodedField((int) fieldId, value, confidence);
+                } else {
+                    userAgent.putDecodedField(extraFieldName, value, confidence);
+                }
+            }
+            if (reader.remaining() != 0) {
+                throw new IllegalArgumentException("The record has " + reader.remaining() + " trailing bytes");
+            }
+            if (dictionary != null) {
+                userAgent.encodeValues(dictionary);
+            }
+            return userAgent.freeze();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Incomplete record", e);
+        }
+    }
+
+    /**
+     * Read a single field without decoding the rest of the record.
+     * @param record    The record from the position to the limit of the buffer (the buffer itself is not changed).
+     * @param fieldName The name of the field
+     * @return The same as {@link UserAgent#getValue(String)} on the decoded record.
+     * @throws IllegalArgumentException if it is not a (complete) record of a codec with the same schema and dictionary.
+     */
+    public String readValue(ByteBuffer record, String fieldName) {
+        Reader reader = find(record, fieldName);
+        if (reader == null) {
+            return UserAgent.UNKNOWN_VALUE;
+        }
+        reader.readConfidence();
+        String value = reader.readValue();
+        if (value == null) {
+            int id = schema.getId(fieldName);
+            return id < 0 ? null : schema.getDefaultValue(id);
+        }
+        return value;
+    }
+
+    /**
+     * Read the confidence of a single field without decoding the rest of the record.
+     * @param record    The record from the position to the limit of the buffer (the buffer itself is not changed).
+     * @param fieldName The name of the field
+     * @return The same as {@link UserAgent#getConfidence(String)} on the decoded record.
+     * @throws IllegalArgumentException if it is not a (complete) record of a codec with the same schema and dictionary.
+     */
+    public long readConfidence(ByteBuffer record, String fieldName) {
+        Reader reader = find(record, fieldName);
+        if (reader == null) {
+            return -1;
+        }
+        long confidence = reader.readConfidence();
+        if (reader.readValueIsNull()) {
+            return -1; // Same lie as the UserAgent for a wiped value.
+        }
+        return confidence;
+    }
+
+    // The reader is positioned at the confidence of the field; null if the record does not have the field.
+    private Reader find(ByteBuffer record, String fieldName) {
+        int wantedId = schema.getId(fieldName);
+        Reader reader = new Reader(record);
+        try {
+            readHeader(reader);
+            reader.readVarLong();            // Ambiguity count
+            reader.skipInlineString();       // Useragent
+            long fields = reader.readVarLong();
+            for (long field = 0; field < fields; field++) {
+                long fieldId = reader.readVarLong();
+                boolean found;
+                if (fieldId == schema.size()) {
+                    // The name must always be read to get to the confidence and the value.
+                    String name = reader.readInlineString();
+                    found = wantedId < 0 && fieldName.equals(name);
+                } else {
+                    found = fieldId == wantedId;
+                }
+                if (found) {
+                    return reader;
+                }
+                reader.readVarLong();        // Confidence
+                reader.skipValue();
+            }
+            return null;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Incomplete record", e);
+        }
+    }
+
+    // Returns the flags
+    private int readHeader(Reader reader) {
+        byte version = reader.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unsupported record format " + version);
+        }
+        if (reader.readInt() != schemaFingerprint) {
+            throw new IllegalArgumentException("The record was written with a different schema");
+        }
+        if (reader.readInt() != dictionaryFingerprint) {
+            throw new IllegalArgumentException("The record was written with a different shared dictionary");
+        }
+        return reader.readByte();
+    }
+
+    // Reads with absolute positions so the buffer itself is never changed (or copied).
+    private final class Reader {
+        private final ByteBuffer buffer;
+        private final int limit;
+        private int position;
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.position = buffer.position();
+            this.limit = buffer.limit();
+        }
+
+        int remaining() {
+            return limit - position;
+        }
+
+        private void require(long bytes) {
+            if (bytes < 0 || bytes > limit - position) {
+                throw new BufferUnderflowException();
+            }
+        }
+
+        byte readByte() {
+            require(1);
+            return buffer.get(position++);
+        }
+
+        int readInt() {
+            require(4);
+            int value = buffer.getInt(position);
+            position += 4;
+            return value;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Invalid varint");
+        }
+
+        long readConfidence() {
+            long zigzag = readVarLong();
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        String readInlineString() {
+            long length = readVarLong();
+            if (length == 0) {
+                return null;
+            }
+            return readUtf8(length - 1);
+        }
+
+        void skipInlineString() {
+            long length = readVarLong();
+            if (length > 0) {
+                require(length - 1);
+                position += length - 1;
+            }
+        }
+
+        String readValue() {
+            long header = readVarLong();
+            if (header == 0) {
+                return null;
+            }
+            if ((header & 1) == 1) {
+                long code = header >>> 1;
+                if (code >= sharedValues) {
+                    throw new IllegalArgumentException("Invalid value code " + code);
+                }
+                return dictionary.decode((int) code);
+            }
+            return readUtf8((header >>> 1) - 1);
+        }
+
+        boolean readValueIsNull() {
+            return readVarLong() == 0;
+        }
+
+        void skipValue() {
+            long header = readVarLong();
+            if (header != 0 && (header & 1) == 0) {
+                long length = (header >>> 1) - 1;
+                require(length);
+                position += length;
+            }
+        }
+
+        private String readUtf8(long length) {
+            require(length);
+            int bytes = (int) length;
+            String value;
+            if (buffer.hasArray()) {
+                value = new String(buffer.array(), buffer.arrayOffset() + position, bytes, StandardCharsets.UTF_8);
+            } else {
+                byte[] copy = new byte[bytes];
+                for (int i = 0; i < bytes; i++) {
+                    copy[i] = buffer.get(position + i);
+                }
+                value = new String(copy, StandardCharsets.UTF_8);
+            }
+            position += bytes;
+            return value;
+        }
+    }
+}
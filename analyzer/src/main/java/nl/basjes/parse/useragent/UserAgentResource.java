@@ -19,7 +19,9 @@ package nl.basjes.parse.useragent;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import nl.basjes.parse.useragent.analyze.*;
+import nl.basjes.parse.useragent.utils.MappedFileCache;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,10 +29,20 @@ import org.springframework.core.io.Resource;
 import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
 import org.yaml.snakeyaml.Yaml;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static nl.basjes.parse.useragent.UserAgent.*;
 
@@ -56,6 +68,23 @@ public class UserAgentResource   extends Analyzer{
 
     private com.google.common.cache.LoadingCache<String, UserAgent> parseCache2;
 
+    // Optionally a cache in a file behind the shared parse cache that survives a restart.
+    private volatile MappedFileCache persistentCache = null;
+
+    private long rulesHash = 0;
+
+    private volatile FieldSchema fieldSchema = FieldSchema.DEFAULT;
+
+    // The loads that are running right now; a request for the same useragent waits for the running load.
+    private final ConcurrentMap<String, FutureTask<UserAgent>> runningLoads = new ConcurrentHashMap<>();
+    private final AtomicLong coalescedRequests = new AtomicLong();
+
+    // A bounded pool of analyzers (each with its own matchers) to load the missing values in the cache.
+    private final int maxLoaderAnalyzers = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private final AtomicInteger createdLoaderAnalyzers = new AtomicInteger();
+    private final BlockingQueue<UserAgentAnalyzer2> idleLoaderAnalyzers = new LinkedBlockingQueue<>();
+    private volatile boolean closed = false;
+
     public UserAgentResource() {
         initialize(true);
     }
@@ -79,21 +108,243 @@ public class UserAgentResource   extends Analyzer{
         parseCache2 = CacheBuilder.newBuilder()
                 .maximumSize(DEFAULT_PARSE_CACHE_SIZE)
                 .expireAfterAccess(10, TimeUnit.MINUTES)
+                .recordStats()
                 .build(new UserAgentCacheLoader());
     }
 
+    /**
+     * Get the parse result from the cache. If it is not present it is parsed by an analyzer from a bounded pool.
+     * If other threads request the same useragent at the same time only one of them does the parsing.
+     * @param ua The useragent string
+     * @return The frozen (shared) cached UserAgent or null if it could not be obtained.
+     */
     public UserAgent getfromCache(String ua){
         try{
-            UserAgent userAgent = parseCache2.get(ua);
-            return userAgent;
+            return getOrLoad(ua, null);
         }catch (Exception e){
         }
         return null;
     }
 
+    /**
+     * Get the parse result from the cache or have the provided analyzer parse it.
+     * Concurrent requests for the same useragent are coalesced: the first one parses it and the others
+     * wait for that result instead of all parsing the same useragent.
+     * @param ua       The useragent string
+     * @param analyzer The analyzer that parses the useragent if it is not yet in the cache
+     * @return The frozen (shared) cached UserAgent.
+     */
+    public UserAgent getOrParse(final String ua, final UserAgentAnalyzer2 analyzer) {
+        if (ua == null) {
+            return analyzer.parseWithoutCache(null);
+        }
+        try {
+            return getOrLoad(ua, analyzer);
+        } catch (ExecutionException e) {
+            LOG.error("Unable to load {} into the cache: {}", ua, e.getCause().toString());
+            return analyzer.parseWithoutCache(ua);
+        }
+    }
+
+    // If the analyzer is null an analyzer from the pool is used.
+    private UserAgent getOrLoad(final String ua, final UserAgentAnalyzer2 analyzer) throws ExecutionException {
+        UserAgent userAgent = parseCache2.getIfPresent(ua);
+        if (userAgent != null) {
+            return userAgent;
+        }
+
+        final Callable<UserAgent> loader = new Callable<UserAgent>() {
+            @Override
+            public UserAgent call() throws InterruptedException {
+                if (analyzer != null) {
+                    return loadOrParse(ua, analyzer);
+                }
+                UserAgentAnalyzer2 loaderAnalyzer = borrowLoaderAnalyzer();
+                try {
+                    return loadOrParse(ua, loaderAnalyzer);
+                } finally {
+                    returnLoaderAnalyzer(loaderAnalyzer);
+                }
+            }
+        };
+        FutureTask<UserAgent> load = new FutureTask<>(new Callable<UserAgent>() {
+            @Override
+            public UserAgent call() throws ExecutionException {
+                // If a load finished since the lookup above this simply returns its result.
+                return parseCache2.get(ua, loader);
+            }
+        });
+
+        FutureTask<UserAgent> runningLoad = runningLoads.putIfAbsent(ua, load);
+        if (runningLoad == null) {
+            try {
+                load.run();
+            } finally {
+                runningLoads.remove(ua, load);
+            }
+            runningLoad = load;
+        } else {
+            coalescedRequests.incrementAndGet();
+        }
+
+        try {
+            return runningLoad.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(e);
+        } catch (ExecutionException e) {
+            // The exception of the cache itself is wrapped once more by the task.
+            if (e.getCause() instanceof ExecutionException) {
+                throw (ExecutionException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private UserAgentAnalyzer2 borrowLoaderAnalyzer() throws InterruptedException {
+        UserAgentAnalyzer2 analyzer = idleLoaderAnalyzers.poll();
+        if (analyzer != null) {
+            return analyzer;
+        }
+        if (closed) {
+            return new UserAgentAnalyzer2(this); // Only used once
+        }
+        while (true) {
+            int created = createdLoaderAnalyzers.get();
+            if (created >= maxLoaderAnalyzers) {
+                // Wait for one of the other threads to finish its parse
+                // (or to fail creating an analyzer, which frees its place in the pool).
+                analyzer = idleLoaderAnalyzers.poll(100, TimeUnit.MILLISECONDS);
+                if (analyzer != null) {
+                    return analyzer;
+                }
+                continue;
+            }
+            if (createdLoaderAnalyzers.compareAndSet(created, created + 1)) {
+                boolean success = false;
+                try {
+                    analyzer = new UserAgentAnalyzer2(this);
+                    success = true;
+                    return analyzer;
+                } finally {
+                    if (!success) {
+                        createdLoaderAnalyzers.decrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    private void returnLoaderAnalyzer(UserAgentAnalyzer2 analyzer) {
+        if (!closed) {
+            idleLoaderAnalyzers.offer(analyzer);
+        }
+    }
+
+    /**
+     * @return The number of analyzers in the pool that loads the missing useragents in the cache.
+     */
+    public int getLoaderAnalyzerCount() {
+        return idleLoaderAnalyzers.size();
+    }
+
+    /**
+     * Releases the pooled analyzers and closes the persistent cache (if any).
+     * Call this when the resource is no longer used (i.e. when the application is undeployed).
+     */
+    public void close() {
+        closed = true;
+        idleLoaderAnalyzers.clear();
+        closePersistentCache();
+    }
+
+    // Only called for useragents that are not in the in memory cache.
+    private UserAgent loadOrParse(String ua, UserAgentAnalyzer2 analyzer) {
+        MappedFileCache fileCache = persistentCache;
+        if (fileCache == null) {
+            return analyzer.parseWithoutCache(ua);
+        }
+        byte[] storedValue = fileCache.get(ua);
+        if (storedValue != null) {
+            try {
+                return UserAgent.deserialize(storedValue, fieldSchema);
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Ignoring a corrupt entry in the persistent cache {}", fileCache.getFile());
+            }
+        }
+        UserAgent userAgent = analyzer.parseWithoutCache(ua);
+        fileCache.put(ua, userAgent.serialize());
+        return userAgent;
+    }
+
+    /**
+     * @return The schema (field ids) of the results of the analyzers of this resource.
+     */
+    public FieldSchema getFieldSchema() {
+        return fieldSchema;
+    }
+
+    /**
+     * @return The version of the analyzer combined with the hash of the loaded rules.
+     */
+    public String getRuleSetVersion() {
+        return getVersion() + " Rules " + String.format("%016x", rulesHash);
+    }
+
+    /**
+     * Use a file as an additional cache behind the shared parse cache.
+     * See {@link UserAgentAnalyzer#setPersistentCache(File, int, int)}.
+     * @param file       The file (created if it does not exist)
+     * @param maxEntries The maximum number of stored results (only used if the file is created)
+     * @param maxBytes   The maximum number of bytes for all stored results (only used if the file is created)
+     * @throws IOException If the file cannot be used.
+     */
+    public void setPersistentCache(File file, int maxEntries, int maxBytes) throws IOException {
+        MappedFileCache newCache = new MappedFileCache(file, getRuleSetVersion(), maxEntries, maxBytes);
+        closePersistentCache();
+        persistentCache = newCache;
+    }
+
+    public void closePersistentCache() {
+        MappedFileCache oldCache = persistentCache;
+        persistentCache = null;
+        if (oldCache != null) {
+            try {
+                oldCache.close();
+            } catch (IOException e) {
+                LOG.error("Unable to close the persistent cache {}: {}", oldCache.getFile(), e.toString());
+            }
+        }
+    }
+
+    /**
+     * @return The hit, miss and reject counters of the persistent cache (null if there is no such cache).
+     */
+    public MappedFileCache.Stats getPersistentCacheStats() {
+        MappedFileCache fileCache = persistentCache;
+        if (fileCache == null) {
+            return null;
+        }
+        return fileCache.getStats();
+    }
+
+    /**
+     * @return The hit/miss/load statistics of the shared parse cache.
+     */
+    public CacheStats getCacheStats() {
+        return parseCache2.stats();
+    }
+
+    /**
+     * @return The number of cache misses that waited for the same useragent being parsed by another thread.
+     */
+    public long getCoalescedRequestCount() {
+        return coalescedRequests.get();
+    }
+
     public void putUserAgentToCache(String ua, UserAgent userAgent){
         try{
-            parseCache2.put(ua, userAgent);
+            parseCache2.put(ua, userAgent.frozenCopy());
         }catch (Exception e){
         }
     }
@@ -239,6 +490,9 @@ public class UserAgentResource   extends Analyzer{
             LOG.info(msg.toString());
 
         }
+        rulesHash = UserAgentAnalyzer.calculateRulesHash(matcherConfigs, lookups2, wantedFieldNames);
+        fieldSchema = FieldSchema.of(getAllPossibleFieldNames());
+
         LOG.info("Analyzer stats");
         LOG.info("Lookups      : {}", (lookups2 == null) ? 0 : lookups2.size());
         LOG.info("Matchers     : {} (total:{} ; dropped: {})", allMatchers.size(), totalNumberOfMatchers, skippedMatchers);
@@ -512,12 +766,17 @@ config:
     }
 
 
-    private static class UserAgentCacheLoader extends CacheLoader<String, UserAgent> {
+    private class UserAgentCacheLoader extends CacheLoader<String, UserAgent> {
         public UserAgentCacheLoader() {
         }
         @Override
         public UserAgent load(String key) throws Exception {
-            return null;
+            UserAgentAnalyzer2 analyzer = borrowLoaderAnalyzer();
+            try {
+                return loadOrParse(key, analyzer);
+            } finally {
+                returnLoaderAnalyzer(analyzer);
+            }
         }
     }
 
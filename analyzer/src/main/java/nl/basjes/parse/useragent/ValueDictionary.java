@@ -0,0 +1,134 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.basjes.parse.useragent;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives every distinct value of the results of an analyzer an int code. Most fields only have a few distinct values
+ * (i.e. DeviceClass has less than 20) so with the codes the results can be grouped and compared as ints.
+ * The results also share the same String instance for the same value instead of each having its own copy.
+ * <p>
+ * A code never changes during the life of the dictionary. The number of codes is limited because some
+ * fields (i.e. versions) have many values; when the dictionary is full new values simply get no code.
+ * Thread safe: lookups never lock, only adding a new value does.
+ */
+public final class ValueDictionary {
+
+    /** The code of a value that is not in the dictionary. */
+    public static final int NO_CODE = -1;
+
+    private final int maxSize;
+    private final ConcurrentHashMap<String, Integer> codes;
+    private volatile String[] values;
+    private int size = 0; // Only changed while holding the lock
+
+    /**
+     * @param maxSize The maximum number of distinct values.
+     */
+    public ValueDictionary(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("The value dictionary must be able to hold at least 1 value");
+        }
+        this.maxSize = maxSize;
+        codes = new ConcurrentHashMap<>(Math.min(maxSize, 1024) * 2);
+        values = new String[Math.min(maxSize, 1024)];
+    }
+
+    /**
+     * @param value The value
+     * @return The code of the value; the value is added if it is new (and the dictionary is not full).
+     */
+    public int encode(String value) {
+        if (value == null) {
+            return NO_CODE;
+        }
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        synchronized (this) {
+            code = codes.get(value);
+            if (code != null) {
+                return code;
+            }
+            if (size >= maxSize) {
+                return NO_CODE;
+            }
+            String[] newValues = values;
+            if (size == newValues.length) {
+                newValues = Arrays.copyOf(newValues, (int) Math.min(maxSize, newValues.length * 2L));
+            }
+            newValues[size] = value;
+            // Publish the value before the code so whoever has the code can always decode it.
+            values = newValues;
+            codes.put(value, size);
+            return size++;
+        }
+    }
+
+    /**
+     * @param value The value
+     * @return The code of the value or {@link #NO_CODE} if the value is not in the dictionary.
+     */
+    public int getCode(String value) {
+        if (value == null) {
+            return NO_CODE;
+        }
+        Integer code = codes.get(value);
+        return code == null ? NO_CODE : code;
+    }
+
+    /**
+     * @param code The code (as returned by {@link #encode(String)})
+     * @return The value
+     * @throws IllegalArgumentException if the code is not in the dictionary
+     */
+    public String decode(int code) {
+        String[] currentValues = values;
+        if (code < 0 || code >= currentValues.length || currentValues[code] == null) {
+            throw new IllegalArgumentException("Unknown value code " + code);
+        }
+        return currentValues[code];
+    }
+
+    public int size() {
+        return codes.size();
+    }
+
+    /**
+     * A reader that adds these values (in this order) to an empty dictionary gets the same codes for them.
+     * @return All values of the dictionary, the index is the code.
+     */
+    public List<String> getValues() {
+        String[] currentValues = values;
+        int count = 0;
+        while (count < currentValues.length && currentValues[count] != null) {
+            count++;
+        }
+        return Collections.unmodifiableList(Arrays.asList(Arrays.copyOf(currentValues, count)));
+    }
+
+    public int maxSize() {
+        return maxSize;
+    }
+}
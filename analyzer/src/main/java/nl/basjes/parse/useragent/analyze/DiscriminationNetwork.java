@@ -0,0 +1,146 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.analyze;
+
+import nl.basjes.parse.useragent.UserAgent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A Rete style discrimination network for the require sections of all matchers.
+ * <p>
+ * Many matchers have exactly the same require condition (i.e. the same product name check or the same IsNull check).
+ * All identical require expressions are compiled into a single shared condition node (the 'alpha' node) that is
+ * evaluated only once per parse. Only the first action with a specific expression is informed by the tree flattener,
+ * all identical copies are redundant and should no longer be registered for informs
+ * (their matchers show the matches of the shared action, i.e. in {@link Matcher#getUsedMatches()}).
+ * <p>
+ * The satisfied conditions are propagated to a 'beta' node per matcher that counts how many of its conditions
+ * were satisfied. Only the matchers with all conditions satisfied (which includes the matchers without any
+ * require condition) get to evaluate their extract actions.
+ * <p>
+ * The outcome is the same as calling {@link Matcher#analyze(UserAgent)} on all matchers (in the same order).
+ */
+public class DiscriminationNetwork {
+
+    private static final class ConditionNode {
+        private final MatcherRequireAction action;
+        private final List<BetaNode> betaNodes = new ArrayList<>();
+
+        private ConditionNode(MatcherRequireAction action) {
+            this.action = action;
+        }
+    }
+
+    private static final class BetaNode {
+        private final Matcher matcher;
+        private int neededConditions = 0;
+        private int satisfiedConditions = 0;
+
+        private BetaNode(Matcher matcher) {
+            this.matcher = matcher;
+        }
+    }
+
+    private final ConditionNode[] conditionNodes;
+    private final BetaNode[] betaNodes;
+    private final Set<MatcherAction> redundantActions = Collections.newSetFromMap(new IdentityHashMap<MatcherAction, Boolean>());
+    private final int numberOfRequireActions;
+
+    // The require actions never put anything in here but obtainResult needs a target.
+    private final UserAgent requireResult = new UserAgent("dummy");
+
+    public DiscriminationNetwork(List<Matcher> matchers) {
+        Map<String, ConditionNode> sharedConditions = new LinkedHashMap<>();
+        List<BetaNode> allBetaNodes = new ArrayList<>(matchers.size());
+        int requireActions = 0;
+
+        for (Matcher matcher : matchers) {
+            BetaNode betaNode = new BetaNode(matcher);
+            allBetaNodes.add(betaNode);
+            for (MatcherRequireAction action : matcher.getRequireActions()) {
+                requireActions++;
+                String expression = action.getMatchExpression();
+                ConditionNode conditionNode = sharedConditions.get(expression);
+                if (conditionNode == null) {
+                    conditionNode = new ConditionNode(action);
+                    sharedConditions.put(expression, conditionNode);
+                } else {
+                    redundantActions.add(action);
+                    matcher.shareAction(action, conditionNode.action);
+                }
+                // If a matcher has the same condition twice it is counted twice on both sides.
+                conditionNode.betaNodes.add(betaNode);
+                betaNode.neededConditions++;
+            }
+        }
+
+        conditionNodes = sharedConditions.values().toArray(new ConditionNode[sharedConditions.size()]);
+        betaNodes = allBetaNodes.toArray(new BetaNode[allBetaNodes.size()]);
+        numberOfRequireActions = requireActions;
+    }
+
+    /**
+     * @return The require actions that are evaluated by an identical shared action and
+     * which therefore no longer need to be informed about anything.
+     */
+    public Set<MatcherAction> getRedundantActions() {
+        return redundantActions;
+    }
+
+    public int getNumberOfRequireActions() {
+        return numberOfRequireActions;
+    }
+
+    public int getNumberOfConditionNodes() {
+        return conditionNodes.length;
+    }
+
+    /**
+     * Evaluate all conditions once and fire the matchers that have all of their conditions satisfied.
+     * Must be called after the tree flattener has informed all actions.
+     * @param userAgent The useragent that needs to analyzed
+     */
+    public void analyze(UserAgent userAgent) {
+        for (BetaNode betaNode : betaNodes) {
+            betaNode.satisfiedConditions = 0;
+        }
+
+        for (ConditionNode conditionNode : conditionNodes) {
+            MatcherRequireAction action = conditionNode.action;
+            // The same checks (in the same order) as Matcher.analyze does.
+            if (action.canPossiblyBeValid() && action.obtainResult(requireResult)) {
+                for (BetaNode betaNode : conditionNode.betaNodes) {
+                    betaNode.satisfiedConditions++;
+                }
+            }
+        }
+
+        for (BetaNode betaNode : betaNodes) {
+            if (betaNode.satisfiedConditions == betaNode.neededConditions) {
+                betaNode.matcher.analyzeWithoutRequires(userAgent);
+            }
+        }
+    }
+}
@@ -17,11 +17,14 @@
 
 package nl.basjes.parse.useragent.analyze;
 
+import nl.basjes.parse.useragent.FieldSchema;
 import nl.basjes.parse.useragent.UserAgent;
+import nl.basjes.parse.useragent.parse.CacheKeyCanonicalizer.TokenClass;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -43,8 +46,16 @@ public class Matcher {
     private boolean verbose;
     private boolean permanentVerbose;
 
+    // Some actions are not informed themselves but use the matches of an identical action of another matcher.
+    private boolean hasSharedActions = false;
+
+    // If a trigger is set this matcher can only match if the trigger is present in the useragent.
+    private String trigger = null;
+    private boolean triggered = true;
+
     public Matcher Clone(Analyzer analyzer){
-        Matcher matcher = new Matcher(this.analyzer, this.lookups);
+        // The clone must register its actions with (and be informed by) the analyzer it is created for.
+        Matcher matcher = new Matcher(analyzer == null ? this.analyzer : analyzer, this.lookups);
 
 //        matcher.dynamicActions.addAll(this.dynamicActions);
 //        matcher.fixedStringActions.addAll(this.fixedStringActions);
@@ -209,6 +220,55 @@ public class Matcher {
         return results;
     }
 
+    List<MatcherRequireAction> getRequireActions() {
+        List<MatcherRequireAction> requireActions = new ArrayList<>();
+        for (MatcherAction action: dynamicActions) {
+            if (action instanceof MatcherRequireAction) {
+                requireActions.add((MatcherRequireAction) action);
+            }
+        }
+        return requireActions;
+    }
+
+    /**
+     * @return The lowercase literals that all must be present in the useragent for this matcher to match.
+     */
+    public Set<String> getRequiredLiterals() {
+        Set<String> literals = new TreeSet<>();
+        for (MatcherAction action: dynamicActions) {
+            literals.addAll(action.getRequiredLiterals());
+        }
+        return literals;
+    }
+
+    /**
+     * @return The classes of tokens (uuid, url, ...) of which the actual value never changes the outcome of this matcher.
+     */
+    public Set<TokenClass> getIgnorableTokenClasses() {
+        Set<TokenClass> tokenClasses = EnumSet.allOf(TokenClass.class);
+        for (MatcherAction action: dynamicActions) {
+            tokenClasses.retainAll(action.getIgnorableTokenClasses());
+        }
+        return tokenClasses;
+    }
+
+    String getTrigger() {
+        return trigger;
+    }
+
+    /**
+     * From now on this matcher is only evaluated if {@link #trigger()} was called after the last reset.
+     * @param newTrigger The (lowercase) literal that must be present in the useragent for this matcher to match.
+     */
+    void setTrigger(String newTrigger) {
+        trigger = newTrigger;
+        triggered = trigger == null;
+    }
+
+    void trigger() {
+        triggered = true;
+    }
+
     public void informMeAbout(MatcherAction matcherAction, String keyPattern) {
         if (verbose) {
             LOG.info("Requested: {}", keyPattern);
@@ -216,7 +276,16 @@ public class Matcher {
         analyzer.informMeAbout(matcherAction, keyPattern);
     }
 
-    private final UserAgent newValuesUserAgent = new UserAgent("dummy");
+    private UserAgent newValuesUserAgent = new UserAgent("dummy");
+
+    /**
+     * Collect the values in an instance with the schema of the analyzer so they can be copied
+     * into the result by field id.
+     * @param schema The schema of the analyzer
+     */
+    public void setFieldSchema(FieldSchema schema) {
+        newValuesUserAgent = new UserAgent("dummy", schema);
+    }
 
     /**
      * Fires all matcher actions.
@@ -225,37 +294,60 @@ public class Matcher {
      * @param userAgent The useragent that needs to analyzed
      */
     public void analyze(UserAgent userAgent) {
+        analyze(userAgent, true);
+    }
+
+    /**
+     * Fires all matcher actions except the require actions (these must have been validated by the caller).
+     * Used by the {@link DiscriminationNetwork} that evaluates the shared require conditions only once.
+     *
+     * @param userAgent The useragent that needs to analyzed
+     */
+    void analyzeWithoutRequires(UserAgent userAgent) {
+        analyze(userAgent, false);
+    }
+
+    private void analyze(UserAgent userAgent, boolean includeRequires) {
+        if (!triggered) {
+            return; // One of the required literals is not in the useragent so this can never match.
+        }
 
  //       if (verbose) {
 //            LOG.info("");
 //            LOG.info("--- Matcher ------------------------");
 //            LOG.info("ANALYSE ----------------------------");
-            boolean good = true;
-            for (MatcherAction action : dynamicActions) {
-                if (!action.canPossiblyBeValid()) {
-                  //  LOG.error("CANNOT BE VALID : {}", action.getMatchExpression());
-                    good = false;
-                }
+        boolean good = true;
+        for (MatcherAction action : dynamicActions) {
+            if (!includeRequires && action instanceof MatcherRequireAction) {
+                continue;
             }
-            newValuesUserAgent.reset();
-            for (MatcherAction action : dynamicActions) {
-                if (!action.obtainResult(newValuesUserAgent)) {
-                 //   LOG.error("FAILED : {}", action.getMatchExpression());
-                    good = false;
-                }
+            if (!action.canPossiblyBeValid()) {
+              //  LOG.error("CANNOT BE VALID : {}", action.getMatchExpression());
+                good = false;
             }
-            for (MatcherAction action : fixedStringActions) {
-                if (!action.obtainResult(newValuesUserAgent)) {
-                  //  LOG.error("FAILED : {}", action.getMatchExpression());
-                    good = false;
-                }
+        }
+        newValuesUserAgent.reset();
+        for (MatcherAction action : dynamicActions) {
+            if (!includeRequires && action instanceof MatcherRequireAction) {
+                continue;
+            }
+            if (!action.obtainResult(newValuesUserAgent)) {
+             //   LOG.error("FAILED : {}", action.getMatchExpression());
+                good = false;
             }
-            if (good) {
-              //  LOG.info("COMPLETE ----------------------------");
-            } else  {
-             //   LOG.info("INCOMPLETE ----------------------------");
-                return;
+        }
+        for (MatcherAction action : fixedStringActions) {
+            if (!action.obtainResult(newValuesUserAgent)) {
+              //  LOG.error("FAILED : {}", action.getMatchExpression());
+                good = false;
             }
+        }
+        if (good) {
+          //  LOG.info("COMPLETE ----------------------------");
+        } else  {
+         //   LOG.info("INCOMPLETE ----------------------------");
+            return;
+        }
   //      }
 //        else {
 //            if (!forceEvaluation) {
@@ -295,7 +387,10 @@ public class Matcher {
     public void reset(boolean setVerboseTemporarily) {
         // If there are no dynamic actions we have fixed strings only
         possiblyValid = dynamicActions.isEmpty();
-        for (MatcherAction action : dynamicActions) {
+        triggered = trigger == null;
+        // Called for all matchers on every parse, so without an iterator.
+        for (int i = 0; i < dynamicActions.size(); i++) {
+            MatcherAction action = dynamicActions.get(i);
             action.reset();
             // In some cases even a action without data can be valid
             if (action.canPossiblyBeValid()) {
@@ -310,29 +405,54 @@ public class Matcher {
         }
     }
 
+    /**
+     * See {@link MatcherAction#setRecycleMatches(boolean)}.
+     * @param recycle Enable or disable the reuse.
+     */
+    public void setRecycleMatches(boolean recycle) {
+        for (MatcherAction action : dynamicActions) {
+            action.setRecycleMatches(recycle);
+        }
+        for (MatcherAction action : fixedStringActions) {
+            action.setRecycleMatches(recycle);
+        }
+    }
+
+    /**
+     * The action will no longer be informed itself; the identical shared action is informed instead.
+     * @param action       An action of this matcher
+     * @param sharedAction The identical action (of another matcher) that is informed
+     */
+    void shareAction(MatcherAction action, MatcherAction sharedAction) {
+        action.setSharedAction(sharedAction);
+        hasSharedActions = true;
+    }
+
     public List<MatcherAction.Match> getMatches() {
         List<MatcherAction.Match> allMatches = new ArrayList<>(128);
         for (MatcherAction action : dynamicActions) {
-            allMatches.addAll(action.getMatches());
+            allMatches.addAll(action.getInformedAction().getMatches());
         }
         return allMatches;
     }
 
     public List<MatcherAction.Match> getUsedMatches() {
         List<MatcherAction.Match> allMatches = new ArrayList<>(128);
-        if (!possiblyValid) {
+        // The shared actions do not tell this matcher they got a starting point.
+        if (!possiblyValid && !hasSharedActions) {
             return new ArrayList<>(); // There is NO way one of them is valid
         }
         for (MatcherAction action : dynamicActions) {
-            if (!action.canPossiblyBeValid()) {
+            if (!action.getInformedAction().canPossiblyBeValid()) {
                 return new ArrayList<>(); // There is NO way one of them is valid
             }
         }
         for (MatcherAction action : dynamicActions) {
-            if (!action.obtainResult(newValuesUserAgent)) {
+            MatcherAction informedAction = action.getInformedAction();
+            if (!informedAction.obtainResult(newValuesUserAgent)) {
                 return new ArrayList<>(); // There is NO way one of them is valid
             } else {
-                allMatches.addAll(action.getMatches());
+                allMatches.addAll(informedAction.getMatches());
             }
         }
         return allMatches;
@@ -20,6 +20,7 @@ package nl.basjes.parse.useragent.analyze;
 import nl.basjes.parse.useragent.UserAgent;
 import nl.basjes.parse.useragent.analyze.WordRangeVisitor.Range;
 import nl.basjes.parse.useragent.analyze.treewalker.TreeExpressionEvaluator;
+import nl.basjes.parse.useragent.parse.CacheKeyCanonicalizer.TokenClass;
 import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerBaseVisitor;
 import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerLexer;
 import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser;
@@ -46,8 +47,10 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.BitSet;
-import java.util.Iterator;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 import static nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.BasePathContext;
 import static nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherCleanVersionContext;
@@ -55,6 +58,7 @@ import static nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.Matcher
 import static nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherPathContext;
 import static nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherPathIsNullContext;
 import static nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherPathLookupContext;
+import static nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherPathLookupPrefixContext;
 import static nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.PathContext;
 import static nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.PathFixedValueContext;
 import static nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.PathWalkContext;
@@ -77,10 +81,24 @@ public abstract class MatcherAction {
 
     private static final Logger LOG = LoggerFactory.getLogger(MatcherAction.class);
 
+    // An identical action (of another matcher) that is informed instead of this one (see DiscriminationNetwork).
+    private MatcherAction sharedAction = null;
+
+    void setSharedAction(MatcherAction action) {
+        sharedAction = action;
+    }
+
+    /**
+     * @return The action that is actually informed about the matches of this action (usually this action itself).
+     */
+    MatcherAction getInformedAction() {
+        return sharedAction == null ? this : sharedAction;
+    }
+
     public class Match {
-        final String key;
-        final String value;
-        final ParseTree result;
+        String key;
+        String value;
+        ParseTree result;
 
         public Match(String key, String value, ParseTree result) {
             this.key = key;
@@ -110,6 +128,9 @@ public abstract class MatcherAction {
     protected List<Match> matches;
     private boolean isFixedString;
 
+    // Only in the allocation lean mode: the Match instances of the previous parse are reused.
+    private List<Match> matchPool = null;
+
     boolean verbose = false;
     private boolean verbosePermanent = false;
     private boolean verboseTemporary = false;
@@ -248,6 +269,12 @@ public abstract class MatcherAction {
             return super.visitMatcherPathLookup(ctx);
         }
 
+        @Override
+        public Void visitMatcherPathLookupPrefix(MatcherPathLookupPrefixContext ctx) {
+            unQuoteToken(ctx.defaultValue);
+            return super.visitMatcherPathLookupPrefix(ctx);
+        }
+
         @Override
         public Void visitPathFixedValue(PathFixedValueContext ctx) {
             unQuoteToken(ctx.value);
@@ -285,6 +312,73 @@ public abstract class MatcherAction {
         }
     }
 
+    /**
+     * All compare steps (=, {, } and ~) are done on (a word range of) the original text of a node in the tree.
+     * So all of these values must be present (ignoring case) in the useragent for this action to have a result.
+     * @return The lowercase literal values that must appear in the useragent for this action to have a result.
+     */
+    public Set<String> getRequiredLiterals() {
+        Set<String> literals = new TreeSet<>();
+        // With an IsNull the absence of something is what makes it valid.
+        if (isFixedString || evaluator.usesIsNull()) {
+            return literals;
+        }
+        new RequiredLiterals(literals).visit(requiredPattern);
+        return literals;
+    }
+
+    private static class RequiredLiterals extends UserAgentTreeWalkerBaseVisitor<Void> {
+        private final Set<String> literals;
+
+        RequiredLiterals(Set<String> literals) {
+            this.literals = literals;
+        }
+
+        private void addLiteral(Token token) {
+            String literal = token.getText().toLowerCase();
+            if (!literal.isEmpty()) {
+                literals.add(literal);
+            }
+        }
+
+        @Override
+        public Void visitStepEqualsValue(StepEqualsValueContext ctx) {
+            addLiteral(ctx.value);
+            return super.visitStepEqualsValue(ctx);
+        }
+
+        @Override
+        public Void visitStepStartsWithValue(StepStartsWithValueContext ctx) {
+            addLiteral(ctx.value);
+            return super.visitStepStartsWithValue(ctx);
+        }
+
+        @Override
+        public Void visitStepEndsWithValue(StepEndsWithValueContext ctx) {
+            addLiteral(ctx.value);
+            return super.visitStepEndsWithValue(ctx);
+        }
+
+        @Override
+        public Void visitStepContainsValue(StepContainsValueContext ctx) {
+            addLiteral(ctx.value);
+            return super.visitStepContainsValue(ctx);
+        }
+    }
+
+    /**
+     * @return The classes of tokens (uuid, url, ...) of which the actual value can never change the outcome of this action.
+     */
+    public Set<TokenClass> getIgnorableTokenClasses() {
+        Set<TokenClass> tokenClasses = EnumSet.noneOf(TokenClass.class);
+        for (TokenClass tokenClass : TokenClass.values()) {
+            if (isFixedString || TokenValueUsage.isIndependentOf(requiredPattern, tokenClass)) {
+                tokenClasses.add(tokenClass);
+            }
+        }
+        return tokenClasses;
+    }
+
     protected abstract void setFixedValue(String newFixedValue);
 
     public abstract MatcherAction Clone(Matcher matcher);
@@ -297,10 +391,37 @@ public abstract class MatcherAction {
      * @param result The node in the parser tree where the match occurred
      */
     public void inform(String key, String value, ParseTree result) {
-        matches.add(new Match(key, value, result));
+        matches.add(newMatch(key, value, result));
         matcher.gotAStartingPoint();
     }
 
+    private Match newMatch(String key, String value, ParseTree result) {
+        if (matchPool == null) {
+            return new Match(key, value, result);
+        }
+        // The matches are cleared at the start of each parse so the pool has the same order.
+        int index = matches.size();
+        if (index < matchPool.size()) {
+            Match match = matchPool.get(index);
+            match.key = key;
+            match.value = value;
+            match.result = result;
+            return match;
+        }
+        Match match = new Match(key, value, result);
+        matchPool.add(match);
+        return match;
+    }
+
+    /**
+     * In the allocation lean mode the Match instances are reused by the next parse.
+     * So the matches of a parse (see {@link #getMatches()}) are only valid until the next parse starts.
+     * @param recycle Enable or disable the reuse.
+     */
+    public void setRecycleMatches(boolean recycle) {
+        matchPool = recycle ? new ArrayList<Match>(16) : null;
+    }
+
     protected abstract void inform(String key, String foundValue);
 
     /**
@@ -334,8 +455,8 @@ public abstract class MatcherAction {
      */
     void processInformedMatches() {
 
-        for (Iterator<Match> iterator = matches.iterator(); iterator.hasNext(); ) {
-            Match match = iterator.next();
+        for (int i = 0; i < matches.size(); i++) {
+            Match match = matches.get(i);
             String matchedValue = evaluator.evaluate(match.result, match.key, match.value);
             if (matchedValue != null) {
                 inform(match.key, matchedValue);
@@ -400,6 +521,10 @@ public abstract class MatcherAction {
             calculateInformPath(treeName, ((MatcherPathLookupContext) tree).matcher());
             return;
         }
+        if (tree instanceof MatcherPathLookupPrefixContext){
+            calculateInformPath(treeName, ((MatcherPathLookupPrefixContext) tree).matcher());
+            return;
+        }
         if (tree instanceof MatcherWordRangeContext){
             calculateInformPath(treeName, ((MatcherWordRangeContext) tree).matcher());
         }
@@ -462,12 +587,7 @@ public abstract class MatcherAction {
 
     public void reset() {
         if (!matches.isEmpty()) {
-            Iterator<Match> iter = matches.iterator();
-            while (iter.hasNext()) {
-                iter.remove();
-            }
-
-        //    matches.clear();
+            matches.clear();
         }
         if (verboseTemporary) {
             verbose = verbosePermanent;
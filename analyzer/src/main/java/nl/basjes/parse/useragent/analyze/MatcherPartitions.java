@@ -0,0 +1,140 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.analyze;
+
+import nl.basjes.parse.useragent.utils.MultiLiteralScanner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Most matchers can only match if a specific word is present in the useragent (i.e. a matcher for a brand
+ * compares some node with the name of that brand). For each matcher one of these required literals is chosen
+ * as the trigger and all matchers with the same trigger form a partition.
+ * At parse time a single scan over the useragent finds all triggers that are present and only the matchers
+ * in those partitions (and the matchers without a trigger) are evaluated.
+ */
+public class MatcherPartitions {
+
+    private final MultiLiteralScanner scanner;
+    private final Matcher[][] partitions;
+    private final int numberOfTriggeredMatchers;
+    private final int numberOfMatchers;
+
+    // Instead of clearing a boolean per partition on every parse we remember in which parse it was enabled.
+    private final int[] enabledInParse;
+    private int parse = 0;
+
+    private final MultiLiteralScanner.Listener enabler = new MultiLiteralScanner.Listener() {
+        @Override
+        public void found(int literalId) {
+            if (enabledInParse[literalId] != parse) {
+                enabledInParse[literalId] = parse;
+                for (Matcher matcher : partitions[literalId]) {
+                    matcher.trigger();
+                }
+            }
+        }
+    };
+
+    public MatcherPartitions(List<Matcher> matchers) {
+        Map<String, List<Matcher>> partitionsByTrigger = new TreeMap<>();
+        int triggeredMatchers = 0;
+        for (Matcher matcher : matchers) {
+            String trigger = chooseTrigger(matcher);
+            matcher.setTrigger(trigger);
+            if (trigger == null) {
+                continue;
+            }
+            List<Matcher> partition = partitionsByTrigger.get(trigger);
+            if (partition == null) {
+                partition = new ArrayList<>();
+                partitionsByTrigger.put(trigger, partition);
+            }
+            partition.add(matcher);
+            triggeredMatchers++;
+        }
+
+        List<String> triggers = new ArrayList<>(partitionsByTrigger.keySet());
+        partitions = new Matcher[triggers.size()][];
+        for (int i = 0; i < triggers.size(); i++) {
+            List<Matcher> partition = partitionsByTrigger.get(triggers.get(i));
+            partitions[i] = partition.toArray(new Matcher[partition.size()]);
+        }
+        scanner = new MultiLiteralScanner(triggers);
+        enabledInParse = new int[triggers.size()];
+        numberOfTriggeredMatchers = triggeredMatchers;
+        numberOfMatchers = matchers.size();
+    }
+
+    /**
+     * The longest literal is the most selective one. Only plain ASCII literals are used because
+     * for those lowercasing a single character and lowercasing an entire string always give the same result.
+     */
+    private static String chooseTrigger(Matcher matcher) {
+        String trigger = null;
+        for (String literal : matcher.getRequiredLiterals()) {
+            if (!isAscii(literal)) {
+                continue;
+            }
+            if (trigger == null || literal.length() > trigger.length()) {
+                trigger = literal;
+            }
+        }
+        return trigger;
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 127) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getNumberOfPartitions() {
+        return partitions.length;
+    }
+
+    public int getNumberOfTriggeredMatchers() {
+        return numberOfTriggeredMatchers;
+    }
+
+    public int getNumberOfMatchers() {
+        return numberOfMatchers;
+    }
+
+    /**
+     * Enable the matchers of all partitions of which the trigger is present in the input.
+     * Must be called after the matchers have been reset and before they are analyzed.
+     * @param input The (cleaned) useragent that is being parsed.
+     */
+    public void enablePartitionsFor(String input) {
+        parse++;
+        if (parse == 0) {
+            // Wrapped around; forget everything so no partition is accidentally seen as enabled.
+            Arrays.fill(enabledInParse, 0);
+            parse = 1;
+        }
+        scanner.scan(input, enabler);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.analyze;
+
+import nl.basjes.parse.useragent.parse.CacheKeyCanonicalizer;
+import nl.basjes.parse.useragent.parse.CacheKeyCanonicalizer.TokenClass;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.BasePathContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherBaseContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherCleanVersionContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherNormalizeBrandContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherPathContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherPathIsNullContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherPathLookupContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherPathLookupPrefixContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherWordRangeContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.PathContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.PathFixedValueContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.PathWalkContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.StepBackToFullContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.StepContainsValueContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.StepDownContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.StepEndsWithValueContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.StepEqualsValueContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.StepNextContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.StepNotEqualsValueContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.StepPrevContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.StepStartsWithValueContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.StepUpContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.StepWordRangeContext;
+import org.antlr.v4.runtime.ParserRuleContext;
+
+/**
+ * Determines if the outcome of a walker expression can depend on the actual value of the tokens of a class
+ * (i.e. the value of a uuid) when those are replaced by a placeholder as done by {@link CacheKeyCanonicalizer}.
+ * <p>
+ * The tree (and thus every walk through it) is the same for the original and the canonical useragent,
+ * only the letters and digits inside the tokens differ. While following the expression we track what the
+ * current value can contain:
+ * <ul>
+ *     <li>FREE: No part of a token of the class (so it is the same in both).</li>
+ *     <li>WHOLE: Zero or more complete tokens of the class (the text of any node in the tree).</li>
+ *     <li>PARTIAL: Zero or more pieces of tokens of the class (i.e. a word range).</li>
+ * </ul>
+ * Comparing a value that is not FREE is only safe if the literal cannot match the changed part.
+ * Using a value that is not FREE as the result (or for a lookup) is never safe.
+ */
+final class TokenValueUsage {
+
+    private enum Content { FREE, WHOLE, PARTIAL }
+
+    private final TokenClass tokenClass;
+
+    private TokenValueUsage(TokenClass tokenClass) {
+        this.tokenClass = tokenClass;
+    }
+
+    /**
+     * @param expression The parsed walker expression of a require (matcherRequire) or extract (matcher).
+     * @param tokenClass The class of tokens that is replaced.
+     * @return true if the outcome of the expression is the same for any value of those tokens.
+     */
+    static boolean isIndependentOf(ParserRuleContext expression, TokenClass tokenClass) {
+        TokenValueUsage usage = new TokenValueUsage(tokenClass);
+        if (expression instanceof MatcherBaseContext) {
+            // A require only needs a (non null) value.
+            return usage.matcher(((MatcherBaseContext) expression).matcher()) != null;
+        }
+        if (expression instanceof MatcherPathIsNullContext) {
+            return usage.matcher(((MatcherPathIsNullContext) expression).matcher()) != null;
+        }
+        if (expression instanceof MatcherContext) {
+            // An extract puts the value in the result.
+            return usage.matcher((MatcherContext) expression) == Content.FREE;
+        }
+        return false;
+    }
+
+    // null means that the outcome may depend on the value of the tokens.
+    private Content matcher(MatcherContext tree) {
+        if (tree instanceof MatcherPathContext) {
+            return basePath(((MatcherPathContext) tree).basePath());
+        }
+        if (tree instanceof MatcherCleanVersionContext) {
+            return transformed(matcher(((MatcherCleanVersionContext) tree).matcher()));
+        }
+        if (tree instanceof MatcherNormalizeBrandContext) {
+            return transformed(matcher(((MatcherNormalizeBrandContext) tree).matcher()));
+        }
+        if (tree instanceof MatcherWordRangeContext) {
+            return transformed(matcher(((MatcherWordRangeContext) tree).matcher()));
+        }
+        if (tree instanceof MatcherPathLookupContext) {
+            return lookup(matcher(((MatcherPathLookupContext) tree).matcher()));
+        }
+        if (tree instanceof MatcherPathLookupPrefixContext) {
+            return lookup(matcher(((MatcherPathLookupPrefixContext) tree).matcher()));
+        }
+        return null;
+    }
+
+    // The word splitters only look at the separators (which a placeholder keeps) so only the content changes.
+    private Content transformed(Content content) {
+        if (content == null || content == Content.FREE) {
+            return content;
+        }
+        return Content.PARTIAL;
+    }
+
+    // The result of a lookup depends on the exact value.
+    private Content lookup(Content content) {
+        return content == Content.FREE ? Content.FREE : null;
+    }
+
+    private Content basePath(BasePathContext tree) {
+        if (tree instanceof PathFixedValueContext) {
+            return Content.FREE;
+        }
+        if (tree instanceof PathWalkContext) {
+            // The entire useragent
+            return path(((PathWalkContext) tree).nextStep, Content.WHOLE, Content.WHOLE);
+        }
+        return null;
+    }
+
+    private Content path(PathContext tree, Content node, Content value) {
+        if (tree == null) {
+            return value;
+        }
+        if (tree instanceof StepDownContext) {
+            StepDownContext step = (StepDownContext) tree;
+            Content child = nodeContent(step.name.getText());
+            return path(step.nextStep, child, child);
+        }
+        if (tree instanceof StepUpContext) {
+            return path(((StepUpContext) tree).nextStep, Content.WHOLE, Content.WHOLE);
+        }
+        if (tree instanceof StepNextContext) {
+            return path(((StepNextContext) tree).nextStep, Content.WHOLE, Content.WHOLE);
+        }
+        if (tree instanceof StepPrevContext) {
+            return path(((StepPrevContext) tree).nextStep, Content.WHOLE, Content.WHOLE);
+        }
+        if (tree instanceof StepEqualsValueContext) {
+            StepEqualsValueContext step = (StepEqualsValueContext) tree;
+            if (!canCompareEquals(value, step.value.getText())) {
+                return null;
+            }
+            // If it is equal to the literal then it does not contain (a part of) a token.
+            return path(step.nextStep, node, Content.FREE);
+        }
+        if (tree instanceof StepNotEqualsValueContext) {
+            StepNotEqualsValueContext step = (StepNotEqualsValueContext) tree;
+            if (!canCompareEquals(value, step.value.getText())) {
+                return null;
+            }
+            return path(step.nextStep, node, value);
+        }
+        if (tree instanceof StepStartsWithValueContext) {
+            StepStartsWithValueContext step = (StepStartsWithValueContext) tree;
+            return canCompareSubstring(value, step.value.getText()) ? path(step.nextStep, node, value) : null;
+        }
+        if (tree instanceof StepEndsWithValueContext) {
+            StepEndsWithValueContext step = (StepEndsWithValueContext) tree;
+            return canCompareSubstring(value, step.value.getText()) ? path(step.nextStep, node, value) : null;
+        }
+        if (tree instanceof StepContainsValueContext) {
+            StepContainsValueContext step = (StepContainsValueContext) tree;
+            return canCompareSubstring(value, step.value.getText()) ? path(step.nextStep, node, value) : null;
+        }
+        if (tree instanceof StepWordRangeContext) {
+            return path(((StepWordRangeContext) tree).nextStep, node, transformed(value));
+        }
+        if (tree instanceof StepBackToFullContext) {
+            return path(((StepBackToFullContext) tree).nextStep, node, node);
+        }
+        return null;
+    }
+
+    private Content nodeContent(String name) {
+        if (tokenClass.getNodeName().equals(name)) {
+            return Content.WHOLE;
+        }
+        for (TokenClass otherClass : TokenClass.values()) {
+            if (otherClass.getNodeName().equals(name)) {
+                return Content.FREE; // A single token of a different class.
+            }
+        }
+        switch (name) {
+            case "key":  // Only words and versions
+            case "text": // Only words and versions
+                return Content.FREE;
+            default:
+                return Content.WHOLE;
+        }
+    }
+
+    // A value with complete tokens can only be equal to the literal if the literal contains a complete token.
+    private boolean canCompareEquals(Content value, String literal) {
+        String lowerCaseLiteral = literal.toLowerCase();
+        switch (value) {
+            case FREE:
+                return true;
+            case WHOLE:
+                return !tokenClass.mayContainToken(lowerCaseLiteral) ||
+                    !CacheKeyCanonicalizer.containsReplaceableCharacters(lowerCaseLiteral);
+            default:
+                return !CacheKeyCanonicalizer.containsReplaceableCharacters(lowerCaseLiteral);
+        }
+    }
+
+    // A literal without any character that can be replaced never overlaps with a changed character.
+    private boolean canCompareSubstring(Content value, String literal) {
+        return value == Content.FREE ||
+            !CacheKeyCanonicalizer.containsReplaceableCharacters(literal.toLowerCase());
+    }
+}
@@ -22,6 +22,8 @@ import nl.basjes.parse.useragent.analyze.treewalker.steps.WalkList;
 import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerBaseVisitor;
 import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser;
 import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherPathLookupContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherPathLookupPrefixContext;
+import nl.basjes.parse.useragent.utils.PrefixMap;
 import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.slf4j.Logger;
@@ -79,6 +81,30 @@ public class TreeExpressionEvaluator {
                 return resultingValue;
             }
 
+            @Override
+            public String visitMatcherPathLookupPrefix(MatcherPathLookupPrefixContext ctx) {
+                String value = visit(ctx.matcher());
+                if (value == null) {
+                    return null;
+                }
+                // Same as with the normal lookup: a fixed value that is not in the lookup is a FATAL error.
+
+                Map<String, String> lookup = lookups.get(ctx.lookup.getText());
+                if (lookup == null) {
+                    throw new InvalidParserConfigurationException("Missing lookup \"" + ctx.lookup.getText() + "\" ");
+                }
+
+                String resultingValue = new PrefixMap(lookup).getLongestMatch(value);
+                if (resultingValue == null) {
+                    if (ctx.defaultValue != null) {
+                        return ctx.defaultValue.getText();
+                    }
+                    throw new InvalidParserConfigurationException(
+                        "Fixed value >>" + value + "<< does not start with any prefix in lookup: \"" + ctx.lookup.getText() + "\" ");
+                }
+                return resultingValue;
+            }
+
             @Override
             public String visitPathFixedValue(UserAgentTreeWalkerParser.PathFixedValueContext ctx) {
                 return ctx.value.getText();
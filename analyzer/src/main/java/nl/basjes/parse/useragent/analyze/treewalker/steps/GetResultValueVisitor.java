@@ -17,6 +17,7 @@
 
 package nl.basjes.parse.useragent.analyze.treewalker.steps;
 
+import nl.basjes.parse.useragent.parse.WalkableContext;
 import nl.basjes.parse.useragent.parser.UserAgentBaseVisitor;
 import nl.basjes.parse.useragent.parser.UserAgentParser;
 import org.antlr.v4.runtime.tree.ParseTree;
@@ -29,6 +30,14 @@ public class GetResultValueVisitor extends UserAgentBaseVisitor<String> {
     private static final GetResultValueVisitor INSTANCE = new GetResultValueVisitor();
 
     public static String getResultValue(ParseTree tree) {
+        if (tree instanceof WalkableContext) {
+            // The same node is reached by many matchers so the value is computed only once per parse.
+            WalkableContext node = (WalkableContext) tree;
+            if (!node.resultValueIsKnown()) {
+                node.setResultValue(INSTANCE.visit(tree));
+            }
+            return node.getResultValue();
+        }
         return INSTANCE.visit(tree);
     }
 
@@ -26,6 +26,7 @@ import nl.basjes.parse.useragent.analyze.treewalker.steps.compare.StepIsNull;
 import nl.basjes.parse.useragent.analyze.treewalker.steps.compare.StepNotEquals;
 import nl.basjes.parse.useragent.analyze.treewalker.steps.compare.StepStartsWith;
 import nl.basjes.parse.useragent.analyze.treewalker.steps.lookup.StepLookup;
+import nl.basjes.parse.useragent.analyze.treewalker.steps.lookup.StepLookupPrefix;
 import nl.basjes.parse.useragent.analyze.treewalker.steps.value.StepBackToFull;
 import nl.basjes.parse.useragent.analyze.treewalker.steps.value.StepCleanVersion;
 import nl.basjes.parse.useragent.analyze.treewalker.steps.value.StepFixedString;
@@ -41,6 +42,7 @@ import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherNormali
 import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherPathContext;
 import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherPathIsNullContext;
 import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherPathLookupContext;
+import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.MatcherPathLookupPrefixContext;
 import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.PathContext;
 import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.PathFixedValueContext;
 import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.PathWalkContext;
@@ -54,6 +56,7 @@ import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.StepNotEqualsV
 import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.StepPrevContext;
 import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.StepStartsWithValueContext;
 import nl.basjes.parse.useragent.parser.UserAgentTreeWalkerParser.StepUpContext;
+import nl.basjes.parse.useragent.utils.PrefixMap;
 import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.slf4j.Logger;
@@ -204,6 +207,27 @@ public class WalkList {
             return null; // Void
         }
 
+        @Override
+        public Void visitMatcherPathLookupPrefix(MatcherPathLookupPrefixContext ctx) {
+            visit(ctx.matcher());
+
+            fromHereItCannotBeInHashMapAnymore();
+
+            String lookupName = ctx.lookup.getText();
+            Map<String, String> lookup = lookups.get(lookupName);
+            if (lookup == null) {
+                throw new InvalidParserConfigurationException("Missing lookup \"" + ctx.lookup.getText() + "\" ");
+            }
+
+            String defaultValue = null;
+            if (ctx.defaultValue != null) {
+                defaultValue = ctx.defaultValue.getText();
+            }
+
+            add(new StepLookupPrefix(lookupName, new PrefixMap(lookup), defaultValue));
+            return null; // Void
+        }
+
         @Override
         public Void visitMatcherCleanVersion(MatcherCleanVersionContext ctx) {
             visit(ctx.matcher());
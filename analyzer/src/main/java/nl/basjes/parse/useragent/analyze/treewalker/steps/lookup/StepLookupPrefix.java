@@ -0,0 +1,67 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.analyze.treewalker.steps.lookup;
+
+import nl.basjes.parse.useragent.analyze.treewalker.steps.Step;
+import nl.basjes.parse.useragent.utils.PrefixMap;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+public class StepLookupPrefix extends Step {
+
+    private final String lookupName;
+    private final PrefixMap prefixMap;
+    private final String defaultValue;
+
+    public StepLookupPrefix(String lookupName, PrefixMap prefixMap, String defaultValue) {
+        this.lookupName = lookupName;
+        this.prefixMap = prefixMap;
+        this.defaultValue = defaultValue;
+    }
+
+    @Override
+    public String walk(ParseTree tree, String value) {
+        String input = getActualValue(tree, value);
+
+        String result = prefixMap.getLongestMatch(input);
+
+        if (result == null) {
+            if (defaultValue == null) {
+                if (verbose) {
+                    LOG.info("{} LookupPrefix: {}[{}] => null", logprefix, lookupName, input);
+                }
+                return null;
+            } else {
+                if (verbose) {
+                    LOG.info("{} LookupPrefix: {}[{}] => USE DEFAULT:{}", logprefix, lookupName, input, defaultValue);
+                }
+                return walkNextStep(tree, defaultValue);
+            }
+        }
+
+        if (verbose) {
+            LOG.info("{} LookupPrefix: {}[{}] => Lookup:{}", logprefix, lookupName, input, result);
+        }
+        return walkNextStep(tree, result);
+    }
+
+    @Override
+    public String toString() {
+        return "LookupPrefix(@" + lookupName + " ; default="+defaultValue+")";
+    }
+
+}
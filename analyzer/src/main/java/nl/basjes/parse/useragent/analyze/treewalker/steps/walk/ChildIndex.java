@@ -0,0 +1,46 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.analyze.treewalker.steps.walk;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+/**
+ * The children of a single node that can be reached using a single logical name (like 'product' or 'version').
+ * The children are in tree order and each has its 1-based ordinal (the N in agent.(N)product).
+ * The ordinals are ascending so a range of children can be selected by a simple scan.
+ */
+public final class ChildIndex {
+
+    static final ChildIndex EMPTY = new ChildIndex(new ParserRuleContext[0], new int[0], false);
+
+    final ParserRuleContext[] children;
+    final int[] ordinals;
+
+    // Some children are returned regardless of the requested range.
+    final boolean anyOrdinal;
+
+    ChildIndex(ParserRuleContext[] children, int[] ordinals, boolean anyOrdinal) {
+        this.children = children;
+        this.ordinals = ordinals;
+        this.anyOrdinal = anyOrdinal;
+    }
+
+    public int size() {
+        return children.length;
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.analyze.treewalker.steps.walk;
+
+import nl.basjes.parse.useragent.parse.WalkableContext;
+import nl.basjes.parse.useragent.parser.UserAgentParser;
+import nl.basjes.parse.useragent.parser.UserAgentParser.ProductNameKeyValueContext;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_base64;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_commentBlock;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_commentEntry;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_commentProduct;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_commentSeparator;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_emailAddress;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_emptyWord;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_keyName;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_keyValue;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_keyValueProductVersionName;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_keyValueVersionName;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_keyWithoutValue;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_multipleWords;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_product;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_productName;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_productNameKeyValue;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_productNameNoVersion;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_productVersion;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_productVersionSingleWord;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_productVersionWithCommas;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_productVersionWords;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_rootElements;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_rootText;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_singleVersion;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_singleVersionWithCommas;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_siteUrl;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_userAgent;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_uuId;
+import static nl.basjes.parse.useragent.parser.UserAgentParser.RULE_versionWords;
+
+/**
+ * For a single logical child name (i.e. the 'product' in agent.(1)product) this describes
+ * which children of each type of parent node can be reached and how they are numbered.
+ * The types of the nodes are identified by their ANTLR rule index (there are no labeled
+ * alternatives in the UserAgent grammar so a rule index maps to exactly one context class)
+ * which allows describing the acceptable children as a simple bit mask.
+ * The actual ChildIndex of a node is computed at most once per parse and stored in the node.
+ */
+public final class ChildSelector {
+
+    private static final String[] NAMES = {
+        "product", "url", "email", "text", "name", "version", "comments", "key", "uuid", "value", "entry", "keyvalue",
+    };
+
+    public static final int NUMBER_OF_NAMES = NAMES.length;
+
+    private static final int NUMBER_OF_RULES = UserAgentParser.ruleNames.length;
+
+    // How the children of a specific type of parent are selected
+    private static final byte NONE                        = 0; // Cannot walk in here at all
+    private static final byte SELECT_ALL_NUMBERED         = 1; // Numbered by the position among all (non separator) children
+    private static final byte SELECT_PRIVATE_NUMBERED     = 2; // Numbered by the position among the selected children
+    private static final byte PRODUCT_NAME_KEY            = 3; // The key of a productNameKeyValue (regardless of the range)
+    private static final byte PRODUCT_NAME_VALUE          = 4; // The value of a productNameKeyValue (regardless of the range)
+    private static final byte SAME_AS_LAST_CHILD          = 5; // Nodes that simply take over what their last child has
+
+    private static final ChildSelector[] SELECTORS = new ChildSelector[NUMBER_OF_NAMES];
+    private static final ChildSelector UNKNOWN_NAME = new ChildSelector(-1);
+
+    static {
+        if (NUMBER_OF_RULES > Long.SIZE) {
+            throw new IllegalStateException("The UserAgent grammar has more rules than fit in the child type mask.");
+        }
+        for (int nameId = 0; nameId < NUMBER_OF_NAMES; nameId++) {
+            SELECTORS[nameId] = new ChildSelector(nameId);
+        }
+
+        // These node types are not handled explicitly so they return whatever their last child returns.
+        for (ChildSelector selector : SELECTORS) {
+            selector.sameAsLastChild(RULE_rootElements);
+            selector.sameAsLastChild(RULE_base64);
+            selector.sameAsLastChild(RULE_singleVersion);
+            selector.sameAsLastChild(RULE_singleVersionWithCommas);
+        }
+
+        select("product",   RULE_userAgent, false, RULE_product);
+        select("url",       RULE_userAgent, false, RULE_siteUrl);
+        select("email",     RULE_userAgent, false, RULE_emailAddress);
+        select("text",      RULE_userAgent, false, RULE_rootText);
+
+        for (int product : new int[]{RULE_product, RULE_commentProduct}) {
+            select("name",      product, false, RULE_productName, RULE_productNameNoVersion);
+            select("version",   product, true,  RULE_productVersion, RULE_productVersionWithCommas,
+                                                RULE_productVersionWords, RULE_productVersionSingleWord);
+            select("comments",  product, true,  RULE_commentBlock);
+        }
+
+        getSelector("key").setMode(RULE_productNameKeyValue, PRODUCT_NAME_KEY, 0L);
+        getSelector("value").setMode(RULE_productNameKeyValue, PRODUCT_NAME_VALUE, 0L);
+        select("comments",  RULE_productNameKeyValue, true, RULE_commentBlock);
+
+        select("key",       RULE_keyValue, false, RULE_keyName);
+        select("uuid",      RULE_keyValue, false, RULE_uuId);
+        select("url",       RULE_keyValue, false, RULE_siteUrl);
+        select("email",     RULE_keyValue, false, RULE_emailAddress);
+        select("text",      RULE_keyValue, false, RULE_multipleWords, RULE_keyValueVersionName);
+        select("value",     RULE_keyValue, false, RULE_uuId, RULE_multipleWords, RULE_siteUrl,
+                                                  RULE_emailAddress, RULE_keyValueVersionName);
+
+        select("key",       RULE_keyWithoutValue, false, RULE_keyName);
+
+        select("entry",     RULE_commentBlock, false, RULE_commentEntry);
+
+        select("comments",  RULE_commentEntry, false, RULE_commentBlock);
+        select("keyvalue",  RULE_commentEntry, false, RULE_keyValue, RULE_keyWithoutValue);
+        select("product",   RULE_commentEntry, false, RULE_commentProduct);
+        select("uuid",      RULE_commentEntry, false, RULE_uuId);
+        select("url",       RULE_commentEntry, false, RULE_siteUrl);
+        select("email",     RULE_commentEntry, false, RULE_emailAddress);
+        select("text",      RULE_commentEntry, false, RULE_multipleWords, RULE_versionWords, RULE_emptyWord);
+    }
+
+    // The order in which the value of a productNameKeyValue is sought.
+    private static final int[] PRODUCT_NAME_VALUE_RULES = {
+        RULE_multipleWords, RULE_keyValueProductVersionName, RULE_siteUrl, RULE_emailAddress, RULE_uuId,
+    };
+
+    private static void select(String name, int parentRule, boolean privateNumbering, int... childRules) {
+        long childMask = 0;
+        for (int childRule : childRules) {
+            childMask |= 1L << childRule;
+        }
+        getSelector(name).setMode(parentRule, privateNumbering ? SELECT_PRIVATE_NUMBERED : SELECT_ALL_NUMBERED, childMask);
+    }
+
+    /**
+     * @param name The logical name of the children as used in the walk expressions.
+     * @return The selector for the named children (never null, an unknown name simply never has children).
+     */
+    public static ChildSelector getSelector(String name) {
+        for (int nameId = 0; nameId < NUMBER_OF_NAMES; nameId++) {
+            if (NAMES[nameId].equals(name)) {
+                return SELECTORS[nameId];
+            }
+        }
+        return UNKNOWN_NAME;
+    }
+
+    // ------------------------------------------
+
+    private final int nameId;
+    private final byte[] modes = new byte[NUMBER_OF_RULES];
+    private final long[] childMasks = new long[NUMBER_OF_RULES];
+
+    private ChildSelector(int nameId) {
+        this.nameId = nameId;
+    }
+
+    private void setMode(int parentRule, byte mode, long childMask) {
+        modes[parentRule] = mode;
+        childMasks[parentRule] = childMask;
+    }
+
+    private void sameAsLastChild(int parentRule) {
+        setMode(parentRule, SAME_AS_LAST_CHILD, 0L);
+    }
+
+    /**
+     * Get the children of the node, computing them only the first time they are requested during a parse.
+     * @param node The parent node
+     * @return The selected children (never null)
+     */
+    public ChildIndex getChildIndex(WalkableContext node) {
+        if (nameId < 0) {
+            return ChildIndex.EMPTY;
+        }
+        ChildIndex childIndex = node.getChildIndex(nameId);
+        if (childIndex == null) {
+            childIndex = buildChildIndex(node);
+            node.setChildIndex(nameId, childIndex);
+        }
+        return childIndex;
+    }
+
+    private ChildIndex buildChildIndex(WalkableContext node) {
+        List<ParseTree> allChildren = node.children;
+        if (allChildren == null || allChildren.isEmpty()) {
+            return ChildIndex.EMPTY;
+        }
+
+        int parentRule = node.getRuleIndex();
+        switch (modes[parentRule]) {
+            case SELECT_ALL_NUMBERED:
+                return select(allChildren, childMasks[parentRule], false);
+            case SELECT_PRIVATE_NUMBERED:
+                return select(allChildren, childMasks[parentRule], true);
+            case PRODUCT_NAME_KEY:
+                ParserRuleContext key = ((ProductNameKeyValueContext) node).key;
+                if (key == null) {
+                    return ChildIndex.EMPTY;
+                }
+                return new ChildIndex(new ParserRuleContext[]{key}, new int[]{1}, true);
+            case PRODUCT_NAME_VALUE:
+                for (int valueRule : PRODUCT_NAME_VALUE_RULES) {
+                    ChildIndex value = select(allChildren, 1L << valueRule, true);
+                    if (value.size() > 0) {
+                        return new ChildIndex(value.children, value.ordinals, true);
+                    }
+                }
+                return ChildIndex.EMPTY;
+            case SAME_AS_LAST_CHILD:
+                ParseTree lastChild = allChildren.get(allChildren.size() - 1);
+                if (lastChild instanceof WalkableContext) {
+                    return getChildIndex((WalkableContext) lastChild);
+                }
+                return ChildIndex.EMPTY;
+            case NONE:
+            default:
+                return ChildIndex.EMPTY;
+        }
+    }
+
+    private static ChildIndex select(List<ParseTree> allChildren, long childMask, boolean privateNumbering) {
+        ParserRuleContext[] children = null;
+        int[] ordinals = null;
+        int found = 0;
+        int index = 0;
+        for (ParseTree child : allChildren) {
+            // Skip things like Token and TerminalNode
+            if (!(child instanceof ParserRuleContext)) {
+                continue;
+            }
+            ParserRuleContext childContext = (ParserRuleContext) child;
+            int childRule = childContext.getRuleIndex();
+
+            // Skip the separators
+            if (childRule == RULE_commentSeparator) {
+                continue;
+            }
+
+            if (!privateNumbering) {
+                index++;
+            }
+
+            if ((childMask & (1L << childRule)) == 0) {
+                continue;
+            }
+
+            if (privateNumbering) {
+                index++;
+            }
+
+            if (children == null) {
+                children = new ParserRuleContext[allChildren.size()];
+                ordinals = new int[allChildren.size()];
+            }
+            children[found] = childContext;
+            ordinals[found] = index;
+            found++;
+        }
+
+        if (found == 0) {
+            return ChildIndex.EMPTY;
+        }
+        return new ChildIndex(Arrays.copyOf(children, found), Arrays.copyOf(ordinals, found), false);
+    }
+
+    @Override
+    public String toString() {
+        return nameId < 0 ? "<unknown>" : NAMES[nameId];
+    }
+}
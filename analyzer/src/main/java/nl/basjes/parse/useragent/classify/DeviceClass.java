@@ -100,4 +100,34 @@ public enum DeviceClass {
     public String getValue() {
         return value;
     }
+
+    /**
+     * @param deviceClass The value of the DeviceClass field
+     * @return The matching enum value or {@link #Unclassified}.
+     */
+    public static DeviceClass fromValue(String deviceClass) {
+        if (deviceClass == null) {
+            return Unclassified;
+        }
+        switch (deviceClass) {
+            case "Desktop":                return Desktop;
+            case "Anonymized":             return Anonymized;
+            case "Mobile":                 return Mobile;
+            case "Tablet":                 return Tablet;
+            case "Phone":                  return Phone;
+            case "Watch":                  return Watch;
+            case "Virtual Reality":        return VirtualReality;
+            case "eReader":                return eReader;
+            case "Set-top box":            return SetTopBox;
+            case "TV":                     return TV;
+            case "Game Console":           return GameConsole;
+            case "Handheld Game Console":  return HandheldGameConsole;
+            case "Robot":                  return Robot;
+            case "Robot Mobile":           return RobotMobile;
+            case "Spy":                    return Spy;
+            case "Hacker":                 return Hacker;
+            case "Unknown":                return Unknown;
+            default:                       return Unclassified;
+        }
+    }
 }
@@ -19,50 +19,12 @@ package nl.basjes.parse.useragent.classify;
 
 import nl.basjes.parse.useragent.UserAgent;
 
-import static nl.basjes.parse.useragent.UserAgent.DEVICE_CLASS;
-import static nl.basjes.parse.useragent.classify.DeviceClass.Anonymized;
-import static nl.basjes.parse.useragent.classify.DeviceClass.Desktop;
-import static nl.basjes.parse.useragent.classify.DeviceClass.GameConsole;
-import static nl.basjes.parse.useragent.classify.DeviceClass.Hacker;
-import static nl.basjes.parse.useragent.classify.DeviceClass.HandheldGameConsole;
-import static nl.basjes.parse.useragent.classify.DeviceClass.Mobile;
-import static nl.basjes.parse.useragent.classify.DeviceClass.Phone;
-import static nl.basjes.parse.useragent.classify.DeviceClass.Robot;
-import static nl.basjes.parse.useragent.classify.DeviceClass.RobotMobile;
-import static nl.basjes.parse.useragent.classify.DeviceClass.SetTopBox;
-import static nl.basjes.parse.useragent.classify.DeviceClass.Spy;
-import static nl.basjes.parse.useragent.classify.DeviceClass.TV;
-import static nl.basjes.parse.useragent.classify.DeviceClass.Tablet;
-import static nl.basjes.parse.useragent.classify.DeviceClass.Unclassified;
-import static nl.basjes.parse.useragent.classify.DeviceClass.Unknown;
-import static nl.basjes.parse.useragent.classify.DeviceClass.VirtualReality;
-import static nl.basjes.parse.useragent.classify.DeviceClass.Watch;
-import static nl.basjes.parse.useragent.classify.DeviceClass.eReader;
-
 public final class UserAgentClassifier {
     private UserAgentClassifier(){} // Utility class
 
     public static DeviceClass getDeviceClass(UserAgent userAgent) {
-        switch (userAgent.getValue(DEVICE_CLASS)) {
-            case "Desktop":                return Desktop;
-            case "Anonymized":             return Anonymized;
-            case "Mobile":                 return Mobile;
-            case "Tablet":                 return Tablet;
-            case "Phone":                  return Phone;
-            case "Watch":                  return Watch;
-            case "Virtual Reality":        return VirtualReality;
-            case "eReader":                return eReader;
-            case "Set-top box":            return SetTopBox;
-            case "TV":                     return TV;
-            case "Game Console":           return GameConsole;
-            case "Handheld Game Console":  return HandheldGameConsole;
-            case "Robot":                  return Robot;
-            case "Robot Mobile":           return RobotMobile;
-            case "Spy":                    return Spy;
-            case "Hacker":                 return Hacker;
-            case "Unknown":                return Unknown;
-            default:                       return Unclassified;
-        }
+        // Determined once per result.
+        return userAgent.getDeviceClass();
     }
 
     /**
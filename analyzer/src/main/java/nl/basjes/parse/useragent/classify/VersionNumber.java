@@ -0,0 +1,167 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.basjes.parse.useragent.classify;
+
+import nl.basjes.parse.useragent.utils.VersionSplitter;
+
+import java.util.Arrays;
+
+/**
+ * The numeric form of a version field (i.e. AgentVersion "53.0.2785.124" is 53.0.2785) so filtering
+ * on something like "Chrome &gt;= 60" does not need to look at the version string again.
+ * Only the major, minor and patch numbers are kept; a version without a number (i.e. "??") is {@link #UNKNOWN}.
+ */
+public final class VersionNumber implements Comparable<VersionNumber> {
+
+    private static final int MAX_NUMBERS = 3;
+
+    /** The version of a value that does not start with a number; it is before every other version. */
+    public static final VersionNumber UNKNOWN = new VersionNumber(new int[0]);
+
+    private final int[] numbers;
+
+    private VersionNumber(int[] numbers) {
+        this.numbers = numbers;
+    }
+
+    /**
+     * @param value The version string (as split by {@link VersionSplitter})
+     * @return The numeric version or {@link #UNKNOWN}.
+     */
+    public static VersionNumber parse(String value) {
+        int[] numbers = VersionSplitter.getVersionNumbers(value, MAX_NUMBERS);
+        return numbers.length == 0 ? UNKNOWN : new VersionNumber(numbers);
+    }
+
+    /**
+     * @param major The major version
+     * @param more  The minor and patch version (optional)
+     * @return The version (i.e. to compare with).
+     */
+    public static VersionNumber of(int major, int... more) {
+        if (major < 0 || more.length > MAX_NUMBERS - 1) {
+            throw new IllegalArgumentException("A version has 1 to " + MAX_NUMBERS + " non negative numbers");
+        }
+        int[] numbers = new int[1 + more.length];
+        numbers[0] = major;
+        for (int i = 0; i < more.length; i++) {
+            if (more[i] < 0) {
+                throw new IllegalArgumentException("A version has 1 to " + MAX_NUMBERS + " non negative numbers");
+            }
+            numbers[i + 1] = more[i];
+        }
+        return new VersionNumber(numbers);
+    }
+
+    public boolean isKnown() {
+        return numbers.length > 0;
+    }
+
+    /**
+     * @return The major version or -1 if unknown.
+     */
+    public int getMajor() {
+        return get(0);
+    }
+
+    /**
+     * @return The minor version or -1 if the version does not have it.
+     */
+    public int getMinor() {
+        return get(1);
+    }
+
+    /**
+     * @return The patch version or -1 if the version does not have it.
+     */
+    public int getPatch() {
+        return get(2);
+    }
+
+    private int get(int index) {
+        return index < numbers.length ? numbers[index] : -1;
+    }
+
+    /**
+     * Compares the numbers (a missing minor or patch version counts as 0, so 53 and 53.0 compare as the same
+     * even though they are not equal); {@link #UNKNOWN} is before all others.
+     */
+    @Override
+    public int compareTo(VersionNumber other) {
+        if (isKnown() != other.isKnown()) {
+            return isKnown() ? 1 : -1;
+        }
+        for (int i = 0; i < MAX_NUMBERS; i++) {
+            int compare = Integer.compare(Math.max(0, get(i)), Math.max(0, other.get(i)));
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return 0;
+    }
+
+    public boolean isAtLeast(int major) {
+        return isAtLeast(major, 0, 0);
+    }
+
+    public boolean isAtLeast(int major, int minor) {
+        return isAtLeast(major, minor, 0);
+    }
+
+    /**
+     * @param major The major version
+     * @param minor The minor version
+     * @param patch The patch version
+     * @return true if this is a known version that is the same or later.
+     */
+    public boolean isAtLeast(int major, int minor, int patch) {
+        return isKnown() && compareTo(of(major, minor, patch)) >= 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof VersionNumber)) {
+            return false;
+        }
+        return Arrays.equals(numbers, ((VersionNumber) o).numbers);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(numbers);
+    }
+
+    @Override
+    public String toString() {
+        if (!isKnown()) {
+            return "Unknown";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int number : numbers) {
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            sb.append(number);
+        }
+        return sb.toString();
+    }
+}
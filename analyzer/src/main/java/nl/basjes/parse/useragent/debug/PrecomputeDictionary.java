@@ -0,0 +1,264 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.debug;
+
+import nl.basjes.parse.useragent.UserAgentAnalyzer;
+import nl.basjes.parse.useragent.utils.ImmutableDictionary;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds a dictionary with the parse results of the most used useragents in a set of log files.
+ * An analyzer that uses this dictionary (see {@link UserAgentAnalyzer#setDictionary(File)})
+ * does not need to parse those useragents anymore.
+ * <p>
+ * The input files have the same format as used by {@link Main}: a useragent per line
+ * optionally prefixed with 'hits TAB ips TAB'.
+ */
+public final class PrecomputeDictionary {
+    private PrecomputeDictionary() {
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(PrecomputeDictionary.class);
+
+    public static final String DEFAULT_RULES = "classpath*:UserAgents/**/*.yaml";
+
+    // The number of (sorted) useragents that are parsed by a single task.
+    private static final int CHUNK_SIZE = 1000;
+
+    public static void main(String[] args) {
+        int returnValue = 0;
+        final CommandOptions commandlineOptions = new CommandOptions();
+        final CmdLineParser parser = new CmdLineParser(commandlineOptions);
+        try {
+            parser.parseArgument(args);
+
+            List<File> inputFiles = new ArrayList<>();
+            for (String inFile : commandlineOptions.inFiles) {
+                inputFiles.add(new File(inFile));
+            }
+            build(inputFiles, new File(commandlineOptions.outFile),
+                commandlineOptions.top, commandlineOptions.threads, commandlineOptions.rules);
+
+        } catch (final CmdLineException e) {
+            LOG.error("Errors: " + e.getMessage());
+            LOG.error("");
+            System.err.println("Usage: java jar <jar containing this class> <options> <input files>");
+            parser.printUsage(System.out);
+            returnValue = 1;
+        } catch (final Exception e) {
+            LOG.error("Exception:" + e);
+            returnValue = 1;
+        }
+        System.exit(returnValue);
+    }
+
+    /**
+     * Build the dictionary.
+     * @param inputFiles The files with the useragents
+     * @param outputFile The dictionary that is created (an existing file is replaced when it is complete)
+     * @param top        Only the top this many useragents (by number of hits) are put in the dictionary
+     * @param threads    The number of parallel parsers (each has its own analyzer, so this costs memory)
+     * @param rules      The rules for the analyzers
+     * @return The number of useragents in the dictionary
+     * @throws IOException In case of problems reading or writing the files
+     * @throws InterruptedException if interrupted
+     */
+    public static int build(List<File> inputFiles, File outputFile, int top, int threads, String rules)
+        throws IOException, InterruptedException {
+        String[] userAgents = mostUsedUserAgents(inputFiles, top);
+        LOG.info("Precomputing {} useragents with {} threads", userAgents.length, threads);
+
+        // The analyzers are shared by the tasks; a task takes one from the queue and puts it back when done.
+        final BlockingQueue<UserAgentAnalyzer> analyzers = new ArrayBlockingQueue<>(threads);
+        for (int i = 0; i < threads; i++) {
+            UserAgentAnalyzer analyzer = new UserAgentAnalyzer(rules);
+            analyzer.disableCaching();
+            analyzers.add(analyzer);
+        }
+        String stamp = analyzers.peek().getRuleSetVersion();
+
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (ImmutableDictionary.Writer writer = new ImmutableDictionary.Writer(outputFile, stamp)) {
+            // Only a limited number of chunks are in flight so the memory use does not depend on the size of the input.
+            List<Future<byte[][]>> inFlight = new ArrayList<>();
+            int written = 0;
+            for (int chunkStart = 0; chunkStart < userAgents.length; chunkStart += CHUNK_SIZE) {
+                inFlight.add(executor.submit(
+                    new ParseChunk(analyzers, userAgents, chunkStart, Math.min(chunkStart + CHUNK_SIZE, userAgents.length))));
+                if (inFlight.size() >= threads * 4) {
+                    written = writeChunk(writer, userAgents, written, inFlight.remove(0));
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                written = writeChunk(writer, userAgents, written, inFlight.remove(0));
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to parse the useragents", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        long stop = System.nanoTime();
+        LOG.info("Wrote {} useragents to {} in {} sec", userAgents.length, outputFile, (stop - start) / 1000000000L);
+        return userAgents.length;
+    }
+
+    private static int writeChunk(ImmutableDictionary.Writer writer, String[] userAgents, int written, Future<byte[][]> chunk)
+        throws IOException, InterruptedException, ExecutionException {
+        int position = written;
+        for (byte[] value : chunk.get()) {
+            writer.add(userAgents[position++], value);
+        }
+        return position;
+    }
+
+    private static class ParseChunk implements Callable<byte[][]> {
+        private final BlockingQueue<UserAgentAnalyzer> analyzers;
+        private final String[] userAgents;
+        private final int start;
+        private final int end;
+
+        ParseChunk(BlockingQueue<UserAgentAnalyzer> analyzers, String[] userAgents, int start, int end) {
+            this.analyzers = analyzers;
+            this.userAgents = userAgents;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public byte[][] call() throws InterruptedException {
+            UserAgentAnalyzer analyzer = analyzers.take();
+            try {
+                int size = end - start;
+                byte[][] results = new byte[size][];
+                for (int i = start; i < end; i++) {
+                    results[i - start] = analyzer.parse(userAgents[i]).serialize();
+                }
+                return results;
+            } finally {
+                analyzers.put(analyzer);
+            }
+        }
+    }
+
+    /**
+     * @return The top most used useragents (sorted alphabetically)
+     */
+    static String[] mostUsedUserAgents(List<File> inputFiles, int top) throws IOException {
+        final Map<String, long[]> hitsPerUserAgent = new HashMap<>(1024 * 1024);
+        long malformedLines = 0;
+        for (File inputFile : inputFiles) {
+            try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(inputFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(" ") || line.startsWith("#") || line.isEmpty()) {
+                        continue;
+                    }
+
+                    long hits = 1;
+                    String agentStr = line;
+                    if (line.contains("\t")) {
+                        // hits <tab> ips <tab> useragent
+                        String[] parts = line.split("\t", 3);
+                        if (parts.length < 3) {
+                            malformedLines++;
+                            continue;
+                        }
+                        try {
+                            hits = Long.parseLong(parts[0].trim());
+                        } catch (NumberFormatException e) {
+                            malformedLines++;
+                            continue;
+                        }
+                        agentStr = parts[2];
+                    }
+
+                    long[] counter = hitsPerUserAgent.get(agentStr);
+                    if (counter == null) {
+                        counter = new long[1];
+                        hitsPerUserAgent.put(agentStr, counter);
+                    }
+                    counter[0] += hits;
+                }
+            }
+        }
+        if (malformedLines > 0) {
+            LOG.warn("Skipped {} malformed lines", malformedLines);
+        }
+        LOG.info("Found {} different useragents", hitsPerUserAgent.size());
+
+        List<String> ranked = new ArrayList<>(hitsPerUserAgent.keySet());
+        Collections.sort(ranked, new Comparator<String>() {
+            @Override
+            public int compare(String one, String other) {
+                int byHits = Long.compare(hitsPerUserAgent.get(other)[0], hitsPerUserAgent.get(one)[0]);
+                return byHits != 0 ? byHits : one.compareTo(other);
+            }
+        });
+
+        String[] userAgents = ranked.subList(0, Math.min(top, ranked.size())).toArray(new String[0]);
+        Arrays.sort(userAgents);
+        return userAgents;
+    }
+
+    @SuppressWarnings({"PMD.ImmutableField", "CanBeFinal"})
+    private static class CommandOptions {
+        @Option(name = "-out", usage = "The dictionary file that is created", required = true)
+        private String outFile = null;
+
+        @Option(name = "-top", usage = "The number of most used useragents that are put in the dictionary")
+        private int top = 100000;
+
+        @Option(name = "-threads", usage = "The number of parallel parsers (each needs its own analyzer)")
+        private int threads = Runtime.getRuntime().availableProcessors();
+
+        @Option(name = "-rules", usage = "The rules to use (must be the same as the analyzer that uses the dictionary)")
+        private String rules = DEFAULT_RULES;
+
+        @Argument(usage = "The input files (one useragent per line, optionally prefixed with 'hits TAB ips TAB')",
+            required = true)
+        private List<String> inFiles = new ArrayList<>();
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.parse;
+
+import nl.basjes.parse.useragent.parser.UserAgentLexer;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.Token;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Many useragents contain a value that is (almost) unique per device or per user: a uuid, a url,
+ * an email address or a base64 blob. If none of the rules ever looks at the actual value of such a token
+ * then all useragents that only differ in that value have the same parse result and can share a cache entry.
+ * <p>
+ * This class creates that shared cache key by replacing the letters and digits of those tokens with a placeholder.
+ * The canonical key is only used if it provably results in the same parse tree: the placeholder keeps the
+ * length and all separators, the original and the canonical key must produce exactly the same tokens
+ * (type and position) and the manual useragent fixes must not change the canonical key.
+ * Which token classes may be replaced is determined by analyzing the rules
+ * (see {@link nl.basjes.parse.useragent.analyze.MatcherAction#getIgnorableTokenClasses()}).
+ */
+public class CacheKeyCanonicalizer {
+
+    public enum TokenClass {
+        UUID(UserAgentLexer.UUID, "uuid", '0',
+            "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}"),
+        URL(UserAgentLexer.URL, "url", 'a',
+            "www\\.|http|ftp|index\\.htm"),
+        EMAIL(UserAgentLexer.EMAIL, "email", 'a',
+            "@|at|xa07"),
+        // In a Turkish locale the lowercase of 'I' is a dotless i (u0131).
+        BASE64(UserAgentLexer.BASE64, "base64", 'a',
+            "[0-9a-z\\u0131+?_/]{36}");
+
+        private final int tokenType;
+        private final String nodeName;
+        private final char placeholder;
+        private final Pattern shape;
+
+        TokenClass(int tokenType, String nodeName, char placeholder, String shape) {
+            this.tokenType = tokenType;
+            this.nodeName = nodeName;
+            this.placeholder = placeholder;
+            this.shape = Pattern.compile(shape);
+        }
+
+        /**
+         * @return The name of the node in the parse tree that holds exactly one token of this class.
+         */
+        public String getNodeName() {
+            return nodeName;
+        }
+
+        /**
+         * The lowercase text of every token of this class contains something that matches the 'shape'.
+         * @param lowerCaseValue The lowercase value
+         * @return false if the value can never contain a (lowercase) token of this class.
+         */
+        public boolean mayContainToken(String lowerCaseValue) {
+            return shape.matcher(lowerCaseValue).find();
+        }
+
+        static TokenClass of(int tokenType) {
+            for (TokenClass tokenClass : values()) {
+                if (tokenClass.tokenType == tokenType) {
+                    return tokenClass;
+                }
+            }
+            return null;
+        }
+    }
+
+    // All characters that a placeholder can replace (or be) after they have been lowercased (in the default locale).
+    private static final String REPLACEABLE_CHARACTERS;
+
+    static {
+        StringBuilder characters = new StringBuilder(64);
+        for (char c = '0'; c <= 'z'; c++) {
+            if (isAsciiLetterOrDigit(c)) {
+                characters.append(String.valueOf(c).toLowerCase());
+            }
+        }
+        REPLACEABLE_CHARACTERS = characters.toString();
+    }
+
+    /**
+     * A placeholder only changes ASCII letters and digits. So a value that (after lowercasing) does not
+     * contain any of those can never match a different part of the original and the canonical useragent.
+     * @param lowerCaseValue The lowercase value
+     * @return true if any of the characters can be part of (or be changed by) a placeholder.
+     */
+    public static boolean containsReplaceableCharacters(String lowerCaseValue) {
+        for (int i = 0; i < lowerCaseValue.length(); i++) {
+            if (REPLACEABLE_CHARACTERS.indexOf(lowerCaseValue.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isAsciiLetterOrDigit(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private final Set<TokenClass> tokenClasses;
+
+    /**
+     * @param tokenClasses The classes of tokens of which no rule uses the actual value.
+     */
+    public CacheKeyCanonicalizer(Set<TokenClass> tokenClasses) {
+        this.tokenClasses = tokenClasses.isEmpty() ?
+            Collections.<TokenClass>emptySet() :
+            Collections.unmodifiableSet(EnumSet.copyOf(tokenClasses));
+    }
+
+    public Set<TokenClass> getTokenClasses() {
+        return tokenClasses;
+    }
+
+    /**
+     * @param userAgentString The useragent
+     * @return The canonical useragent, or the provided instance if there is nothing to replace.
+     */
+    public String canonicalize(String userAgentString) {
+        if (userAgentString == null || !mayHaveCandidates(userAgentString)) {
+            return userAgentString;
+        }
+
+        String fixed = EvilManualUseragentStringHacks.fixIt(userAgentString);
+        ErrorCounter errors = new ErrorCounter();
+        List<? extends Token> tokens = lex(fixed, errors);
+
+        char[] canonical = null;
+        for (Token token : tokens) {
+            TokenClass tokenClass = TokenClass.of(token.getType());
+            if (tokenClass == null || !tokenClasses.contains(tokenClass)) {
+                continue;
+            }
+            if (canonical == null) {
+                canonical = fixed.toCharArray();
+            }
+            replace(fixed, canonical, token.getStartIndex(), token.getStopIndex() + 1, tokenClass);
+        }
+        if (canonical == null) {
+            return userAgentString;
+        }
+
+        String result = new String(canonical);
+        if (result.equals(fixed) || !result.equals(EvilManualUseragentStringHacks.fixIt(result))) {
+            return userAgentString;
+        }
+
+        ErrorCounter canonicalErrors = new ErrorCounter();
+        if (!sameTokens(tokens, lex(result, canonicalErrors)) || errors.count != canonicalErrors.count) {
+            return userAgentString;
+        }
+        return result;
+    }
+
+    // A quick check (only to avoid lexing) if any of the token classes could be present.
+    private boolean mayHaveCandidates(String userAgentString) {
+        for (TokenClass tokenClass : tokenClasses) {
+            switch (tokenClass) {
+                case UUID:
+                    if (userAgentString.indexOf('-') >= 0) {
+                        return true;
+                    }
+                    break;
+                case URL:
+                    if (userAgentString.contains("://") || userAgentString.contains("www.") ||
+                        userAgentString.contains("index.htm")) {
+                        return true;
+                    }
+                    break;
+                case EMAIL:
+                    if (userAgentString.indexOf('@') >= 0) {
+                        return true;
+                    }
+                    break;
+                case BASE64:
+                    if (hasLongBase64Run(userAgentString)) {
+                        return true;
+                    }
+                    break;
+                default:
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasLongBase64Run(String value) {
+        int run = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (isAsciiLetterOrDigit(c) || c == '+' || c == '?' || c == '_' || c == '/') {
+                run++;
+                if (run >= 36) {
+                    return true;
+                }
+            } else {
+                run = 0;
+            }
+        }
+        return false;
+    }
+
+    private static void replace(String fixed, char[] canonical, int start, int end, TokenClass tokenClass) {
+        String text = fixed.substring(start, end);
+        int keep = 0;
+        if (tokenClass == TokenClass.URL) {
+            if (text.startsWith("<a")) {
+                return; // An html link can contain anything.
+            }
+            // The scheme (or 'www.') is what makes it a url.
+            int scheme = text.indexOf("://");
+            if (scheme >= 0) {
+                keep = scheme + 3;
+                if (text.startsWith("www.", keep)) {
+                    keep += 4;
+                }
+            } else if (text.contains("www.")) {
+                keep = text.indexOf("www.") + 4;
+            } else if (text.contains("index.htm")) {
+                keep = text.indexOf("index.htm") + 9;
+            }
+        }
+
+        // The version splitter treats values that start with 'http' or 'www.' differently.
+        String window = fixed.substring(Math.max(0, start + keep - 3), Math.min(fixed.length(), end + 3));
+        if (window.contains("http") || window.contains("www.")) {
+            return;
+        }
+
+        for (int i = start + keep; i < end; i++) {
+            if (fixed.charAt(i) >= 0x80) {
+                return;
+            }
+        }
+        for (int i = start + keep; i < end; i++) {
+            if (isAsciiLetterOrDigit(fixed.charAt(i))) {
+                canonical[i] = tokenClass.placeholder;
+            }
+        }
+    }
+
+    private static List<? extends Token> lex(String value, ErrorCounter errors) {
+        UserAgentLexer lexer = new UserAgentLexer(new CharSequenceCharStream(value));
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(errors);
+        return lexer.getAllTokens();
+    }
+
+    private static boolean sameTokens(List<? extends Token> tokens, List<? extends Token> otherTokens) {
+        if (tokens.size() != otherTokens.size()) {
+            return false;
+        }
+        for (int i = 0; i < tokens.size(); i++) {
+            Token token = tokens.get(i);
+            Token otherToken = otherTokens.get(i);
+            if (token.getType() != otherToken.getType() ||
+                token.getStartIndex() != otherToken.getStartIndex() ||
+                token.getStopIndex() != otherToken.getStopIndex()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class ErrorCounter extends BaseErrorListener {
+        private int count = 0;
+
+        @Override
+        public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol,
+                                int line, int charPositionInLine, String msg, RecognitionException e) {
+            count++;
+        }
+    }
+}
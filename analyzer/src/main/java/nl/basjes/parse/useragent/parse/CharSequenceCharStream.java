@@ -0,0 +1,106 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.parse;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+/**
+ * The input of the lexer directly from a CharSequence (i.e. the String of the useragent).
+ * Unlike the ANTLRInputStream this does not copy all characters into a new char[] first;
+ * only the texts that are asked for (the tokens and the nodes of the tree) are created.
+ */
+public final class CharSequenceCharStream implements CharStream {
+    private final CharSequence input;
+    private final int size;
+    private int position = 0;
+
+    public CharSequenceCharStream(CharSequence input) {
+        this.input = input;
+        this.size = input.length();
+    }
+
+    @Override
+    public void consume() {
+        if (position >= size) {
+            throw new IllegalStateException("cannot consume EOF");
+        }
+        position++;
+    }
+
+    @Override
+    public int LA(int i) {
+        if (i == 0) {
+            return 0; // undefined
+        }
+        int index = i < 0 ? position + i : position + i - 1;
+        if (index < 0 || index >= size) {
+            return IntStream.EOF;
+        }
+        return input.charAt(index);
+    }
+
+    @Override
+    public int mark() {
+        return -1; // All input is always available
+    }
+
+    @Override
+    public void release(int marker) {
+        // All input is always available
+    }
+
+    @Override
+    public int index() {
+        return position;
+    }
+
+    @Override
+    public void seek(int index) {
+        position = Math.min(Math.max(index, 0), size);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String getSourceName() {
+        return IntStream.UNKNOWN_SOURCE_NAME;
+    }
+
+    @Override
+    public String getText(Interval interval) {
+        int start = interval.a;
+        int stop = Math.min(interval.b, size - 1);
+        if (start >= size || stop < start) {
+            return "";
+        }
+        return input.subSequence(start, stop + 1).toString();
+    }
+
+    /**
+     * @return The entire input
+     */
+    @Override
+    public String toString() {
+        return input.toString();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.parse;
+
+import nl.basjes.parse.useragent.parser.UserAgentLexer;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.Token;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A lexer that takes the tokens from a pool that is reused by every parse (the {@link #reset()} done by setting a new input).
+ * So the tokens of a parse are only valid until the next parse starts.
+ * The tokens are the same as those of the (default) CommonTokenFactory that does not copy the text.
+ */
+final class RecyclingLexer extends UserAgentLexer {
+    private final List<RecycledToken> pool = new ArrayList<>(256);
+    private int used = 0;
+
+    RecyclingLexer(CharStream input) {
+        super(input);
+    }
+
+    /**
+     * All tokens that were created before can be reused.
+     */
+    @Override
+    public void reset() {
+        super.reset();
+        used = 0;
+    }
+
+    @Override
+    public Token emit() {
+        RecycledToken token;
+        if (used < pool.size()) {
+            token = pool.get(used);
+        } else {
+            token = new RecycledToken();
+            pool.add(token);
+        }
+        used++;
+        token.reuse(this);
+        emit(token);
+        return token;
+    }
+
+    private static final class RecycledToken extends CommonToken {
+        RecycledToken() {
+            super(Token.INVALID_TYPE);
+        }
+
+        void reuse(RecyclingLexer lexer) {
+            source = lexer._tokenFactorySourcePair;
+            type = lexer._type;
+            channel = lexer._channel;
+            start = lexer._tokenStartCharIndex;
+            stop = lexer.getCharIndex() - 1;
+            line = lexer._tokenStartLine;
+            charPositionInLine = lexer._tokenStartCharPositionInLine;
+            text = lexer._text;
+            index = -1;
+        }
+    }
+}
@@ -52,13 +52,20 @@ import nl.basjes.parse.useragent.parser.UserAgentParser.UuIdContext;
 import nl.basjes.parse.useragent.parser.UserAgentParser.VersionWordsContext;
 import nl.basjes.parse.useragent.utils.VersionSplitter;
 import nl.basjes.parse.useragent.utils.WordSplitter;
-import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
 import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.TokenSource;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.ParseTreeProperty;
 import org.antlr.v4.runtime.tree.ParseTreeWalker;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import static nl.basjes.parse.useragent.UserAgent.SYNTAX_ERROR;
 import static nl.basjes.parse.useragent.analyze.WordRangeVisitor.MAX_RANGE_IN_HASHMAP;
 import static nl.basjes.parse.useragent.utils.AntlrUtils.getSourceText;
@@ -77,7 +84,7 @@ public class UserAgentTreeFlattener extends UserAgentBaseListener {
         long child = 0;
         long version = 0;
         long comment = 0;
-        final String name;
+        String name;
         String path;
         ParseTree ctx = null;
 
@@ -90,6 +97,15 @@ public class UserAgentTreeFlattener extends UserAgentBaseListener {
             this.name = name;
         }
 
+        void reuse(ParseTree newCtx, String newName) {
+            child = 0;
+            version = 0;
+            comment = 0;
+            path = null;
+            ctx = newCtx;
+            name = newName;
+        }
+
         public String calculatePath(PathType type, boolean fakeChild) {
             ParseTree node = ctx;
             path = name;
@@ -129,13 +145,51 @@ public class UserAgentTreeFlattener extends UserAgentBaseListener {
                 default:
             }
 
-            this.path = parentState.path + ".(" + counter + ')' + name;
+            if (pathCache == null) {
+                this.path = parentState.path + ".(" + counter + ')' + name;
+            } else {
+                this.path = pathCache.getPath(parentState.path, counter, name);
+            }
 
             return this.path;
         }
     }
 
-    private ParseTreeProperty<State> state;
+    // The map is only used during a single parse so it is reused by the next parse.
+    // Only in the allocation lean mode the States themselves are also reused.
+    private final StateMap state = new StateMap();
+    private final List<State> statePool = new ArrayList<>(256);
+    private int usedStates = 0;
+
+    private static final class StateMap extends ParseTreeProperty<State> {
+        void clear() {
+            annotations.clear(); // Keeps the allocated table
+        }
+    }
+
+    private State newState(ParseTree ctx, String name) {
+        if (!recycling) {
+            return new State(ctx, name);
+        }
+        State newState;
+        if (usedStates < statePool.size()) {
+            newState = statePool.get(usedStates);
+            newState.reuse(ctx, name);
+        } else {
+            newState = new State(ctx, name);
+            statePool.add(newState);
+        }
+        usedStates++;
+        return newState;
+    }
+
+    // Only in the allocation lean mode: the lexer, parser and tokens are reused by every parse
+    // and the paths are only created once.
+    private PathCache pathCache = null;
+    private boolean recycling = false;
+    private RecyclingLexer recycledLexer = null;
+    private RecycledTokenStream recycledTokens = null;
+    private UserAgentParser recycledParser = null;
 
     public UserAgentTreeFlattener(Analyzer analyzer) {
         walker = new ParseTreeWalker();
@@ -174,9 +228,10 @@ public class UserAgentTreeFlattener extends UserAgentBaseListener {
         UserAgentContext userAgentContext = parseUserAgent(userAgent);
 
         // Walk the tree an inform the calling analyzer about all the nodes found
-        state = new ParseTreeProperty<>();
+        state.clear();
+        usedStates = 0;
 
-        State rootState = new State("agent");
+        State rootState = newState(null, "agent");
         rootState.calculatePath(PathType.CHILD, false);
         state.put(userAgentContext, rootState);
 
@@ -205,7 +260,7 @@ public class UserAgentTreeFlattener extends UserAgentBaseListener {
     }
 
     private void inform(ParseTree stateCtx, ParseTree ctx, String name, String value, boolean fakeChild) {
-        State myState = new State(stateCtx, name);
+        State myState = newState(stateCtx, name);
 
         if (!fakeChild) {
             state.put(stateCtx, myState);
@@ -229,10 +284,33 @@ public class UserAgentTreeFlattener extends UserAgentBaseListener {
 
 //  =================================================================================
 
+    /**
+     * In the allocation lean mode the lexer, the parser, all tokens and the path states are reused by the next parse.
+     * So the tokens (and thus the tree) of a parse can no longer be used once the next parse has started.
+     * @param recycle Enable or disable the reuse.
+     */
+    public void setRecycling(boolean recycle) {
+        if (recycle) {
+            pathCache = new PathCache();
+            recycling = true;
+        } else {
+            pathCache = null;
+            recycling = false;
+            statePool.clear();
+            recycledLexer = null;
+            recycledTokens = null;
+            recycledParser = null;
+        }
+    }
+
     private UserAgentContext parseUserAgent(UserAgent userAgent) {
         String userAgentString = EvilManualUseragentStringHacks.fixIt(userAgent.getUserAgentString());
 
-        ANTLRInputStream input = new ANTLRInputStream(userAgentString);
+        CharStream input = new CharSequenceCharStream(userAgentString);
+        if (recycling) {
+            return parseRecycled(userAgent, input);
+        }
+
         UserAgentLexer lexer = new UserAgentLexer(input);
 
         CommonTokenStream tokens = new CommonTokenStream(lexer);
@@ -249,6 +327,41 @@ public class UserAgentTreeFlattener extends UserAgentBaseListener {
         return parser.userAgent();
     }
 
+    private UserAgentContext parseRecycled(UserAgent userAgent, CharStream input) {
+        if (recycledLexer == null) {
+            recycledLexer = new RecyclingLexer(input);
+            recycledTokens = new RecycledTokenStream(recycledLexer);
+            recycledParser = new UserAgentParser(recycledTokens);
+        } else {
+            recycledLexer.setInputStream(input);
+            recycledTokens.reuse(recycledLexer);
+            recycledParser.setTokenStream(recycledTokens);
+        }
+
+        // Only the listeners of this parse
+        recycledLexer.removeErrorListeners();
+        recycledParser.removeErrorListeners();
+        if (verbose) {
+            recycledLexer.addErrorListener(ConsoleErrorListener.INSTANCE);
+            recycledParser.addErrorListener(ConsoleErrorListener.INSTANCE);
+        }
+        recycledLexer.addErrorListener(userAgent);
+        recycledParser.addErrorListener(userAgent);
+
+        return recycledParser.userAgent();
+    }
+
+    private static final class RecycledTokenStream extends CommonTokenStream {
+        RecycledTokenStream(TokenSource tokenSource) {
+            super(tokenSource);
+        }
+
+        void reuse(TokenSource newTokenSource) {
+            setTokenSource(newTokenSource);
+            fetchedEOF = false; // Not reset by setTokenSource
+        }
+    }
+
     //  =================================================================================
 
     @Override
@@ -372,6 +485,89 @@ public class UserAgentTreeFlattener extends UserAgentBaseListener {
         informSubstrings(ctx, "entry");
     }
 
+    // name[1-count]
+    private String firstRangeName(String name, int count) {
+        if (pathCache == null) {
+            return name + "[1-" + count + "]";
+        }
+        return pathCache.getFirstRangeName(name, count);
+    }
+
+    // name[count-count]
+    private String singleRangeName(String name, int count) {
+        if (pathCache == null) {
+            return name + "[" + count + "-" + count + "]";
+        }
+        return pathCache.getSingleRangeName(name, count);
+    }
+
+    /**
+     * The paths only depend on the path of the parent, the counter and the name so the same structure
+     * in another useragent results in exactly the same paths. Limited in size so a flood of useragents
+     * with a never seen structure cannot make it grow without bounds.
+     */
+    private static final class PathCache {
+        private static final int MAX_COUNTER = 16;
+        private static final int MAX_PATHS = 100000;
+
+        private final Map<String, Map<String, String[]>> paths = new HashMap<>(1024);
+        private final Map<String, String[]> firstRangeNames = new HashMap<>();
+        private final Map<String, String[]> singleRangeNames = new HashMap<>();
+        private int size = 0;
+
+        String getPath(String parentPath, long counter, String name) {
+            if (counter >= MAX_COUNTER) {
+                return parentPath + ".(" + counter + ')' + name;
+            }
+            Map<String, String[]> childPaths = paths.get(parentPath);
+            if (childPaths == null) {
+                if (size >= MAX_PATHS) {
+                    return parentPath + ".(" + counter + ')' + name;
+                }
+                childPaths = new HashMap<>();
+                paths.put(parentPath, childPaths);
+            }
+            String[] byCounter = childPaths.get(name);
+            if (byCounter == null) {
+                byCounter = new String[MAX_COUNTER];
+                childPaths.put(name, byCounter);
+            }
+            String path = byCounter[(int) counter];
+            if (path == null) {
+                path = parentPath + ".(" + counter + ')' + name;
+                if (size < MAX_PATHS) {
+                    byCounter[(int) counter] = path;
+                    size++;
+                }
+            }
+            return path;
+        }
+
+        String getFirstRangeName(String name, int count) {
+            String[] names = firstRangeNames.get(name);
+            if (names == null) {
+                names = new String[MAX_RANGE_IN_HASHMAP + 1];
+                firstRangeNames.put(name, names);
+            }
+            if (names[count] == null) {
+                names[count] = name + "[1-" + count + "]";
+            }
+            return names[count];
+        }
+
+        String getSingleRangeName(String name, int count) {
+            String[] names = singleRangeNames.get(name);
+            if (names == null) {
+                names = new String[MAX_RANGE_IN_HASHMAP + 1];
+                singleRangeNames.put(name, names);
+            }
+            if (names[count] == null) {
+                names[count] = name + "[" + count + "-" + count + "]";
+            }
+            return names[count];
+        }
+    }
+
     private void informSubstrings(ParserRuleContext ctx, String name) {
         String text = getSourceText(ctx);
         if (text==null) {
@@ -384,9 +580,9 @@ public class UserAgentTreeFlattener extends UserAgentBaseListener {
         char[] chars = text.toCharArray();
         String firstWords;
         while((firstWords = WordSplitter.getFirstWords(text, count))!=null) {
-            inform(ctx, ctx, name + "[1-" + count + "]", firstWords, true);
+            inform(ctx, ctx, firstRangeName(name, count), firstWords, true);
             if (count>1) {
-                inform(ctx, ctx, name + "[" + count + "-" + count + "]", firstWords.substring(startOffsetPrevious), true);
+                inform(ctx, ctx, singleRangeName(name, count), firstWords.substring(startOffsetPrevious), true);
             }
             count++;
             if (count > MAX_RANGE_IN_HASHMAP) {
@@ -408,9 +604,9 @@ public class UserAgentTreeFlattener extends UserAgentBaseListener {
         char[] chars = text.toCharArray();
         String firstVersions;
         while((firstVersions = VersionSplitter.getFirstVersions(text, count))!=null) {
-            inform(ctx, ctx, name + "[1-" + count + "]", firstVersions, true);
+            inform(ctx, ctx, firstRangeName(name, count), firstVersions, true);
             if (count>1) {
-                inform(ctx, ctx, name + "[" + count + "-" + count + "]", firstVersions.substring(startOffsetPrevious), true);
+                inform(ctx, ctx, singleRangeName(name, count), firstVersions.substring(startOffsetPrevious), true);
             }
             count++;
             if (count > MAX_RANGE_IN_HASHMAP) {
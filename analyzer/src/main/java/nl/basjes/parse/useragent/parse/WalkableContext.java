@@ -0,0 +1,88 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.parse;
+
+import nl.basjes.parse.useragent.analyze.treewalker.steps.walk.ChildIndex;
+import nl.basjes.parse.useragent.analyze.treewalker.steps.walk.ChildSelector;
+import nl.basjes.parse.useragent.utils.AntlrUtils;
+import org.antlr.v4.runtime.ParserRuleContext;
+
+/**
+ * The base class of all nodes in the parse tree of a useragent (set via the contextSuperClass in UserAgent.g4).
+ * A parse tree only lives for the duration of a single parse so everything that is stored in here
+ * is automatically a per parse cache that needs no cleaning up.
+ */
+public class WalkableContext extends ParserRuleContext {
+
+    private ChildIndex[] childIndexes = null;
+
+    // The implicit values of this node are requested by many matchers yet never change during a parse.
+    private boolean sourceTextIsKnown = false;
+    private String  sourceText = null;
+    private boolean resultValueIsKnown = false;
+    private String  resultValue = null;
+
+    public WalkableContext() {
+    }
+
+    public WalkableContext(ParserRuleContext parent, int invokingStateNumber) {
+        super(parent, invokingStateNumber);
+    }
+
+    /**
+     * @param nameId The id of the logical child name (see {@link ChildSelector})
+     * @return The children with that name or null if they have not been determined yet during this parse.
+     */
+    public ChildIndex getChildIndex(int nameId) {
+        if (childIndexes == null) {
+            return null;
+        }
+        return childIndexes[nameId];
+    }
+
+    public void setChildIndex(int nameId, ChildIndex childIndex) {
+        if (childIndexes == null) {
+            childIndexes = new ChildIndex[ChildSelector.NUMBER_OF_NAMES];
+        }
+        childIndexes[nameId] = childIndex;
+    }
+
+    /**
+     * @return The original text from the input this node was parsed from (computed only once per parse).
+     */
+    public String getSourceText() {
+        if (!sourceTextIsKnown) {
+            sourceText = AntlrUtils.getUncachedSourceText(this);
+            sourceTextIsKnown = true;
+        }
+        return sourceText;
+    }
+
+    public boolean resultValueIsKnown() {
+        return resultValueIsKnown;
+    }
+
+    public String getResultValue() {
+        return resultValue;
+    }
+
+    public void setResultValue(String newResultValue) {
+        resultValue = newResultValue;
+        resultValueIsKnown = true;
+    }
+}
@@ -17,6 +17,7 @@
 
 package nl.basjes.parse.useragent.utils;
 
+import nl.basjes.parse.useragent.parse.WalkableContext;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.misc.Interval;
@@ -28,6 +29,13 @@ public final class AntlrUtils {
     }
 
     public static String getSourceText(ParserRuleContext ctx){
+        if (ctx instanceof WalkableContext) {
+            return ((WalkableContext) ctx).getSourceText(); // Cached in the node itself
+        }
+        return getUncachedSourceText(ctx);
+    }
+
+    public static String getUncachedSourceText(ParserRuleContext ctx){
         if (ctx.start == null) {
             return null; // Invalid
         }
@@ -0,0 +1,133 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.utils;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Count-Min sketch with 4 bit counters that estimates how often a key was seen recently.
+ * Each key has 4 counters (one per row) and the estimate is the lowest of those.
+ * After a number of increments all counters are halved so old popularity fades away.
+ * <p>
+ * The sketch is shared by all stripes of the cache and is used without any locking: every counter is updated
+ * with a compare-and-set (so it never overflows into the next counter) and only one thread at a time halves the counters.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int  MAX_COUNT  = 15;
+
+    private final AtomicLongArray table; // 16 counters of 4 bits per long
+    private final int tableMask;
+    private final int sampleSize;
+    private final AtomicInteger additions = new AtomicInteger();
+    private final AtomicBoolean resetting = new AtomicBoolean();
+
+    FrequencySketch(int maximumSize) {
+        int size = 1;
+        while (size < Math.max(maximumSize, 4)) {
+            size <<= 1;
+        }
+        table = new AtomicLongArray(size);
+        tableMask = size - 1;
+        sampleSize = 10 * Math.max(maximumSize, 1);
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    /**
+     * @param hashCode The hashcode of the key
+     * @return The estimated number of times the key was seen recently (0-15).
+     */
+    int frequency(int hashCode) {
+        int hash = spread(hashCode);
+        int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < 4; row++) {
+            int offset = (start + row) << 2;
+            int count = (int) ((table.get(indexOf(hash, row)) >>> offset) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Record that the key was seen once more.
+     * @param hashCode The hashcode of the key
+     */
+    void increment(int hashCode) {
+        int hash = spread(hashCode);
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int row = 0; row < 4; row++) {
+            if (incrementAt(indexOf(hash, row), (start + row) << 2)) {
+                added = true;
+            }
+        }
+        if (added && additions.incrementAndGet() >= sampleSize) {
+            reset();
+        }
+    }
+
+    // Saturates at MAX_COUNT so a counter never carries into its neighbour.
+    private boolean incrementAt(int index, int offset) {
+        long mask = 0xfL << offset;
+        while (true) {
+            long current = table.get(index);
+            if ((current & mask) == mask) {
+                return false;
+            }
+            if (table.compareAndSet(index, current, current + (1L << offset))) {
+                return true;
+            }
+        }
+    }
+
+    private void reset() {
+        if (!resetting.compareAndSet(false, true)) {
+            return; // Some other thread is already halving the counters.
+        }
+        try {
+            for (int i = 0; i < table.length(); i++) {
+                long current;
+                do {
+                    current = table.get(i);
+                } while (!table.compareAndSet(i, current, (current >>> 1) & RESET_MASK));
+            }
+            int current;
+            do {
+                current = additions.get();
+            } while (!additions.compareAndSet(current, current / 2));
+        } finally {
+            resetting.set(false);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.utils;
+
+/**
+ * A 64 bit FNV-1a hash over the UTF-8 bytes of a value.
+ * The hash of a String is calculated over its UTF-8 encoding (without actually creating the bytes)
+ * so the hash of a String and the hash of its UTF-8 encoded bytes are always the same.
+ * Unlike String.hashCode this is stable over versions, so it can be stored in files.
+ */
+public final class Hash64 {
+
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME        = 0x100000001b3L;
+
+    private Hash64() {
+    }
+
+    public static long hash(byte[] bytes) {
+        return hash(bytes, 0, bytes.length);
+    }
+
+    public static long hash(byte[] bytes, int offset, int length) {
+        long hash = OFFSET_BASIS;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= bytes[i] & 0xFF;
+            hash *= PRIME;
+        }
+        return hash;
+    }
+
+    public static long hash(CharSequence value) {
+        long hash = OFFSET_BASIS;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                hash = step(hash, c);
+            } else if (c < 0x800) {
+                hash = step(hash, 0xC0 | (c >> 6));
+                hash = step(hash, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                hash = step(hash, 0xF0 | (codePoint >> 18));
+                hash = step(hash, 0x80 | ((codePoint >> 12) & 0x3F));
+                hash = step(hash, 0x80 | ((codePoint >> 6) & 0x3F));
+                hash = step(hash, 0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                hash = step(hash, '?'); // Same as what String.getBytes does with an unpaired surrogate
+            } else {
+                hash = step(hash, 0xE0 | (c >> 12));
+                hash = step(hash, 0x80 | ((c >> 6) & 0x3F));
+                hash = step(hash, 0x80 | (c & 0x3F));
+            }
+        }
+        return hash;
+    }
+
+    private static long step(long hash, int octet) {
+        return (hash ^ octet) * PRIME;
+    }
+}
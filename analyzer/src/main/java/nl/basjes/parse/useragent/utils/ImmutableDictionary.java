@@ -0,0 +1,301 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A read only file of String keys with byte[] values that is created once (i.e. by an offline batch job)
+ * and then used by many processes.
+ * <p>
+ * The file has:
+ * <ul>
+ *     <li>A header with the format and the 'stamp' of whoever created the content.</li>
+ *     <li>Blocks of entries (key and value) sorted by key.</li>
+ *     <li>An index with the first key of every block.</li>
+ *     <li>A trailer with the position of the index.</li>
+ * </ul>
+ * The index is loaded in memory; the blocks are memory mapped. A lookup is a binary search in the index
+ * followed by a scan of a single block.
+ */
+public class ImmutableDictionary implements Closeable {
+
+    private static final long MAGIC          = 0x5941554141444931L; // "YAUAADI1"
+    private static final int  FORMAT_VERSION = 1;
+    private static final int  TRAILER_SIZE   = 24; // long indexOffset, int blocks, int entries, long magic
+
+    private static final int  DEFAULT_BLOCK_SIZE = 16 * 1024;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer buffer;
+    private final String stamp;
+    private final int entries;
+    private final String[] firstKeys;
+    private final int[] blockStarts;
+    private final int[] blockEnds;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Open an existing dictionary.
+     * @param file The file that was created using a {@link Writer}.
+     * @throws IOException If the file is not a valid dictionary.
+     */
+    public ImmutableDictionary(File file) throws IOException {
+        this.file = file;
+        randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            long length = randomAccessFile.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("The dictionary " + file + " is larger than 2GB");
+            }
+            if (length < 16 + TRAILER_SIZE) {
+                throw new IOException("The file " + file + " is not a dictionary");
+            }
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+            if (buffer.getLong(0) != MAGIC || buffer.getLong((int) length - 8) != MAGIC) {
+                throw new IOException("The file " + file + " is not a (complete) dictionary");
+            }
+            if (buffer.getInt(8) != FORMAT_VERSION) {
+                throw new IOException("The dictionary " + file + " has an unsupported format " + buffer.getInt(8));
+            }
+            int stampLength = buffer.getInt(12);
+            stamp = new String(readBytes(16, stampLength), StandardCharsets.UTF_8);
+
+            int trailer = (int) length - TRAILER_SIZE;
+            int indexOffset = (int) buffer.getLong(trailer);
+            int blocks = buffer.getInt(trailer + 8);
+            entries = buffer.getInt(trailer + 12);
+
+            firstKeys = new String[blocks];
+            blockStarts = new int[blocks];
+            blockEnds = new int[blocks];
+            int position = indexOffset;
+            for (int block = 0; block < blocks; block++) {
+                int keyLength = buffer.getInt(position);
+                firstKeys[block] = new String(readBytes(position + 4, keyLength), StandardCharsets.UTF_8);
+                position += 4 + keyLength;
+                blockStarts[block] = buffer.getInt(position);
+                blockEnds[block] = buffer.getInt(position + 4);
+                position += 8;
+            }
+        } catch (IOException | RuntimeException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    private byte[] readBytes(int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.get(bytes);
+        return bytes;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return What produced the values (as provided when the dictionary was written).
+     */
+    public String getStamp() {
+        return stamp;
+    }
+
+    public int size() {
+        return entries;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @param key The key to look up
+     * @return The value or null if the key is not in the dictionary.
+     */
+    public byte[] get(String key) {
+        int block = Arrays.binarySearch(firstKeys, key);
+        if (block < 0) {
+            block = -block - 2; // The block that starts before the key
+            if (block < 0) {
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int position = blockStarts[block];
+        int end = blockEnds[block];
+        while (position < end) {
+            int keyLength = buffer.getInt(position);
+            int valueLength = buffer.getInt(position + 4);
+            int keyStart = position + 8;
+            if (keyLength == keyBytes.length && sameBytes(keyStart, keyBytes)) {
+                hits.incrementAndGet();
+                return readBytes(keyStart + keyLength, valueLength);
+            }
+            position = keyStart + keyLength + valueLength;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    private boolean sameBytes(int position, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(position + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+
+    /**
+     * Writes a new dictionary. The keys must be added in sorted (String.compareTo) order.
+     * The data is written to a temporary file which only replaces the target file when it is closed,
+     * so readers never see an incomplete dictionary.
+     */
+    public static class Writer implements Closeable {
+        private final File file;
+        private final File temporaryFile;
+        private final DataOutputStream out;
+        private final int blockSize;
+
+        private final List<String> firstKeys = new ArrayList<>();
+        private final List<Integer> blockStarts = new ArrayList<>();
+        private final ByteArrayOutputStream block;
+        private final DataOutputStream blockOut;
+        private String blockFirstKey = null;
+        private String lastKey = null;
+        private int position;
+        private int entries = 0;
+
+        public Writer(File file, String stamp) throws IOException {
+            this(file, stamp, DEFAULT_BLOCK_SIZE);
+        }
+
+        public Writer(File file, String stamp, int blockSize) throws IOException {
+            this.file = file;
+            this.blockSize = blockSize;
+            temporaryFile = new File(file.getPath() + ".tmp");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile), 1024 * 1024));
+            block = new ByteArrayOutputStream(blockSize * 2);
+            blockOut = new DataOutputStream(block);
+
+            byte[] stampBytes = stamp.getBytes(StandardCharsets.UTF_8);
+            out.writeLong(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(stampBytes.length);
+            out.write(stampBytes);
+            position = 16 + stampBytes.length;
+        }
+
+        /**
+         * @param key   The key (must be larger than the previous key)
+         * @param value The value
+         * @throws IOException In case of problems writing the file
+         */
+        public void add(String key, byte[] value) throws IOException {
+            if (lastKey != null && lastKey.compareTo(key) >= 0) {
+                throw new IllegalArgumentException("The keys must be added in sorted order without duplicates.");
+            }
+            lastKey = key;
+            if (blockFirstKey == null) {
+                blockFirstKey = key;
+            }
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            blockOut.writeInt(keyBytes.length);
+            blockOut.writeInt(value.length);
+            blockOut.write(keyBytes);
+            blockOut.write(value);
+            entries++;
+            if (block.size() >= blockSize) {
+                flushBlock();
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            if (blockFirstKey == null) {
+                return;
+            }
+            if ((long) position + block.size() > Integer.MAX_VALUE - 1024L * 1024L) {
+                throw new IOException("The dictionary would become larger than 2GB");
+            }
+            firstKeys.add(blockFirstKey);
+            blockStarts.add(position);
+            block.writeTo(out);
+            position += block.size();
+            block.reset();
+            blockFirstKey = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flushBlock();
+                long indexOffset = position;
+                for (int i = 0; i < firstKeys.size(); i++) {
+                    byte[] keyBytes = firstKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(keyBytes.length);
+                    out.write(keyBytes);
+                    out.writeInt(blockStarts.get(i));
+                    out.writeInt(i + 1 < blockStarts.size() ? blockStarts.get(i + 1) : (int) indexOffset);
+                }
+                out.writeLong(indexOffset);
+                out.writeInt(firstKeys.size());
+                out.writeInt(entries);
+                out.writeLong(MAGIC);
+            } finally {
+                out.close();
+            }
+            Files.move(temporaryFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
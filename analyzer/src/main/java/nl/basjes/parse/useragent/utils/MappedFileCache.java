@@ -0,0 +1,428 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of String keys with byte[] values in a memory mapped file.
+ * The file survives a restart and can be used by several JVMs (on the same machine) at the same time.
+ * <p>
+ * The file has three parts:
+ * <ul>
+ *     <li>A header with the format, the dimensions and the 'stamp' of whoever created the content.</li>
+ *     <li>An open addressing (linear probing) hash table of (64 bit hash of the key, offset in the log).</li>
+ *     <li>An append only log of records (key, value and a checksum).</li>
+ * </ul>
+ * The stamp describes what produced the values (i.e. the analyzer version and a hash of the rules).
+ * A file with a different stamp is stale: it is wiped when it is opened and a process that still uses
+ * it with the old stamp will no longer get any hits from it.
+ * <p>
+ * Reading never locks. Adding an entry is done under a file lock and is simply skipped if another
+ * process holds that lock at that moment (it is a cache, the value will be added again later).
+ * A reader that sees a half written entry finds a wrong checksum and treats it as a miss.
+ * Nothing is ever evicted: once the table or the log is full new values are no longer stored.
+ */
+public class MappedFileCache implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedFileCache.class);
+
+    private static final long MAGIC          = 0x5941554141434831L; // "YAUAACH1"
+    private static final int  FORMAT_VERSION = 1;
+
+    // The header
+    private static final int MAGIC_OFFSET          = 0;
+    private static final int FORMAT_OFFSET         = 8;
+    private static final int SLOTS_OFFSET          = 12;
+    private static final int LOG_CAPACITY_OFFSET   = 16;
+    private static final int STAMP_HASH_OFFSET     = 20;
+    private static final int ENTRIES_OFFSET        = 28;
+    private static final int LOG_END_OFFSET        = 32;
+    private static final int STAMP_LENGTH_OFFSET   = 36;
+    private static final int STAMP_OFFSET          = 40;
+    private static final int MAX_STAMP_LENGTH      = 984;
+    private static final int HEADER_SIZE           = 1024;
+
+    private static final int SLOT_SIZE             = 16; // long hash, long (offset + 1)
+    private static final int RECORD_HEADER_SIZE    = 12; // int keyLength, int valueLength, int checksum
+
+    /** A point in time snapshot of the counters of this cache (in this JVM). */
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final long rejects;
+        private final int entries;
+
+        Stats(long hits, long misses, long rejects, int entries) {
+            this.hits = hits;
+            this.misses = misses;
+            this.rejects = rejects;
+            this.entries = entries;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        /** @return The number of values that were not stored because the file was full or locked by someone else. */
+        public long getRejects() {
+            return rejects;
+        }
+
+        /** @return The number of entries in the file (written by all processes). */
+        public int getEntries() {
+            return entries;
+        }
+
+        public double getHitRatio() {
+            long requests = hits + misses;
+            return requests == 0 ? 0.0 : (double) hits / requests;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{hits=" + hits + ", misses=" + misses + ", rejects=" + rejects + ", entries=" + entries + '}';
+        }
+    }
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final long stampHash;
+    private final int slots;
+    private final int slotMask;
+    private final int maxEntries;
+    private final int logStart;
+    private final int logCapacity;
+
+    // Makes what this JVM wrote visible to the readers in this JVM.
+    private volatile int published = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong rejects = new AtomicLong();
+
+    /**
+     * Open (or create) the cache file.
+     * @param file        The file
+     * @param stamp       What produced the values. If the file has a different stamp it is wiped.
+     * @param maxEntries  The maximum number of entries (only used if a new file is created).
+     * @param logCapacity The maximum number of bytes of all keys and values (only used if a new file is created).
+     * @throws IOException If the file cannot be used.
+     */
+    public MappedFileCache(File file, String stamp, int maxEntries, int logCapacity) throws IOException {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("The cache must be able to hold at least 1 entry");
+        }
+        byte[] stampBytes = stamp.getBytes(StandardCharsets.UTF_8);
+        if (stampBytes.length > MAX_STAMP_LENGTH) {
+            throw new IllegalArgumentException("The stamp is too long (max " + MAX_STAMP_LENGTH + " bytes)");
+        }
+        this.file = file;
+        this.stampHash = stampHash(stampBytes);
+
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        try (FileLock ignored = channel.lock()) {
+            int fileSlots = 0;
+            int fileLogCapacity = 0;
+            if (randomAccessFile.length() >= HEADER_SIZE) {
+                randomAccessFile.seek(MAGIC_OFFSET);
+                if (randomAccessFile.readLong() == MAGIC && randomAccessFile.readInt() == FORMAT_VERSION) {
+                    fileSlots = randomAccessFile.readInt();
+                    fileLogCapacity = randomAccessFile.readInt();
+                }
+            }
+
+            boolean create = fileSlots == 0;
+            if (create) {
+                fileSlots = tableSlotsFor(maxEntries);
+                fileLogCapacity = logCapacity;
+            }
+            long fileSize = (long) HEADER_SIZE + (long) fileSlots * SLOT_SIZE + fileLogCapacity;
+            if (fileSize > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("The cache file would be larger than 2GB");
+            }
+            if (create) {
+                randomAccessFile.setLength(fileSize);
+            } else if (randomAccessFile.length() < fileSize) {
+                throw new IOException("The cache file " + file + " is truncated.");
+            }
+
+            slots = fileSlots;
+            slotMask = slots - 1;
+            this.maxEntries = (slots / 4) * 3;
+            this.logStart = HEADER_SIZE + slots * SLOT_SIZE;
+            this.logCapacity = fileLogCapacity;
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+
+            if (create) {
+                LOG.info("Creating persistent cache {} ({} entries, {} bytes)", file, this.maxEntries, fileSize);
+                initialize(stampBytes);
+            } else if (!stamp.equals(readStamp())) {
+                LOG.warn("Persistent cache {} was created for \"{}\" instead of \"{}\": wiping it.", file, readStamp(), stamp);
+                initialize(stampBytes);
+            }
+        } catch (IOException | RuntimeException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    private static long stampHash(byte[] stampBytes) {
+        long hash = Hash64.hash(stampBytes);
+        return hash == 0 ? 1 : hash; // 0 means 'being initialized'
+    }
+
+    private static int tableSlotsFor(int maxEntries) {
+        long wanted = ((long) maxEntries * 4) / 3 + 1;
+        int tableSlots = 16;
+        while (tableSlots < wanted) {
+            if (tableSlots >= (1 << 27)) {
+                throw new IllegalArgumentException("Too many entries requested: " + maxEntries);
+            }
+            tableSlots <<= 1;
+        }
+        return tableSlots;
+    }
+
+    // Must be called while holding the file lock.
+    private void initialize(byte[] stampBytes) {
+        // First make the file unusable for everyone, then wipe it, then make it valid again.
+        buffer.putLong(STAMP_HASH_OFFSET, 0);
+        buffer.putLong(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(FORMAT_OFFSET, FORMAT_VERSION);
+        buffer.putInt(SLOTS_OFFSET, slots);
+        buffer.putInt(LOG_CAPACITY_OFFSET, logCapacity);
+        for (int position = HEADER_SIZE; position < logStart; position += 8) {
+            buffer.putLong(position, 0);
+        }
+        buffer.putInt(ENTRIES_OFFSET, 0);
+        buffer.putInt(LOG_END_OFFSET, 0);
+        buffer.putInt(STAMP_LENGTH_OFFSET, stampBytes.length);
+        for (int i = 0; i < stampBytes.length; i++) {
+            buffer.put(STAMP_OFFSET + i, stampBytes[i]);
+        }
+        buffer.putLong(STAMP_HASH_OFFSET, stampHash);
+        buffer.force();
+    }
+
+    private String readStamp() {
+        int length = buffer.getInt(STAMP_LENGTH_OFFSET);
+        if (length < 0 || length > MAX_STAMP_LENGTH) {
+            return "";
+        }
+        byte[] stampBytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            stampBytes[i] = buffer.get(STAMP_OFFSET + i);
+        }
+        return new String(stampBytes, StandardCharsets.UTF_8);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return false if the file has been wiped by a process with a different stamp.
+     */
+    public boolean isValid() {
+        return buffer.getLong(STAMP_HASH_OFFSET) == stampHash;
+    }
+
+    /**
+     * @param key The key to look up
+     * @return The stored value or null if it is not present.
+     */
+    public byte[] get(String key) {
+        // The volatile read makes the entries that were written by other threads of this JVM visible.
+        if (published < 0 || !isValid()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        byte[] value = find(key, Hash64.hash(key));
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    private byte[] find(String key, long hash) {
+        int slot = (int) (hash ^ (hash >>> 32)) & slotMask;
+        for (int probes = 0; probes < slots; probes++) {
+            int slotPosition = HEADER_SIZE + slot * SLOT_SIZE;
+            long offset = buffer.getLong(slotPosition + 8) - 1;
+            if (offset < 0) {
+                return null; // An empty slot: the key is not present.
+            }
+            if (buffer.getLong(slotPosition) == hash) {
+                byte[] value = readValue((int) offset, key);
+                if (value != null) {
+                    return value;
+                }
+            }
+            slot = (slot + 1) & slotMask;
+        }
+        return null;
+    }
+
+    // Returns null if the record is not (completely) there or has a different key.
+    private byte[] readValue(int offset, String key) {
+        if (offset < 0 || offset > logCapacity - RECORD_HEADER_SIZE) {
+            return null;
+        }
+        int position = logStart + offset;
+        int keyLength = buffer.getInt(position);
+        int valueLength = buffer.getInt(position + 4);
+        int checksum = buffer.getInt(position + 8);
+        if (keyLength < 0 || valueLength < 0 ||
+            (long) offset + RECORD_HEADER_SIZE + keyLength + valueLength > logCapacity) {
+            return null;
+        }
+        byte[] record = new byte[keyLength + valueLength];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + RECORD_HEADER_SIZE);
+        view.get(record);
+        if (checksum(record) != checksum) {
+            return null;
+        }
+        if (!key.equals(new String(record, 0, keyLength, StandardCharsets.UTF_8))) {
+            return null;
+        }
+        byte[] value = new byte[valueLength];
+        System.arraycopy(record, keyLength, value, 0, valueLength);
+        return value;
+    }
+
+    private static int checksum(byte[] record) {
+        long hash = Hash64.hash(record);
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Store a value. This never waits for another process that is writing to the same file.
+     * @param key   The key
+     * @param value The value
+     * @return true if the value was stored (or was already present).
+     */
+    public synchronized boolean put(String key, byte[] value) {
+        if (!isValid()) {
+            return false;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = Hash64.hash(keyBytes);
+        try (FileLock lock = channel.tryLock()) {
+            if (lock == null) {
+                rejects.incrementAndGet();
+                return false;
+            }
+            if (!isValid()) {
+                return false;
+            }
+            if (find(key, hash) != null) {
+                return true; // Someone else stored it already.
+            }
+
+            int entries = buffer.getInt(ENTRIES_OFFSET);
+            int logEnd = buffer.getInt(LOG_END_OFFSET);
+            int recordLength = RECORD_HEADER_SIZE + keyBytes.length + value.length;
+            if (entries >= maxEntries || (long) logEnd + recordLength > logCapacity) {
+                rejects.incrementAndGet();
+                return false;
+            }
+
+            // First the record ...
+            byte[] record = new byte[keyBytes.length + value.length];
+            System.arraycopy(keyBytes, 0, record, 0, keyBytes.length);
+            System.arraycopy(value, 0, record, keyBytes.length, value.length);
+            int position = logStart + logEnd;
+            buffer.putInt(position, keyBytes.length);
+            buffer.putInt(position + 4, value.length);
+            buffer.putInt(position + 8, checksum(record));
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + RECORD_HEADER_SIZE);
+            view.put(record);
+            buffer.putInt(LOG_END_OFFSET, logEnd + recordLength);
+
+            // ... then the slot that points to it.
+            int slot = (int) (hash ^ (hash >>> 32)) & slotMask;
+            while (buffer.getLong(HEADER_SIZE + slot * SLOT_SIZE + 8) != 0) {
+                slot = (slot + 1) & slotMask;
+            }
+            int slotPosition = HEADER_SIZE + slot * SLOT_SIZE;
+            buffer.putLong(slotPosition, hash);
+            buffer.putLong(slotPosition + 8, (long) logEnd + 1);
+            buffer.putInt(ENTRIES_OFFSET, entries + 1);
+            published++;
+            return true;
+        } catch (IOException e) {
+            LOG.error("Unable to write to the persistent cache {}: {}", file, e.toString());
+            rejects.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * @return The number of entries in the file.
+     */
+    public int size() {
+        return buffer.getInt(ENTRIES_OFFSET);
+    }
+
+    /**
+     * @return The maximum number of entries this file can hold.
+     */
+    public int maxSize() {
+        return maxEntries;
+    }
+
+    public Stats getStats() {
+        return new Stats(hits.get(), misses.get(), rejects.get(), size());
+    }
+
+    /**
+     * Writes all changes to the disk and closes the file.
+     * Note that the memory mapping itself remains until it is garbage collected,
+     * so this instance must not be used after it was closed.
+     * @throws IOException in case of problems
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        randomAccessFile.close();
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Finds all occurrences of a fixed set of literals in a single (case insensitive) pass over the input.
+ * This is an Aho-Corasick automaton: a trie of all literals where each node also has a link to the node
+ * of its longest proper suffix that is also in the trie so the scan never needs to go back in the input.
+ */
+public class MultiLiteralScanner {
+
+    public interface Listener {
+        /**
+         * Called for every occurrence of a literal in the input.
+         * @param literalId The index of the found literal in the list given to the constructor.
+         */
+        void found(int literalId);
+    }
+
+    private static final char[]  NO_CHARS = new char[0];
+    private static final int[]   NO_INTS  = new int[0];
+
+    // The nodes of the trie; node 0 is the root.
+    private char[][] nodeChars;  // The sorted characters for which a node has a child
+    private int[][]  nodeNext;   // The matching child node ids
+    private int[]    failure;    // The node of the longest proper suffix
+    private int[][]  outputs;    // The literals that end in this node (including those of the failure chain)
+    private int      nodes;
+
+    private final int numberOfLiterals;
+
+    public MultiLiteralScanner(List<String> literals) {
+        numberOfLiterals = literals.size();
+        int capacity = 1;
+        for (String literal : literals) {
+            capacity += literal.length();
+        }
+        nodeChars = new char[capacity][];
+        nodeNext = new int[capacity][];
+        failure = new int[capacity];
+        outputs = new int[capacity][];
+        nodes = 1;
+        nodeChars[0] = NO_CHARS;
+        nodeNext[0] = NO_INTS;
+        outputs[0] = NO_INTS;
+
+        for (int literalId = 0; literalId < literals.size(); literalId++) {
+            String literal = literals.get(literalId);
+            int node = 0;
+            for (int i = 0; i < literal.length(); i++) {
+                node = getOrAddChild(node, Character.toLowerCase(literal.charAt(i)));
+            }
+            outputs[node] = append(outputs[node], literalId);
+        }
+
+        buildFailureLinks();
+    }
+
+    public int getNumberOfLiterals() {
+        return numberOfLiterals;
+    }
+
+    private int getChild(int node, char c) {
+        int index = Arrays.binarySearch(nodeChars[node], c);
+        if (index < 0) {
+            return -1;
+        }
+        return nodeNext[node][index];
+    }
+
+    private int getOrAddChild(int node, char c) {
+        char[] chars = nodeChars[node];
+        int index = Arrays.binarySearch(chars, c);
+        if (index >= 0) {
+            return nodeNext[node][index];
+        }
+        int insertAt = -(index + 1);
+
+        int child = nodes++;
+        nodeChars[child] = NO_CHARS;
+        nodeNext[child] = NO_INTS;
+        outputs[child] = NO_INTS;
+
+        int[] next = nodeNext[node];
+        char[] newChars = new char[chars.length + 1];
+        int[]  newNext  = new int[next.length + 1];
+        System.arraycopy(chars, 0, newChars, 0, insertAt);
+        System.arraycopy(next,  0, newNext,  0, insertAt);
+        System.arraycopy(chars, insertAt, newChars, insertAt + 1, chars.length - insertAt);
+        System.arraycopy(next,  insertAt, newNext,  insertAt + 1, next.length  - insertAt);
+        newChars[insertAt] = c;
+        newNext[insertAt] = child;
+        nodeChars[node] = newChars;
+        nodeNext[node] = newNext;
+        return child;
+    }
+
+    private void buildFailureLinks() {
+        // Breadth first so the failure node of a node is always completed before the node itself.
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int child : nodeNext[0]) {
+            failure[child] = 0;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int node = queue.remove();
+            char[] chars = nodeChars[node];
+            int[] next = nodeNext[node];
+            for (int i = 0; i < chars.length; i++) {
+                int child = next[i];
+                int fallback = failure[node];
+                while (fallback != 0 && getChild(fallback, chars[i]) < 0) {
+                    fallback = failure[fallback];
+                }
+                int fallbackChild = getChild(fallback, chars[i]);
+                failure[child] = (fallbackChild < 0 || fallbackChild == child) ? 0 : fallbackChild;
+                for (int literalId : outputs[failure[child]]) {
+                    outputs[child] = append(outputs[child], literalId);
+                }
+                queue.add(child);
+            }
+        }
+    }
+
+    private static int[] append(int[] values, int value) {
+        int[] result = Arrays.copyOf(values, values.length + 1);
+        result[values.length] = value;
+        return result;
+    }
+
+    /**
+     * Report all literals that occur in the input (a literal is reported once per occurrence).
+     * @param input    The text to scan
+     * @param listener Is called for each occurrence of a literal
+     */
+    public void scan(String input, Listener listener) {
+        if (input == null) {
+            return;
+        }
+        int node = 0;
+        for (int i = 0; i < input.length(); i++) {
+            char c = Character.toLowerCase(input.charAt(i));
+            int next = getChild(node, c);
+            while (next < 0 && node != 0) {
+                node = failure[node];
+                next = getChild(node, c);
+            }
+            node = next < 0 ? 0 : next;
+            for (int literalId : outputs[node]) {
+                listener.found(literalId);
+            }
+        }
+    }
+
+    /**
+     * @param input The text to scan
+     * @return The ids of all literals that occur in the input
+     */
+    public List<Integer> findAll(String input) {
+        final boolean[] seen = new boolean[numberOfLiterals];
+        final List<Integer> result = new ArrayList<>();
+        scan(input, new Listener() {
+            @Override
+            public void found(int literalId) {
+                if (!seen[literalId]) {
+                    seen[literalId] = true;
+                    result.add(literalId);
+                }
+            }
+        });
+        return result;
+    }
+}
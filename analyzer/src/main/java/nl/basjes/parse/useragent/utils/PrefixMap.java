@@ -0,0 +1,126 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.utils;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A compact case insensitive character trie that returns the value of the longest
+ * registered prefix of the input in a single pass over the input.
+ * Each node only stores the characters that actually follow it (sorted, binary searched)
+ * so the memory use is proportional to the total length of all prefixes.
+ */
+public class PrefixMap {
+
+    private static final char[]      NO_CHARS    = new char[0];
+    private static final TrieNode[]  NO_CHILDREN = new TrieNode[0];
+
+    private static final class TrieNode {
+        private char[]     chars    = NO_CHARS;
+        private TrieNode[] children = NO_CHILDREN;
+        private String     value    = null;
+
+        private TrieNode getChild(char c) {
+            int index = Arrays.binarySearch(chars, c);
+            if (index < 0) {
+                return null;
+            }
+            return children[index];
+        }
+
+        private TrieNode getOrAddChild(char c) {
+            int index = Arrays.binarySearch(chars, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            int insertAt = -(index + 1);
+
+            char[]     newChars    = new char[chars.length + 1];
+            TrieNode[] newChildren = new TrieNode[children.length + 1];
+            System.arraycopy(chars,    0, newChars,    0, insertAt);
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            System.arraycopy(chars,    insertAt, newChars,    insertAt + 1, chars.length    - insertAt);
+            System.arraycopy(children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+
+            TrieNode child = new TrieNode();
+            newChars[insertAt] = c;
+            newChildren[insertAt] = child;
+            chars = newChars;
+            children = newChildren;
+            return child;
+        }
+    }
+
+    private final TrieNode root = new TrieNode();
+    private int size = 0;
+
+    public PrefixMap() {
+    }
+
+    public PrefixMap(Map<String, String> prefixes) {
+        for (Map.Entry<String, String> entry : prefixes.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Register a prefix; a later registration of the same prefix (case insensitive) wins.
+     * @param prefix The prefix (the empty string is allowed and matches everything)
+     * @param value  The value to return if this is the longest matching prefix
+     */
+    public void put(String prefix, String value) {
+        if (prefix == null || value == null) {
+            throw new IllegalArgumentException("PrefixMap does not allow null prefixes or values");
+        }
+        TrieNode node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.getOrAddChild(Character.toLowerCase(prefix.charAt(i)));
+        }
+        if (node.value == null) {
+            size++;
+        }
+        node.value = value;
+    }
+
+    /**
+     * @param input The value in which we look for the longest known prefix
+     * @return The value of the longest prefix of the input or null if none matches
+     */
+    public String getLongestMatch(String input) {
+        if (input == null) {
+            return null;
+        }
+        TrieNode node = root;
+        String result = root.value;
+        for (int i = 0; i < input.length(); i++) {
+            node = node.getChild(Character.toLowerCase(input.charAt(i)));
+            if (node == null) {
+                break;
+            }
+            if (node.value != null) {
+                result = node.value;
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.utils;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A very small cache per thread that is meant to sit in front of a (bigger) shared cache.
+ * Many streams of useragents (i.e. a consumer of a single partition) contain the same useragent many times
+ * in a short time. For those a lookup in a tiny table that only the current thread uses is a lot cheaper
+ * than going to the shared cache (no locks, no shared memory).
+ * <p>
+ * The table is direct mapped: each key can only be in one slot (based on its hashCode) and a new key
+ * simply replaces whatever was in its slot. Keys are first compared by identity and only then by equals.
+ * <p>
+ * After {@link #clear()} every thread empties its own table the next time it uses it.
+ * Call {@link #close()} when the cache is no longer used: in a pool the threads live much longer than the cache.
+ *
+ * @param <K> The type of the key
+ * @param <V> The type of the value
+ */
+public class ThreadLocalCache<K, V> {
+
+    // Only changed by the owning thread. Reading them from an other thread may give a slightly old value.
+    private static final class Counters {
+        private long hits = 0;
+        private long misses = 0;
+        private long evictions = 0;
+    }
+
+    private static final class Table {
+        private final Object[] keys;
+        private final Object[] values;
+        private final int mask;
+        private final Counters counters = new Counters();
+        private int generation;
+
+        private Table(int size, int generation) {
+            keys = new Object[size];
+            values = new Object[size];
+            mask = size - 1;
+            this.generation = generation;
+        }
+
+        private void clear() {
+            Arrays.fill(keys, null);
+            Arrays.fill(values, null);
+        }
+    }
+
+    // Keeps the counters of a table after the table itself (i.e. its thread) is gone.
+    private static final class TableReference extends WeakReference<Table> {
+        private final Counters counters;
+
+        private TableReference(Table table, ReferenceQueue<Table> queue) {
+            super(table, queue);
+            counters = table.counters;
+        }
+    }
+
+    /** A point in time snapshot of the counters of all threads combined. */
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+
+        Stats(long hits, long misses, long evictions) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        /** @return The number of entries that were replaced by another entry that maps to the same slot. */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public double getHitRatio() {
+            long requests = hits + misses;
+            return requests == 0 ? 0.0 : (double) hits / requests;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + '}';
+        }
+    }
+
+    private final int size;
+
+    // Incremented by clear(); a table of an older generation is emptied before it is used.
+    private final AtomicInteger generation = new AtomicInteger();
+
+    // The tables of all threads (for the statistics). The counters of the tables of the threads that are gone
+    // are added to the dropped counters. All guarded by the lock on liveTables.
+    private final Set<TableReference> liveTables = new HashSet<>();
+    private final ReferenceQueue<Table> droppedTables = new ReferenceQueue<>();
+    private final Counters droppedCounters = new Counters();
+
+    private final ThreadLocal<Table> tables = new ThreadLocal<Table>() {
+        @Override
+        protected Table initialValue() {
+            Table table = new Table(size, generation.get());
+            synchronized (liveTables) {
+                expungeDroppedTables();
+                liveTables.add(new TableReference(table, droppedTables));
+            }
+            return table;
+        }
+    };
+
+    /**
+     * @param requestedSize The number of entries per thread (rounded up to a power of 2).
+     */
+    public ThreadLocalCache(int requestedSize) {
+        if (requestedSize < 1) {
+            throw new IllegalArgumentException("The size of the cache must be at least 1");
+        }
+        int newSize = 1;
+        while (newSize < requestedSize) {
+            newSize <<= 1;
+        }
+        size = newSize;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static int slot(Object key, int mask) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    // The table of the current thread without the entries from before the last clear().
+    private Table table() {
+        Table table = tables.get();
+        int currentGeneration = generation.get();
+        if (table.generation != currentGeneration) {
+            table.clear();
+            table.generation = currentGeneration;
+        }
+        return table;
+    }
+
+    /**
+     * @param key The key to look up
+     * @return The value if the current thread has it cached, else null.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        Table table = table();
+        int slot = slot(key, table.mask);
+        Object cachedKey = table.keys[slot];
+        if (cachedKey == key || (cachedKey != null && cachedKey.equals(key))) {
+            table.counters.hits++;
+            return (V) table.values[slot];
+        }
+        table.counters.misses++;
+        return null;
+    }
+
+    /**
+     * Put the value in the cache of the current thread.
+     * @param key   The key
+     * @param value The value
+     */
+    public void put(K key, V value) {
+        Table table = table();
+        int slot = slot(key, table.mask);
+        Object cachedKey = table.keys[slot];
+        if (cachedKey != null && !(cachedKey == key || cachedKey.equals(key))) {
+            table.counters.evictions++;
+        }
+        table.keys[slot] = key;
+        table.values[slot] = value;
+    }
+
+    /**
+     * Remove all entries (of all threads). Each thread empties its own table the next time it uses it.
+     */
+    public void clear() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Release the entries of all threads; the cache must no longer be used after this.
+     * The table of the current thread is removed and the tables of the other threads are emptied
+     * so a pooled thread does not keep the values alive until the thread itself ends.
+     */
+    public void close() {
+        clear();
+        tables.remove();
+        synchronized (liveTables) {
+            expungeDroppedTables();
+            for (TableReference reference : liveTables) {
+                Table table = reference.get();
+                if (table != null) {
+                    table.clear();
+                }
+            }
+        }
+    }
+
+    // Must hold the lock on liveTables.
+    private void expungeDroppedTables() {
+        TableReference reference = (TableReference) droppedTables.poll();
+        while (reference != null) {
+            if (liveTables.remove(reference)) {
+                droppedCounters.hits += reference.counters.hits;
+                droppedCounters.misses += reference.counters.misses;
+                droppedCounters.evictions += reference.counters.evictions;
+            }
+            reference = (TableReference) droppedTables.poll();
+        }
+    }
+
+    /**
+     * @return The counters of all threads combined (including the threads that have ended).
+     */
+    public Stats getStats() {
+        synchronized (liveTables) {
+            expungeDroppedTables();
+            long hits = droppedCounters.hits;
+            long misses = droppedCounters.misses;
+            long evictions = droppedCounters.evictions;
+            for (TableReference reference : liveTables) {
+                hits += reference.counters.hits;
+                misses += reference.counters.misses;
+                evictions += reference.counters.evictions;
+            }
+            return new Stats(hits, misses, evictions);
+        }
+    }
+}
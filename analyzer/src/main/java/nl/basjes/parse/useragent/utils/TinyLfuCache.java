@@ -0,0 +1,599 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread safe bounded cache that keeps the values that are requested often instead of only
+ * the ones that were requested last (which is what a plain LRU does).
+ * <p>
+ * The useragents we see are a few thousand very popular ones between millions that are seen only once.
+ * With an LRU every one of those one-hit-wonders pushes out a popular entry.
+ * This cache (W-TinyLFU) first puts new entries in a small LRU 'window'. An entry that falls out of the window
+ * is only admitted into the main area if it has been requested more often (according to a {@link FrequencySketch})
+ * than the entry it would push out. The main area is a segmented LRU: entries that are hit again move
+ * from the 'probation' part to the 'protected' part.
+ * <p>
+ * Optionally each entry has a cost (i.e. the time it took to create the value) and a weight (i.e. the estimated
+ * number of bytes it uses) and the cache also has a maximum total weight. Then a candidate is only admitted if the work
+ * it saves (frequency &times; cost) is more than the work saved by all the entries that must go to make room for it.
+ * So a small and expensive entry is preferred over a big and cheap one.
+ * Without costs and weights (all 1) this is exactly the plain frequency comparison.
+ * <p>
+ * The entries are spread over several independently locked stripes. A lookup never waits for a lock:
+ * it reads from a ConcurrentHashMap and only reorders the entry if the lock of its stripe happens to be free.
+ *
+ * @param <K> The type of the key
+ * @param <V> The type of the value
+ */
+public class TinyLfuCache<K, V> {
+
+    private static final int MAX_STRIPES = 16;
+    private static final int MIN_ENTRIES_PER_STRIPE = 128;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    // The maximum number of entries that are evicted to make room for a single (heavy) candidate.
+    private static final int MAX_VICTIMS = 8;
+
+    private static final class Node<K, V> {
+        private final K key;
+        private volatile V value;
+        private long cost;
+        private long weight;
+        private int queue;
+        private Node<K, V> prev;
+        private Node<K, V> next;
+
+        private Node(K key, V value, long cost, long weight) {
+            this.key = key;
+            this.value = value;
+            this.cost = Math.max(1, cost);
+            this.weight = Math.max(1, weight);
+        }
+    }
+
+    /** A point in time snapshot of the counters of a cache. */
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long admissionRejects;
+
+        Stats(long hits, long misses, long evictions, long admissionRejects) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.admissionRejects = admissionRejects;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        /** @return The number of entries that were removed from the main area to make room for a more popular one. */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /** @return The number of new entries that were dropped because they were not more popular than what was cached. */
+        public long getAdmissionRejects() {
+            return admissionRejects;
+        }
+
+        public double getHitRatio() {
+            long requests = hits + misses;
+            return requests == 0 ? 0.0 : (double) hits / requests;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions +
+                ", admissionRejects=" + admissionRejects + '}';
+        }
+    }
+
+    /**
+     * An entry of a {@link #snapshot()} of the cache, which can be put in a cache again using {@link #load(List)}.
+     * @param <K> The type of the key
+     * @param <V> The type of the value
+     */
+    public static final class Entry<K, V> {
+        private final K key;
+        private final V value;
+        private final long cost;
+        private final long weight;
+        private final int frequency;
+
+        public Entry(K key, V value, long cost, long weight, int frequency) {
+            this.key = key;
+            this.value = value;
+            this.cost = cost;
+            this.weight = weight;
+            this.frequency = frequency;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public long getCost() {
+            return cost;
+        }
+
+        public long getWeight() {
+            return weight;
+        }
+
+        /** @return The (estimated) number of recent requests of this key. */
+        public int getFrequency() {
+            return frequency;
+        }
+    }
+
+    private static final class Stripe<K, V> {
+        private final ConcurrentHashMap<K, Node<K, V>> data;
+        private final FrequencySketch sketch;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Node<K, V> window    = newSentinel();
+        private final Node<K, V> probation = newSentinel();
+        private final Node<K, V> protect   = newSentinel();
+        private final int maxWindow;
+        private final int maxMain;
+        private final int maxProtected;
+        private final long maxWindowWeight;
+        private final long maxMainWeight;
+        private int windowSize = 0;
+        private int mainSize = 0;
+        private int protectedSize = 0;
+        private long windowWeight = 0;
+        private long mainWeight = 0;
+
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+        private final AtomicLong admissionRejects = new AtomicLong();
+
+        private Stripe(int maxSize, long maxWeight, ConcurrentHashMap<K, Node<K, V>> data, FrequencySketch sketch) {
+            this.data = data;
+            this.sketch = sketch;
+            maxWindow = Math.max(1, maxSize / 100);
+            maxMain = maxSize - maxWindow;
+            maxProtected = (maxMain * 8) / 10;
+            maxWindowWeight = maxWeight == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(1, maxWeight / 100);
+            maxMainWeight = maxWeight == Long.MAX_VALUE ? Long.MAX_VALUE : maxWeight - maxWindowWeight;
+        }
+
+        // The work that is saved by keeping this entry.
+        private long score(Node<K, V> node) {
+            return sketch.frequency(node.key.hashCode()) * node.cost;
+        }
+
+        private Node<K, V> newSentinel() {
+            Node<K, V> sentinel = new Node<>(null, null, 1, 1);
+            emptyQueue(sentinel);
+            return sentinel;
+        }
+
+        private void emptyQueue(Node<K, V> sentinel) {
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+        }
+
+        private void unlink(Node<K, V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+        }
+
+        private void addFirst(Node<K, V> sentinel, Node<K, V> node) {
+            node.next = sentinel.next;
+            node.prev = sentinel;
+            sentinel.next.prev = node;
+            sentinel.next = node;
+        }
+
+        // Must be called while holding the lock.
+        private void onHit(Node<K, V> node) {
+            if (node.prev == null) {
+                return; // Already evicted
+            }
+            unlink(node);
+            switch (node.queue) {
+                case WINDOW:
+                    addFirst(window, node);
+                    break;
+                case PROBATION:
+                    node.queue = PROTECTED;
+                    addFirst(protect, node);
+                    protectedSize++;
+                    if (protectedSize > maxProtected) {
+                        Node<K, V> demoted = protect.prev;
+                        unlink(demoted);
+                        protectedSize--;
+                        demoted.queue = PROBATION;
+                        addFirst(probation, demoted);
+                    }
+                    break;
+                default:
+                    addFirst(protect, node);
+                    break;
+            }
+        }
+
+        // Must be called while holding the lock.
+        private void add(Node<K, V> node) {
+            node.queue = WINDOW;
+            addFirst(window, node);
+            windowSize++;
+            windowWeight += node.weight;
+            // The oldest entries of the window are candidates for the main area.
+            while (windowSize > maxWindow || windowWeight > maxWindowWeight) {
+                Node<K, V> candidate = window.prev;
+                unlink(candidate);
+                windowSize--;
+                windowWeight -= candidate.weight;
+                offer(candidate);
+            }
+        }
+
+        private void offer(Node<K, V> candidate) {
+            if (candidate.weight > maxMainWeight) {
+                remove(candidate);
+                admissionRejects.incrementAndGet();
+                return;
+            }
+
+            // Find the least recently used entries that must go to make room for the candidate.
+            int victims = 0;
+            long victimsScore = 0;
+            long freedWeight = 0;
+            Node<K, V> victim = probation;
+            while (mainSize - victims >= maxMain || mainWeight - freedWeight + candidate.weight > maxMainWeight) {
+                victim = previousVictim(victim);
+                if (victim == null || victims == MAX_VICTIMS) {
+                    if (mainSize == 0) {
+                        // There is no main area at all
+                        remove(candidate);
+                        evictions.incrementAndGet();
+                    } else {
+                        remove(candidate);
+                        admissionRejects.incrementAndGet();
+                    }
+                    return;
+                }
+                victims++;
+                victimsScore += score(victim);
+                freedWeight += victim.weight;
+            }
+
+            if (victims > 0 && score(candidate) <= victimsScore) {
+                remove(candidate);
+                admissionRejects.incrementAndGet();
+                return;
+            }
+
+            for (int i = 0; i < victims; i++) {
+                evict(probation.prev != probation ? probation.prev : protect.prev);
+            }
+            admit(candidate);
+        }
+
+        // The next older entry in the main area (first all of probation, then protected) or null if there is none.
+        private Node<K, V> previousVictim(Node<K, V> current) {
+            Node<K, V> previous = current.prev;
+            if (previous == probation) {
+                previous = protect.prev;
+            }
+            return previous == protect ? null : previous;
+        }
+
+        private void evict(Node<K, V> victim) {
+            unlink(victim);
+            if (victim.queue == PROTECTED) {
+                protectedSize--;
+            }
+            mainSize--;
+            mainWeight -= victim.weight;
+            remove(victim);
+            evictions.incrementAndGet();
+        }
+
+        // Must be called while holding the lock.
+        private void updateWeight(Node<K, V> node, long newWeight) {
+            long delta = Math.max(1, newWeight) - node.weight;
+            node.weight += delta;
+            if (node.prev == null) {
+                return; // Already evicted
+            }
+            if (node.queue == WINDOW) {
+                windowWeight += delta;
+            } else {
+                mainWeight += delta;
+                while (mainWeight > maxMainWeight && mainSize > 1) {
+                    Node<K, V> victim = probation.prev != probation ? probation.prev : protect.prev;
+                    if (victim == node) {
+                        break;
+                    }
+                    evict(victim);
+                }
+            }
+        }
+
+        private void admit(Node<K, V> node) {
+            node.queue = PROBATION;
+            addFirst(probation, node);
+            mainSize++;
+            mainWeight += node.weight;
+        }
+
+        private void remove(Node<K, V> node) {
+            node.prev = null;
+            node.next = null;
+            data.remove(node.key, node);
+        }
+
+        private void clear() {
+            emptyQueue(window);
+            emptyQueue(probation);
+            emptyQueue(protect);
+            windowSize = 0;
+            mainSize = 0;
+            protectedSize = 0;
+            windowWeight = 0;
+            mainWeight = 0;
+        }
+    }
+
+    private final int maxSize;
+    private final long maxWeight;
+    private final ConcurrentHashMap<K, Node<K, V>> data;
+    private final FrequencySketch sketch;
+    private final Stripe<K, V>[] stripes;
+    private final int stripeMask;
+
+    public TinyLfuCache(int maxSize) {
+        this(maxSize, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxSize   The maximum number of entries.
+     * @param maxWeight The maximum total weight of all entries (see {@link #put(Object, Object, long, long)}).
+     */
+    @SuppressWarnings("unchecked")
+    public TinyLfuCache(int maxSize, long maxWeight) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("The maximum size of the cache must be at least 1");
+        }
+        if (maxWeight < 1) {
+            throw new IllegalArgumentException("The maximum weight of the cache must be at least 1");
+        }
+        this.maxSize = maxSize;
+        this.maxWeight = maxWeight;
+
+        int numberOfStripes = 1;
+        while (numberOfStripes < MAX_STRIPES && maxSize / (numberOfStripes * 2) >= MIN_ENTRIES_PER_STRIPE) {
+            numberOfStripes <<= 1;
+        }
+        stripeMask = numberOfStripes - 1;
+        stripes = new Stripe[numberOfStripes];
+        data = new ConcurrentHashMap<>(maxSize + maxSize / 3, 0.75f, numberOfStripes);
+        sketch = new FrequencySketch(maxSize);
+        for (int i = 0; i < numberOfStripes; i++) {
+            // Spread the remainder so the total is exactly maxSize
+            int stripeSize = maxSize / numberOfStripes + (i < maxSize % numberOfStripes ? 1 : 0);
+            long stripeWeight = maxWeight == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(1, maxWeight / numberOfStripes);
+            stripes[i] = new Stripe<>(stripeSize, stripeWeight, data, sketch);
+        }
+    }
+
+    private Stripe<K, V> stripeFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[(h * 0x9E3779B9 >>> 16) & stripeMask];
+    }
+
+    /**
+     * @param key The key to look up
+     * @return The cached value or null if it is not in the cache.
+     */
+    public V get(K key) {
+        Stripe<K, V> stripe = stripeFor(key);
+        sketch.increment(key.hashCode());
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            stripe.misses.incrementAndGet();
+            return null;
+        }
+        stripe.hits.incrementAndGet();
+        // Reordering is only an optimization; never wait for it.
+        if (stripe.lock.tryLock()) {
+            try {
+                stripe.onHit(node);
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return node.value;
+    }
+
+    /**
+     * Put a value in the cache. Note that a new entry may be rejected immediately (or later) if
+     * it is less popular than the entries that are already in the cache.
+     * @param key   The key
+     * @param value The value
+     */
+    public void put(K key, V value) {
+        put(key, value, 1, 1);
+    }
+
+    /**
+     * Put a value in the cache. Note that a new entry may be rejected immediately (or later) if
+     * the work it saves is less than what the entries that are already in the cache save.
+     * @param key    The key
+     * @param value  The value
+     * @param cost   What it costs to create the value again (i.e. in nanoseconds).
+     * @param weight What the value costs to keep (i.e. the estimated size in bytes).
+     */
+    public void put(K key, V value, long cost, long weight) {
+        Stripe<K, V> stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            Node<K, V> node = data.get(key);
+            if (node != null) {
+                node.value = value;
+                node.cost = Math.max(1, cost);
+                stripe.updateWeight(node, weight);
+                stripe.onHit(node);
+                return;
+            }
+            node = new Node<>(key, value, cost, weight);
+            data.put(key, node);
+            stripe.add(node);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * All current entries, the ones that save the most work (frequency &times; cost) first.
+     * Entries that save the same are ordered from most to least recently used.
+     * Each stripe is locked while it is copied, so the cache can be used while this runs.
+     * @return The entries.
+     */
+    public List<Entry<K, V>> snapshot() {
+        List<Entry<K, V>> entries = new ArrayList<>(size());
+        for (Stripe<K, V> stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                addEntries(entries, stripe.protect);
+                addEntries(entries, stripe.probation);
+                addEntries(entries, stripe.window);
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        Collections.sort(entries, new Comparator<Entry<K, V>>() {
+            @Override
+            public int compare(Entry<K, V> one, Entry<K, V> other) {
+                return Long.compare(other.frequency * other.cost, one.frequency * one.cost);
+            }
+        });
+        return entries;
+    }
+
+    // From most to least recently used.
+    private void addEntries(List<Entry<K, V>> entries, Node<K, V> sentinel) {
+        for (Node<K, V> node = sentinel.next; node != sentinel; node = node.next) {
+            int frequency = sketch.frequency(node.key.hashCode());
+            entries.add(new Entry<>(node.key, node.value, node.cost, node.weight, frequency));
+        }
+    }
+
+    /**
+     * Put the entries (i.e. of a {@link #snapshot()} of an other cache) in this cache including
+     * their frequencies. If they do not all fit the first ones are kept.
+     * @param entries The entries, the most important first.
+     */
+    public void load(List<Entry<K, V>> entries) {
+        for (Entry<K, V> entry : entries) {
+            int hash = entry.key.hashCode();
+            for (int i = 0; i < entry.frequency; i++) {
+                sketch.increment(hash);
+            }
+            put(entry.key, entry.value, entry.cost, entry.weight);
+        }
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    public int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return The maximum total weight (Long.MAX_VALUE if there is no limit).
+     */
+    public long maxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * @return The current total weight of all entries.
+     */
+    public long weight() {
+        long weight = 0;
+        for (Stripe<K, V> stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                weight += stripe.windowWeight + stripe.mainWeight;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return weight;
+    }
+
+    public void clear() {
+        for (Stripe<K, V> stripe : stripes) {
+            stripe.lock.lock();
+        }
+        try {
+            data.clear();
+            for (Stripe<K, V> stripe : stripes) {
+                stripe.clear();
+            }
+        } finally {
+            for (Stripe<K, V> stripe : stripes) {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    public Stats getStats() {
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        long admissionRejects = 0;
+        for (Stripe<K, V> stripe : stripes) {
+            hits += stripe.hits.get();
+            misses += stripe.misses.get();
+            evictions += stripe.evictions.get();
+            admissionRejects += stripe.admissionRejects.get();
+        }
+        return new Stats(hits, misses, evictions, admissionRejects);
+    }
+}
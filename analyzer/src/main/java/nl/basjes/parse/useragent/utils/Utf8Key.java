@@ -0,0 +1,153 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.basjes.parse.useragent.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A key that consists of (UTF-8) bytes, so a cache can be searched with a part of a larger buffer
+ * without first creating a String.
+ * <p>
+ * A key used to search ({@link #wrap(byte[], int, int)}) only refers to the bytes of the caller,
+ * a key that is stored ({@link #copyOf(byte[], int, int)}) has its own copy of the bytes.
+ * Both have the same {@link Hash64} hash so two keys are first compared by their 64 bit hash
+ * and only if those are the same by their bytes.
+ */
+public final class Utf8Key {
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+    private final long hash;
+    private final boolean ownBytes;
+
+    private Utf8Key(byte[] bytes, int offset, int length, boolean ownBytes) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        this.hash = Hash64.hash(bytes, offset, length);
+        this.ownBytes = ownBytes;
+    }
+
+    /**
+     * A key that refers to (does not copy) the provided bytes; these must not change while the key is used.
+     * @param bytes  The buffer
+     * @param offset The start of the key in the buffer
+     * @param length The number of bytes of the key
+     * @return The key
+     */
+    public static Utf8Key wrap(byte[] bytes, int offset, int length) {
+        checkRange(bytes.length, offset, length);
+        return new Utf8Key(bytes, offset, length, false);
+    }
+
+    /**
+     * A key with a copy of the provided bytes (so it can be stored).
+     * @param bytes  The buffer
+     * @param offset The start of the key in the buffer
+     * @param length The number of bytes of the key
+     * @return The key
+     */
+    public static Utf8Key copyOf(byte[] bytes, int offset, int length) {
+        checkRange(bytes.length, offset, length);
+        byte[] copy = new byte[length];
+        System.arraycopy(bytes, offset, copy, 0, length);
+        return new Utf8Key(copy, 0, length, true);
+    }
+
+    /**
+     * A key with the bytes between the position and the limit of the buffer.
+     * The bytes of a heap buffer are wrapped (not copied), those of a direct buffer are copied.
+     * The position of the buffer is not changed.
+     * @param buffer The buffer
+     * @return The key
+     */
+    public static Utf8Key wrap(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return wrap(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        byte[] copy = new byte[buffer.remaining()];
+        buffer.duplicate().get(copy);
+        return new Utf8Key(copy, 0, copy.length, true);
+    }
+
+    private static void checkRange(int size, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > size - length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + ", size " + size);
+        }
+    }
+
+    /**
+     * @return A key with its own copy of the bytes (this instance if it already has that).
+     */
+    public Utf8Key copy() {
+        if (ownBytes) {
+            return this;
+        }
+        return copyOf(bytes, offset, length);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return The 64 bit {@link Hash64} of the bytes.
+     */
+    public long hash64() {
+        return hash;
+    }
+
+    /**
+     * @return The bytes decoded as UTF-8 (invalid sequences are replaced).
+     */
+    public String decode() {
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Utf8Key)) {
+            return false;
+        }
+        Utf8Key other = (Utf8Key) o;
+        if (hash != other.hash || length != other.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[offset + i] != other.bytes[other.offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return decode();
+    }
+}
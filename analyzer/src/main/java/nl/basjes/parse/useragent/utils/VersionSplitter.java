@@ -17,6 +17,8 @@
 
 package nl.basjes.parse.useragent.utils;
 
+import java.util.Arrays;
+
 public final class VersionSplitter {
     private VersionSplitter() {
     }
@@ -118,6 +120,38 @@ public final class VersionSplitter {
         return value.substring(start, end);
     }
 
+    /**
+     * The numeric values of the first versions (i.e. 53, 0 and 2785 for "53.0.2785.124").
+     * Only the leading digits of a version count ("3b2" is 3) and it stops at the first version without them.
+     * @param value       The version string
+     * @param maxVersions The maximum number of versions
+     * @return The numbers (an empty array if the value does not start with a number)
+     */
+    public static int[] getVersionNumbers(String value, int maxVersions) {
+        if (value == null || looksLikeEmailOrWebaddress(value)) {
+            return new int[0];
+        }
+        char[] characters = value.toCharArray();
+        int[] numbers = new int[maxVersions];
+        int count = 0;
+        int start = findNextVersionStart(characters, 0);
+        while (count < maxVersions && start != -1) {
+            int end = findVersionEnd(characters, start);
+            long number = 0;
+            int digits = start;
+            while (digits < end && characters[digits] >= '0' && characters[digits] <= '9') {
+                number = Math.min(Integer.MAX_VALUE, number * 10 + (characters[digits] - '0'));
+                digits++;
+            }
+            if (digits == start) {
+                break; // Not a number
+            }
+            numbers[count++] = (int) number;
+            start = end < characters.length ? findNextVersionStart(characters, end) : -1;
+        }
+        return count == maxVersions ? numbers : Arrays.copyOf(numbers, count);
+    }
+
     public static String getFirstVersions(String value, int word) {
         if (value == null) {
             return null;
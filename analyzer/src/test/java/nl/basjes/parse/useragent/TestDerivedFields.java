@@ -0,0 +1,73 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.basjes.parse.useragent;
+
+import org.junit.Test;
+
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestDerivedFields {
+
+    private static final String USER_AGENT = "Mozilla/5.0 (Linux; Android 7.0; Nexus 6 Build/NBD90Z) " +
+        "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/53.0.2785.124 Mobile Safari/537.36";
+
+    @Test
+    public void testDependencies() {
+        Set<String> dependencies = DerivedFields.getDependencies("AgentNameVersionMajor");
+        assertTrue(dependencies.contains("AgentName"));
+        assertTrue(dependencies.contains("AgentVersionMajor"));
+        assertTrue(dependencies.contains("AgentVersion"));
+        assertEquals(3, dependencies.size());
+
+        assertTrue(DerivedFields.getDependencies("DeviceName").contains("DeviceBrand"));
+        assertTrue(DerivedFields.getDependencies("DeviceClass").isEmpty());
+    }
+
+    @Test
+    public void testLazyDerivation() {
+        UserAgentAnalyzer userAgentAnalyzer = new UserAgentAnalyzer();
+        userAgentAnalyzer.disableCaching();
+
+        // An instance with a different schema gets all derived fields during the parse.
+        UserAgent eager = userAgentAnalyzer.parse(new UserAgent(USER_AGENT));
+        UserAgent lazy = userAgentAnalyzer.parse(USER_AGENT);
+
+        assertEquals("Chrome 53", lazy.getValue("AgentNameVersionMajor"));
+        assertEquals("Google", lazy.getValue("DeviceBrand"));
+        assertEquals("Google Nexus 6", lazy.getValue("DeviceName"));
+        assertEquals(eager.toYamlTestCase(true), lazy.toYamlTestCase(true));
+
+        // Instances that share the fields via the cache see the derived values of each other.
+        userAgentAnalyzer.setCacheSize(100);
+        UserAgent first = userAgentAnalyzer.parse(USER_AGENT);
+        UserAgent second = userAgentAnalyzer.parse(USER_AGENT);
+        assertEquals("Blink 53", second.getValue("LayoutEngineNameVersionMajor"));
+        assertEquals(eager.toYamlTestCase(true), first.toYamlTestCase(true));
+        assertEquals(eager.toYamlTestCase(true), second.toYamlTestCase(true));
+
+        // A change uses the derived values from before the change.
+        UserAgent changed = second.copyOnWrite();
+        changed.set("AgentName", "Something", 1000);
+        assertEquals("Chrome 53", changed.getValue("AgentNameVersionMajor"));
+        assertEquals("Chrome 53", second.getValue("AgentNameVersionMajor"));
+    }
+}
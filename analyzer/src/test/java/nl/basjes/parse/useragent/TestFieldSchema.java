@@ -0,0 +1,205 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.basjes.parse.useragent;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestFieldSchema {
+
+    @Test
+    public void testAnalyzerSchema() {
+        UserAgentAnalyzer userAgentAnalyzer = new UserAgentAnalyzer("classpath*:AllFields-tests.yaml");
+        FieldSchema schema = userAgentAnalyzer.getFieldSchema();
+        for (String fieldName : userAgentAnalyzer.getAllPossibleFieldNames()) {
+            assertTrue(fieldName, schema.getId(fieldName) >= 0);
+        }
+        // The fields every UserAgent has have the same id in every schema.
+        for (String fieldName : UserAgent.STANDARD_FIELDS) {
+            assertEquals(FieldSchema.DEFAULT.getId(fieldName), schema.getId(fieldName));
+        }
+
+        UserAgent userAgent = userAgentAnalyzer.parse("Mozilla/5.0 (Linux; Android 7.0; Nexus 6 Build/NBD90Z) " +
+            "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/53.0.2785.124 Mobile Safari/537.36");
+        assertSame(schema, userAgent.getFieldSchema());
+        for (String fieldName : userAgent.getAvailableFieldNames()) {
+            int id = schema.getId(fieldName);
+            assertEquals(fieldName, userAgent.getValue(fieldName), userAgent.getValue(id));
+            assertEquals(fieldName, userAgent.getConfidence(fieldName).longValue(), userAgent.getConfidence(id));
+        }
+        assertEquals(UserAgent.UNKNOWN_VALUE, userAgent.getValue(-1));
+        assertEquals(-1, userAgent.getConfidence(schema.size()));
+
+        // Deserialized into the same schema.
+        UserAgent copy = UserAgent.deserialize(userAgent.serialize(), schema);
+        assertSame(schema, copy.getFieldSchema());
+        assertEquals(userAgent.toYamlTestCase(true), copy.toYamlTestCase(true));
+    }
+
+    @Test
+    public void testUnknownFields() {
+        UserAgent userAgent = new UserAgent("Something");
+        assertNull(userAgent.get("SomethingElse"));
+        assertEquals(UserAgent.UNKNOWN_VALUE, userAgent.getValue("SomethingElse"));
+
+        userAgent.set("SomethingElse", "Value", 10);
+        FieldSchema extended = userAgent.getFieldSchema();
+        assertNotSame(FieldSchema.DEFAULT, extended);
+        assertEquals("Value", userAgent.getValue("SomethingElse"));
+        assertEquals("Value", userAgent.getValue(extended.getId("SomethingElse")));
+        assertEquals(10, userAgent.get("SomethingElse").getConfidence());
+
+        // The extended schema is shared.
+        UserAgent other = new UserAgent("Other");
+        other.set("SomethingElse", "Other value", 5);
+        assertSame(extended, other.getFieldSchema());
+
+        // Reset keeps the field but with its (null) default.
+        userAgent.reset();
+        assertNull(userAgent.getValue("SomethingElse"));
+        assertEquals(-1, userAgent.get("SomethingElse").getConfidence());
+        assertEquals(UserAgent.UNKNOWN_VALUE, userAgent.getValue(UserAgent.DEVICE_CLASS));
+    }
+
+    @Test
+    public void testSerializeFieldsOutsideTheDefaultSchema() {
+        FieldSchema schema = FieldSchema.of(Arrays.asList("SomethingElse", "DeviceFirmwareVersion"));
+        assertEquals(-1, FieldSchema.DEFAULT.getId("SomethingElse"));
+
+        UserAgent userAgent = new UserAgent("Something", schema);
+        userAgent.set("SomethingElse", "Value", 10);
+        userAgent.set(UserAgent.DEVICE_CLASS, "Phone", 5);
+        userAgent.set(UserAgent.OPERATING_SYSTEM_VERSION, UserAgent.NULL_VALUE, 7);
+        userAgent = userAgent.freeze();
+
+        UserAgent copy = UserAgent.deserialize(userAgent.serialize(), schema);
+        assertSame(schema, copy.getFieldSchema());
+        assertEquals("Value", copy.getValue("SomethingElse"));
+        assertEquals(10, copy.getConfidence("SomethingElse").longValue());
+        assertEquals("Phone", copy.getValue(UserAgent.DEVICE_CLASS));
+        // The (non null) default survives
+        assertEquals(UserAgent.UNKNOWN_VERSION, copy.getValue(UserAgent.OPERATING_SYSTEM_VERSION));
+        assertEquals(7, copy.getConfidence(UserAgent.OPERATING_SYSTEM_VERSION).longValue());
+        assertEquals(-1, copy.getConfidence("DeviceFirmwareVersion").longValue());
+        assertEquals(userAgent.toYamlTestCase(true), copy.toYamlTestCase(true));
+    }
+
+    @Test
+    public void testValueCodes() {
+        UserAgentAnalyzer userAgentAnalyzer = new UserAgentAnalyzer("classpath*:AllFields-tests.yaml");
+        // Disabled by default
+        assertNull(userAgentAnalyzer.getValueDictionary());
+        assertEquals(ValueDictionary.NO_CODE, userAgentAnalyzer.parse("Something").getValueCode(UserAgent.AGENT_NAME));
+
+        userAgentAnalyzer.setValueDictionarySize(100000);
+        ValueDictionary dictionary = userAgentAnalyzer.getValueDictionary();
+
+        UserAgent phone = userAgentAnalyzer.parse("Mozilla/5.0 (Linux; Android 7.0; Nexus 6 Build/NBD90Z) " +
+            "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/53.0.2785.124 Mobile Safari/537.36");
+        UserAgent desktop = userAgentAnalyzer.parse("Mozilla/5.0 (Windows NT 10.0; Win64; x64) " +
+            "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/58.0.3029.110 Safari/537.36");
+
+        for (String fieldName : phone.getAvailableFieldNames()) {
+            int code = phone.getValueCode(fieldName);
+            assertTrue(fieldName, code != ValueDictionary.NO_CODE);
+            // The value is the instance from the dictionary.
+            assertSame(fieldName, dictionary.decode(code), phone.getValue(fieldName));
+        }
+        assertEquals(phone.getValueCode(UserAgent.AGENT_NAME), desktop.getValueCode(UserAgent.AGENT_NAME));
+        assertEquals(dictionary.getCode(UserAgent.UNKNOWN_VALUE), desktop.getValueCode(UserAgent.DEVICE_CLASS));
+        assertEquals(dictionary.getCode(UserAgent.UNKNOWN_VERSION), desktop.getValueCode(UserAgent.AGENT_VERSION));
+        assertNotEquals(desktop.getValueCode(UserAgent.DEVICE_CLASS), desktop.getValueCode(UserAgent.AGENT_VERSION));
+        assertEquals(dictionary.getCode(UserAgent.UNKNOWN_VALUE), phone.getValueCode("NoSuchField"));
+
+        // A changed copy has no codes.
+        UserAgent changed = phone.copyOnWrite();
+        assertEquals(phone.getValueCode(UserAgent.AGENT_NAME), changed.getValueCode(UserAgent.AGENT_NAME));
+        changed.set(UserAgent.AGENT_NAME, "Something", 10000);
+        assertEquals(ValueDictionary.NO_CODE, changed.getValueCode(UserAgent.AGENT_NAME));
+
+        // A full dictionary gives new values no code.
+        ValueDictionary small = new ValueDictionary(2);
+        assertEquals(0, small.encode("One"));
+        assertEquals(1, small.encode("Two"));
+        assertEquals(ValueDictionary.NO_CODE, small.encode("Three"));
+        assertEquals(0, small.encode("One"));
+        assertEquals("Two", small.decode(1));
+    }
+
+    @Test
+    public void testWriteJson() throws IOException {
+        UserAgent userAgent = new UserAgent("Mozilla/5.0 \"Quoted\" \\ / \t \u00e9\u20ac\ud83d\ude00 \u007f\u0001");
+        userAgent.set(UserAgent.AGENT_NAME, "Name/With \"quotes\"", 10);
+        userAgent.set("ZzzLast", "\u00fcber", 10);
+        userAgent.set("AaaFirst", "First", 10);
+        userAgent.set("NotAvailable", "Hidden", -1);
+        userAgent.set(UserAgent.SET_ALL_FIELDS, "Ignored", -1);
+
+        String json = userAgent.toJson();
+        assertEquals(oldToJson(userAgent), json);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        userAgent.writeJson(bytes);
+        assertEquals(json, new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    // The way toJson used to build it.
+    private String oldToJson(UserAgent userAgent) {
+        StringBuilder sb = new StringBuilder(10240);
+        sb.append("{");
+
+        List<String> fieldNames = userAgent.getAvailableFieldNames();
+        Collections.sort(fieldNames);
+
+        for (String fieldName : UserAgent.STANDARD_FIELDS) {
+            fieldNames.remove(fieldName);
+            sb
+                .append('"').append(StringEscapeUtils.escapeJson(fieldName)).append('"')
+                .append(':')
+                .append('"').append(StringEscapeUtils.escapeJson(userAgent.getValue(fieldName))).append('"')
+                .append(',');
+        }
+        for (String fieldName : fieldNames) {
+            sb
+                .append('"').append(StringEscapeUtils.escapeJson(fieldName)).append('"')
+                .append(':')
+                .append('"').append(StringEscapeUtils.escapeJson(userAgent.getValue(fieldName))).append('"')
+                .append(',');
+        }
+        sb
+            .append("\"user_agent_string\":")
+            .append('"').append(StringEscapeUtils.escapeJson(userAgent.getUserAgentString())).append('"')
+            .append("}\n");
+        return sb.toString();
+    }
+}
@@ -17,17 +17,23 @@
 
 package nl.basjes.parse.useragent;
 
+import nl.basjes.parse.useragent.analyze.MatcherAction;
 import nl.basjes.parse.useragent.debug.UserAgentAnalyzerTester;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class TestPredefinedBrowsers {
@@ -52,6 +58,98 @@ public class TestPredefinedBrowsers {
         assertTrue(uaa.runTests(false, true));
     }
 
+    @Test
+    public void validateAllPredefinedBrowsersWithDiscriminationNetwork() {
+        LOG.info("==============================================================");
+        LOG.info("Validating when using the discrimination network");
+        LOG.info("--------------------------------------------------------------");
+        UserAgentAnalyzer userAgentAnalyzer =
+            UserAgentAnalyzerTester
+                .newBuilder()
+                .withoutCache()
+                .withDiscriminationNetwork()
+                .hideMatcherLoadStats()
+                .build();
+
+        assertTrue(userAgentAnalyzer instanceof UserAgentAnalyzerTester);
+        UserAgentAnalyzerTester tester = (UserAgentAnalyzerTester) userAgentAnalyzer;
+        assertTrue(tester.runTests(false, true));
+
+        // The debug output shows the same matches as without the network.
+        for (String userAgentString : Arrays.asList(
+            "Mozilla/5.0 (Linux; Android 6.0; Nexus 6 Build/MRA58N) AppleWebKit/537.36 (KHTML, like Gecko) " +
+                "Chrome/46.0.2490.76 Mobile Safari/537.36",
+            "Mozilla/5.0 (Windows NT 10.0; WOW64; Trident/7.0; rv:11.0) like Gecko",
+            "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)")) {
+            List<String> expected = toStrings(uaa.getUsedMatches(new UserAgent(userAgentString)));
+            List<String> actual = toStrings(tester.getUsedMatches(new UserAgent(userAgentString)));
+            assertFalse(expected.isEmpty());
+            assertEquals(userAgentString, expected, actual);
+        }
+    }
+
+    private static List<String> toStrings(List<MatcherAction.Match> matches) {
+        List<String> result = new ArrayList<>(matches.size());
+        for (MatcherAction.Match match : matches) {
+            result.add(match.getKey() + " = " + match.getValue());
+        }
+        return result;
+    }
+
+    @Test
+    public void validateAllPredefinedBrowsersWithKeywordPartitioning() {
+        LOG.info("==============================================================");
+        LOG.info("Validating when only evaluating the matchers with a keyword in the useragent");
+        LOG.info("--------------------------------------------------------------");
+        UserAgentAnalyzer userAgentAnalyzer =
+            UserAgentAnalyzerTester
+                .newBuilder()
+                .withoutCache()
+                .withKeywordPartitioning()
+                .hideMatcherLoadStats()
+                .build();
+
+        assertTrue(userAgentAnalyzer instanceof UserAgentAnalyzerTester);
+        assertTrue(((UserAgentAnalyzerTester) userAgentAnalyzer).runTests(false, true));
+
+        // Exactly the same results (including the confidences) as without the partitioning.
+        UserAgentAnalyzer withoutPartitioning =
+            UserAgentAnalyzer
+                .newBuilder()
+                .withoutCache()
+                .withoutKeywordPartitioning()
+                .hideMatcherLoadStats()
+                .build();
+        assertFalse(uaa.testCases.isEmpty());
+        for (Map<String, Map<String, String>> testCase : uaa.testCases) {
+            String userAgentString = testCase.get("input").get("user_agent_string");
+            UserAgent expected = withoutPartitioning.parse(userAgentString);
+            UserAgent actual = userAgentAnalyzer.parse(userAgentString);
+            for (String fieldName : allFields) {
+                String message = fieldName + " of " + userAgentString;
+                assertEquals(message, expected.getValue(fieldName), actual.getValue(fieldName));
+                assertEquals(message, expected.getConfidence(fieldName), actual.getConfidence(fieldName));
+            }
+        }
+    }
+
+    @Test
+    public void validateAllPredefinedBrowsersAllocationLean() {
+        LOG.info("==============================================================");
+        LOG.info("Validating when reusing the objects of a parse");
+        LOG.info("--------------------------------------------------------------");
+        UserAgentAnalyzer userAgentAnalyzer =
+            UserAgentAnalyzerTester
+                .newBuilder()
+                .withoutCache()
+                .withAllocationLeanParsing()
+                .hideMatcherLoadStats()
+                .build();
+
+        assertTrue(userAgentAnalyzer.isAllocationLean());
+        assertTrue(((UserAgentAnalyzerTester) userAgentAnalyzer).runTests(false, true));
+    }
+
     @Test
     public void validateAllPredefinedBrowsersPerField() {
         Set<String> singleFieldList = new HashSet<>();
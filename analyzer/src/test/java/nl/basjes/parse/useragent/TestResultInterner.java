@@ -0,0 +1,184 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestResultInterner {
+
+    private static final String CHROME_1 = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) " +
+        "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/58.0.3029.110 Safari/537.36";
+    private static final String CHROME_2 = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) " +
+        "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/58.0.3029.96 Safari/537.36";
+    private static final String AGENT_NAME_VERSION_MAJOR = "AgentNameVersionMajor";
+    private static final String OPERATING_SYSTEM_NAME_VERSION = "OperatingSystemNameVersion";
+    private static final String FIREFOX = "Mozilla/5.0 (X11; Linux x86_64; rv:54.0) Gecko/20100101 Firefox/54.0";
+
+    private static UserAgentAnalyzer userAgentAnalyzer;
+
+    @BeforeClass
+    public static void createAnalyzer() {
+        userAgentAnalyzer = new UserAgentAnalyzer();
+        // Every parse creates a new result with new values.
+        userAgentAnalyzer.disableCaching();
+    }
+
+    private static UserAgent parse(String userAgentString) {
+        UserAgent userAgent = userAgentAnalyzer.parse(userAgentString);
+        assertFalse(userAgent.isFrozen());
+        return userAgent;
+    }
+
+    @Test
+    public void testSameResults() {
+        ResultInterner interner = new ResultInterner(1000);
+
+        UserAgent first = interner.intern(parse(CHROME_1).freeze());
+        UserAgent second = interner.intern(parse(CHROME_2).freeze());
+        assertTrue(first.hasInternedFields());
+        assertTrue(second.hasInternedFields());
+        assertSame(second, interner.intern(second));
+        assertTrue(interner.getHits() > 0);
+
+        // Exactly the same results as without interning
+        for (UserAgent interned : Arrays.asList(first, second)) {
+            UserAgent plain = parse(interned.getUserAgentString());
+            assertEquals(plain.toJson(), interned.toJson());
+            for (String fieldName : plain.getAvailableFieldNames()) {
+                assertEquals(fieldName, plain.getConfidence(fieldName), interned.getConfidence(fieldName));
+                assertEquals(fieldName, plain.getValueCode(fieldName), interned.getValueCode(fieldName));
+            }
+        }
+
+        // A change does not affect the other results.
+        UserAgent changed = second.copyOnWrite();
+        changed.set(UserAgent.AGENT_NAME, "Something else", 1000);
+        assertFalse(changed.hasInternedFields());
+        assertEquals("Chrome", first.getValue(UserAgent.AGENT_NAME));
+        assertEquals("Chrome", second.getValue(UserAgent.AGENT_NAME));
+
+        try {
+            interner.intern(new UserAgent(CHROME_1));
+            fail("Only frozen results can be interned");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testResultsThatOnlyDifferInTheVersionShareTheOtherValues() {
+        ResultInterner interner = new ResultInterner(1000);
+
+        UserAgent plainFirst = parse(CHROME_1);
+        UserAgent plainSecond = parse(CHROME_2);
+        assertNotEquals(plainFirst.getValue(UserAgent.AGENT_VERSION), plainSecond.getValue(UserAgent.AGENT_VERSION));
+        // Without interning these are equal but separate values.
+        assertEquals(plainFirst.getValue(AGENT_NAME_VERSION_MAJOR), plainSecond.getValue(AGENT_NAME_VERSION_MAJOR));
+        assertNotSame(plainFirst.getValue(AGENT_NAME_VERSION_MAJOR), plainSecond.getValue(AGENT_NAME_VERSION_MAJOR));
+
+        UserAgent first = interner.intern(plainFirst.freeze());
+        UserAgent second = interner.intern(plainSecond.freeze());
+        assertNotEquals(first.getValue(UserAgent.AGENT_VERSION), second.getValue(UserAgent.AGENT_VERSION));
+        assertSame(first.getValue(AGENT_NAME_VERSION_MAJOR), second.getValue(AGENT_NAME_VERSION_MAJOR));
+        assertSame(first.fieldConfidences(), second.fieldConfidences());
+    }
+
+    @Test
+    public void testEstimatedSize() {
+        ResultInterner interner = new ResultInterner(1000);
+
+        // The first result that has the values is the only one that uses them so (almost) all are counted;
+        // only the values it has several times are now shared and counted once.
+        UserAgent plainFirst = parse(CHROME_1);
+        plainFirst.toJson(); // Calculate all derived fields (interning does that too)
+        UserAgent first = interner.intern(parse(CHROME_1).freeze());
+        assertTrue(first.getEstimatedSize() <= plainFirst.getEstimatedSize());
+        assertTrue(first.getEstimatedSize() > plainFirst.getEstimatedSize() * 9 / 10);
+
+        // Only what it shares with the first is not counted for the second.
+        UserAgent plainSecond = parse(CHROME_2);
+        plainSecond.toJson();
+        UserAgent second = interner.intern(parse(CHROME_2).freeze());
+        assertTrue(second.getEstimatedSize() < plainSecond.getEstimatedSize());
+        assertTrue(second.getEstimatedSize() < first.getEstimatedSize());
+        assertTrue(second.getEstimatedSize() > 64 + 2 * CHROME_2.length());
+
+        // An equal result shares everything except its own useragent and list of values.
+        UserAgent again = interner.intern(parse(CHROME_2).freeze());
+        assertTrue(again.getEstimatedSize() < second.getEstimatedSize());
+    }
+
+    @Test
+    public void testGetFieldOfCachedResult() {
+        userAgentAnalyzer.setCacheSize(1000);
+        userAgentAnalyzer.setResultInternerSize(1000);
+        try {
+            userAgentAnalyzer.parse(CHROME_1);
+            userAgentAnalyzer.parse(CHROME_2);
+            UserAgent cached = userAgentAnalyzer.parse(CHROME_2);
+            assertTrue(cached.isFrozen());
+            assertTrue(cached.hasInternedFields());
+
+            UserAgent.AgentField field = cached.get(UserAgent.AGENT_NAME);
+            assertNotNull(field);
+            assertEquals("Chrome", field.getValue());
+            assertEquals(cached.getConfidence(UserAgent.AGENT_NAME).longValue(), field.getConfidence());
+
+            try {
+                field.setValue("Something else", 1000);
+                fail("A field of a frozen result cannot be changed");
+            } catch (UnsupportedOperationException e) {
+                // Expected
+            }
+            assertEquals("Chrome", cached.getValue(UserAgent.AGENT_NAME));
+        } finally {
+            userAgentAnalyzer.setResultInternerSize(0);
+            userAgentAnalyzer.disableCaching();
+        }
+    }
+
+    @Test
+    public void testFullInternerStillSharesNewValues() {
+        ResultInterner interner = new ResultInterner(20);
+        interner.intern(parse(CHROME_1).freeze());
+        interner.intern(parse(CHROME_2).freeze());
+        assertTrue(interner.size() <= 40);
+
+        // Values that are seen again and again take the place of the ones that are not.
+        UserAgent firefox = null;
+        for (int i = 0; i < 10; i++) {
+            firefox = interner.intern(parse(FIREFOX).freeze());
+        }
+        UserAgent other = interner.intern(parse(FIREFOX).freeze());
+        assertTrue(interner.size() <= 40);
+        assertSame(firefox.getValue(AGENT_NAME_VERSION_MAJOR), other.getValue(AGENT_NAME_VERSION_MAJOR));
+        assertSame(firefox.getValue(OPERATING_SYSTEM_NAME_VERSION), other.getValue(OPERATING_SYSTEM_NAME_VERSION));
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.basjes.parse.useragent;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestUserAgentCodec {
+
+    private static final String USER_AGENT = "Mozilla/5.0 (Linux; Android 7.0; Nexus 6 Build/NBD90Z) " +
+        "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/53.0.2785.124 Mobile Safari/537.36";
+
+    @Test
+    public void testRoundTrip() {
+        UserAgentAnalyzer userAgentAnalyzer = new UserAgentAnalyzer("classpath*:AllFields-tests.yaml");
+        FieldSchema schema = userAgentAnalyzer.getFieldSchema();
+        UserAgent userAgent = userAgentAnalyzer.parse(USER_AGENT);
+
+        UserAgentCodec codec = new UserAgentCodec(schema);
+        byte[] record = codec.encode(userAgent);
+        assertTrue(record.length < userAgent.toJson().length());
+
+        UserAgent decoded = codec.decode(record);
+        assertSame(schema, decoded.getFieldSchema());
+        assertTrue(decoded.isFrozen());
+        assertEquals(userAgent.toYamlTestCase(true), decoded.toYamlTestCase(true));
+        assertEquals(userAgent.hasSyntaxError(), decoded.hasSyntaxError());
+
+        // A single field directly from the record
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        for (String fieldName : userAgent.getAvailableFieldNames()) {
+            assertEquals(fieldName, userAgent.getValue(fieldName), codec.readValue(buffer, fieldName));
+            assertEquals(fieldName, userAgent.getConfidence(fieldName).longValue(), codec.readConfidence(buffer, fieldName));
+        }
+        assertEquals(UserAgent.UNKNOWN_VALUE, codec.readValue(buffer, "NoSuchField"));
+        assertEquals(-1, codec.readConfidence(buffer, "NoSuchField"));
+        assertEquals(0, buffer.position());
+
+        // A codec with a different schema cannot read it.
+        try {
+            new UserAgentCodec(FieldSchema.DEFAULT).decode(record);
+            fail("A different schema must be detected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            codec.decode(Arrays.copyOf(record, record.length - 1));
+            fail("An incomplete record must be detected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testSharedDictionary() {
+        UserAgentAnalyzer userAgentAnalyzer = new UserAgentAnalyzer("classpath*:AllFields-tests.yaml");
+        userAgentAnalyzer.setValueDictionarySize(100000);
+        FieldSchema schema = userAgentAnalyzer.getFieldSchema();
+        UserAgent userAgent = userAgentAnalyzer.parse(USER_AGENT);
+        ValueDictionary dictionary = userAgentAnalyzer.getValueDictionary();
+
+        // The values without a code (or added later) are written inline.
+        UserAgentCodec writer = new UserAgentCodec(schema, dictionary, dictionary.size() / 2);
+        byte[] record = writer.encode(userAgent);
+        assertTrue(record.length < new UserAgentCodec(schema).encode(userAgent).length);
+
+        // The reader has a copy of the shared values.
+        ValueDictionary readerDictionary = new ValueDictionary(1000);
+        for (String value : dictionary.getValues()) {
+            readerDictionary.encode(value);
+        }
+        UserAgentCodec reader = new UserAgentCodec(schema, readerDictionary, dictionary.size() / 2);
+        UserAgent decoded = reader.decode(record);
+        assertEquals(userAgent.toYamlTestCase(true), decoded.toYamlTestCase(true));
+        String agentName = reader.readValue(ByteBuffer.wrap(record), UserAgent.AGENT_NAME);
+        assertEquals(userAgent.getValue(UserAgent.AGENT_NAME), agentName);
+
+        // A reader without the dictionary cannot read it.
+        try {
+            new UserAgentCodec(schema).decode(record);
+            fail("A different dictionary must be detected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testFieldsOutsideTheSchema() {
+        UserAgent userAgent = new UserAgent("Something");
+        userAgent.set("Extra", "Value€", 5);
+        userAgent.set(UserAgent.AGENT_NAME, "Name", 3);
+
+        UserAgentCodec codec = new UserAgentCodec(FieldSchema.DEFAULT);
+        byte[] record = codec.encode(userAgent);
+        UserAgent decoded = codec.decode(record);
+        assertEquals(userAgent.toYamlTestCase(true), decoded.toYamlTestCase(true));
+        assertEquals("Value€", codec.readValue(ByteBuffer.wrap(record), "Extra"));
+        assertEquals(5, codec.readConfidence(ByteBuffer.wrap(record), "Extra"));
+        assertEquals("Name", codec.readValue(ByteBuffer.wrap(record), UserAgent.AGENT_NAME));
+    }
+
+    @Test
+    public void testSchemaFieldAfterAFieldOutsideTheSchema() {
+        // The extra field gets a lower id in the schema of the UserAgent so it is stored before the wanted field.
+        UserAgent userAgent = new UserAgent("Something", FieldSchema.of(Arrays.asList("AAA", "ZZZ")));
+        userAgent.set("AAA", "Extra", 5);
+        userAgent.set("ZZZ", "Wanted", 3);
+
+        UserAgentCodec codec = new UserAgentCodec(FieldSchema.of(Collections.singletonList("ZZZ")));
+        byte[] record = codec.encode(userAgent);
+        assertEquals("Wanted", codec.decode(record).getValue("ZZZ"));
+        assertEquals("Wanted", codec.readValue(ByteBuffer.wrap(record), "ZZZ"));
+        assertEquals(3, codec.readConfidence(ByteBuffer.wrap(record), "ZZZ"));
+        assertEquals("Extra", codec.readValue(ByteBuffer.wrap(record), "AAA"));
+    }
+}
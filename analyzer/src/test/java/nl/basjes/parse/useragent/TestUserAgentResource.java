@@ -0,0 +1,174 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class TestUserAgentResource {
+
+    private static final String NEXUS_6 = "Mozilla/5.0 (Linux; Android 7.0; Nexus 6 Build/NBD90Z) " +
+        "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/53.0.2785.124 Mobile Safari/537.36";
+
+    @Test
+    public void testSingleFlightParsing() throws InterruptedException {
+        final UserAgentResource resource = new UserAgentResource();
+
+        final int threads = 4;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<UserAgent> results = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            // Each thread has its own analyzer that shares the cache of the resource.
+            final UserAgentAnalyzer2 analyzer = new UserAgentAnalyzer2(resource);
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    UserAgent userAgent = analyzer.parse(NEXUS_6);
+                    synchronized (results) {
+                        results.add(userAgent);
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        Assert.assertEquals(threads, results.size());
+        for (UserAgent userAgent : results) {
+            Assert.assertEquals("Phone",          userAgent.getValue("DeviceClass"));
+            Assert.assertEquals("Google Nexus 6", userAgent.getValue("DeviceName"));
+            Assert.assertEquals("Chrome",         userAgent.getValue("AgentName"));
+            Assert.assertEquals("53.0.2785.124",  userAgent.getValue("AgentVersion"));
+            // The persistent cache deserializes into the same schema.
+            Assert.assertSame(resource.getFieldSchema(), userAgent.getFieldSchema());
+        }
+
+        // Only one of the threads did the actual parsing.
+        Assert.assertEquals(1, resource.getCacheStats().loadCount());
+        // Depending on the timing the others waited for that parse or found it in the cache afterwards
+        // (see testCoalescedRequests for the exact counting).
+        long coalesced = resource.getCoalescedRequestCount();
+
+        // A request for a cached useragent is a hit, not a coalesced request.
+        Assert.assertSame(results.get(0), resource.getOrParse(NEXUS_6, new UserAgentAnalyzer2(resource)));
+        Assert.assertEquals(coalesced, resource.getCoalescedRequestCount());
+
+        // The default loader uses an analyzer from a pool.
+        Assert.assertEquals(0, resource.getLoaderAnalyzerCount());
+        UserAgent userAgent = resource.getfromCache("Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)");
+        Assert.assertEquals("Robot", userAgent.getValue("DeviceClass"));
+        Assert.assertEquals(2, resource.getCacheStats().loadCount());
+        Assert.assertEquals(coalesced, resource.getCoalescedRequestCount());
+        Assert.assertEquals(1, resource.getLoaderAnalyzerCount());
+
+        // Closing releases the pooled analyzers, loading still works.
+        resource.close();
+        Assert.assertEquals(0, resource.getLoaderAnalyzerCount());
+        userAgent = resource.getfromCache("Mozilla/5.0 (Windows NT 10.0; WOW64; Trident/7.0; rv:11.0) like Gecko");
+        Assert.assertEquals("Desktop", userAgent.getValue("DeviceClass"));
+        Assert.assertEquals(0, resource.getLoaderAnalyzerCount());
+    }
+
+    // Does not finish a parse until it is allowed to.
+    private static final class BlockingAnalyzer extends UserAgentAnalyzer2 {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch finish = new CountDownLatch(1);
+
+        BlockingAnalyzer(UserAgentResource resource) {
+            super(resource);
+        }
+
+        @Override
+        synchronized UserAgent parseWithoutCache(String userAgentString) {
+            started.countDown();
+            try {
+                finish.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.parseWithoutCache(userAgentString);
+        }
+    }
+
+    @Test
+    public void testCoalescedRequests() throws InterruptedException {
+        final UserAgentResource resource = new UserAgentResource();
+        final BlockingAnalyzer loader = new BlockingAnalyzer(resource);
+
+        final List<UserAgent> results = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        final int waiters = 3;
+        for (int i = 0; i <= waiters; i++) {
+            final UserAgentAnalyzer2 analyzer = i == 0 ? loader : new UserAgentAnalyzer2(resource);
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    UserAgent userAgent = analyzer.parse(NEXUS_6);
+                    synchronized (results) {
+                        results.add(userAgent);
+                    }
+                }
+            });
+            workers.add(worker);
+        }
+
+        // The first one is loading while all others ask for the same useragent.
+        workers.get(0).start();
+        loader.started.await();
+        for (int i = 1; i <= waiters; i++) {
+            workers.get(i).start();
+        }
+        while (resource.getCoalescedRequestCount() < waiters) {
+            Thread.sleep(10);
+        }
+        loader.finish.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        Assert.assertEquals(waiters + 1, results.size());
+        for (UserAgent userAgent : results) {
+            Assert.assertSame(results.get(0), userAgent);
+        }
+        Assert.assertEquals(1, resource.getCacheStats().loadCount());
+        Assert.assertEquals(waiters, resource.getCoalescedRequestCount());
+
+        // Hits and new loads are not coalesced.
+        Assert.assertSame(results.get(0), new UserAgentAnalyzer2(resource).parse(NEXUS_6));
+        Assert.assertEquals("Robot", new UserAgentAnalyzer2(resource)
+            .parse("Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)").getValue("DeviceClass"));
+        Assert.assertEquals(2, resource.getCacheStats().loadCount());
+        Assert.assertEquals(waiters, resource.getCoalescedRequestCount());
+        resource.close();
+    }
+}
@@ -17,13 +17,37 @@
 
 package nl.basjes.parse.useragent.analyze;
 
+import nl.basjes.parse.useragent.ColumnarBatch;
+import nl.basjes.parse.useragent.UserAgent;
 import nl.basjes.parse.useragent.UserAgentAnalyzer;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TestBasics {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Test
     public void testCacheSetter() {
         UserAgentAnalyzer userAgentAnalyzer = new UserAgentAnalyzer("classpath*:AllFields-tests.yaml");
@@ -46,4 +70,237 @@ public class TestBasics {
         assertEquals("Incorrect cache size", 50000, userAgentAnalyzer.getCacheSize());
     }
 
+    @Test
+    public void testSharedCacheEntries() {
+        UserAgentAnalyzer userAgentAnalyzer = new UserAgentAnalyzer("classpath*:AllFields-tests.yaml");
+        String useragentString = "Mozilla/5.0 (Linux; Android 7.0; Nexus 6 Build/NBD90Z) " +
+            "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/53.0.2785.124 Mobile Safari/537.36";
+
+        // A cache hit returns the shared instance without copying anything.
+        UserAgent first = userAgentAnalyzer.parse(useragentString);
+        UserAgent second = userAgentAnalyzer.parse(useragentString);
+        assertSame(first, second);
+        assertTrue(first.isFrozen());
+        String deviceClass = first.getValue("DeviceClass");
+
+        try {
+            first.set("DeviceClass", "Changed", 1000);
+            fail("A frozen UserAgent must not be changeable");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+
+        // The copy on write instance can be changed without affecting the shared one.
+        UserAgent copy = first.copyOnWrite();
+        assertFalse(copy.isFrozen());
+        assertEquals(deviceClass, copy.getValue("DeviceClass"));
+        copy.set("DeviceClass", "Changed", 1000);
+        assertEquals("Changed", copy.getValue("DeviceClass"));
+        assertEquals(deviceClass, first.getValue("DeviceClass"));
+        assertEquals(deviceClass, userAgentAnalyzer.parse(useragentString).getValue("DeviceClass"));
+
+        // Parsing into a provided instance never hands out the shared instance.
+        UserAgent provided = new UserAgent(useragentString);
+        assertSame(provided, userAgentAnalyzer.parse(provided));
+        assertNotSame(first, provided);
+        assertFalse(provided.isFrozen());
+        assertEquals(deviceClass, provided.getValue("DeviceClass"));
+    }
+
+    @Test
+    public void testClearThreadLocalCache() {
+        UserAgentAnalyzer userAgentAnalyzer = new UserAgentAnalyzer("classpath*:AllFields-tests.yaml");
+        userAgentAnalyzer.setThreadLocalCacheSize(16);
+        String useragent = "Mozilla/5.0 (Linux; Android 7.0; Nexus 6 Build/NBD90Z) " +
+            "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/53.0.2785.124 Mobile Safari/537.36";
+
+        UserAgent first = userAgentAnalyzer.parse(useragent);
+        assertSame(first, userAgentAnalyzer.parse(useragent));
+
+        userAgentAnalyzer.clearCache();
+        UserAgent second = userAgentAnalyzer.parse(useragent);
+        assertNotSame(first, second);
+        assertEquals(first.toYamlTestCase(), second.toYamlTestCase());
+        assertSame(second, userAgentAnalyzer.parse(useragent));
+
+        userAgentAnalyzer.setCacheSize(100);
+        UserAgent third = userAgentAnalyzer.parse(useragent);
+        assertNotSame(second, third);
+
+        userAgentAnalyzer.close();
+        assertEquals(0, userAgentAnalyzer.getThreadLocalCacheSize());
+        assertEquals(first.toYamlTestCase(), userAgentAnalyzer.parse(useragent).toYamlTestCase());
+    }
+
+    @Test
+    public void testPersistentCache() throws IOException {
+        File cacheFile = new File(temporaryFolder.getRoot(), "parse.cache");
+        String useragentString = "Mozilla/5.0 (Linux; Android 7.0; Nexus 6 Build/NBD90Z) " +
+            "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/53.0.2785.124 Mobile Safari/537.36";
+
+        UserAgentAnalyzer first = new UserAgentAnalyzer("classpath*:AllFields-tests.yaml");
+        first.setPersistentCache(cacheFile, 100, 100000);
+        UserAgent expected = first.parse(useragentString);
+        assertEquals(1, first.getPersistentCacheStats().getEntries());
+        first.closePersistentCache();
+
+        // Same rules: the result comes from the file.
+        UserAgentAnalyzer second = new UserAgentAnalyzer("classpath*:AllFields-tests.yaml");
+        assertEquals(first.getRuleSetVersion(), second.getRuleSetVersion());
+        second.setPersistentCache(cacheFile, 100, 100000);
+        UserAgent stored = second.parse(useragentString);
+        assertEquals(1, second.getPersistentCacheStats().getHits());
+        assertTrue(stored.isFrozen());
+        assertEquals(expected.toYamlTestCase(true), stored.toYamlTestCase(true));
+        second.closePersistentCache();
+
+        // Different rules: the stale content is not used.
+        UserAgentAnalyzer third = new UserAgentAnalyzer("classpath*:Matcher-tests.yaml");
+        assertNotEquals(first.getRuleSetVersion(), third.getRuleSetVersion());
+        third.setPersistentCache(cacheFile, 100, 100000);
+        assertEquals(0, third.getPersistentCacheStats().getEntries());
+        third.parse(useragentString);
+        assertEquals(0, third.getPersistentCacheStats().getHits());
+        assertEquals(1, third.getPersistentCacheStats().getMisses());
+        third.closePersistentCache();
+    }
+
+    @Test
+    public void testByteKeyedParse() {
+        UserAgentAnalyzer userAgentAnalyzer = new UserAgentAnalyzer("classpath*:AllFields-tests.yaml");
+        String useragentString = "Mozilla/5.0 (Linux; Android 7.0; Nexus 6 Build/NBD90Z) " +
+            "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/53.0.2785.124 Mobile Safari/537.36";
+        byte[] useragentBytes = useragentString.getBytes(StandardCharsets.UTF_8);
+
+        // Not enabled by default: the bytes are decoded and the parse cache is used.
+        assertEquals(0, userAgentAnalyzer.getByteKeyCacheSize());
+        UserAgent decoded = userAgentAnalyzer.parse(useragentBytes, 0, useragentBytes.length);
+        assertNull(userAgentAnalyzer.getByteKeyCacheStats());
+        assertSame(decoded, userAgentAnalyzer.parse(useragentString));
+
+        // The byte keyed cache has its own limits; the limits of the parse cache are unchanged.
+        int cacheSize = userAgentAnalyzer.getCacheSize();
+        long cacheMaxBytes = userAgentAnalyzer.getCacheMaxBytes();
+        userAgentAnalyzer.setByteKeyCacheSize(100, 1000000);
+        assertEquals(100, userAgentAnalyzer.getByteKeyCacheSize());
+        assertEquals(1000000, userAgentAnalyzer.getByteKeyCacheMaxBytes());
+        assertEquals(cacheSize, userAgentAnalyzer.getCacheSize());
+        assertEquals(cacheMaxBytes, userAgentAnalyzer.getCacheMaxBytes());
+
+        // The useragent in the middle of a larger buffer (i.e. a log line).
+        byte[] line = ("GET / " + useragentString + " 200").getBytes(StandardCharsets.UTF_8);
+        UserAgent fromBytes = userAgentAnalyzer.parse(line, 6, useragentBytes.length);
+        assertEquals(useragentString, fromBytes.getUserAgentString());
+        assertEquals(1, userAgentAnalyzer.getByteKeyCacheStats().getMisses());
+
+        UserAgent fromString = userAgentAnalyzer.parse(useragentString);
+        assertSame(fromString, fromBytes);
+
+        // A different buffer with the same bytes is found without decoding it.
+        assertSame(fromBytes, userAgentAnalyzer.parse(useragentBytes, 0, useragentBytes.length));
+        ByteBuffer direct = ByteBuffer.allocateDirect(useragentBytes.length);
+        direct.put(useragentBytes).flip();
+        assertSame(fromBytes, userAgentAnalyzer.parse(direct));
+        assertEquals(0, direct.position());
+        assertEquals(2, userAgentAnalyzer.getByteKeyCacheStats().getHits());
+
+        // Without a cache the bytes are simply decoded and parsed.
+        userAgentAnalyzer.disableCaching();
+        UserAgent uncached = userAgentAnalyzer.parse(ByteBuffer.wrap(line, 6, useragentBytes.length));
+        assertEquals(fromString.toYamlTestCase(true), uncached.toYamlTestCase(true));
+        assertNull(userAgentAnalyzer.getByteKeyCacheStats());
+        assertEquals(0, userAgentAnalyzer.getByteKeyCacheSize());
+    }
+
+    @Test
+    public void testCacheExportImport() throws IOException {
+        String[] useragentStrings = {
+            "Mozilla/5.0 (Linux; Android 7.0; Nexus 6 Build/NBD90Z) " +
+                "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/53.0.2785.124 Mobile Safari/537.36",
+            "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) " +
+                "Chrome/58.0.3029.110 Safari/537.36",
+        };
+
+        UserAgentAnalyzer first = new UserAgentAnalyzer("classpath*:AllFields-tests.yaml");
+        for (String useragentString : useragentStrings) {
+            first.parse(useragentString);
+        }
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        assertEquals(2, first.exportCache(snapshot));
+        byte[] snapshotBytes = snapshot.toByteArray();
+
+        // Same rules: the results come from the snapshot.
+        UserAgentAnalyzer second = new UserAgentAnalyzer("classpath*:AllFields-tests.yaml");
+        assertEquals(2, second.importCache(new ByteArrayInputStream(snapshotBytes)));
+        for (String useragentString : useragentStrings) {
+            UserAgent imported = second.parse(useragentString);
+            assertTrue(imported.isFrozen());
+            assertEquals(first.parse(useragentString).toYamlTestCase(true), imported.toYamlTestCase(true));
+        }
+        assertEquals(2, second.getCacheStats().getHits());
+        assertEquals(0, second.getCacheStats().getMisses());
+
+        // An incomplete snapshot is not used at all.
+        UserAgentAnalyzer third = new UserAgentAnalyzer("classpath*:AllFields-tests.yaml");
+        try {
+            third.importCache(new ByteArrayInputStream(Arrays.copyOf(snapshotBytes, snapshotBytes.length - 20)));
+            fail("An incomplete snapshot must be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+        third.parse(useragentStrings[0]);
+        assertEquals(0, third.getCacheStats().getHits());
+
+        // Different rules: the snapshot is rejected.
+        UserAgentAnalyzer fourth = new UserAgentAnalyzer("classpath*:Matcher-tests.yaml");
+        try {
+            fourth.importCache(new ByteArrayInputStream(snapshotBytes));
+            fail("A snapshot of different rules must be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testColumnarBatch() {
+        UserAgentAnalyzer userAgentAnalyzer = new UserAgentAnalyzer("classpath*:AllFields-tests.yaml");
+        userAgentAnalyzer.setValueDictionarySize(100000);
+        String phone = "Mozilla/5.0 (Linux; Android 7.0; Nexus 6 Build/NBD90Z) " +
+            "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/53.0.2785.124 Mobile Safari/537.36";
+        String desktop = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) " +
+            "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/58.0.3029.110 Safari/537.36";
+        List<String> userAgents = Arrays.asList(phone, desktop, phone);
+        List<String> fieldNames = Arrays.asList(UserAgent.AGENT_NAME, "AgentNameVersion", "NoSuchField");
+
+        ColumnarBatch batch = userAgentAnalyzer.newColumnarBatch(fieldNames, true);
+        assertSame(batch, userAgentAnalyzer.parse(userAgents, batch));
+        assertEquals(3, batch.size());
+
+        for (int column = 0; column < fieldNames.size(); column++) {
+            String fieldName = fieldNames.get(column);
+            assertEquals(column, batch.getColumn(fieldName));
+            for (int row = 0; row < userAgents.size(); row++) {
+                UserAgent userAgent = userAgentAnalyzer.parse(userAgents.get(row));
+                assertEquals(userAgent.getValue(fieldName),      batch.getValues(column)[row]);
+                assertEquals(userAgent.getValueCode(fieldName),  batch.getCodes(column)[row]);
+                assertEquals(userAgent.getConfidence(fieldName).longValue(), batch.getConfidences(column)[row]);
+            }
+        }
+        // The same result so the same value instance
+        assertSame(batch.getValues(1)[0], batch.getValues(1)[2]);
+
+        // Filled again with fewer rows; the arrays are reused.
+        String[] agentNames = batch.getValues(0);
+        userAgentAnalyzer.parse(Collections.singletonList(desktop), batch);
+        assertEquals(1, batch.size());
+        assertSame(agentNames, batch.getValues(0));
+        assertNull(agentNames[1]);
+
+        try {
+            userAgentAnalyzer.newColumnarBatch(fieldNames, false).getConfidences(0);
+            fail("There are no confidences");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
 }
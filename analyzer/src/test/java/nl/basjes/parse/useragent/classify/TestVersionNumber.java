@@ -0,0 +1,86 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.basjes.parse.useragent.classify;
+
+import nl.basjes.parse.useragent.UserAgent;
+import org.junit.Test;
+
+import static nl.basjes.parse.useragent.UserAgent.AGENT_VERSION;
+import static nl.basjes.parse.useragent.UserAgent.DEVICE_CLASS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestVersionNumber {
+
+    @Test
+    public void testParse() {
+        VersionNumber version = VersionNumber.parse("53.0.2785.124");
+        assertEquals(53,   version.getMajor());
+        assertEquals(0,    version.getMinor());
+        assertEquals(2785, version.getPatch());
+        assertEquals("53.0.2785", version.toString());
+
+        assertEquals(VersionNumber.of(10, 3),   VersionNumber.parse("10_3b"));
+        assertEquals(VersionNumber.of(7),       VersionNumber.parse("7.x"));
+        assertEquals(VersionNumber.of(4, 2),    VersionNumber.parse(".4.2"));
+        assertSame(VersionNumber.UNKNOWN,       VersionNumber.parse("??"));
+        assertSame(VersionNumber.UNKNOWN,       VersionNumber.parse("Hacker"));
+        assertSame(VersionNumber.UNKNOWN,       VersionNumber.parse("www.example.com"));
+        assertSame(VersionNumber.UNKNOWN,       VersionNumber.parse(null));
+        assertEquals(Integer.MAX_VALUE,   VersionNumber.parse("99999999999999999999").getMajor());
+        assertEquals(-1,                  VersionNumber.UNKNOWN.getMajor());
+    }
+
+    @Test
+    public void testCompare() {
+        assertTrue(VersionNumber.parse("60.0.3112.90").isAtLeast(60));
+        assertTrue(VersionNumber.parse("60").isAtLeast(60, 0, 0));
+        assertFalse(VersionNumber.parse("59.9").isAtLeast(60));
+        assertFalse(VersionNumber.parse("10.2").isAtLeast(10, 3));
+        assertFalse(VersionNumber.UNKNOWN.isAtLeast(0));
+
+        assertEquals(0, VersionNumber.parse("53").compareTo(VersionNumber.parse("53.0")));
+        assertTrue(VersionNumber.parse("9.1").compareTo(VersionNumber.parse("10")) < 0);
+        assertTrue(VersionNumber.UNKNOWN.compareTo(VersionNumber.of(0)) < 0);
+        assertEquals(0, VersionNumber.UNKNOWN.compareTo(VersionNumber.parse("??")));
+    }
+
+    @Test
+    public void testTypedFields() {
+        UserAgent userAgent = new UserAgent("Something");
+        userAgent.set(DEVICE_CLASS, "Phone", 1);
+        userAgent.set(AGENT_VERSION, "61.0.3163.100", 1);
+        assertSame(DeviceClass.Phone, userAgent.getDeviceClass());
+        assertEquals(VersionNumber.of(61, 0, 3163), userAgent.getAgentVersion());
+        assertSame(VersionNumber.UNKNOWN, userAgent.getOperatingSystemVersion());
+
+        // A frozen copy has the same typed values.
+        UserAgent frozen = userAgent.frozenCopy();
+        assertSame(userAgent.getAgentVersion(), frozen.getAgentVersion());
+
+        // A change is seen
+        userAgent.set(DEVICE_CLASS, "Tablet", 2);
+        userAgent.set(AGENT_VERSION, "62", 2);
+        assertSame(DeviceClass.Tablet, userAgent.getDeviceClass());
+        assertEquals(VersionNumber.of(62), userAgent.getAgentVersion());
+        assertSame(DeviceClass.Phone, frozen.getDeviceClass());
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.debug;
+
+import nl.basjes.parse.useragent.UserAgent;
+import nl.basjes.parse.useragent.UserAgentAnalyzer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestPrecomputeDictionary {
+
+    private static final String RULES = "classpath*:AllFields-tests.yaml";
+
+    private static final String NEXUS_6 = "Mozilla/5.0 (Linux; Android 7.0; Nexus 6 Build/NBD90Z) " +
+        "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/53.0.2785.124 Mobile Safari/537.36";
+    private static final String GOOGLEBOT = "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)";
+    private static final String RARE = "Rare/1.0";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File createLog() throws IOException {
+        File log = temporaryFolder.newFile("useragents.txt");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(log), StandardCharsets.UTF_8)) {
+            writer.write("# hits ips useragent\n");
+            writer.write("100\t10\t" + NEXUS_6 + "\n");
+            writer.write("1\t1\t" + RARE + "\n");
+            writer.write(GOOGLEBOT + "\n");
+            writer.write("50\t5\t" + GOOGLEBOT + "\n");
+            // Truncated or edited lines are skipped.
+            writer.write("1000\t" + RARE + "\n");
+            writer.write("many\t10\t" + RARE + "\n");
+        }
+        return log;
+    }
+
+    @Test
+    public void testMostUsed() throws IOException {
+        File log = createLog();
+        assertArrayEquals(new String[]{NEXUS_6, GOOGLEBOT},
+            PrecomputeDictionary.mostUsedUserAgents(Collections.singletonList(log), 2));
+    }
+
+    @Test
+    public void testPrecomputedResultsAreUsed() throws IOException, InterruptedException {
+        File dictionaryFile = new File(temporaryFolder.getRoot(), "useragents.dict");
+        assertEquals(2, PrecomputeDictionary.build(
+            Collections.singletonList(createLog()), dictionaryFile, 2, 2, RULES));
+
+        UserAgentAnalyzer reference = new UserAgentAnalyzer(RULES);
+        reference.disableCaching();
+
+        UserAgentAnalyzer analyzer = new UserAgentAnalyzer(RULES);
+        analyzer.setDictionary(dictionaryFile);
+        UserAgent precomputed = analyzer.parse(NEXUS_6);
+        assertTrue(precomputed.isFrozen());
+        assertEquals(reference.parse(NEXUS_6).toYamlTestCase(true), precomputed.toYamlTestCase(true));
+        assertEquals(reference.parse(RARE).toYamlTestCase(true), analyzer.parse(RARE).toYamlTestCase(true));
+
+        // A dictionary made with different rules is refused.
+        UserAgentAnalyzer otherRules = new UserAgentAnalyzer("classpath*:Matcher-tests.yaml");
+        try {
+            otherRules.setDictionary(dictionaryFile);
+            fail("A stale dictionary must be refused");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.basjes.parse.useragent.parse;
+
+import nl.basjes.parse.useragent.UserAgent;
+import nl.basjes.parse.useragent.UserAgentAnalyzer;
+import nl.basjes.parse.useragent.debug.UserAgentAnalyzerTester;
+import nl.basjes.parse.useragent.parse.CacheKeyCanonicalizer.TokenClass;
+import org.junit.Test;
+
+import java.util.EnumSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestCacheKeyCanonicalizer {
+
+    private static final String RULES = "classpath*:CanonicalCacheKeys-tests.yaml";
+
+    private static final String[] USERAGENTS = {
+        "Foo/1.0 (Phone; 550e8400-e29b-41d4-a716-446655440000; foo@example.com; http://www.example.com/x)",
+        "Foo/1.0 (Phone; 123e4567-e89b-12d3-a456-426655440000; bar@example.org; http://www.example.nl/yy)",
+        "Foo/1.0 (Tablet; 123e4567-e89b-12d3-a456-426655440000; bar@example.org; http://www.example.nl/yy)",
+        "Bar/2.0 (Phone; 123e4567-e89b-12d3-a456-426655440000)",
+        "Foo/1.0 (Phone; VGhpcyBpcyBhIHRlc3Qgb2YgYmFzZTY0IGVuY29kaW5n/A==)",
+        "Foo/1.0 (Phone; U29tZSBvdGhlciB0ZXN0IHN0cmluZyBvZiAzMyBieXRl/B==)",
+        "Foo/1.0 (Phone)",
+        "Foo/1.0 (Phone; 550e8400-e29b-41d4-a716-446655440000",
+    };
+
+    @Test
+    public void testTokenClassesFromRules() {
+        UserAgentAnalyzer uaa = new UserAgentAnalyzer(RULES);
+        assertTrue(uaa.getCanonicalCacheKeyTokenClasses().isEmpty());
+        uaa.setCanonicalCacheKeys(true);
+        assertEquals(EnumSet.allOf(TokenClass.class), uaa.getCanonicalCacheKeyTokenClasses());
+
+        // These rules compare the values of uuids, urls and email addresses with a literal.
+        uaa = new UserAgentAnalyzer("classpath*:AllFields-tests.yaml");
+        uaa.setCanonicalCacheKeys(true);
+        assertEquals(EnumSet.of(TokenClass.BASE64), uaa.getCanonicalCacheKeyTokenClasses());
+    }
+
+    @Test
+    public void testCanonicalize() {
+        CacheKeyCanonicalizer canonicalizer = new CacheKeyCanonicalizer(EnumSet.allOf(TokenClass.class));
+        String canonical = canonicalizer.canonicalize(USERAGENTS[0]);
+        assertEquals("Foo/1.0 (Phone; 00000000-0000-0000-0000-000000000000; aaa@aaaaaaa.aaa; http://www.aaaaaaa.aaa/a)",
+            canonical);
+        assertEquals(canonical.length(), USERAGENTS[0].length());
+        assertNotEquals(canonical, canonicalizer.canonicalize(USERAGENTS[1])); // Different lengths
+
+        assertEquals("Foo/1.0 (Phone; aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa/a==)",
+            canonicalizer.canonicalize(USERAGENTS[4]));
+        assertEquals(canonicalizer.canonicalize(USERAGENTS[4]), canonicalizer.canonicalize(USERAGENTS[5]));
+
+        // Nothing to replace
+        assertSame(USERAGENTS[6], canonicalizer.canonicalize(USERAGENTS[6]));
+
+        // Only the allowed token classes are replaced.
+        CacheKeyCanonicalizer uuidOnly = new CacheKeyCanonicalizer(EnumSet.of(TokenClass.UUID));
+        assertEquals("Foo/1.0 (Phone; 00000000-0000-0000-0000-000000000000; bar@example.org; http://www.example.nl/yy)",
+            uuidOnly.canonicalize(USERAGENTS[1]));
+        assertSame(USERAGENTS[5], uuidOnly.canonicalize(USERAGENTS[5]));
+
+        assertSame(USERAGENTS[0], new CacheKeyCanonicalizer(EnumSet.noneOf(TokenClass.class)).canonicalize(USERAGENTS[0]));
+    }
+
+    @Test
+    public void testSameResults() {
+        UserAgentAnalyzerTester tester = new UserAgentAnalyzerTester(RULES);
+        tester.setCanonicalCacheKeys(true);
+        assertTrue(tester.runTests(false, true));
+
+        UserAgentAnalyzer uaa = new UserAgentAnalyzer(RULES);
+        uaa.setCanonicalCacheKeys(true);
+        UserAgentAnalyzer reference = new UserAgentAnalyzer(RULES);
+        reference.disableCaching();
+
+        for (int round = 0; round < 2; round++) {
+            for (String userAgentString : USERAGENTS) {
+                UserAgent userAgent = uaa.parse(userAgentString);
+                UserAgent expected = reference.parse(userAgentString);
+                assertEquals(userAgentString, userAgent.getUserAgentString());
+                assertEquals(expected.toYamlTestCase(true), userAgent.toYamlTestCase(true));
+
+                UserAgent provided = new UserAgent(userAgentString);
+                uaa.parse(provided);
+                assertEquals(expected.toYamlTestCase(true), provided.toYamlTestCase(true));
+            }
+        }
+
+        // Both base64 useragents share a single cache entry.
+        uaa = new UserAgentAnalyzer(RULES);
+        uaa.setCanonicalCacheKeys(true);
+        uaa.parse(USERAGENTS[4]);
+        assertEquals(0, uaa.getCacheStats().getHits());
+        UserAgent userAgent = uaa.parse(USERAGENTS[5]);
+        assertEquals(1, uaa.getCacheStats().getHits());
+        assertEquals(USERAGENTS[5], userAgent.getUserAgentString());
+        assertEquals("Phone", userAgent.getValue("DeviceClass"));
+    }
+}
@@ -20,18 +20,61 @@ package nl.basjes.parse.useragent.parse;
 import nl.basjes.parse.useragent.UserAgent;
 import nl.basjes.parse.useragent.UserAgentAnalyzer;
 import nl.basjes.parse.useragent.UserAgentAnalyzer.GetAllPathsAnalyzer;
+import nl.basjes.parse.useragent.parser.UserAgentLexer;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.Interval;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
 public class TestUserAgentFlattening {
 
     private final Logger LOG = LoggerFactory.getLogger(TestUserAgentFlattening.class);
 
+    @Test
+    public void testCharSequenceInput() {
+        String[] userAgents = {
+            "Mozilla/5.0 (Linux; Android 7.0; Nexus 6 Build/NBD90Z) AppleWebKit/537.36 (KHTML, like Gecko) " +
+                "Chrome/53.0.2785.124 Mobile Safari/537.36",
+            "One/1 (;Key=Value;; em@il.nl ; http://web.site ; Sub product/2(Sub Comment,))",
+            "Fo\u00f6/1.0 (\u00c4 \u0444\u0430\u0439\u043b; 12345678-1234-1234-1234-123456789012",
+            "",
+        };
+        for (String userAgent : userAgents) {
+            List<? extends Token> expected = new UserAgentLexer(new ANTLRInputStream(userAgent)).getAllTokens();
+            List<? extends Token> actual = new UserAgentLexer(new CharSequenceCharStream(userAgent)).getAllTokens();
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getType(), actual.get(i).getType());
+                assertEquals(expected.get(i).getText(), actual.get(i).getText());
+                assertEquals(expected.get(i).getStartIndex(), actual.get(i).getStartIndex());
+            }
+        }
+
+        CharStream input = new CharSequenceCharStream(new StringBuilder("Abc"));
+        assertEquals("Abc", input.toString());
+        assertEquals("bc", input.getText(Interval.of(1, 10)));
+        assertEquals("", input.getText(Interval.of(3, 4)));
+        input.consume();
+        assertEquals('b', input.LA(1));
+        assertEquals('A', input.LA(-1));
+        input.seek(3);
+        assertEquals(IntStream.EOF, input.LA(1));
+
+        UserAgentAnalyzer userAgentAnalyzer = new UserAgentAnalyzer("classpath*:AllFields-tests.yaml");
+        UserAgent fromString = userAgentAnalyzer.parse(userAgents[0]);
+        UserAgent fromBuilder = userAgentAnalyzer.parse(new StringBuilder(userAgents[0]));
+        assertEquals(fromString.toJson(), fromBuilder.toJson());
+    }
+
     @Test
     public void testFlatteningProduct() throws Exception {
         validateUserAgent(
@@ -0,0 +1,82 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class TestImmutableDictionary {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        File file = new File(temporaryFolder.getRoot(), "test.dict");
+        // A tiny block size to get many blocks.
+        try (ImmutableDictionary.Writer writer = new ImmutableDictionary.Writer(file, "Version 1", 64)) {
+            for (int i = 1000; i < 2000; i++) {
+                writer.add("Key " + i, bytes("Value " + i));
+            }
+            writer.add("één €", bytes("Non ASCII"));
+        }
+
+        try (ImmutableDictionary dictionary = new ImmutableDictionary(file)) {
+            assertEquals("Version 1", dictionary.getStamp());
+            assertEquals(1001, dictionary.size());
+            for (int i = 1000; i < 2000; i++) {
+                assertArrayEquals(bytes("Value " + i), dictionary.get("Key " + i));
+            }
+            assertArrayEquals(bytes("Non ASCII"), dictionary.get("één €"));
+            assertNull(dictionary.get("A key before the first"));
+            assertNull(dictionary.get("Key 1500 "));
+            assertNull(dictionary.get("Key 9999"));
+            assertNull(dictionary.get("zzz after the last"));
+            assertEquals(1001, dictionary.getHits());
+            assertEquals(4, dictionary.getMisses());
+        }
+    }
+
+    @Test
+    public void testKeysMustBeSorted() throws IOException {
+        File file = new File(temporaryFolder.getRoot(), "test.dict");
+        try (ImmutableDictionary.Writer writer = new ImmutableDictionary.Writer(file, "Version 1")) {
+            writer.add("B", bytes("B"));
+            try {
+                writer.add("A", bytes("A"));
+                fail("Unsorted keys must be rejected");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+}
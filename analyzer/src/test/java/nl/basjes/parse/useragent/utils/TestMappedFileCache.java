@@ -0,0 +1,114 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestMappedFileCache {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testSurvivesReopen() throws IOException {
+        File file = new File(temporaryFolder.getRoot(), "test.cache");
+        try (MappedFileCache cache = new MappedFileCache(file, "Version 1", 100, 10000)) {
+            assertNull(cache.get("one"));
+            assertTrue(cache.put("one", bytes("1")));
+            assertTrue(cache.put("two", bytes("2")));
+            assertTrue(cache.put("één €", bytes("Non ASCII")));
+            assertArrayEquals(bytes("1"), cache.get("one"));
+            assertEquals(3, cache.size());
+        }
+
+        try (MappedFileCache cache = new MappedFileCache(file, "Version 1", 100, 10000)) {
+            assertEquals(3, cache.size());
+            assertArrayEquals(bytes("1"), cache.get("one"));
+            assertArrayEquals(bytes("2"), cache.get("two"));
+            assertArrayEquals(bytes("Non ASCII"), cache.get("één €"));
+            assertNull(cache.get("three"));
+            assertEquals(3, cache.getStats().getHits());
+            assertEquals(1, cache.getStats().getMisses());
+        }
+    }
+
+    @Test
+    public void testStaleFileIsWiped() throws IOException {
+        File file = new File(temporaryFolder.getRoot(), "test.cache");
+        try (MappedFileCache cache = new MappedFileCache(file, "Version 1", 100, 10000)) {
+            cache.put("one", bytes("1"));
+        }
+
+        try (MappedFileCache oldVersion = new MappedFileCache(file, "Version 1", 100, 10000)) {
+            assertArrayEquals(bytes("1"), oldVersion.get("one"));
+            try (MappedFileCache newVersion = new MappedFileCache(file, "Version 2", 100, 10000)) {
+                assertNull(newVersion.get("one"));
+                assertEquals(0, newVersion.size());
+                newVersion.put("one", bytes("One"));
+                assertArrayEquals(bytes("One"), newVersion.get("one"));
+
+                // The process with the old version no longer gets anything from the file.
+                assertFalse(oldVersion.isValid());
+                assertNull(oldVersion.get("one"));
+                assertFalse(oldVersion.put("two", bytes("2")));
+            }
+        }
+    }
+
+    @Test
+    public void testFull() throws IOException {
+        File file = new File(temporaryFolder.getRoot(), "test.cache");
+        try (MappedFileCache cache = new MappedFileCache(file, "Version 1", 10, 100000)) {
+            int stored = 0;
+            for (int i = 0; i < 100; i++) {
+                if (cache.put("Key " + i, bytes("Value " + i))) {
+                    stored++;
+                }
+            }
+            assertEquals(cache.maxSize(), stored);
+            assertEquals(100 - stored, cache.getStats().getRejects());
+            for (int i = 0; i < stored; i++) {
+                assertArrayEquals(bytes("Value " + i), cache.get("Key " + i));
+            }
+        }
+    }
+
+    @Test
+    public void testHashOfStringAndBytesIsTheSame() {
+        String[] values = {"", "Mozilla/5.0", "één €", "Smile 😀"};
+        for (String value : values) {
+            assertEquals(Hash64.hash(bytes(value)), Hash64.hash(value));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestMultiLiteralScanner {
+
+    private List<Integer> sorted(List<Integer> values) {
+        Collections.sort(values);
+        return values;
+    }
+
+    @Test
+    public void testOverlappingLiterals() {
+        MultiLiteralScanner scanner = new MultiLiteralScanner(Arrays.asList("he", "she", "his", "hers"));
+        assertEquals(4, scanner.getNumberOfLiterals());
+
+        assertEquals(Arrays.asList(0, 1, 3), sorted(scanner.findAll("ushers")));
+        assertEquals(Arrays.asList(2),       sorted(scanner.findAll("this")));
+        assertTrue(scanner.findAll("xyz").isEmpty());
+        assertTrue(scanner.findAll("").isEmpty());
+        assertTrue(scanner.findAll(null).isEmpty());
+    }
+
+    @Test
+    public void testCaseInsensitive() {
+        MultiLiteralScanner scanner = new MultiLiteralScanner(Arrays.asList("Nexus", "android", "SM-T"));
+        assertEquals(Arrays.asList(0, 1, 2),
+            sorted(scanner.findAll("Mozilla/5.0 (Linux; ANDROID 6.0; NEXUS 5 SM-t800)")));
+        assertEquals(Arrays.asList(1),
+            sorted(scanner.findAll("androi Android")));
+    }
+
+    @Test
+    public void testFailureLinks() {
+        // After failing on "abcx" the scan must continue from "bc" to find "bcd".
+        MultiLiteralScanner scanner = new MultiLiteralScanner(Arrays.asList("abcde", "bcd", "c"));
+        assertEquals(Arrays.asList(1, 2), sorted(scanner.findAll("abcdx")));
+        assertEquals(Arrays.asList(0, 1, 2), sorted(scanner.findAll("aabcde")));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.utils;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestPrefixMap {
+
+    @Test
+    public void testLongestPrefix() {
+        Map<String, String> prefixes = new HashMap<>();
+        prefixes.put("SM-",  "Samsung");
+        prefixes.put("SM-T", "Samsung Tablet");
+        prefixes.put("GT-",  "Samsung");
+        prefixes.put("S",    "Something");
+
+        PrefixMap prefixMap = new PrefixMap(prefixes);
+        assertEquals(4, prefixMap.size());
+
+        assertEquals("Samsung Tablet", prefixMap.getLongestMatch("SM-T800"));
+        assertEquals("Samsung Tablet", prefixMap.getLongestMatch("SM-T"));
+        assertEquals("Samsung",        prefixMap.getLongestMatch("SM-G900F"));
+        assertEquals("Samsung",        prefixMap.getLongestMatch("GT-I9300"));
+        assertEquals("Something",      prefixMap.getLongestMatch("SM"));
+        assertEquals("Something",      prefixMap.getLongestMatch("Sony"));
+        assertNull(prefixMap.getLongestMatch("GT"));
+        assertNull(prefixMap.getLongestMatch("Nokia"));
+        assertNull(prefixMap.getLongestMatch(""));
+        assertNull(prefixMap.getLongestMatch(null));
+    }
+
+    @Test
+    public void testCaseInsensitive() {
+        PrefixMap prefixMap = new PrefixMap();
+        prefixMap.put("Nexus", "Google");
+        assertEquals("Google", prefixMap.getLongestMatch("nexus 5"));
+        assertEquals("Google", prefixMap.getLongestMatch("NEXUS 7"));
+        assertNull(prefixMap.getLongestMatch("Nex"));
+    }
+
+    @Test
+    public void testEmptyPrefixMatchesEverything() {
+        PrefixMap prefixMap = new PrefixMap();
+        prefixMap.put("", "Default");
+        prefixMap.put("A", "Alpha");
+        assertEquals("Alpha",   prefixMap.getLongestMatch("Aap"));
+        assertEquals("Default", prefixMap.getLongestMatch("Noot"));
+        assertEquals("Default", prefixMap.getLongestMatch(""));
+    }
+
+    @Test
+    public void testOverwrite() {
+        PrefixMap prefixMap = new PrefixMap();
+        prefixMap.put("abc", "One");
+        prefixMap.put("ABC", "Two");
+        assertEquals(1, prefixMap.size());
+        assertEquals("Two", prefixMap.getLongestMatch("abcdef"));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestThreadLocalCache {
+
+    @Test
+    public void testGetPut() {
+        ThreadLocalCache<String, String> cache = new ThreadLocalCache<>(200);
+        assertEquals(256, cache.size());
+
+        assertNull(cache.get("one"));
+        cache.put("one", "1");
+        assertEquals("1", cache.get("one"));
+        // Equal but not the same instance
+        assertEquals("1", cache.get(new String("one")));
+
+        ThreadLocalCache.Stats stats = cache.getStats();
+        assertEquals(2, stats.getHits());
+        assertEquals(1, stats.getMisses());
+    }
+
+    @Test
+    public void testDirectMapped() {
+        ThreadLocalCache<Integer, Integer> cache = new ThreadLocalCache<>(4);
+        // Integers hash to themselves so 1 and 5 map to the same slot.
+        cache.put(1, 1);
+        cache.put(5, 5);
+        assertNull(cache.get(1));
+        assertEquals(Integer.valueOf(5), cache.get(5));
+        assertEquals(1, cache.getStats().getEvictions());
+    }
+
+    @Test
+    public void testPerThread() throws InterruptedException {
+        final ThreadLocalCache<String, String> cache = new ThreadLocalCache<>(16);
+        cache.put("key", "value");
+
+        final String[] otherThreadValue = {"Not set"};
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                otherThreadValue[0] = cache.get("key");
+            }
+        });
+        other.start();
+        other.join();
+
+        assertNull(otherThreadValue[0]);
+        assertEquals("value", cache.get("key"));
+        assertEquals(1, cache.getStats().getMisses());
+        assertEquals(1, cache.getStats().getHits());
+    }
+
+    @Test
+    public void testClearAllThreads() throws InterruptedException {
+        final ThreadLocalCache<String, String> cache = new ThreadLocalCache<>(16);
+        final CountDownLatch filled = new CountDownLatch(1);
+        final CountDownLatch cleared = new CountDownLatch(1);
+        final String[] otherThreadValue = {"Not set"};
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                cache.put("key", "other");
+                filled.countDown();
+                try {
+                    cleared.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                otherThreadValue[0] = cache.get("key");
+            }
+        });
+        other.start();
+        cache.put("key", "value");
+        filled.await();
+
+        cache.clear();
+        cleared.countDown();
+        other.join();
+
+        // Both the table of this thread and the one of the still running other thread are emptied.
+        assertNull(cache.get("key"));
+        assertNull(otherThreadValue[0]);
+    }
+
+    @Test
+    public void testStatsOfEndedThreads() throws InterruptedException {
+        final ThreadLocalCache<String, String> cache = new ThreadLocalCache<>(16);
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                cache.get("key");
+                cache.put("key", "value");
+                cache.get("key");
+                cache.get("key");
+            }
+        });
+        other.start();
+        other.join();
+        other = null;
+
+        // Make the table of the ended thread unreachable; the counters must survive that.
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            assertEquals(1, cache.getStats().getMisses());
+            assertEquals(2, cache.getStats().getHits());
+        }
+    }
+
+    @Test
+    public void testClose() {
+        ThreadLocalCache<String, String> cache = new ThreadLocalCache<>(16);
+        cache.put("key", "value");
+        assertEquals("value", cache.get("key"));
+        cache.close();
+        assertNull(cache.get("key"));
+        assertEquals(1, cache.getStats().getHits());
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestTinyLfuCache {
+
+    @Test
+    public void testGetPut() {
+        TinyLfuCache<String, String> cache = new TinyLfuCache<>(10);
+        assertNull(cache.get("one"));
+        cache.put("one", "1");
+        cache.put("two", "2");
+        assertEquals("1", cache.get("one"));
+        assertEquals("2", cache.get("two"));
+        cache.put("one", "One");
+        assertEquals("One", cache.get("one"));
+        assertEquals(2, cache.size());
+        assertEquals(10, cache.maxSize());
+
+        TinyLfuCache.Stats stats = cache.getStats();
+        assertEquals(3, stats.getHits());
+        assertEquals(1, stats.getMisses());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get("one"));
+    }
+
+    @Test
+    public void testBounded() {
+        TinyLfuCache<Integer, Integer> cache = new TinyLfuCache<>(1000);
+        for (int i = 0; i < 100000; i++) {
+            if (cache.get(i) == null) {
+                cache.put(i, i);
+            }
+        }
+        assertTrue(cache.size() <= 1000);
+        TinyLfuCache.Stats stats = cache.getStats();
+        assertEquals(100000, stats.getMisses());
+        assertEquals(100000 - cache.size(), stats.getEvictions() + stats.getAdmissionRejects());
+    }
+
+    @Test
+    public void testHotEntriesSurviveOneHitWonders() {
+        TinyLfuCache<String, String> cache = new TinyLfuCache<>(100);
+        for (int round = 0; round < 10; round++) {
+            for (int hot = 0; hot < 50; hot++) {
+                String key = "Hot " + hot;
+                if (cache.get(key) == null) {
+                    cache.put(key, key);
+                }
+            }
+        }
+
+        // A plain LRU would lose all hot entries to this scan.
+        for (int once = 0; once < 10000; once++) {
+            String key = "Once " + once;
+            if (cache.get(key) == null) {
+                cache.put(key, key);
+            }
+        }
+
+        int hotHits = 0;
+        for (int hot = 0; hot < 50; hot++) {
+            if (cache.get("Hot " + hot) != null) {
+                hotHits++;
+            }
+        }
+        assertTrue("Only " + hotHits + " of the hot entries survived", hotHits >= 45);
+        assertTrue(cache.getStats().getAdmissionRejects() > 0);
+    }
+
+    @Test
+    public void testCostAndWeight() {
+        TinyLfuCache<String, String> cache = new TinyLfuCache<>(1000, 10000);
+        assertEquals(10000, cache.maxWeight());
+
+        // Expensive entries that are requested less often than the cheap ones that follow.
+        for (int round = 0; round < 3; round++) {
+            for (int expensive = 0; expensive < 50; expensive++) {
+                String key = "Expensive " + expensive;
+                if (cache.get(key) == null) {
+                    cache.put(key, key, 1000, 100);
+                }
+            }
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int cheap = 0; cheap < 500; cheap++) {
+                String key = "Cheap " + cheap;
+                if (cache.get(key) == null) {
+                    cache.put(key, key, 10, 100);
+                }
+            }
+        }
+        assertTrue(cache.weight() <= cache.maxWeight());
+
+        int expensiveHits = 0;
+        for (int expensive = 0; expensive < 50; expensive++) {
+            if (cache.get("Expensive " + expensive) != null) {
+                expensiveHits++;
+            }
+        }
+        assertTrue("Only " + expensiveHits + " of the expensive entries survived", expensiveHits >= 45);
+
+        // Something that does not fit at all is never admitted.
+        cache.put("Huge", "Huge", 1000000, 20000);
+        cache.put("Push", "Push", 1, 1);
+        assertNull(cache.get("Huge"));
+        assertTrue(cache.weight() <= cache.maxWeight());
+    }
+
+    @Test
+    public void testSnapshotAndLoad() {
+        TinyLfuCache<String, String> cache = new TinyLfuCache<>(100);
+        for (int i = 0; i < 50; i++) {
+            cache.put("Key" + i, "Value" + i);
+        }
+        for (int round = 0; round < 5; round++) {
+            cache.get("Key7");
+        }
+        cache.get("Key3");
+
+        List<TinyLfuCache.Entry<String, String>> snapshot = cache.snapshot();
+        assertEquals(50, snapshot.size());
+        assertEquals("Key7", snapshot.get(0).getKey());
+        assertEquals("Value7", snapshot.get(0).getValue());
+        assertEquals(5, snapshot.get(0).getFrequency());
+        assertEquals("Key3", snapshot.get(1).getKey());
+
+        // A smaller cache keeps the most important entries.
+        TinyLfuCache<String, String> smaller = new TinyLfuCache<>(10);
+        smaller.load(snapshot);
+        assertEquals(10, smaller.size());
+        assertEquals("Value7", smaller.get("Key7"));
+        assertEquals("Value3", smaller.get("Key3"));
+    }
+
+    @Test
+    public void testConcurrentSketchUpdates() throws Exception {
+        // Small enough to have many hot keys share a long, big enough to never halve the counters.
+        final int hotKeys = 64;
+        FrequencySketch reference = new FrequencySketch(1024);
+        for (int key = 0; key < hotKeys; key++) {
+            for (int i = 0; i < 15; i++) {
+                reference.increment(key);
+            }
+        }
+
+        final int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            // The counters only race when they reach the maximum so this is done many times.
+            for (int round = 0; round < 200; round++) {
+                final FrequencySketch sketch = new FrequencySketch(1024);
+                final CyclicBarrier start = new CyclicBarrier(threads);
+                List<Future<?>> results = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    results.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            start.await();
+                            for (int i = 0; i < 4; i++) {
+                                for (int key = 0; key < hotKeys; key++) {
+                                    sketch.increment(key);
+                                }
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<?> result : results) {
+                    result.get();
+                }
+
+                // All counters of the hot keys are saturated so the result must be exactly the same
+                // as doing it in a single thread: no counter went above 15 and carried into its neighbour.
+                for (int key = 0; key < 10000; key++) {
+                    int frequency = sketch.frequency(key);
+                    assertTrue(frequency <= 15);
+                    assertEquals("Round " + round + " key " + key, reference.frequency(key), frequency);
+                    if (key < hotKeys) {
+                        assertEquals(15, frequency);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentSketchReset() throws InterruptedException {
+        // Many more keys than the sketch is made for so the counters are halved all the time
+        // (on a saturated sketch an increment adds nothing so it would never be halved).
+        final FrequencySketch sketch = new FrequencySketch(256);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        sketch.increment((i * 31 + thread) % 1000);
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (int key = 0; key < 1000; key++) {
+            int frequency = sketch.frequency(key);
+            assertTrue(frequency >= 0 && frequency <= 15);
+        }
+
+        // The counters are still halved afterwards (i.e. a reset is never left half done).
+        while (sketch.frequency(42) < 15) {
+            sketch.increment(42);
+        }
+        int key = 1000;
+        while (sketch.frequency(42) == 15 && key < 100000) {
+            sketch.increment(key++);
+        }
+        assertEquals(7, sketch.frequency(42));
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.basjes.parse.useragent.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+public class TestUtf8Key {
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testWrapAndCopy() {
+        byte[] buffer = bytes("xxOne € twoxx");
+        Utf8Key wrapped = Utf8Key.wrap(buffer, 2, buffer.length - 4);
+        Utf8Key copied = Utf8Key.copyOf(bytes("One € two"), 0, bytes("One € two").length);
+
+        assertEquals(wrapped, copied);
+        assertEquals(copied, wrapped);
+        assertEquals(wrapped.hashCode(), copied.hashCode());
+        assertEquals(Hash64.hash("One € two"), wrapped.hash64());
+        assertEquals("One € two", wrapped.decode());
+
+        assertNotEquals(wrapped, Utf8Key.wrap(buffer, 2, buffer.length - 5));
+        assertNotEquals(wrapped, Utf8Key.wrap(bytes("One € twO"), 0, buffer.length - 4));
+
+        // The copy no longer depends on the buffer.
+        Utf8Key stored = wrapped.copy();
+        assertSame(stored, stored.copy());
+        buffer[2] = 'X';
+        assertNotEquals(wrapped, stored);
+        assertEquals(copied, stored);
+    }
+
+    @Test
+    public void testByteBuffer() {
+        byte[] value = bytes("Mozilla/5.0");
+        Utf8Key expected = Utf8Key.copyOf(value, 0, value.length);
+
+        ByteBuffer heap = ByteBuffer.wrap(bytes("[Mozilla/5.0]"), 1, value.length).slice();
+        assertEquals(expected, Utf8Key.wrap(heap));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(20);
+        direct.put(bytes("ab")).put(value).flip();
+        direct.position(2);
+        assertEquals(expected, Utf8Key.wrap(direct));
+        assertEquals(2, direct.position());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testOutOfRange() {
+        Utf8Key.wrap(new byte[10], 5, 6);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.benchmarks;
+
+import nl.basjes.parse.useragent.UserAgent;
+import nl.basjes.parse.useragent.UserAgentAnalyzer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the number of bytes allocated per parse (using the GC profiler) in the allocation lean mode
+ * (see {@link UserAgentAnalyzer#setAllocationLean(boolean)}) while parsing into a reused UserAgent.
+ * <p>
+ * Running the main checks every benchmark against its budget and fails (exit code 1) if any of them
+ * allocates more; this is what the 'AllocationBudget' profile of this module does during 'mvn verify'.
+ * When a change legitimately needs more memory the budget must be raised in the same change.
+ * <p>
+ * NOTE: The current budgets are provisional. They were derived from a ThreadMXBean based measurement of the
+ * same parses, not from the JMH output this check compares against. Replace them with the gc.alloc.rate.norm
+ * values reported by the first run of the 'AllocationBudget' profile.
+ */
+public class AllocationBenchmarks {
+
+    // The maximum number of bytes allocated per parse: 15% above what was measured when this was last changed
+    // (247658, 130000 and 24992 bytes per parse), rounded up to the next 1000.
+    // PROVISIONAL: measured with ThreadMXBean.getThreadAllocatedBytes around the same parses, not with JMH.
+    // Set these from the gc.alloc.rate.norm output of the first 'AllocationBudget' run.
+    private static final Map<String, Long> BUDGETS = new HashMap<>();
+    static {
+        BUDGETS.put("android6Chrome46",  285000L);
+        BUDGETS.put("win10IE11",         150000L);
+        BUDGETS.put("googlebot",          29000L);
+    }
+
+    private static final String ALLOCATED_PER_OPERATION = "\u00b7gc.alloc.rate.norm";
+
+    @State(Scope.Thread)
+    public static class LeanState {
+        final UserAgentAnalyzer uaa;
+        final UserAgent userAgent = new UserAgent();
+
+        public LeanState() {
+            uaa = UserAgentAnalyzer
+                    .newBuilder()
+                    .withoutCache()
+                    .withAllocationLeanParsing()
+                    .hideMatcherLoadStats()
+                    .build();
+        }
+
+        UserAgent parse(String userAgentString) {
+            userAgent.setUserAgentString(userAgentString);
+            return uaa.parse(userAgent);
+        }
+    }
+
+    @Benchmark
+    public UserAgent android6Chrome46(LeanState state) {
+        return state.parse("Mozilla/5.0 (Linux; Android 6.0; Nexus 6 Build/MRA58N) AppleWebKit/537.36 (KHTML, like Gecko) " +
+            "Chrome/46.0.2490.76 Mobile Safari/537.36");
+    }
+
+    @Benchmark
+    public UserAgent win10IE11(LeanState state) {
+        return state.parse("Mozilla/5.0 (Windows NT 10.0; WOW64; Trident/7.0; rv:11.0) like Gecko");
+    }
+
+    @Benchmark
+    public UserAgent googlebot(LeanState state) {
+        return state.parse("Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+            .include(AllocationBenchmarks.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .warmupIterations(5)
+            .measurementIterations(5)
+            .mode(Mode.AverageTime)
+            .timeUnit(TimeUnit.MICROSECONDS)
+            .forks(1)
+            .build();
+
+        Collection<RunResult> results = new Runner(opt).run();
+
+        boolean withinBudget = true;
+        for (RunResult result : results) {
+            String benchmark = result.getParams().getBenchmark();
+            String label = benchmark.substring(benchmark.lastIndexOf('.') + 1);
+            Result allocated = result.getSecondaryResults().get(ALLOCATED_PER_OPERATION);
+            Long budget = BUDGETS.get(label);
+            if (allocated == null || budget == null) {
+                System.err.println("No allocation budget check possible for " + label);
+                withinBudget = false;
+                continue;
+            }
+            long bytes = Math.round(allocated.getScore());
+            if (bytes > budget) {
+                System.err.println("OVER BUDGET: " + label + " allocates " + bytes + " bytes per parse (budget " + budget + ")");
+                withinBudget = false;
+            } else {
+                System.out.println("Within budget: " + label + " allocates " + bytes + " bytes per parse (budget " + budget + ")");
+            }
+        }
+        if (!withinBudget) {
+            System.exit(1);
+        }
+    }
+}
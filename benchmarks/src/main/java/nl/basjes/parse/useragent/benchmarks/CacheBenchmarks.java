@@ -0,0 +1,162 @@
+/*
+ * Yet Another UserAgent Analyzer
+ * Copyright (C) 2013-2017 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.parse.useragent.benchmarks;
+
+import nl.basjes.parse.useragent.utils.TinyLfuCache;
+import org.apache.commons.collections4.map.LRUMap;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the hit ratio and throughput of the old synchronized LRUMap with the TinyLfuCache
+ * on a trace of useragents of which the popularity follows a Zipfian distribution.
+ * A miss is 'handled' by putting the key in the cache (the parse itself is left out to only measure the cache).
+ */
+public class CacheBenchmarks {
+
+    private static final int CACHE_SIZE = 10000;
+
+    @State(Scope.Benchmark)
+    public static class Trace {
+        @Param({"1000000"})
+        int distinctUserAgents;
+
+        @Param({"0.99"})
+        double skew;
+
+        String[] userAgents;
+        int[] trace;
+
+        @Setup
+        public void createTrace() {
+            userAgents = new String[distinctUserAgents];
+            for (int i = 0; i < distinctUserAgents; i++) {
+                userAgents[i] = "Mozilla/5.0 (Linux; Android 6.0; Device " + i + " Build/MRA58N) AppleWebKit/537.36 " +
+                    "(KHTML, like Gecko) Chrome/" + (i % 100) + ".0.2490.76 Mobile Safari/537.36";
+            }
+
+            // The cumulative probability of the Zipfian distribution: rank i has weight 1/(i+1)^skew
+            double[] cumulative = new double[distinctUserAgents];
+            double total = 0;
+            for (int i = 0; i < distinctUserAgents; i++) {
+                total += 1.0 / Math.pow(i + 1, skew);
+                cumulative[i] = total;
+            }
+
+            Random random = new Random(42);
+            trace = new int[1 << 22];
+            for (int i = 0; i < trace.length; i++) {
+                int index = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+                trace[i] = index < 0 ? Math.min(-(index + 1), distinctUserAgents - 1) : index;
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Caches {
+        LRUMap<String, String> lruMap;
+        TinyLfuCache<String, String> tinyLfu;
+
+        @Setup(Level.Iteration)
+        public void createCaches() {
+            lruMap = new LRUMap<>(CACHE_SIZE);
+            tinyLfu = new TinyLfuCache<>(CACHE_SIZE);
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Cursor {
+        public long hits;
+        public long misses;
+        private int position;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            hits = 0;
+            misses = 0;
+            position = new Random().nextInt(1 << 22);
+        }
+
+        String next(Trace trace) {
+            position = (position + 1) & (trace.trace.length - 1);
+            return trace.userAgents[trace.trace[position]];
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String lruMap(Trace trace, Caches caches, Cursor cursor) {
+        String userAgent = cursor.next(trace);
+        LRUMap<String, String> cache = caches.lruMap;
+        // This is how the cache was used: the entire lookup and update is synchronized.
+        synchronized (cache) {
+            String value = cache.get(userAgent);
+            if (value != null) {
+                cursor.hits++;
+                return value;
+            }
+            cursor.misses++;
+            cache.put(userAgent, userAgent);
+            return userAgent;
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String tinyLfu(Trace trace, Caches caches, Cursor cursor) {
+        String userAgent = cursor.next(trace);
+        TinyLfuCache<String, String> cache = caches.tinyLfu;
+        String value = cache.get(userAgent);
+        if (value != null) {
+            cursor.hits++;
+            return value;
+        }
+        cursor.misses++;
+        cache.put(userAgent, userAgent);
+        return userAgent;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+            .include(CacheBenchmarks.class.getSimpleName())
+            .warmupIterations(5)
+            .measurementIterations(10)
+            .mode(Mode.Throughput)
+            .timeUnit(TimeUnit.MILLISECONDS)
+            .forks(1)
+            .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -33,6 +33,10 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
@@ -242,8 +246,17 @@ public class ParseService {
                 .build();
         }
         Response.ResponseBuilder responseBuilder = Response.status(200);
-        UserAgent userAgent = parse(userAgentString);
-        return responseBuilder.entity(userAgent.toJson()).build();
+        final UserAgent userAgent = parse(userAgentString);
+        // Written straight to the response without building the json String first.
+        StreamingOutput json = new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                BufferedOutputStream out = new BufferedOutputStream(output);
+                userAgent.writeJson(out);
+                out.flush();
+            }
+        };
+        return responseBuilder.entity(json).build();
     }
 
     private StringBuilder addBugReportButton(StringBuilder sb, UserAgent userAgent) {